@@ -0,0 +1,145 @@
+package com.p2pfilesharer.bench;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// A minimal measurement harness: warm-up iterations, measured iterations, and the collected results as JSON.
+// The application prints progress while it works, so results go to the console stream given here.
+public class Bench {
+
+    public interface Iteration {
+        // Runs one iteration and returns its score in the unit of the benchmark
+        double run() throws Exception;
+    }
+
+    private final PrintStream console;
+    private final int warmups;
+    private final int iterations;
+    private final List<Result> results = new ArrayList<>();
+
+    public Bench(int warmups, int iterations, PrintStream console) {
+        this.warmups = warmups;
+        this.iterations = iterations;
+        this.console = console;
+    }
+
+    // Params are given as name, value pairs and identify the result together with the name
+    public Result measure(String name, String unit, Iteration iteration, Object... params) throws Exception {
+        double[] samples = new double[iterations];
+        for (int i = 0; i < warmups; i++) {
+            iteration.run();
+        }
+        for (int i = 0; i < iterations; i++) {
+            samples[i] = iteration.run();
+        }
+        Result result = new Result(name, unit, params, samples);
+        results.add(result);
+        console.println(result);
+        return result;
+    }
+
+    public void writeJson(Path file) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"timestamp\": ").append(quote(Instant.now().toString()))
+                .append(",\n  \"java\": ").append(quote(System.getProperty("java.vm.name") + " " + System.getProperty("java.version")))
+                .append(",\n  \"os\": ").append(quote(System.getProperty("os.name") + " " + System.getProperty("os.arch")))
+                .append(",\n  \"cpus\": ").append(Runtime.getRuntime().availableProcessors())
+                .append(",\n  \"warmups\": ").append(warmups)
+                .append(",\n  \"iterations\": ").append(iterations)
+                .append(",\n  \"results\": [");
+        for (int i = 0; i < results.size(); i++) {
+            json.append(i == 0 ? "\n    " : ",\n    ").append(results.get(i).toJson());
+        }
+        json.append("\n  ]\n}\n");
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        Files.writeString(file, json, StandardCharsets.UTF_8);
+        console.println("Results written to " + file);
+    }
+
+    static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    static String number(double value) {
+        return Double.isFinite(value) ? String.format(Locale.ROOT, "%.4f", value) : "null";
+    }
+
+    public static class Result {
+        private final String name;
+        private final String unit;
+        private final Map<String, Object> params = new LinkedHashMap<>();
+        private final double[] samples;
+        private final double mean;
+        private final double stddev;
+        private final double min;
+        private final double max;
+
+        Result(String name, String unit, Object[] params, double[] samples) {
+            if (params.length % 2 != 0) {
+                throw new IllegalArgumentException("Params must be given as name, value pairs.");
+            }
+            this.name = name;
+            this.unit = unit;
+            for (int i = 0; i < params.length; i += 2) {
+                this.params.put(String.valueOf(params[i]), params[i + 1]);
+            }
+            this.samples = samples;
+            double sum = 0;
+            double lowest = Double.MAX_VALUE;
+            double highest = -Double.MAX_VALUE;
+            for (double sample : samples) {
+                sum += sample;
+                lowest = Math.min(lowest, sample);
+                highest = Math.max(highest, sample);
+            }
+            this.mean = sum / samples.length;
+            double squares = 0;
+            for (double sample : samples) {
+                squares += (sample - mean) * (sample - mean);
+            }
+            this.stddev = samples.length > 1 ? Math.sqrt(squares / (samples.length - 1)) : 0;
+            this.min = lowest;
+            this.max = highest;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        String toJson() {
+            StringBuilder json = new StringBuilder("{\"benchmark\": ").append(quote(name)).append(", \"params\": {");
+            int i = 0;
+            for (Map.Entry<String, Object> param : params.entrySet()) {
+                json.append(i++ == 0 ? "" : ", ").append(quote(param.getKey())).append(": ");
+                Object value = param.getValue();
+                json.append(value instanceof Number || value instanceof Boolean ? value.toString() : quote(String.valueOf(value)));
+            }
+            json.append("}, \"unit\": ").append(quote(unit))
+                    .append(", \"mean\": ").append(number(mean))
+                    .append(", \"stddev\": ").append(number(stddev))
+                    .append(", \"min\": ").append(number(min))
+                    .append(", \"max\": ").append(number(max))
+                    .append(", \"samples\": [");
+            for (int s = 0; s < samples.length; s++) {
+                json.append(s == 0 ? "" : ", ").append(number(samples[s]));
+            }
+            return json.append("]}").toString();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-10s %-75s %10.2f ± %-8.2f %s", name, params, mean, stddev, unit);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.p2pfilesharer.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Runs the benchmark suites and writes every result to a JSON file, so runs can be compared to catch regressions.
+// Usage: BenchmarkSuite [--quick] [--out file.json] [transfer] [crypto] [http] [discovery] [udp]
+public class BenchmarkSuite {
+
+    public static void main(String[] args) throws Exception {
+        boolean quick = false;
+        Path out = Path.of("bench-results.json");
+        List<String> suites = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--quick" -> quick = true;
+                case "--out" -> out = Path.of(args[++i]);
+                default -> suites.add(args[i]);
+            }
+        }
+        if (suites.isEmpty()) {
+            suites = List.of("crypto", "transfer", "http", "discovery", "udp");
+        }
+
+        // Senders, receivers and servers print progress from their own threads; only results reach the console
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Bench bench = quick ? new Bench(1, 3, console) : new Bench(2, 5, console);
+        try {
+            for (String suite : suites) {
+                console.println("== " + suite);
+                switch (suite) {
+                    case "transfer" -> TransferBenchmark.run(bench, quick);
+                    case "crypto" -> CryptoBenchmark.run(bench, quick);
+                    case "http" -> HttpBenchmark.run(bench, quick);
+                    case "discovery" -> DiscoveryBenchmark.run(bench, quick);
+                    case "udp" -> UdpBenchmark.run(bench, quick);
+                    default -> throw new IllegalArgumentException("Unknown suite: " + suite);
+                }
+            }
+            bench.writeJson(out);
+        } finally {
+            System.setOut(console);
+        }
+    }
+}
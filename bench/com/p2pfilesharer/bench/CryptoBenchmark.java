@@ -0,0 +1,65 @@
+package com.p2pfilesharer.bench;
+
+import com.p2pfilesharer.encryption.CryptoUtils;
+
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+
+// PBKDF2 key derivation latency and AES-GCM seal/open throughput per chunk size, without any I/O
+public class CryptoBenchmark {
+
+    private static final String PASSWORD = "benchmark-password";
+    private static final int[] CHUNK_SIZES = {16 * 1024, 64 * 1024, 1024 * 1024, 4 * 1024 * 1024};
+
+    public static void run(Bench bench, boolean quick) throws Exception {
+        SecureRandom random = new SecureRandom();
+        bench.measure("crypto", "ms/op", () -> {
+            byte[] salt = new byte[CryptoUtils.SALT_LENGTH];
+            random.nextBytes(salt);
+            long start = System.nanoTime();
+            CryptoUtils.getKeyFromPassword(PASSWORD, salt);
+            return (System.nanoTime() - start) / 1e6;
+        }, "operation", "pbkdf2");
+
+        SecretKey key = CryptoUtils.getKeyFromPassword(PASSWORD, new byte[CryptoUtils.SALT_LENGTH]);
+        byte[] noncePrefix = CryptoUtils.generateNoncePrefix();
+        long bytesPerIteration = quick ? 32L << 20 : 256L << 20;
+        // GCM refuses to seal twice under the same nonce, so the counter keeps running across chunk sizes
+        long[] counter = {0};
+        for (int chunkSize : CHUNK_SIZES) {
+            ByteBuffer plain = ByteBuffer.allocateDirect(chunkSize);
+            ByteBuffer sealed = ByteBuffer.allocateDirect(chunkSize + CryptoUtils.TAG_LENGTH);
+            ByteBuffer opened = ByteBuffer.allocateDirect(chunkSize);
+            byte[] fill = new byte[chunkSize];
+            random.nextBytes(fill);
+            plain.put(fill).flip();
+            int chunks = (int) Math.max(1, bytesPerIteration / chunkSize);
+
+            bench.measure("crypto", "MB/s", () -> {
+                long start = System.nanoTime();
+                for (int i = 0; i < chunks; i++) {
+                    plain.rewind();
+                    sealed.clear();
+                    CryptoUtils.sealChunk(key, noncePrefix, counter[0]++, plain, sealed);
+                }
+                return (double) chunks * chunkSize / 1e6 / ((System.nanoTime() - start) / 1e9);
+            }, "operation", "seal", "chunkSize", chunkSize);
+
+            plain.rewind();
+            sealed.clear();
+            long sealedWith = counter[0]++;
+            CryptoUtils.sealChunk(key, noncePrefix, sealedWith, plain, sealed);
+            sealed.flip();
+            bench.measure("crypto", "MB/s", () -> {
+                long start = System.nanoTime();
+                for (int i = 0; i < chunks; i++) {
+                    sealed.rewind();
+                    opened.clear();
+                    CryptoUtils.openChunk(key, noncePrefix, sealedWith, sealed, opened);
+                }
+                return (double) chunks * chunkSize / 1e6 / ((System.nanoTime() - start) / 1e9);
+            }, "operation", "open", "chunkSize", chunkSize);
+        }
+    }
+}
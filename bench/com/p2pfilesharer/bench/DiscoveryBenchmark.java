@@ -0,0 +1,42 @@
+package com.p2pfilesharer.bench;
+
+import com.p2pfilesharer.discovery.PeerDiscovery;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+
+// Round trip of a discovery request to the local listener, sent unicast over loopback instead of broadcast
+public class DiscoveryBenchmark {
+
+    private static final int DISCOVERY_PORT = 12346;
+    private static final byte[] REQUEST = "P2P_FILE_SHARER_DISCOVERY_REQUEST".getBytes(StandardCharsets.US_ASCII);
+    private static final int PROBES = 1000;
+
+    public static void run(Bench bench, boolean quick) throws Exception {
+        PeerDiscovery listener = new PeerDiscovery();
+        Thread thread = new Thread(listener);
+        thread.start();
+        Thread.sleep(200);
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(1000);
+            InetAddress loopback = InetAddress.getLoopbackAddress();
+            byte[] answer = new byte[1024];
+            bench.measure("discovery", "us/op", () -> {
+                long start = System.nanoTime();
+                for (int i = 0; i < PROBES; i++) {
+                    socket.send(new DatagramPacket(REQUEST, REQUEST.length, loopback, DISCOVERY_PORT));
+                    socket.receive(new DatagramPacket(answer, answer.length));
+                }
+                return (System.nanoTime() - start) / 1e3 / PROBES;
+            }, "transport", "udp-loopback");
+        } catch (IOException e) {
+            System.err.println("Discovery benchmark skipped, the listener did not answer: " + e.getMessage());
+        } finally {
+            listener.stop();
+            thread.join();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.p2pfilesharer.bench;
+
+import com.p2pfilesharer.web.HttpFileServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Aggregate download throughput of the web server with 1 to 64 clients fetching the same file at once
+public class HttpBenchmark {
+
+    private static final int PORT = 12480;
+    private static final int[] CLIENTS = {1, 4, 16, 64};
+
+    public static void run(Bench bench, boolean quick) throws Exception {
+        long fileSize = quick ? 4L << 20 : 16L << 20;
+        File file = Files.createTempFile("p2p-httpbench", ".bin").toFile();
+        byte[] data = new byte[(int) fileSize];
+        new Random(fileSize).nextBytes(data);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.write(data);
+        }
+
+        HttpFileServer server = new HttpFileServer(file, PORT);
+        server.start();
+        Thread.sleep(200);
+        try {
+            for (int clients : CLIENTS) {
+                ExecutorService pool = Executors.newFixedThreadPool(clients);
+                try {
+                    bench.measure("http", "MB/s", () -> downloadAll(pool, clients, fileSize),
+                            "clients", clients, "fileSize", fileSize);
+                } finally {
+                    pool.shutdownNow();
+                }
+            }
+        } finally {
+            server.stop();
+            file.delete();
+        }
+    }
+
+    private static double downloadAll(ExecutorService pool, int clients, long fileSize) throws Exception {
+        List<Future<Long>> downloads = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            downloads.add(pool.submit(HttpBenchmark::download));
+        }
+        long total = 0;
+        for (Future<Long> download : downloads) {
+            total += download.get();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (total != fileSize * clients) {
+            throw new IOException("Expected " + fileSize * clients + " bytes but downloaded " + total + ".");
+        }
+        return total / 1e6 / seconds;
+    }
+
+    private static long download() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) URI.create("http://127.0.0.1:" + PORT + "/download").toURL().openConnection();
+        byte[] buffer = new byte[64 * 1024];
+        long received = 0;
+        try (InputStream in = connection.getInputStream()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                received += read;
+            }
+        } finally {
+            connection.disconnect();
+        }
+        return received;
+    }
+}
@@ -0,0 +1,164 @@
+package com.p2pfilesharer.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Forwards TCP connections to a target, adding delay and a bandwidth cap shared by all connections in each
+// direction, like a slow link in front of a node. TCP repairs its own losses, so packet loss is left to
+// ImpairedRelay; what a lossy link does to TCP shows up here as a lower rate.
+public class ImpairedProxy implements AutoCloseable {
+
+    private static final int SEGMENT = 32 * 1024;
+    // Segments read ahead per direction and connection; a full queue stops reading, so the sender feels it
+    private static final int QUEUED_SEGMENTS = 64;
+
+    private final ServerSocket server;
+    private final InetSocketAddress target;
+    private final Link upstream = new Link();
+    private final Link downstream = new Link();
+    private final Thread acceptor;
+    private volatile long oneWayDelayNanos;
+    private volatile double bytesPerSecond;
+    private volatile boolean running = true;
+
+    public ImpairedProxy(int listenPort, InetSocketAddress target) throws IOException {
+        this.server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(listenPort), 200);
+        this.target = target;
+        acceptor = Thread.ofVirtual().name("impaired-proxy-" + listenPort).unstarted(this::accept);
+    }
+
+    // Split evenly between the two directions
+    public ImpairedProxy setRoundTripMillis(long millis) {
+        oneWayDelayNanos = TimeUnit.MILLISECONDS.toNanos(millis) / 2;
+        return this;
+    }
+
+    // Per direction; 0 leaves the rate uncapped
+    public ImpairedProxy setRateMbit(double mbit) {
+        bytesPerSecond = mbit * 1_000_000 / 8;
+        return this;
+    }
+
+    public ImpairedProxy start() {
+        acceptor.start();
+        return this;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        server.close();
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket client = server.accept();
+                Socket outgoing = new Socket();
+                try {
+                    outgoing.connect(target, 5000);
+                } catch (IOException e) {
+                    client.close();
+                    continue;
+                }
+                client.setTcpNoDelay(true);
+                outgoing.setTcpNoDelay(true);
+                AtomicInteger open = new AtomicInteger(2);
+                pipe(client, outgoing, upstream, open);
+                pipe(outgoing, client, downstream, open);
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Proxy accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // A reader that stamps each segment with when it leaves the link, and a writer that holds it until then. The end
+    // of one direction is passed on as a half close; the sockets are closed once both directions have ended, or at
+    // once when either fails.
+    private void pipe(Socket from, Socket to, Link link, AtomicInteger open) {
+        BlockingQueue<Segment> queue = new ArrayBlockingQueue<>(QUEUED_SEGMENTS);
+        Thread.ofVirtual().start(() -> {
+            byte[] buffer = new byte[SEGMENT];
+            try {
+                InputStream in = from.getInputStream();
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    queue.put(new Segment(link.depart(read) + oneWayDelayNanos, Arrays.copyOf(buffer, read)));
+                }
+                queue.put(Segment.END);
+            } catch (IOException | InterruptedException e) {
+                queue.clear();
+                queue.offer(Segment.FAILED);
+            }
+        });
+        Thread.ofVirtual().start(() -> {
+            try {
+                OutputStream out = to.getOutputStream();
+                while (true) {
+                    Segment segment = queue.take();
+                    if (segment == Segment.FAILED) {
+                        throw new IOException("The other side failed.");
+                    }
+                    if (segment == Segment.END) {
+                        break;
+                    }
+                    long wait = segment.at - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    out.write(segment.data);
+                }
+                to.shutdownOutput();
+                if (open.decrementAndGet() == 0) {
+                    closeQuietly(from);
+                    closeQuietly(to);
+                }
+            } catch (IOException | InterruptedException e) {
+                // Closing both sockets also ends the other direction and tells both peers
+                closeQuietly(from);
+                closeQuietly(to);
+                queue.clear();
+            }
+        });
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    private class Link {
+        private long busyUntil;
+
+        synchronized long depart(int bytes) {
+            long now = System.nanoTime();
+            if (bytesPerSecond <= 0) {
+                return now;
+            }
+            busyUntil = Math.max(now, busyUntil) + (long) (bytes / bytesPerSecond * 1e9);
+            return busyUntil;
+        }
+    }
+
+    private record Segment(long at, byte[] data) {
+        static final Segment END = new Segment(0, new byte[0]);
+        static final Segment FAILED = new Segment(0, new byte[0]);
+    }
+}
@@ -0,0 +1,238 @@
+package com.p2pfilesharer.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Forwards UDP datagrams between clients and a target, adding delay, random loss and a bandwidth cap with a
+// drop-tail queue, so long and lossy links can be tried on one machine. Every client gets its own socket towards
+// the target, so the target sees them as different peers; the link is shared by all of them.
+//
+// Usage: ImpairedRelay LISTEN_PORT TARGET_HOST:PORT [--rtt MS] [--loss PERCENT] [--rate MBIT/S] [--queue KB]
+public class ImpairedRelay implements AutoCloseable {
+
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final DatagramChannel listening;
+    private final InetSocketAddress target;
+    private final Map<SocketAddress, Upstream> upstreams = new HashMap<>();
+    private final Selector selector;
+    private final Thread thread;
+    private final Random random = new Random(42);
+    private final PriorityQueue<Delivery> scheduled = new PriorityQueue<>();
+    private final Direction toTarget = new Direction();
+    private final Direction toClient = new Direction();
+    private final ByteBuffer received = ByteBuffer.allocate(65536);
+    private long oneWayDelayNanos;
+    private double loss;
+    private double bytesPerSecond;
+    private long queueBytes = 1024 * 1024;
+    private long sequence;
+    private long lastExpiry;
+    private volatile boolean running = true;
+
+    public ImpairedRelay(int listenPort, InetSocketAddress target) throws IOException {
+        listening = DatagramChannel.open().bind(new InetSocketAddress(listenPort));
+        listening.configureBlocking(false);
+        this.target = target;
+        selector = Selector.open();
+        listening.register(selector, SelectionKey.OP_READ);
+        thread = new Thread(this::relay, "impaired-relay");
+        thread.setDaemon(true);
+    }
+
+    // Split evenly between the two directions
+    public ImpairedRelay setRoundTripMillis(long millis) {
+        oneWayDelayNanos = TimeUnit.MILLISECONDS.toNanos(millis) / 2;
+        return this;
+    }
+
+    // Applied to each direction on its own
+    public ImpairedRelay setLossPercent(double percent) {
+        loss = percent / 100;
+        return this;
+    }
+
+    // 0 leaves the rate uncapped
+    public ImpairedRelay setRateMbit(double mbit) {
+        bytesPerSecond = mbit * 1_000_000 / 8;
+        return this;
+    }
+
+    public ImpairedRelay setQueueBytes(long bytes) {
+        queueBytes = bytes;
+        return this;
+    }
+
+    public ImpairedRelay start() {
+        thread.start();
+        return this;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        selector.close();
+        listening.close();
+        for (Upstream upstream : upstreams.values()) {
+            upstream.channel.close();
+        }
+    }
+
+    private void relay() {
+        try {
+            while (running) {
+                long now = System.nanoTime();
+                while (!scheduled.isEmpty() && scheduled.peek().at <= now) {
+                    Delivery delivery = scheduled.poll();
+                    Upstream upstream = upstreams.get(delivery.client);
+                    try {
+                        if (delivery.direction != toTarget) {
+                            listening.send(ByteBuffer.wrap(delivery.data), delivery.client);
+                        } else if (upstream != null) {
+                            upstream.channel.write(ByteBuffer.wrap(delivery.data));
+                        }
+                    } catch (IOException e) {
+                        // Nothing listens on the other side; the sender finds out by its own timeouts
+                    }
+                }
+                expireIdle(now);
+                long wait = scheduled.isEmpty() ? 100 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(scheduled.peek().at - now));
+                selector.select(wait);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (key.channel() == listening) {
+                        SocketAddress from;
+                        while ((from = listening.receive(received.clear())) != null) {
+                            upstream(from);
+                            impair(toTarget, from);
+                        }
+                    } else {
+                        Upstream upstream = (Upstream) key.attachment();
+                        try {
+                            while (upstream.channel.read(received.clear()) > 0) {
+                                impair(toClient, upstream.client);
+                            }
+                        } catch (IOException e) {
+                            // Nothing listens on the target; the client finds out by its own timeouts
+                        }
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("Relay failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void upstream(SocketAddress client) throws IOException {
+        Upstream upstream = upstreams.get(client);
+        if (upstream == null) {
+            DatagramChannel channel = DatagramChannel.open().connect(target);
+            channel.configureBlocking(false);
+            upstream = new Upstream(client, channel);
+            channel.register(selector, SelectionKey.OP_READ, upstream);
+            upstreams.put(client, upstream);
+        }
+        upstream.lastUsed = System.nanoTime();
+    }
+
+    // Clients come and go with a new port each time, so sockets nobody has sent on for a while are closed
+    private void expireIdle(long now) throws IOException {
+        if (now - lastExpiry < IDLE_NANOS / 4) {
+            return;
+        }
+        lastExpiry = now;
+        Iterator<Upstream> iterator = upstreams.values().iterator();
+        while (iterator.hasNext()) {
+            Upstream upstream = iterator.next();
+            if (now - upstream.lastUsed > IDLE_NANOS) {
+                upstream.channel.close();
+                iterator.remove();
+            }
+        }
+    }
+
+    private static class Upstream {
+        final SocketAddress client;
+        final DatagramChannel channel;
+        long lastUsed;
+
+        Upstream(SocketAddress client, DatagramChannel channel) {
+            this.client = client;
+            this.channel = channel;
+        }
+    }
+
+    private void impair(Direction direction, SocketAddress client) {
+        if (loss > 0 && random.nextDouble() < loss) {
+            return;
+        }
+        long now = System.nanoTime();
+        long departAt = now;
+        if (bytesPerSecond > 0) {
+            long start = Math.max(now, direction.busyUntil);
+            // Whatever is still waiting for the link is the queue; a full queue drops the newcomer
+            if ((start - now) / 1e9 * bytesPerSecond > queueBytes) {
+                return;
+            }
+            departAt = start + (long) (received.position() / bytesPerSecond * 1e9);
+            direction.busyUntil = departAt;
+        }
+        byte[] data = new byte[received.position()];
+        received.flip().get(data);
+        scheduled.add(new Delivery(departAt + oneWayDelayNanos, sequence++, direction, client, data));
+    }
+
+    private static class Direction {
+        long busyUntil;
+    }
+
+    private record Delivery(long at, long sequence, Direction direction, SocketAddress client, byte[] data)
+            implements Comparable<Delivery> {
+        @Override
+        public int compareTo(Delivery other) {
+            return at != other.at ? Long.compare(at, other.at) : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || args[1].lastIndexOf(':') < 0) {
+            System.err.println("Usage: ImpairedRelay LISTEN_PORT TARGET_HOST:PORT [--rtt MS] [--loss PERCENT] [--rate MBIT/S] [--queue KB]");
+            System.exit(2);
+        }
+        String target = args[1];
+        int colon = target.lastIndexOf(':');
+        ImpairedRelay relay = new ImpairedRelay(Integer.parseInt(args[0]),
+                new InetSocketAddress(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1))));
+        for (int i = 2; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--rtt" -> relay.setRoundTripMillis(Long.parseLong(args[i + 1]));
+                case "--loss" -> relay.setLossPercent(Double.parseDouble(args[i + 1]));
+                case "--rate" -> relay.setRateMbit(Double.parseDouble(args[i + 1]));
+                case "--queue" -> relay.setQueueBytes(Long.parseLong(args[i + 1]) * 1024);
+                default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        relay.start();
+        System.out.println("Relaying UDP from port " + args[0] + " to " + target + ". Press Ctrl+C to stop.");
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,59 @@
+package com.p2pfilesharer.bench;
+
+import com.p2pfilesharer.encryption.CryptoUtils;
+import com.p2pfilesharer.network.FileSender;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Per-file setup latency of encrypted sends, deriving the key for every file versus reusing the cached session key
+public class KeySetupBenchmark {
+
+    private static final String PASSWORD = "benchmark-password";
+    private static final int FILES = 20;
+    private static final int PORT = 12400;
+
+    public static void main(String[] args) throws Exception {
+        Path workDir = Files.createTempDirectory("p2p-keybench");
+        File source = workDir.resolve("small.txt").toFile();
+        Files.writeString(source.toPath(), "a small config file\n".repeat(100));
+        LoopbackReceiver receiver = new LoopbackReceiver(workDir, PORT, PASSWORD);
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            sendBatch(source, true);
+            double uncached = sendBatch(source, true);
+            sendBatch(source, false);
+            double cached = sendBatch(source, false);
+
+            long start = System.nanoTime();
+            CryptoUtils.getKeyFromPassword(PASSWORD, new byte[CryptoUtils.SALT_LENGTH]);
+            double derivation = (System.nanoTime() - start) / 1e6;
+
+            System.setOut(console);
+            System.out.printf("PBKDF2 derivation (one side):      %8.2f ms%n", derivation);
+            System.out.printf("Per-file setup, key per file:      %8.2f ms%n", uncached);
+            System.out.printf("Per-file setup, cached session key: %7.2f ms%n", cached);
+        } finally {
+            System.setOut(console);
+            receiver.close();
+        }
+    }
+
+    // Mean wall time per file for sending FILES small encrypted files back to back
+    private static double sendBatch(File source, boolean deriveEveryFile) throws Exception {
+        CryptoUtils.clearSessionKeys();
+        long start = System.nanoTime();
+        for (int i = 0; i < FILES; i++) {
+            if (deriveEveryFile) {
+                CryptoUtils.clearSessionKeys();
+            }
+            new FileSender("127.0.0.1", PORT).sendFile(source, PASSWORD);
+        }
+        return (System.nanoTime() - start) / 1e6 / FILES;
+    }
+}
@@ -0,0 +1,64 @@
+package com.p2pfilesharer.bench;
+
+import com.p2pfilesharer.network.FileReceiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+// A FileReceiver serving a fresh directory under workDir on the given port, shared by the benchmarks that send to it
+class LoopbackReceiver implements AutoCloseable {
+
+    private static final long STOP_TIMEOUT_MILLIS = 10_000;
+
+    private final FileReceiver receiver;
+    private final Thread daemon;
+    private final File saveDir;
+
+    LoopbackReceiver(Path workDir, int port, String password) throws InterruptedException {
+        saveDir = workDir.resolve("received").toFile();
+        saveDir.mkdirs();
+        receiver = new FileReceiver(port);
+        daemon = new Thread(() -> {
+            try {
+                receiver.serve(saveDir.getPath(), password);
+            } catch (IOException e) {
+                System.err.println("Receiver failed: " + e.getMessage());
+            }
+        }, "bench-receiver");
+        daemon.setDaemon(true);
+        daemon.start();
+        Thread.sleep(200);
+    }
+
+    File file(String name) {
+        return new File(saveDir, name);
+    }
+
+    // For protocols without a final acknowledgement: waits until the receiver has written every byte of the file
+    void awaitFile(File target, long length, long timeoutMillis) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+        while (!target.exists() || target.length() < length) {
+            if (System.nanoTime() > deadline) {
+                throw new IOException("Receiver did not store " + target.getName() + " within " + timeoutMillis + " ms.");
+            }
+            if (!daemon.isAlive()) {
+                throw new IOException("Receiver stopped before " + target.getName() + " was stored.");
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    @Override
+    public void close() {
+        receiver.stop();
+        try {
+            daemon.join(STOP_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (daemon.isAlive()) {
+            System.err.println("Receiver did not stop within " + STOP_TIMEOUT_MILLIS + " ms.");
+        }
+    }
+}
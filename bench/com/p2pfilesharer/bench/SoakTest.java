@@ -0,0 +1,523 @@
+package com.p2pfilesharer.bench;
+
+import com.p2pfilesharer.discovery.PeerDiscovery;
+import com.p2pfilesharer.network.FileReceiver;
+import com.p2pfilesharer.network.FileSender;
+import com.p2pfilesharer.web.HttpFileServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+// Starts many nodes in this JVM on loopback, each with its own receiver, discovery listener and web server on
+// distinct ports, and puts an impaired link in front of every node: ImpairedProxy for TCP and the web server,
+// ImpairedRelay for UDP. Then runs fan-out, fan-in, mesh and web rounds until the time is up, checks every file
+// that arrives, and reports throughput percentiles, memory, threads and failures as it goes and as JSON at the end.
+// Exits with status 1 if anything failed, so it can gate a release.
+//
+// Usage: SoakTest [--nodes N] [--minutes M] [--scenarios fan-out,fan-in,mesh,web] [--file-mb N] [--rtt MS]
+//                 [--rate MBIT/S] [--loss PERCENT] [--transport tcp|udp|mixed] [--base-port PORT]
+//                 [--report-seconds S] [--out soak-results.json]
+public class SoakTest {
+
+    private static final String PASSWORD = "soak-password";
+    // Receiver, discovery, web server, impaired link to the receiver (TCP proxy and UDP relay), impaired web link
+    private static final int PORTS_PER_NODE = 5;
+    private static final long TRANSFER_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final byte[] DISCOVERY_REQUEST = "P2P_FILE_SHARER_DISCOVERY_REQUEST".getBytes(StandardCharsets.US_ASCII);
+
+    private static PrintStream console;
+
+    private static class Node {
+        final int index;
+        final int p2pPort;
+        final int discoveryPort;
+        final int httpPort;
+        final int linkPort;
+        final int webLinkPort;
+        final File source;
+        final byte[] sourceHash;
+        final File saveDir;
+        FileReceiver receiver;
+        Thread receiverThread;
+        PeerDiscovery discovery;
+        HttpFileServer web;
+        ImpairedProxy link;
+        ImpairedRelay udpLink;
+        ImpairedProxy webLink;
+
+        Node(int index, int basePort, File source, byte[] sourceHash, File saveDir) {
+            this.index = index;
+            int first = basePort + index * PORTS_PER_NODE;
+            this.p2pPort = first;
+            this.discoveryPort = first + 1;
+            this.httpPort = first + 2;
+            this.linkPort = first + 3;
+            this.webLinkPort = first + 4;
+            this.source = source;
+            this.sourceHash = sourceHash;
+            this.saveDir = saveDir;
+        }
+    }
+
+    // Throughput samples and failures, for the whole run and for the current report interval
+    private static class Stats {
+        final Map<String, List<Double>> throughput = new TreeMap<>();
+        final Map<String, Integer> failures = new TreeMap<>();
+        long transfers;
+        long bytes;
+        int failed;
+        int rounds;
+        long peakHeap;
+        int peakThreads;
+
+        synchronized void succeeded(String scenario, long size, long nanos) {
+            throughput.computeIfAbsent(scenario, s -> new ArrayList<>()).add(size / 1e6 / (nanos / 1e9));
+            transfers++;
+            bytes += size;
+        }
+
+        synchronized void failed(String scenario, String reason) {
+            failures.merge(scenario + ": " + reason, 1, Integer::sum);
+            transfers++;
+            failed++;
+        }
+
+        synchronized List<Double> all() {
+            List<Double> samples = new ArrayList<>();
+            for (List<Double> scenario : throughput.values()) {
+                samples.addAll(scenario);
+            }
+            return samples;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                System.err.println("Usage: SoakTest [--nodes N] [--minutes M] [--scenarios fan-out,fan-in,mesh,web] [--file-mb N]"
+                        + " [--rtt MS] [--rate MBIT/S] [--loss PERCENT] [--transport tcp|udp|mixed] [--base-port PORT]"
+                        + " [--report-seconds S] [--out soak-results.json]");
+                System.exit(2);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        int nodeCount = Integer.parseInt(options.getOrDefault("nodes", "24"));
+        double minutes = Double.parseDouble(options.getOrDefault("minutes", "60"));
+        List<String> scenarios = List.of(options.getOrDefault("scenarios", "fan-out,fan-in,mesh,web").split(","));
+        long fileSize = Long.parseLong(options.getOrDefault("file-mb", "8")) << 20;
+        long rtt = Long.parseLong(options.getOrDefault("rtt", "20"));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "200"));
+        double loss = Double.parseDouble(options.getOrDefault("loss", "0.5"));
+        String transport = options.getOrDefault("transport", "mixed");
+        int basePort = Integer.parseInt(options.getOrDefault("base-port", "20000"));
+        long reportMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(options.getOrDefault("report-seconds", "60")));
+        Path out = Path.of(options.getOrDefault("out", "soak-results.json"));
+        if (nodeCount < 2) {
+            System.err.println("At least two nodes are needed.");
+            System.exit(2);
+        }
+        for (String scenario : scenarios) {
+            if (!List.of("fan-out", "fan-in", "mesh", "web").contains(scenario)) {
+                System.err.println("Unknown scenario: " + scenario);
+                System.exit(2);
+            }
+        }
+
+        // Peer profiles and caches of the simulated nodes stay out of the real home directory
+        Path workDir = Files.createTempDirectory("p2p-soak");
+        System.setProperty("user.home", workDir.toString());
+        // Nodes print progress from their own threads; only the reports reach the console
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        List<Node> nodes = new ArrayList<>();
+        int failed = 1;
+        try {
+            for (int i = 0; i < nodeCount; i++) {
+                nodes.add(startNode(i, basePort, workDir, fileSize, rtt, rate, loss));
+            }
+            Thread.sleep(500);
+            console.println("Started " + nodeCount + " nodes on ports " + basePort + "-" + (basePort + nodeCount * PORTS_PER_NODE - 1)
+                    + " (" + rtt + " ms round trip, " + rate + " Mbit/s, " + loss + "% UDP loss); running "
+                    + String.join(", ", scenarios) + " for " + minutes + " minutes.");
+            Stats total = run(nodes, scenarios, transport, minutes, reportMillis);
+            writeJson(out, total, options, nodeCount, minutes);
+            failed = total.failed;
+        } finally {
+            for (Node node : nodes) {
+                stopNode(node);
+            }
+            System.setOut(console);
+            deleteAll(workDir);
+        }
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static Node startNode(int index, int basePort, Path workDir, long fileSize, long rtt, double rate, double loss)
+            throws Exception {
+        Path nodeDir = Files.createDirectories(workDir.resolve("node-" + index));
+        File source = randomFile(nodeDir.resolve("node-" + index + ".bin"), fileSize, index);
+        Node node = new Node(index, basePort, source, sha256(source), Files.createDirectories(nodeDir.resolve("received")).toFile());
+
+        node.receiver = new FileReceiver(node.p2pPort);
+        node.receiverThread = new Thread(() -> {
+            try {
+                node.receiver.serve(node.saveDir.getPath(), PASSWORD);
+            } catch (IOException e) {
+                System.err.println("Node " + index + " receiver failed: " + e.getMessage());
+            }
+        }, "soak-receiver-" + index);
+        node.receiverThread.start();
+
+        node.discovery = new PeerDiscovery(node.discoveryPort);
+        node.discovery.setUdpPort(node.p2pPort);
+        node.discovery.run();
+
+        node.web = new HttpFileServer(source, node.httpPort);
+        node.web.start();
+
+        InetSocketAddress receiver = new InetSocketAddress("127.0.0.1", node.p2pPort);
+        node.link = new ImpairedProxy(node.linkPort, receiver).setRoundTripMillis(rtt).setRateMbit(rate).start();
+        node.udpLink = new ImpairedRelay(node.linkPort, receiver).setRoundTripMillis(rtt).setRateMbit(rate)
+                .setLossPercent(loss).start();
+        node.webLink = new ImpairedProxy(node.webLinkPort, new InetSocketAddress("127.0.0.1", node.httpPort))
+                .setRoundTripMillis(rtt).setRateMbit(rate).start();
+        return node;
+    }
+
+    private static void stopNode(Node node) {
+        try {
+            if (node.receiver != null) {
+                node.receiver.stop();
+            }
+            if (node.discovery != null) {
+                node.discovery.stop();
+            }
+            if (node.web != null) {
+                node.web.stop();
+            }
+            if (node.link != null) {
+                node.link.close();
+            }
+            if (node.udpLink != null) {
+                node.udpLink.close();
+            }
+            if (node.webLink != null) {
+                node.webLink.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Could not stop node " + node.index + ": " + e.getMessage());
+        }
+    }
+
+    // Rounds run one after another and the transfers of a round all at once; the hub of fan-out and fan-in moves
+    // on every round, so every node takes a turn
+    private static Stats run(List<Node> nodes, List<String> scenarios, String transport, double minutes, long reportMillis)
+            throws InterruptedException {
+        Stats total = new Stats();
+        Stats interval = new Stats();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Random random = new Random(1);
+        long start = System.currentTimeMillis();
+        long end = start + (long) (minutes * 60_000);
+        long nextReport = start + reportMillis;
+        int round = 0;
+        while (System.currentTimeMillis() < end) {
+            String scenario = scenarios.get(round % scenarios.size());
+            Node hub = nodes.get(round % nodes.size());
+            Stats[] both = {total, interval};
+            List<Thread> transfers = new ArrayList<>();
+            List<AtomicBoolean> outcomes = new ArrayList<>();
+            int kind = round;
+            for (Node[] pair : pairs(scenario, hub, nodes, random)) {
+                String label = scenario + "/" + mode(scenario, transport, kind++);
+                AtomicBoolean recorded = new AtomicBoolean();
+                outcomes.add(recorded);
+                // Platform threads, so a client blocking inside a monitor cannot pin the carrier the links run on
+                transfers.add(Thread.ofPlatform().name("soak-" + pair[0].index + "-" + pair[1].index)
+                        .start(() -> transfer(pair[0], pair[1], label, recorded, both)));
+            }
+            long deadline = System.currentTimeMillis() + TRANSFER_TIMEOUT_MILLIS;
+            for (int i = 0; i < transfers.size(); i++) {
+                transfers.get(i).join(Math.max(1, deadline - System.currentTimeMillis()));
+                // Counted once, whichever comes first: the timeout here or the transfer failing on the interrupt
+                if (transfers.get(i).isAlive() && outcomes.get(i).compareAndSet(false, true)) {
+                    transfers.get(i).interrupt();
+                    for (Stats stat : both) {
+                        stat.failed(scenario, "timed out");
+                    }
+                }
+            }
+            probeDiscovery(nodes, both);
+            total.peakHeap = Math.max(total.peakHeap, usedHeap());
+            total.peakThreads = threads.getPeakThreadCount();
+            total.rounds = ++round;
+
+            if (System.currentTimeMillis() >= nextReport) {
+                report(interval, total, threads, (System.currentTimeMillis() - start) / 1000);
+                interval = new Stats();
+                nextReport += reportMillis;
+            }
+        }
+        if (interval.transfers > 0) {
+            report(interval, total, threads, (System.currentTimeMillis() - start) / 1000);
+        }
+        return total;
+    }
+
+    // Sender and receiver of every transfer of one round
+    private static List<Node[]> pairs(String scenario, Node hub, List<Node> nodes, Random random) {
+        List<Node[]> pairs = new ArrayList<>();
+        switch (scenario) {
+            case "fan-out" -> nodes.stream().filter(node -> node != hub).forEach(node -> pairs.add(new Node[] {hub, node}));
+            case "fan-in" -> nodes.stream().filter(node -> node != hub).forEach(node -> pairs.add(new Node[] {node, hub}));
+            default -> {
+                // A random permutation shifted by one, so nobody sends to itself and everyone sends and receives once
+                List<Node> order = new ArrayList<>(nodes);
+                Collections.shuffle(order, random);
+                for (int i = 0; i < order.size(); i++) {
+                    pairs.add(new Node[] {order.get(i), order.get((i + 1) % order.size())});
+                }
+            }
+        }
+        return pairs;
+    }
+
+    private static String mode(String scenario, String transport, int kind) {
+        if (scenario.equals("web")) {
+            return "http";
+        }
+        if (!transport.equals("mixed")) {
+            return transport;
+        }
+        return switch (kind % 3) {
+            case 0 -> "tcp";
+            case 1 -> "tcp-encrypted";
+            default -> "udp";
+        };
+    }
+
+    private static void transfer(Node from, Node to, String label, AtomicBoolean recorded, Stats[] stats) {
+        String mode = label.substring(label.indexOf('/') + 1);
+        long start = System.nanoTime();
+        try {
+            if (mode.equals("http")) {
+                download(to, from);
+            } else {
+                FileSender sender = new FileSender("127.0.0.1", to.linkPort);
+                sender.setResumable(true);
+                sender.setUdp(mode.equals("udp"));
+                sender.sendFile(from.source, mode.equals("tcp-encrypted") ? PASSWORD : null);
+                verify(new File(to.saveDir, from.source.getName()), from);
+            }
+            long nanos = System.nanoTime() - start;
+            if (recorded.compareAndSet(false, true)) {
+                for (Stats stat : stats) {
+                    stat.succeeded(label, from.source.length(), nanos);
+                }
+            }
+        } catch (Exception e) {
+            String reason = e.getClass().getSimpleName() + ": " + e.getMessage();
+            if (recorded.compareAndSet(false, true)) {
+                for (Stats stat : stats) {
+                    stat.failed(label, reason);
+                }
+            }
+        }
+    }
+
+    // Fetches the other node's file from its web server, through the impaired web link
+    private static void download(Node client, Node server) throws Exception {
+        File target = new File(client.saveDir, "web-" + server.source.getName());
+        HttpURLConnection connection = (HttpURLConnection) URI.create("http://127.0.0.1:" + server.webLinkPort + "/download")
+                .toURL().openConnection();
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout(60000);
+        try (InputStream in = connection.getInputStream()) {
+            Files.copy(in, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            connection.disconnect();
+        }
+        verify(target, server);
+    }
+
+    // The sender returns once the receiver has confirmed the file; checked here against the source's hash
+    private static void verify(File received, Node from) throws Exception {
+        try {
+            if (!received.isFile() || received.length() != from.source.length()) {
+                throw new IOException("received " + (received.isFile() ? received.length() + " bytes" : "nothing")
+                        + " of " + from.source.length());
+            }
+            if (!Arrays.equals(sha256(received), from.sourceHash)) {
+                throw new IOException("received file differs from the source");
+            }
+        } finally {
+            received.delete();
+        }
+    }
+
+    // Every node's discovery listener has to answer a unicast request, as it would a broadcast
+    private static void probeDiscovery(List<Node> nodes, Stats[] stats) {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(1000);
+            byte[] answer = new byte[1024];
+            for (Node node : nodes) {
+                try {
+                    socket.send(new DatagramPacket(DISCOVERY_REQUEST, DISCOVERY_REQUEST.length, InetAddress.getLoopbackAddress(),
+                            node.discoveryPort));
+                    socket.receive(new DatagramPacket(answer, answer.length));
+                    // The capability datagram that follows is not needed here
+                    socket.receive(new DatagramPacket(answer, answer.length));
+                } catch (IOException e) {
+                    for (Stats stat : stats) {
+                        stat.failed("discovery", "node " + node.index + " did not answer");
+                    }
+                }
+            }
+        } catch (IOException e) {
+            for (Stats stat : stats) {
+                stat.failed("discovery", e.getMessage());
+            }
+        }
+    }
+
+    private static void report(Stats interval, Stats total, ThreadMXBean threads, long seconds) {
+        List<Double> samples = interval.all();
+        Collections.sort(samples);
+        console.printf(Locale.ROOT, "[%02d:%02d:%02d] %d rounds, %d transfers (%d failed, %d in total), %.0f MB moved;"
+                        + " MB/s p50 %.1f p90 %.1f p99 %.1f min %.1f; heap %d MB (peak %d MB); threads %d (peak %d)%n",
+                seconds / 3600, seconds / 60 % 60, seconds % 60, total.rounds, interval.transfers, interval.failed, total.failed,
+                interval.bytes / 1e6, percentile(samples, 50), percentile(samples, 90), percentile(samples, 99),
+                samples.isEmpty() ? 0 : samples.get(0), usedHeap() >> 20, total.peakHeap >> 20, threads.getThreadCount(),
+                total.peakThreads);
+        for (Map.Entry<String, Integer> failure : interval.failures.entrySet()) {
+            console.println("    " + failure.getValue() + "x " + failure.getKey());
+        }
+    }
+
+    // Nearest rank, so a percentile is always a throughput that was actually measured
+    private static double percentile(List<Double> sorted, double percent) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percent / 100 * sorted.size());
+        return sorted.get(Math.max(0, rank - 1));
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void writeJson(Path file, Stats total, Map<String, String> options, int nodes, double minutes)
+            throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"timestamp\": ").append(Bench.quote(Instant.now().toString()))
+                .append(",\n  \"java\": ").append(Bench.quote(System.getProperty("java.vm.name") + " " + System.getProperty("java.version")))
+                .append(",\n  \"nodes\": ").append(nodes)
+                .append(",\n  \"minutes\": ").append(Bench.number(minutes))
+                .append(",\n  \"options\": {");
+        int i = 0;
+        for (Map.Entry<String, String> option : new TreeMap<>(options).entrySet()) {
+            json.append(i++ == 0 ? "" : ", ").append(Bench.quote(option.getKey())).append(": ").append(Bench.quote(option.getValue()));
+        }
+        json.append("},\n  \"rounds\": ").append(total.rounds)
+                .append(",\n  \"transfers\": ").append(total.transfers)
+                .append(",\n  \"failed\": ").append(total.failed)
+                .append(",\n  \"peakHeapMB\": ").append(total.peakHeap >> 20)
+                .append(",\n  \"peakThreads\": ").append(total.peakThreads)
+                .append(",\n  \"bytes\": ").append(total.bytes)
+                .append(",\n  \"throughput\": {");
+        i = 0;
+        Map<String, List<Double>> scenarios = new LinkedHashMap<>(total.throughput);
+        scenarios.put("all", total.all());
+        for (Map.Entry<String, List<Double>> scenario : scenarios.entrySet()) {
+            List<Double> samples = new ArrayList<>(scenario.getValue());
+            Collections.sort(samples);
+            json.append(i++ == 0 ? "\n    " : ",\n    ").append(Bench.quote(scenario.getKey()))
+                    .append(": {\"unit\": \"MB/s\", \"count\": ").append(samples.size())
+                    .append(", \"p50\": ").append(Bench.number(percentile(samples, 50)))
+                    .append(", \"p90\": ").append(Bench.number(percentile(samples, 90)))
+                    .append(", \"p99\": ").append(Bench.number(percentile(samples, 99)))
+                    .append(", \"min\": ").append(Bench.number(samples.isEmpty() ? 0 : samples.get(0)))
+                    .append("}");
+        }
+        json.append("\n  },\n  \"failures\": {");
+        i = 0;
+        for (Map.Entry<String, Integer> failure : total.failures.entrySet()) {
+            json.append(i++ == 0 ? "\n    " : ",\n    ").append(Bench.quote(failure.getKey())).append(": ").append(failure.getValue());
+        }
+        json.append("\n  }\n}\n");
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        Files.writeString(file, json, StandardCharsets.UTF_8);
+        console.println("Results written to " + file);
+    }
+
+    private static void deleteAll(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            System.err.println("Could not remove " + directory + ": " + e.getMessage());
+        }
+    }
+
+    private static byte[] sha256(File file) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            byte[] buffer = new byte[256 * 1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+
+    // Random bytes, so compression or dedup cannot make a node look faster than its link
+    private static File randomFile(Path path, long size, long seed) throws IOException {
+        Random random = new Random(seed);
+        byte[] block = new byte[1024 * 1024];
+        try (RandomAccessFile out = new RandomAccessFile(path.toFile(), "rw")) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+        return path.toFile();
+    }
+}
@@ -0,0 +1,84 @@
+package com.p2pfilesharer.bench;
+
+import com.p2pfilesharer.network.FileSender;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+// FileSender to FileReceiver over loopback, from the first connect until the receiver has the complete file on disk
+public class TransferBenchmark {
+
+    private static final String PASSWORD = "benchmark-password";
+    private static final int PORT = 12401;
+    private static final int[] CHUNK_SIZES = {64 * 1024, 1024 * 1024, 4 * 1024 * 1024};
+    // The slowest run, 256 MB encrypted, takes a few seconds; a stalled receiver fails the run instead of hanging
+    private static final long RECEIVE_TIMEOUT_MILLIS = 120_000;
+
+    public static void run(Bench bench, boolean quick) throws Exception {
+        Path workDir = Files.createTempDirectory("p2p-transferbench");
+        try (LoopbackReceiver receiver = new LoopbackReceiver(workDir, PORT, PASSWORD)) {
+            long[] fileSizes = quick ? new long[] {1L << 20, 16L << 20} : new long[] {1L << 20, 64L << 20, 256L << 20};
+            for (long fileSize : fileSizes) {
+                File source = randomFile(workDir, fileSize);
+                File target = receiver.file(source.getName());
+
+                FileSender stream = new FileSender("127.0.0.1", PORT);
+                stream.setZeroCopy(false);
+                bench.measure("transfer", "MB/s", () -> send(receiver, stream, source, target, null),
+                        "mode", "plain-stream", "fileSize", fileSize, "chunkSize", 0, "encrypted", false);
+
+                FileSender zeroCopy = new FileSender("127.0.0.1", PORT);
+                bench.measure("transfer", "MB/s", () -> send(receiver, zeroCopy, source, target, null),
+                        "mode", "plain-zero-copy", "fileSize", fileSize, "chunkSize", 0, "encrypted", false);
+
+                for (int chunkSize : CHUNK_SIZES) {
+                    for (boolean encrypted : new boolean[] {false, true}) {
+                        FileSender chunked = new FileSender("127.0.0.1", PORT);
+                        chunked.setResumable(true);
+                        chunked.setStreams(1);
+                        chunked.setChunkSize(chunkSize);
+                        bench.measure("transfer", "MB/s", () -> send(receiver, chunked, source, target,
+                                        encrypted ? PASSWORD : null),
+                                "mode", "chunked", "fileSize", fileSize, "chunkSize", chunkSize, "encrypted", encrypted);
+                    }
+                }
+
+                // Chunk size and stream count left to the tuner, which has measured the earlier runs
+                FileSender tuned = new FileSender("127.0.0.1", PORT);
+                tuned.setResumable(true);
+                bench.measure("transfer", "MB/s", () -> send(receiver, tuned, source, target, PASSWORD),
+                        "mode", "chunked-tuned", "fileSize", fileSize, "chunkSize", 0, "encrypted", true);
+                source.delete();
+                target.delete();
+            }
+        }
+    }
+
+    private static double send(LoopbackReceiver receiver, FileSender sender, File source, File target, String password)
+            throws Exception {
+        target.delete();
+        long start = System.nanoTime();
+        sender.sendFile(source, password);
+        // The plain protocol has no final acknowledgement, so wait until the receiver has written every byte
+        receiver.awaitFile(target, source.length(), RECEIVE_TIMEOUT_MILLIS);
+        return source.length() / 1e6 / ((System.nanoTime() - start) / 1e9);
+    }
+
+    // Random bytes, so the results do not depend on how well the data compresses
+    private static File randomFile(Path workDir, long size) throws IOException {
+        File file = workDir.resolve("payload-" + (size >> 20) + "m.bin").toFile();
+        Random random = new Random(size);
+        byte[] block = new byte[1024 * 1024];
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+        return file;
+    }
+}
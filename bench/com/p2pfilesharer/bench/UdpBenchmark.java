@@ -0,0 +1,63 @@
+package com.p2pfilesharer.bench;
+
+import com.p2pfilesharer.network.FileSender;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+// FileSender to FileReceiver over the UDP transport, directly on loopback and through a relay that makes the
+// link long and lossy. The relay only carries UDP, so there is no TCP row to compare against on the bad link.
+public class UdpBenchmark {
+
+    private static final String PASSWORD = "benchmark-password";
+    private static final int PORT = 12402;
+    private static final int RELAY_PORT = 12403;
+
+    public static void run(Bench bench, boolean quick) throws Exception {
+        Path workDir = Files.createTempDirectory("p2p-udpbench");
+        long fileSize = quick ? 16L << 20 : 64L << 20;
+        File source = randomFile(workDir, fileSize);
+        try (LoopbackReceiver receiver = new LoopbackReceiver(workDir, PORT, PASSWORD)) {
+            File target = receiver.file(source.getName());
+            for (boolean encrypted : new boolean[] {false, true}) {
+                bench.measure("udp", "MB/s", () -> send(PORT, source, target, encrypted ? PASSWORD : null),
+                        "link", "loopback", "fileSize", fileSize, "encrypted", encrypted);
+            }
+            try (ImpairedRelay relay = new ImpairedRelay(RELAY_PORT, new InetSocketAddress("127.0.0.1", PORT))) {
+                relay.setRoundTripMillis(150).setLossPercent(1).setRateMbit(200).start();
+                bench.measure("udp", "MB/s", () -> send(RELAY_PORT, source, target, null),
+                        "link", "150ms-1%-loss-200mbit", "fileSize", fileSize, "encrypted", false);
+            }
+        } finally {
+            source.delete();
+        }
+    }
+
+    // The receiver acknowledges the stored file before the sender returns, so no waiting is needed here
+    private static double send(int port, File source, File target, String password) throws Exception {
+        target.delete();
+        FileSender sender = new FileSender("127.0.0.1", port);
+        sender.setUdp(true);
+        long start = System.nanoTime();
+        sender.sendFile(source, password);
+        return source.length() / 1e6 / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static File randomFile(Path workDir, long size) throws IOException {
+        File file = workDir.resolve("payload-" + (size >> 20) + "m.bin").toFile();
+        Random random = new Random(size);
+        byte[] block = new byte[1024 * 1024];
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+        return file;
+    }
+}
@@ -0,0 +1,171 @@
+package com.p2pfilesharer;
+
+import com.p2pfilesharer.bandwidth.BandwidthShaper;
+import com.p2pfilesharer.daemon.JobQueue;
+import com.p2pfilesharer.daemon.TransferJob;
+import com.p2pfilesharer.discovery.PeerDiscovery;
+import com.p2pfilesharer.discovery.PeerRegistry;
+import com.p2pfilesharer.metrics.MetricsHandler;
+import com.p2pfilesharer.network.FileReceiver;
+import com.p2pfilesharer.network.ShareIndex;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+// Runs unattended: sends the jobs dropped into a spool directory and, optionally, receives files like the
+// receive daemon. Stops cleanly on Ctrl+C or SIGTERM; unfinished jobs stay queued for the next start.
+//
+// Usage: Daemon --spool DIR [--workers N] [--upload-limit KB/s] [--receive DIR] [--password-file FILE]
+//               [--max-transfers N] [--metrics-port PORT] [--share DIR;DIR...]
+public class Daemon {
+
+    private static final int P2P_PORT = 12345;
+    private static final long SCAN_INTERVAL_MILLIS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                System.err.println("Usage: Daemon --spool DIR [--workers N] [--upload-limit KB/s] [--receive DIR] [--password-file FILE]"
+                        + " [--max-transfers N] [--metrics-port PORT] [--share DIR;DIR...]");
+                System.exit(2);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        if (!options.containsKey("spool")) {
+            System.err.println("A spool directory is required (--spool DIR).");
+            System.exit(2);
+        }
+        int workers = Integer.parseInt(options.getOrDefault("workers", "2"));
+        if (workers < 1) {
+            System.err.println("At least one worker is needed.");
+            System.exit(2);
+        }
+
+        if (options.containsKey("upload-limit")) {
+            BandwidthShaper.global().setGlobalLimit(Long.parseLong(options.get("upload-limit")) * 1024);
+        }
+
+        JobQueue jobs = new JobQueue(Path.of(options.get("spool")));
+        System.out.println("Job spool " + options.get("spool") + ": " + jobs.size() + " jobs queued, " + workers + " workers.");
+
+        PeerDiscovery discovery = new PeerDiscovery();
+        discovery.run();
+        PeerRegistry registry = null;
+        try {
+            registry = new PeerRegistry();
+            registry.start(P2P_PORT);
+        } catch (IOException e) {
+            System.out.println("Peer registry unavailable: " + e.getMessage());
+            registry = null;
+        }
+
+        FileReceiver receiver = null;
+        Thread receiverThread = null;
+        if (options.containsKey("receive")) {
+            String saveDir = options.get("receive");
+            Files.createDirectories(Path.of(saveDir));
+            // Read from a file so the password does not show up in the process list
+            String password = options.containsKey("password-file")
+                    ? Files.readString(Path.of(options.get("password-file"))).strip() : null;
+            receiver = new FileReceiver(P2P_PORT);
+            receiver.setMaxConcurrentTransfers(Integer.parseInt(options.getOrDefault("max-transfers", "16")));
+            // Searches are answered by the receiver, so shared directories only make sense with --receive
+            for (String directory : options.getOrDefault("share", "").split(";")) {
+                if (!directory.isBlank()) {
+                    ShareIndex.global().share(Path.of(directory.trim()));
+                }
+            }
+            FileReceiver serving = receiver;
+            receiverThread = new Thread(() -> {
+                try {
+                    serving.serve(saveDir, password);
+                } catch (IOException e) {
+                    System.err.println("Receive daemon failed: " + e.getMessage());
+                }
+            }, "receiver");
+            receiverThread.start();
+            if (registry != null) {
+                registry.setActivity(PeerRegistry.RECEIVING | PeerRegistry.RECEIVING_UDP | PeerRegistry.SEEDING_SWARM);
+            }
+            discovery.setUdpPort(P2P_PORT);
+        }
+
+        HttpServer metricsServer = null;
+        if (options.containsKey("metrics-port")) {
+            metricsServer = MetricsHandler.startServer(Integer.parseInt(options.get("metrics-port")));
+        }
+
+        // With more than one worker, the first is kept for urgent and small jobs
+        for (int i = 0; i < workers; i++) {
+            boolean express = i == 0 && workers > 1;
+            Thread worker = new Thread(() -> work(jobs, express), "job-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        Thread main = Thread.currentThread();
+        PeerRegistry announcing = registry;
+        FileReceiver receiving = receiver;
+        HttpServer metrics = metricsServer;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("Daemon stopping; unfinished jobs stay queued.");
+            main.interrupt();
+            if (receiving != null) {
+                receiving.stop();
+            }
+            if (announcing != null) {
+                announcing.stop();
+            }
+            if (metrics != null) {
+                metrics.stop(0);
+            }
+            discovery.stop();
+        }));
+
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                jobs.scanIncoming();
+            } catch (IOException e) {
+                System.err.println("Could not read the job spool: " + e.getMessage());
+            }
+            try {
+                Thread.sleep(SCAN_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        if (receiverThread != null) {
+            receiverThread.join();
+        }
+    }
+
+    private static void work(JobQueue jobs, boolean express) {
+        while (true) {
+            TransferJob job;
+            try {
+                job = jobs.take(express);
+            } catch (InterruptedException e) {
+                return;
+            }
+            System.out.println("Job started: " + job);
+            long start = System.nanoTime();
+            try {
+                job.run();
+                jobs.succeeded(job);
+                System.out.println("Job done: " + job.getId() + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            } catch (Exception e) {
+                try {
+                    // Bad settings will not get better on a retry
+                    jobs.failed(job, e, !(e instanceof IllegalArgumentException));
+                } catch (IOException spoolError) {
+                    System.err.println("Could not record the outcome of job " + job.getId() + ": " + spoolError.getMessage());
+                }
+            }
+        }
+    }
+}
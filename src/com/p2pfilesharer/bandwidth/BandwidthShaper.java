@@ -0,0 +1,186 @@
+package com.p2pfilesharer.bandwidth;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Limits the upload rate of every transfer in the process: one global limit, a default limit for each peer and
+// optional limits for single peers. Rates are in bytes per second, 0 means unlimited, and all of them can be
+// changed while transfers are running.
+public class BandwidthShaper {
+
+    // Streams take bandwidth in slices of this size, so concurrent streams interleave instead of one stream
+    // taking a whole large write at once
+    public static final int QUANTUM = 64 * 1024;
+    // Past this many buckets, idle ones are dropped; an idle bucket is full and carries no state worth keeping
+    private static final int PRUNE_THRESHOLD = 64;
+
+    private static final BandwidthShaper GLOBAL = new BandwidthShaper();
+
+    private final TokenBucket global = new TokenBucket(0);
+    private final Map<String, TokenBucket> peers = new ConcurrentHashMap<>();
+    private final Map<String, Long> peerLimits = new ConcurrentHashMap<>();
+    private volatile long defaultPeerLimit;
+
+    // The shaper shared by all senders and the web server
+    public static BandwidthShaper global() {
+        return GLOBAL;
+    }
+
+    public long getGlobalLimit() {
+        return global.getRate();
+    }
+
+    public void setGlobalLimit(long bytesPerSecond) {
+        global.setRate(Math.max(0, bytesPerSecond));
+    }
+
+    public long getDefaultPeerLimit() {
+        return defaultPeerLimit;
+    }
+
+    // Applies to every peer without a limit of its own
+    public void setDefaultPeerLimit(long bytesPerSecond) {
+        defaultPeerLimit = Math.max(0, bytesPerSecond);
+        for (Map.Entry<String, TokenBucket> entry : peers.entrySet()) {
+            if (!peerLimits.containsKey(entry.getKey())) {
+                entry.getValue().setRate(defaultPeerLimit);
+            }
+        }
+    }
+
+    public void setPeerLimit(String peer, long bytesPerSecond) {
+        String key = peerKey(peer);
+        peerLimits.put(key, Math.max(0, bytesPerSecond));
+        TokenBucket bucket = peers.get(key);
+        if (bucket != null) {
+            bucket.setRate(Math.max(0, bytesPerSecond));
+        }
+    }
+
+    // The peer goes back to the default limit
+    public void clearPeerLimit(String peer) {
+        String key = peerKey(peer);
+        peerLimits.remove(key);
+        TokenBucket bucket = peers.get(key);
+        if (bucket != null) {
+            bucket.setRate(defaultPeerLimit);
+        }
+    }
+
+    // Keyed by address, as peers are matched by address whatever name they were given by
+    public Map<String, Long> getPeerLimits() {
+        return Map.copyOf(peerLimits);
+    }
+
+    public boolean isLimited(String peer) {
+        return peer(peer).isLimited();
+    }
+
+    // The peer's address is looked up here, once, rather than for every packet or slice sent to it
+    public Peer peer(String peer) {
+        return new Peer(peerKey(peer));
+    }
+
+    // Output stream to a peer whose writes wait for bandwidth first
+    public OutputStream wrap(OutputStream out, String peer) {
+        return new ShapedOutputStream(out, peerKey(peer));
+    }
+
+    private void acquireFor(String key, long bytes) throws InterruptedIOException {
+        while (bytes > 0) {
+            long slice = Math.min(bytes, QUANTUM);
+            // Looked up per slice so a bucket dropped while idle is picked up again
+            TokenBucket peerBucket = bucket(key);
+            if (peerBucket != null) {
+                peerBucket.acquire(slice);
+            }
+            global.acquire(slice);
+            bytes -= slice;
+        }
+    }
+
+    // Null for a peer without a limit, so unlimited peers such as web clients leave nothing behind
+    private TokenBucket bucket(String key) {
+        TokenBucket bucket = peers.get(key);
+        if (bucket != null) {
+            return bucket;
+        }
+        long rate = peerLimits.getOrDefault(key, defaultPeerLimit);
+        if (rate == 0) {
+            return null;
+        }
+        if (peers.size() >= PRUNE_THRESHOLD) {
+            peers.values().removeIf(TokenBucket::isIdle);
+        }
+        return peers.computeIfAbsent(key, k -> new TokenBucket(rate));
+    }
+
+    // Senders name peers by host name or address and the web server by address, so both are reduced to the
+    // address; a name that does not resolve is kept as it is
+    static String peerKey(String peer) {
+        try {
+            return InetAddress.getByName(peer).getHostAddress();
+        } catch (UnknownHostException | SecurityException e) {
+            return peer.toLowerCase(Locale.ROOT);
+        }
+    }
+
+    // One transfer's view of the limits that apply to its peer
+    public final class Peer {
+        private final String key;
+
+        private Peer(String key) {
+            this.key = key;
+        }
+
+        public boolean isLimited() {
+            TokenBucket peerBucket = bucket(key);
+            return global.getRate() > 0 || (peerBucket != null && peerBucket.getRate() > 0);
+        }
+
+        // Blocks until the bytes may be sent to the peer under both its own limit and the global one
+        public void acquire(long bytes) throws InterruptedIOException {
+            acquireFor(key, bytes);
+        }
+
+        // For callers that must not block: reserves the bytes under both limits and returns how many nanoseconds
+        // to wait before sending them
+        public long reserve(long bytes) {
+            TokenBucket peerBucket = bucket(key);
+            return Math.max(peerBucket != null ? peerBucket.reserve(bytes) : 0, global.reserve(bytes));
+        }
+    }
+
+    private class ShapedOutputStream extends FilterOutputStream {
+        private final String key;
+
+        ShapedOutputStream(OutputStream out, String key) {
+            super(out);
+            this.key = key;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            acquireFor(key, 1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int slice = Math.min(len, QUANTUM);
+                acquireFor(key, slice);
+                out.write(b, off, slice);
+                off += slice;
+                len -= slice;
+            }
+        }
+    }
+}
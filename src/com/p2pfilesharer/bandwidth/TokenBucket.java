@@ -0,0 +1,80 @@
+package com.p2pfilesharer.bandwidth;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A token bucket kept as the time at which it will be full again. Callers reserve bytes and then sleep until
+// the reservation is covered, so no thread needs to refill it. The lock is fair: streams that keep asking for
+// small quanta get their reservations in arrival order and share the rate equally.
+class TokenBucket {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    // A tenth of a second of traffic may go out in one burst
+    private static final long BURST_NANOS = NANOS_PER_SECOND / 10;
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private volatile long bytesPerSecond;
+    private long fullAt = System.nanoTime();
+
+    TokenBucket(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    long getRate() {
+        return bytesPerSecond;
+    }
+
+    // 0 removes the limit. Debt built up under the old rate is dropped when the limit is raised or removed, so the
+    // new rate takes effect at once; a lowered limit keeps it, or lowering a limit would hand out a fresh burst.
+    void setRate(long bytesPerSecond) {
+        lock.lock();
+        try {
+            long old = this.bytesPerSecond;
+            this.bytesPerSecond = bytesPerSecond;
+            if (bytesPerSecond == 0 || (old != 0 && bytesPerSecond > old)) {
+                fullAt = Math.min(fullAt, System.nanoTime());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // True once every reservation has been covered; such a bucket behaves like a new one
+    boolean isIdle() {
+        lock.lock();
+        try {
+            return fullAt <= System.nanoTime();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void acquire(long bytes) throws InterruptedIOException {
+        long wait = reserve(bytes);
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth.");
+            }
+        }
+    }
+
+    // Reserves the bytes without waiting and returns how long the caller must hold them back, in nanoseconds
+    long reserve(long bytes) {
+        long rate = bytesPerSecond;
+        if (rate <= 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            fullAt = Math.max(fullAt, now) + (long) ((double) bytes * NANOS_PER_SECOND / rate);
+            return Math.max(0, fullAt - now - BURST_NANOS);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,28 +1,38 @@
 package com.p2pfilesharer.cli;
 
+import com.p2pfilesharer.bandwidth.BandwidthShaper;
 import com.p2pfilesharer.discovery.PeerDiscovery;
+import com.p2pfilesharer.discovery.PeerRegistry;
+import com.p2pfilesharer.metrics.MetricsHandler;
 import com.p2pfilesharer.network.FileReceiver;
 import com.p2pfilesharer.network.FileSender;
+import com.p2pfilesharer.network.NetworkSearch;
+import com.p2pfilesharer.network.ShareIndex;
+import com.p2pfilesharer.network.SwarmDownloader;
+import com.p2pfilesharer.network.SwarmLibrary;
+import com.p2pfilesharer.web.FileCatalog;
 import com.p2pfilesharer.web.HttpFileServer;
+import com.sun.net.httpserver.HttpServer;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.InputMismatchException;
 import java.util.List;
 import java.util.Scanner;
-import java.util.Set;
 
 
 public class CliHandler {
 
     private final Scanner scanner;
     private final PeerDiscovery peerDiscovery;
+    private PeerRegistry peerRegistry;
     private static final int P2P_PORT = 12345;
     private static final int HTTP_PORT = 8080;
 
@@ -37,6 +47,13 @@ public class CliHandler {
         Thread discoveryThread = new Thread(peerDiscovery);
         discoveryThread.setDaemon(true);
         discoveryThread.start();
+        try {
+            peerRegistry = new PeerRegistry();
+            peerRegistry.start(P2P_PORT);
+        } catch (IOException e) {
+            System.out.println("Peer registry unavailable, peers will be found by broadcast instead. " + e.getMessage());
+            peerRegistry = null;
+        }
 
         while (true) {
             showMenu();
@@ -55,11 +72,26 @@ public class CliHandler {
                         handleSendFileWeb();
                         break;
                     case 4:
+                        handleReceiveDaemon();
+                        break;
+                    case 5:
+                        handleBandwidthLimits();
+                        break;
+                    case 6:
+                        handleSwarmDownload();
+                        break;
+                    case 7:
+                        handleSearch();
+                        break;
+                    case 8:
                         System.out.println("Exiting application. Goodbye!");
                         peerDiscovery.stop();
+                        if (peerRegistry != null) {
+                            peerRegistry.stop();
+                        }
                         return;
                     default:
-                        System.out.println("Invalid choice. Please enter a number between 1 and 4.");
+                        System.out.println("Invalid choice. Please enter a number between 1 and 8.");
                 }
             } catch (InputMismatchException e) {
                 System.out.println("Invalid input. Please enter a number.");
@@ -76,24 +108,29 @@ public class CliHandler {
         System.out.println("1. Send a file (P2P)");
         System.out.println("2. Receive a file (P2P)");
         System.out.println("3. Send a file (Web Link)");
-        System.out.println("4. Exit");
+        System.out.println("4. Run receive daemon (many senders at once)");
+        System.out.println("5. Bandwidth limits");
+        System.out.println("6. Download from the swarm (many peers at once)");
+        System.out.println("7. Search the network");
+        System.out.println("8. Exit");
         System.out.print("Enter your choice: ");
     }
 
 
     private void handleSendFileP2P() {
-        Set<String> peers = peerDiscovery.discoverPeers();
-        List<String> peerList = new ArrayList<>(peers);
+        List<String> labels = new ArrayList<>();
+        List<String> peerList = findPeers(0, labels);
 
         String host;
+        int port = P2P_PORT;
         if (peerList.isEmpty()) {
             System.out.println("No peers found on the network.");
             System.out.print("Enter the receiver's IP address manually: ");
             host = scanner.nextLine();
         } else {
             System.out.println("Discovered Peers:");
-            for (int i = 0; i < peerList.size(); i++) {
-                System.out.println((i + 1) + ". " + peerList.get(i));
+            for (int i = 0; i < labels.size(); i++) {
+                System.out.println((i + 1) + ". " + labels.get(i));
             }
             System.out.println((peerList.size() + 1) + ". Enter IP manually");
             System.out.print("Choose a peer to send to: ");
@@ -102,15 +139,22 @@ public class CliHandler {
             scanner.nextLine();
 
             if (choice > 0 && choice <= peerList.size()) {
-                host = peerList.get(choice - 1);
+                String address = peerList.get(choice - 1);
+                host = address.substring(0, address.lastIndexOf(':'));
+                port = Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
             } else {
                 System.out.print("Enter the receiver's IP address manually: ");
                 host = scanner.nextLine();
             }
         }
 
-        System.out.print("Enter the full path of the file to send: ");
-        String filePath = expandPath(scanner.nextLine());
+        System.out.print("Enter the full path of the file or directory to send (separate several with ';'): ");
+        List<File> files = new ArrayList<>();
+        for (String path : scanner.nextLine().split(";")) {
+            if (!path.isBlank()) {
+                files.add(new File(expandPath(path.trim())));
+            }
+        }
 
         System.out.print("Enable encryption? (y/n): ");
         String encryptChoice = scanner.nextLine();
@@ -120,15 +164,71 @@ public class CliHandler {
             password = scanner.nextLine();
         }
 
-        File file = new File(filePath);
-        if (!file.exists()) {
-            System.err.println("Error: File does not exist at the specified path.");
+        // A directory or several paths go over one session; parallel streams only apply to a single file
+        boolean session = files.size() > 1 || (files.size() == 1 && files.get(0).isDirectory());
+        // 0 lets the sender pick from what it has measured for this peer
+        int streams = 0;
+        String changesOnly = "n";
+        boolean compress = false;
+        boolean udp = false;
+        boolean resumable = false;
+        if (!session && !files.isEmpty()) {
+            System.out.println("Send only what the receiver does not already have?");
+            System.out.println("  n - no, send the whole file");
+            System.out.println("  d - yes, reuse chunks of any file the receiver has stored (e.g. a new nightly build)");
+            System.out.println("  r - yes, patch the receiver's existing copy of this file (e.g. a growing log or VM image)");
+            System.out.print("Choice (n/d/r): ");
+            changesOnly = scanner.nextLine().trim().toLowerCase();
+            if (!changesOnly.equals("d") && !changesOnly.equals("r") && acceptsUdp(host)) {
+                System.out.print("Use UDP (faster on long or lossy links)? (y/n): ");
+                udp = "y".equalsIgnoreCase(scanner.nextLine().trim());
+            }
+            if (!changesOnly.equals("d") && !changesOnly.equals("r") && !udp) {
+                System.out.print("Number of parallel streams (1 for a single connection, Enter to tune automatically): ");
+                String count = scanner.nextLine().trim();
+                if (!count.isEmpty()) {
+                    try {
+                        streams = Integer.parseInt(count);
+                    } catch (NumberFormatException e) {
+                        System.out.println("Invalid number, tuning automatically.");
+                    }
+                }
+                System.out.print("Compress while sending? Helps for text, logs and CSV (y/n): ");
+                compress = "y".equalsIgnoreCase(scanner.nextLine().trim());
+                // Encrypted, parallel and compressed sends are chunked and resume anyway; a plain one goes zero-copy
+                if (password == null && streams <= 1 && !compress) {
+                    System.out.print("Keep progress so an interrupted send can resume? Slower on fast links (y/n): ");
+                    resumable = "y".equalsIgnoreCase(scanner.nextLine().trim());
+                }
+            }
+        }
+
+        if (files.isEmpty()) {
+            System.err.println("Error: No file was given.");
             return;
         }
+        for (File file : files) {
+            if (!file.exists()) {
+                System.err.println("Error: File does not exist at the specified path: " + file.getPath());
+                return;
+            }
+        }
 
-        FileSender sender = new FileSender(host, P2P_PORT);
+        FileSender sender = new FileSender(host, port);
         try {
-            sender.sendFile(file, password);
+            if (session) {
+                sender.sendFiles(files, password);
+                return;
+            }
+            if (streams > 0) {
+                sender.setStreams(streams);
+            }
+            sender.setResumable(resumable);
+            sender.setDeduplicate(changesOnly.equals("d"));
+            sender.setDelta(changesOnly.equals("r"));
+            sender.setCompress(compress);
+            sender.setUdp(udp);
+            sender.sendFile(files.get(0), password);
         } catch (Exception e) {
             System.err.println("File sending failed: " + e.getMessage());
         }
@@ -154,34 +254,318 @@ public class CliHandler {
         }
 
         FileReceiver receiver = new FileReceiver(P2P_PORT);
+        announceActivity(PeerRegistry.RECEIVING | PeerRegistry.RECEIVING_UDP);
         try {
             receiver.start(saveDir, password);
         } catch (Exception e) {
             System.err.println("Failed to receive file: " + e.getMessage());
-            if (e instanceof javax.crypto.BadPaddingException) {
-                System.err.println("This might be due to an incorrect password.");
+        } finally {
+            announceActivity(0);
+        }
+    }
+
+
+    private void handleReceiveDaemon() {
+        System.out.print("Enter the directory where incoming files should be saved: ");
+        String saveDir = expandPath(scanner.nextLine());
+
+        System.out.print("Password for encrypted transfers (leave empty to accept only unencrypted files): ");
+        String password = scanner.nextLine();
+
+        System.out.print("Maximum concurrent transfers: ");
+        int maxTransfers;
+        try {
+            maxTransfers = Integer.parseInt(scanner.nextLine().trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number, allowing 16 concurrent transfers.");
+            maxTransfers = 16;
+        }
+
+        System.out.print("Files to offer to swarm downloaders (separate several with ';', Enter to skip): ");
+        String swarmFiles = scanner.nextLine();
+
+        System.out.print("Directories other peers may search (separate several with ';', Enter to skip): ");
+        String searchable = scanner.nextLine();
+
+        System.out.print("Port for Prometheus metrics (Enter to skip): ");
+        String metricsPort = scanner.nextLine().trim();
+
+        File dir = new File(saveDir);
+        if (!dir.exists() && !dir.mkdirs()) {
+            System.err.println("Error: Could not create the save directory.");
+            return;
+        }
+
+        FileReceiver receiver = new FileReceiver(P2P_PORT);
+        try {
+            receiver.setMaxConcurrentTransfers(maxTransfers);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        shareWithSwarm(swarmFiles);
+        shareForSearch(searchable);
+        HttpServer metricsServer = null;
+        if (!metricsPort.isEmpty()) {
+            try {
+                metricsServer = MetricsHandler.startServer(Integer.parseInt(metricsPort));
+            } catch (NumberFormatException | IOException e) {
+                System.err.println("Could not start the metrics endpoint: " + e.getMessage());
+            }
+        }
+        String daemonPassword = password.isEmpty() ? null : password;
+        Thread daemonThread = new Thread(() -> {
+            try {
+                receiver.serve(saveDir, daemonPassword);
+            } catch (IOException e) {
+                System.err.println("Receive daemon failed: " + e.getMessage());
             }
+        });
+        daemonThread.start();
+        announceActivity(PeerRegistry.RECEIVING | PeerRegistry.RECEIVING_UDP | PeerRegistry.SEEDING_SWARM);
+
+        System.out.println("The receive daemon is running. Press Enter in this window to stop it.");
+        scanner.nextLine();
+        receiver.stop();
+        announceActivity(0);
+        if (metricsServer != null) {
+            metricsServer.stop(0);
+        }
+        try {
+            daemonThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
 
-    private void handleSendFileWeb() {
-        System.out.print("Enter the full path of the file to make available for download: ");
-        String filePath = expandPath(scanner.nextLine());
+    private void handleSwarmDownload() {
+        List<String> peers = findPeers(PeerRegistry.SEEDING_SWARM, new ArrayList<>());
+        System.out.print("Further peer addresses, as host or host:port (separate several with ';', Enter to skip): ");
+        for (String peer : scanner.nextLine().split(";")) {
+            if (!peer.isBlank()) {
+                peers.add(peer.trim());
+            }
+        }
+
+        SwarmDownloader downloader = new SwarmDownloader(P2P_PORT);
+        List<SwarmDownloader.Offer> offers = downloader.findOffers(peers);
+        if (offers.isEmpty()) {
+            System.out.println("No peer offers any files.");
+            return;
+        }
+        System.out.println("Files in the swarm:");
+        for (int i = 0; i < offers.size(); i++) {
+            SwarmDownloader.Offer offer = offers.get(i);
+            System.out.println((i + 1) + ". " + offer.name + " (" + (offer.size / 1024 / 1024) + " MB) on "
+                    + offer.getPeers().size() + " peers");
+        }
+        System.out.print("Choose a file to download: ");
+        int choice;
+        try {
+            choice = Integer.parseInt(scanner.nextLine().trim());
+        } catch (NumberFormatException e) {
+            choice = 0;
+        }
+        if (choice < 1 || choice > offers.size()) {
+            System.out.println("Invalid choice.");
+            return;
+        }
+
+        System.out.print("Enter the directory where you want to save the file: ");
+        String saveDir = expandPath(scanner.nextLine());
+        File dir = new File(saveDir);
+        if (!dir.exists() && !dir.mkdirs()) {
+            System.err.println("Error: Could not create the save directory.");
+            return;
+        }
 
-        File file = new File(filePath);
-        if (!file.exists()) {
+        // Chunks are offered to other downloaders as they arrive, and the whole file once it is complete
+        FileReceiver seeder = new FileReceiver(P2P_PORT);
+        seeder.setSwarmOnly(true);
+        Thread seederThread = new Thread(() -> {
+            try {
+                seeder.serve(saveDir, null);
+            } catch (IOException e) {
+                System.err.println("Not serving other downloaders: " + e.getMessage());
+            }
+        });
+        seederThread.start();
+        announceActivity(PeerRegistry.SEEDING_SWARM);
+        try {
+            downloader.download(offers.get(choice - 1), saveDir);
+            System.out.println("Now serving the file to other peers. Press Enter in this window to stop.");
+            scanner.nextLine();
+        } catch (Exception e) {
+            System.err.println("Swarm download failed: " + e.getMessage());
+        } finally {
+            seeder.stop();
+            announceActivity(0);
+            try {
+                seederThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    // Peers the registry has heard from, doing the given activity if one is given, as host:port with a label each.
+    // Without a registry, or when it has heard from nobody, a broadcast scan also finds peers running older versions.
+    private List<String> findPeers(int activity, List<String> labels) {
+        List<String> addresses = new ArrayList<>();
+        List<PeerRegistry.PeerInfo> known = peerRegistry == null ? List.of() : peerRegistry.getPeers();
+        for (PeerRegistry.PeerInfo peer : known) {
+            if (activity == 0 || peer.is(activity)) {
+                addresses.add(peer.getP2pAddress());
+                labels.add(peer.toString());
+            }
+        }
+        if (known.isEmpty()) {
+            for (String ip : peerDiscovery.discoverPeers()) {
+                addresses.add(ip + ":" + P2P_PORT);
+                labels.add(ip);
+            }
+        }
+        return addresses;
+    }
+
+
+    private void announceActivity(int activity) {
+        if (peerRegistry != null) {
+            peerRegistry.setActivity(activity);
+        }
+        peerDiscovery.setUdpPort((activity & PeerRegistry.RECEIVING_UDP) != 0 ? P2P_PORT : 0);
+    }
+
+
+    // Whether the registry or the last broadcast scan saw the peer taking UDP transfers
+    private boolean acceptsUdp(String host) {
+        if (peerRegistry != null) {
+            for (PeerRegistry.PeerInfo peer : peerRegistry.getPeers()) {
+                if (peer.address.equals(host) && peer.is(PeerRegistry.RECEIVING_UDP)) {
+                    return true;
+                }
+            }
+        }
+        return peerDiscovery.getUdpPort(host) != 0;
+    }
+
+
+    private void shareWithSwarm(String paths) {
+        for (String path : paths.split(";")) {
+            if (path.isBlank()) {
+                continue;
+            }
+            try {
+                String id = SwarmLibrary.global().share(new File(expandPath(path.trim())));
+                System.out.println("Offering " + path.trim() + " to swarm downloaders (id " + id.substring(0, 12) + ").");
+            } catch (IOException e) {
+                System.err.println("Could not offer " + path.trim() + ": " + e.getMessage());
+            }
+        }
+    }
+
+
+    private void shareForSearch(String paths) {
+        for (String path : paths.split(";")) {
+            if (path.isBlank()) {
+                continue;
+            }
+            try {
+                ShareIndex.global().share(Path.of(expandPath(path.trim())));
+                System.out.println("Indexing " + path.trim() + " for searches in the background.");
+            } catch (IOException e) {
+                System.err.println("Could not share " + path.trim() + ": " + e.getMessage());
+            }
+        }
+    }
+
+
+    private void handleSearch() {
+        List<String> peers = findPeers(PeerRegistry.RECEIVING, new ArrayList<>());
+        System.out.print("Further peer addresses, as host or host:port (separate several with ';', Enter to skip): ");
+        for (String peer : scanner.nextLine().split(";")) {
+            if (!peer.isBlank()) {
+                peers.add(peer.trim());
+            }
+        }
+        if (peers.isEmpty()) {
+            System.out.println("No peers to search.");
+            return;
+        }
+        System.out.print("File name prefix or content hash to search for: ");
+        String query = scanner.nextLine().trim();
+
+        // Printed as the answers come in; a copy on a further peer is added to the file it belongs to
+        NetworkSearch search = new NetworkSearch(P2P_PORT);
+        List<NetworkSearch.Result> results;
+        try {
+            results = search.search(peers, query, ShareIndex.MAX_RESULTS, (result, peer, match) -> {
+                if (result.getPeers().size() == 1) {
+                    System.out.println(match.path + " (" + (match.size / 1024) + " KB, " + result.getHash().substring(0, 12) + ") on " + peer);
+                } else {
+                    System.out.println("  " + result.name + " also on " + peer + " as " + match.path);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (results.isEmpty()) {
+            System.out.println("Nothing found.");
+            return;
+        }
+        System.out.println(results.size() + (results.size() == 1 ? " file" : " distinct files") + " found:");
+        for (NetworkSearch.Result result : results) {
+            System.out.println("  " + result.name + " (" + (result.size / 1024) + " KB) on " + result.getPeers().size()
+                    + (result.getPeers().size() == 1 ? " peer, id " : " peers, id ") + result.getHash());
+        }
+    }
+
+
+    private void handleSendFileWeb() {
+        System.out.print("Enter the full path of the file or directory to make available (separate several with ';'): ");
+        List<File> files = new ArrayList<>();
+        for (String path : scanner.nextLine().split(";")) {
+            if (!path.isBlank()) {
+                files.add(new File(expandPath(path.trim())));
+            }
+        }
+        if (files.isEmpty()) {
             System.err.println("Error: File does not exist.");
             return;
         }
+        for (File file : files) {
+            if (!file.exists()) {
+                System.err.println("Error: " + file + " does not exist.");
+                return;
+            }
+        }
 
         try {
             String localIp = getLocalIpAddress();
             String publicIp = getPublicIpAddress();
-            String downloadLink = "http://" + localIp + ":" + HTTP_PORT + "/download";
 
-            HttpFileServer server = new HttpFileServer(file, HTTP_PORT);
+            // A single file keeps the short /download link; anything more is shared as a catalog
+            HttpFileServer server;
+            String path;
+            if (files.size() == 1 && files.get(0).isFile()) {
+                server = new HttpFileServer(files.get(0), HTTP_PORT);
+                path = "/download";
+            } else {
+                FileCatalog catalog = new FileCatalog();
+                for (File file : files) {
+                    catalog.add(file);
+                }
+                server = new HttpFileServer(catalog, HTTP_PORT);
+                path = "/files";
+            }
+            String downloadLink = "http://" + localIp + ":" + HTTP_PORT + path;
             server.start();
+            if (peerRegistry != null) {
+                peerRegistry.setHttpPort(HTTP_PORT);
+            }
 
             System.out.println("\n--- ✅ Download Ready ---");
             System.out.println("\n--- For users on the SAME Wi-Fi network ---");
@@ -189,12 +573,15 @@ public class CliHandler {
 
 
             System.out.println("\n--- For users on the INTERNET ---");
-            System.out.println("Link: http://" + publicIp + ":" + HTTP_PORT + "/download");
+            System.out.println("Link: http://" + publicIp + ":" + HTTP_PORT + path);
             System.out.println("   (Requires port forwarding on your router for port " + HTTP_PORT + ")");
 
             System.out.println("\nThe server is running. Press Enter in this window to stop it.");
             scanner.nextLine();
             server.stop();
+            if (peerRegistry != null) {
+                peerRegistry.setHttpPort(0);
+            }
 
         } catch (IOException e) {
             System.err.println("Could not start the web server: " + e.getMessage());
@@ -202,6 +589,42 @@ public class CliHandler {
     }
 
 
+    private void handleBandwidthLimits() {
+        BandwidthShaper shaper = BandwidthShaper.global();
+        System.out.println("Current limits (KB/s, 0 = unlimited):");
+        System.out.println("  All uploads together: " + shaper.getGlobalLimit() / 1024);
+        System.out.println("  Each peer:            " + shaper.getDefaultPeerLimit() / 1024);
+        shaper.getPeerLimits().forEach((peer, limit) -> System.out.println("  " + peer + ": " + limit / 1024));
+
+        try {
+            System.out.print("Limit for all uploads together in KB/s (Enter to keep): ");
+            String global = scanner.nextLine().trim();
+            if (!global.isEmpty()) {
+                shaper.setGlobalLimit(Long.parseLong(global) * 1024);
+            }
+            System.out.print("Limit for each peer in KB/s (Enter to keep): ");
+            String perPeer = scanner.nextLine().trim();
+            if (!perPeer.isEmpty()) {
+                shaper.setDefaultPeerLimit(Long.parseLong(perPeer) * 1024);
+            }
+            System.out.print("Peer address for its own limit (Enter to skip): ");
+            String peer = scanner.nextLine().trim();
+            if (!peer.isEmpty()) {
+                System.out.print("Limit for " + peer + " in KB/s (empty to use the per-peer limit): ");
+                String limit = scanner.nextLine().trim();
+                if (limit.isEmpty()) {
+                    shaper.clearPeerLimit(peer);
+                } else {
+                    shaper.setPeerLimit(peer, Long.parseLong(limit) * 1024);
+                }
+            }
+            System.out.println("Limits updated. They apply to running and future uploads.");
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number, remaining limits were left unchanged.");
+        }
+    }
+
+
     private String expandPath(String path) {
         if (path.startsWith("~" + File.separator)) {
             return System.getProperty("user.home") + path.substring(1);
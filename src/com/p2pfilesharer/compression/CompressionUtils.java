@@ -0,0 +1,110 @@
+package com.p2pfilesharer.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+public class CompressionUtils {
+
+    // Codec ids used in the transfer headers; offers are sent as a bit mask of these
+    public static final int CODEC_NONE = 0;
+    public static final int CODEC_DEFLATE = 1;
+
+    // Data whose sampled byte entropy is above this is treated as already compressed (media, archives)
+    private static final double MAX_COMPRESSIBLE_ENTROPY = 7.5;
+    private static final int SAMPLE_RUNS = 64;
+    private static final int SAMPLE_RUN_LENGTH = 64;
+    // A compressed chunk has to save at least this share of its size, otherwise it is sent raw
+    private static final int MIN_SAVING_DIVISOR = 32;
+
+    // Deflater and Inflater hold native state and are not thread-safe, so every worker keeps its own
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+
+    // Estimates the order-0 entropy from a few runs spread over the data; cheap enough to run on every chunk
+    public static boolean looksCompressible(ByteBuffer data) {
+        int start = data.position();
+        int length = data.remaining();
+        int[] counts = new int[256];
+        int sampled = 0;
+        if (length <= SAMPLE_RUNS * SAMPLE_RUN_LENGTH) {
+            for (int i = 0; i < length; i++) {
+                counts[data.get(start + i) & 0xFF]++;
+            }
+            sampled = length;
+        } else {
+            long stride = (length - SAMPLE_RUN_LENGTH) / (SAMPLE_RUNS - 1);
+            for (int run = 0; run < SAMPLE_RUNS; run++) {
+                int runStart = start + (int) (run * stride);
+                for (int i = 0; i < SAMPLE_RUN_LENGTH; i++) {
+                    counts[data.get(runStart + i) & 0xFF]++;
+                }
+            }
+            sampled = SAMPLE_RUNS * SAMPLE_RUN_LENGTH;
+        }
+        if (sampled == 0) {
+            return false;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / sampled;
+                entropy -= p * Math.log(p) / Math.log(2);
+            }
+        }
+        return entropy <= MAX_COMPRESSIBLE_ENTROPY;
+    }
+
+    public static boolean looksCompressible(byte[] data, int offset, int length) {
+        return looksCompressible(ByteBuffer.wrap(data, offset, length));
+    }
+
+    // Deflates plain into out and returns the compressed length, or -1 when the result would not be
+    // meaningfully smaller. plain is consumed only on success; out is left flipped for reading.
+    public static int deflate(ByteBuffer plain, ByteBuffer out) {
+        int length = plain.remaining();
+        int start = plain.position();
+        if (length < MIN_SAVING_DIVISOR) {
+            return -1;
+        }
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(plain);
+        deflater.finish();
+        out.clear().limit(Math.min(out.capacity(), length - length / MIN_SAVING_DIVISOR - 1));
+        while (!deflater.finished()) {
+            if (!out.hasRemaining() || deflater.deflate(out) == 0 && !deflater.finished() && out.hasRemaining()) {
+                plain.position(start);
+                out.clear();
+                return -1;
+            }
+        }
+        out.flip();
+        return out.remaining();
+    }
+
+    // Inflates a complete deflate stream into out, which is left flipped for reading
+    public static void inflate(ByteBuffer compressed, ByteBuffer out) throws IOException {
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(compressed);
+        try {
+            while (!inflater.finished()) {
+                if (inflater.inflate(out) > 0 || inflater.finished()) {
+                    continue;
+                }
+                if (!out.hasRemaining()) {
+                    throw new IOException("Compressed data expands beyond its announced length.");
+                }
+                throw new IOException("Compressed data is truncated.");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed data is corrupt: " + e.getMessage(), e);
+        }
+        out.flip();
+    }
+}
@@ -0,0 +1,202 @@
+package com.p2pfilesharer.daemon;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+// Transfer jobs kept as files in a spool directory, so the queue survives restarts. Scripts drop job files
+// into incoming/ (written under another name and renamed to *.job when complete); accepted jobs stay in queue/
+// until they have finished, and then move to done/ or failed/ with the outcome. A job that was running when the
+// daemon stopped is simply run again, and resumable sends pick up where they were.
+public class JobQueue {
+
+    // Urgent jobs and jobs up to this size may use the express worker, which never takes anything larger
+    public static final long EXPRESS_LIMIT = 64L * 1024 * 1024;
+
+    private static final String SUFFIX = ".job";
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final boolean POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+    private final Path incoming;
+    private final Path queue;
+    private final Path done;
+    private final Path failed;
+    private final List<TransferJob> pending = new ArrayList<>();
+    private long lastId;
+
+    public JobQueue(Path spool) throws IOException {
+        incoming = Files.createDirectories(spool.resolve("incoming"));
+        queue = ownerOnly(Files.createDirectories(spool.resolve("queue")));
+        done = Files.createDirectories(spool.resolve("done"));
+        failed = Files.createDirectories(spool.resolve("failed"));
+        try (DirectoryStream<Path> saved = Files.newDirectoryStream(queue, "*" + SUFFIX)) {
+            for (Path file : saved) {
+                String id = file.getFileName().toString();
+                id = id.substring(0, id.length() - SUFFIX.length());
+                Properties properties = new Properties();
+                try {
+                    properties = read(file);
+                    pending.add(new TransferJob(id, properties));
+                } catch (IOException e) {
+                    archive(file, failed, properties, "error", e.getMessage());
+                }
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    // Accepts the job files waiting in incoming/ and returns how many were queued; rejected ones go to failed/
+    public int scanIncoming() throws IOException {
+        int accepted = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(incoming, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String id = nextId(file);
+                Properties properties = new Properties();
+                try {
+                    properties = read(file);
+                    TransferJob job = new TransferJob(id, properties);
+                    save(job);
+                    Files.delete(file);
+                    System.out.println("Job accepted: " + job);
+                    synchronized (this) {
+                        pending.add(job);
+                        notifyAll();
+                    }
+                    accepted++;
+                } catch (IOException e) {
+                    System.err.println("Job " + file.getFileName() + " rejected: " + e.getMessage());
+                    archive(file, failed, properties, "error", e.getMessage());
+                }
+            }
+        }
+        return accepted;
+    }
+
+    // Blocks until a job may run. The express worker only takes urgent or small jobs, so a large backup
+    // never holds up a small push.
+    public synchronized TransferJob take(boolean express) throws InterruptedException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            TransferJob best = null;
+            long wakeAt = now + TimeUnit.SECONDS.toMillis(1);
+            for (TransferJob job : pending) {
+                if (job.notBefore > now) {
+                    wakeAt = Math.min(wakeAt, job.notBefore);
+                    continue;
+                }
+                if (express && job.priority != TransferJob.URGENT && job.size > EXPRESS_LIMIT) {
+                    continue;
+                }
+                if (best == null || before(job, best, now)) {
+                    best = job;
+                }
+            }
+            if (best != null) {
+                pending.remove(best);
+                return best;
+            }
+            wait(Math.max(1, wakeAt - now));
+        }
+    }
+
+    // Urgent before normal before bulk, and the smallest first within a priority. Waiting shrinks a job's
+    // effective size, so a large job is not starved by a steady stream of small ones.
+    private static boolean before(TransferJob job, TransferJob other, long now) {
+        if (job.priority != other.priority) {
+            return job.priority < other.priority;
+        }
+        return effectiveSize(job, now) < effectiveSize(other, now);
+    }
+
+    private static double effectiveSize(TransferJob job, long now) {
+        double minutesWaiting = Math.max(0, now - job.submitted) / 60_000.0;
+        return job.size / (1 + minutesWaiting);
+    }
+
+    public void succeeded(TransferJob job) throws IOException {
+        archive(queue.resolve(job.id + SUFFIX), done, job.toProperties(), "finished", String.valueOf(System.currentTimeMillis()));
+    }
+
+    // A job that may work on a later attempt goes back into the queue after a delay; one that cannot, such as
+    // a job with invalid settings, fails at once
+    public void failed(TransferJob job, Exception failure, boolean retry) throws IOException {
+        job.attempts++;
+        if (retry && job.attempts < MAX_ATTEMPTS) {
+            job.notBefore = System.currentTimeMillis() + RETRY_DELAY_MILLIS * job.attempts;
+            save(job);
+            synchronized (this) {
+                pending.add(job);
+                notifyAll();
+            }
+            System.err.println("Job " + job.id + " failed (attempt " + job.attempts + " of " + MAX_ATTEMPTS + "), retrying: " + failure.getMessage());
+            return;
+        }
+        System.err.println("Job " + job.id + " failed: " + failure.getMessage());
+        archive(queue.resolve(job.id + SUFFIX), failed, job.toProperties(), "error", String.valueOf(failure.getMessage()));
+    }
+
+    // Ids sort in the order jobs arrived and keep the name of the file they came in
+    private synchronized String nextId(Path file) {
+        lastId = Math.max(lastId + 1, System.currentTimeMillis());
+        String name = file.getFileName().toString();
+        return lastId + "-" + name.substring(0, name.length() - SUFFIX.length());
+    }
+
+    private void save(TransferJob job) throws IOException {
+        write(queue.resolve(job.id + SUFFIX), job.toProperties());
+    }
+
+    // Passwords are not kept once a job is over
+    private static void archive(Path file, Path directory, Properties properties, String key, String value) throws IOException {
+        properties.remove("password");
+        properties.setProperty(key, value);
+        write(directory.resolve(file.getFileName()), properties);
+        Files.deleteIfExists(file);
+    }
+
+    private static Properties read(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed job file: " + e.getMessage(), e);
+        }
+        return properties;
+    }
+
+    // Job files may hold a password, so only the daemon's user may read them or list the queue
+    private static Path ownerOnly(Path directory) throws IOException {
+        if (POSIX) {
+            Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("rwx------"));
+        }
+        return directory;
+    }
+
+    // Written aside and renamed, so a crash never leaves half a job file behind
+    private static void write(Path file, Properties properties) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(temp);
+        if (POSIX) {
+            Files.createFile(temp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            properties.store(writer, null);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
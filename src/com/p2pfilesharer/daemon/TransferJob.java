@@ -0,0 +1,188 @@
+package com.p2pfilesharer.daemon;
+
+import com.p2pfilesharer.network.FileSender;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+// One send, read from a job file in the spool: the peer, the paths to send and how to send them.
+//
+//   peer=192.168.1.20            host or host:port
+//   files=/backups/db.tar;/etc/app.conf
+//   priority=urgent              urgent, normal (default) or bulk
+//   password-file=/etc/p2p/pw    encrypts the transfer with the password in this file, read when the job runs
+//   password=...                 the password itself; it is then kept in the queue until the job is over
+//   streams=4                    tuned for the peer when left out
+//   compress=true
+//   resume=true                  keeps progress so a retry picks up where the last attempt stopped
+//   changes=dedup                none (default), dedup or delta, as in the interactive menu
+//   transport=udp                tcp (default) or udp, for a single whole file over a long or lossy link
+public class TransferJob {
+
+    public static final int URGENT = 0;
+    public static final int NORMAL = 1;
+    public static final int BULK = 2;
+
+    private static final int DEFAULT_PORT = 12345;
+
+    final String id;
+    final Properties properties;
+    final String host;
+    final int port;
+    final List<File> files = new ArrayList<>();
+    final int priority;
+    final int streams;
+    final boolean compress;
+    final boolean resume;
+    final String changes;
+    final boolean udp;
+    final Path passwordFile;
+    // Bytes to send, measured when the job was accepted
+    final long size;
+    final long submitted;
+    int attempts;
+    long notBefore;
+
+    TransferJob(String id, Properties properties) throws IOException {
+        this.id = id;
+        this.properties = properties;
+
+        String peer = required(properties, "peer");
+        int colon = peer.lastIndexOf(':');
+        if (colon > 0 && peer.indexOf(':') == colon) {
+            host = peer.substring(0, colon);
+            port = (int) number("port", peer.substring(colon + 1));
+        } else {
+            host = peer;
+            port = DEFAULT_PORT;
+        }
+
+        for (String path : required(properties, "files").split(";")) {
+            if (!path.isBlank()) {
+                File file = new File(path.trim());
+                if (!file.exists()) {
+                    throw new IOException(file + " does not exist.");
+                }
+                files.add(file);
+            }
+        }
+        if (files.isEmpty()) {
+            throw new IOException("No files given.");
+        }
+
+        String level = properties.getProperty("priority", "normal").trim().toLowerCase();
+        switch (level) {
+            case "urgent" -> priority = URGENT;
+            case "normal" -> priority = NORMAL;
+            case "bulk" -> priority = BULK;
+            default -> throw new IOException("Unknown priority " + level + "; use urgent, normal or bulk.");
+        }
+        streams = (int) number("streams", properties.getProperty("streams", "0"));
+        compress = Boolean.parseBoolean(properties.getProperty("compress", "false").trim());
+        resume = Boolean.parseBoolean(properties.getProperty("resume", "false").trim());
+        changes = properties.getProperty("changes", "none").trim().toLowerCase();
+        if (!changes.equals("none") && !changes.equals("dedup") && !changes.equals("delta")) {
+            throw new IOException("Unknown changes setting " + changes + "; use none, dedup or delta.");
+        }
+        String transport = properties.getProperty("transport", "tcp").trim().toLowerCase();
+        if (!transport.equals("tcp") && !transport.equals("udp")) {
+            throw new IOException("Unknown transport " + transport + "; use tcp or udp.");
+        }
+        udp = transport.equals("udp");
+        if (udp && (files.size() > 1 || files.get(0).isDirectory() || !changes.equals("none"))) {
+            throw new IOException("The UDP transport sends a single whole file; it cannot take several paths, a directory or changes=" + changes + ".");
+        }
+
+        String passwordPath = properties.getProperty("password-file");
+        if (passwordPath != null && !passwordPath.isBlank()) {
+            if (properties.getProperty("password") != null) {
+                throw new IOException("Give either password or password-file, not both.");
+            }
+            passwordFile = Path.of(passwordPath.trim());
+            if (!Files.isReadable(passwordFile)) {
+                throw new IOException("Cannot read the password file " + passwordFile + ".");
+            }
+        } else {
+            passwordFile = null;
+        }
+
+        String measured = properties.getProperty("size");
+        size = measured != null ? number("size", measured) : measure(files);
+        submitted = number("submitted", properties.getProperty("submitted", String.valueOf(System.currentTimeMillis())));
+        attempts = (int) number("attempts", properties.getProperty("attempts", "0"));
+        notBefore = number("not-before", properties.getProperty("not-before", "0"));
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    // Sends the same way the interactive menu does: several paths or a directory over one session, a single file
+    // with the job's settings. Resuming is opt-in, since it takes a plain send off the zero-copy path.
+    public void run() throws Exception {
+        String password = passwordFile != null ? Files.readString(passwordFile).strip() : properties.getProperty("password");
+        FileSender sender = new FileSender(host, port);
+        if (files.size() > 1 || files.get(0).isDirectory()) {
+            sender.sendFiles(files, password);
+            return;
+        }
+        if (streams != 0) {
+            sender.setStreams(streams);
+        }
+        sender.setResumable(resume);
+        sender.setDeduplicate(changes.equals("dedup"));
+        sender.setDelta(changes.equals("delta"));
+        sender.setCompress(compress);
+        sender.setUdp(udp);
+        sender.sendFile(files.get(0), password);
+    }
+
+    // What is written back to the spool, with the scheduling state that has to survive a restart
+    Properties toProperties() {
+        Properties saved = new Properties();
+        saved.putAll(properties);
+        saved.setProperty("size", String.valueOf(size));
+        saved.setProperty("submitted", String.valueOf(submitted));
+        saved.setProperty("attempts", String.valueOf(attempts));
+        saved.setProperty("not-before", String.valueOf(notBefore));
+        return saved;
+    }
+
+    @Override
+    public String toString() {
+        String what = files.size() == 1 ? files.get(0).getName() : files.size() + " paths";
+        return id + " (" + what + ", " + (size / 1024 / 1024) + " MB to " + host + ":" + port + ")";
+    }
+
+    private static String required(Properties properties, String key) throws IOException {
+        String value = properties.getProperty(key);
+        if (value == null || value.isBlank()) {
+            throw new IOException("Missing " + key + ".");
+        }
+        return value.trim();
+    }
+
+    private static long number(String key, String value) throws IOException {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid " + key + ": " + value);
+        }
+    }
+
+    private static long measure(List<File> files) throws IOException {
+        long total = 0;
+        for (File file : files) {
+            try (Stream<Path> paths = Files.walk(file.toPath())) {
+                total += paths.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+            }
+        }
+        return total;
+    }
+}
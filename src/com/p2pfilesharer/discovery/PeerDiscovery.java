@@ -1,55 +1,108 @@
 package com.p2pfilesharer.discovery;
 
+import com.p2pfilesharer.metrics.TransferMetrics;
+import com.p2pfilesharer.network.IoEngine;
+
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public class PeerDiscovery implements Runnable {
 
-    private static final int DISCOVERY_PORT = 12346;
+    public static final int DEFAULT_PORT = 12346;
     private static final String DISCOVERY_REQUEST = "P2P_FILE_SHARER_DISCOVERY_REQUEST";
     private static final String DISCOVERY_RESPONSE = "P2P_FILE_SHARER_DISCOVERY_RESPONSE";
+    // Sent after the response by peers that accept UDP transfers; older versions ignore the extra datagram
+    private static final String CAPABILITIES = "P2P_FILE_SHARER_CAPABILITIES udp=";
+
+    private final int port;
+    private DatagramChannel listeningChannel;
+    private volatile int udpPort;
+    private final Map<String, Integer> udpPorts = new ConcurrentHashMap<>();
+
+    public PeerDiscovery() {
+        this(DEFAULT_PORT);
+    }
 
-    private DatagramSocket listeningSocket;
+    // Listens and broadcasts on another port, e.g. to run several nodes on one machine
+    public PeerDiscovery(int port) {
+        this.port = port;
+    }
 
+    // The port this peer takes UDP transfers on while it is receiving, or 0 when it does not
+    public void setUdpPort(int udpPort) {
+        this.udpPort = udpPort;
+    }
+
+    // The UDP port a peer found by the last scan advertised, or 0 if it does not accept UDP transfers
+    public int getUdpPort(String address) {
+        return udpPorts.getOrDefault(address, 0);
+    }
+
+    // Registers the listener with the I/O engine and returns; requests are answered on the engine's threads
     @Override
     public void run() {
         try {
-            listeningSocket = new DatagramSocket(DISCOVERY_PORT);
-            listeningSocket.setBroadcast(true);
-            System.out.println("Peer discovery listener started on UDP port " + DISCOVERY_PORT);
+            listeningChannel = DatagramChannel.open();
+            listeningChannel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+            listeningChannel.bind(new InetSocketAddress(port));
+            IoEngine.global().register(listeningChannel, SelectionKey.OP_READ, new Responder(listeningChannel, this));
+            System.out.println("Peer discovery listener started on UDP port " + port);
+        } catch (IOException e) {
+            System.out.println("PeerDiscovery: Could not bind to port " + port + ". Another instance is likely running. This instance will not respond to discovery requests.");
+            stop();
+        }
+    }
 
-            byte[] receiveBuffer = new byte[1024];
-            while (!Thread.currentThread().isInterrupted()) {
-                DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
-                listeningSocket.receive(receivePacket);
+    private static class Responder extends IoEngine.Connection {
+        private static final byte[] REQUEST = DISCOVERY_REQUEST.getBytes();
+        private static final byte[] RESPONSE = DISCOVERY_RESPONSE.getBytes();
+
+        private final DatagramChannel channel;
+        private final PeerDiscovery discovery;
+        private final ByteBuffer received = ByteBuffer.allocate(1024);
+
+        Responder(DatagramChannel channel, PeerDiscovery discovery) {
+            this.channel = channel;
+            this.discovery = discovery;
+        }
 
-                String message = new String(receivePacket.getData(), 0, receivePacket.getLength());
-                if (message.equals(DISCOVERY_REQUEST)) {
-                    byte[] responseData = DISCOVERY_RESPONSE.getBytes();
-                    DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length, receivePacket.getAddress(), receivePacket.getPort());
-                    listeningSocket.send(responsePacket);
+        @Override
+        protected void onReadable() throws IOException {
+            SocketAddress sender;
+            while ((sender = channel.receive(received.clear())) != null) {
+                if (Arrays.equals(received.array(), 0, received.position(), REQUEST, 0, REQUEST.length)) {
+                    // A reply the socket buffer cannot take is dropped, as it would be on the wire
+                    channel.send(ByteBuffer.wrap(RESPONSE), sender);
+                    int udpPort = discovery.udpPort;
+                    if (udpPort != 0) {
+                        channel.send(ByteBuffer.wrap((CAPABILITIES + udpPort).getBytes()), sender);
+                    }
                 }
             }
-        } catch (IOException e) {
-            System.out.println("PeerDiscovery: Could not bind to port " + DISCOVERY_PORT + ". Another instance is likely running. This instance will not respond to discovery requests.");
-        } finally {
-            if (listeningSocket != null && !listeningSocket.isClosed()) {
-                listeningSocket.close();
-            }
         }
     }
 
 
     public Set<String> discoverPeers() {
         Set<String> discoveredPeers = new HashSet<>();
+        udpPorts.clear();
         try (DatagramSocket discoverySocket = new DatagramSocket()) {
             discoverySocket.setBroadcast(true);
             System.out.println("Searching for peers on the network...");
@@ -63,11 +116,12 @@ public class PeerDiscovery implements Runnable {
                 for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
                     InetAddress broadcast = interfaceAddress.getBroadcast();
                     if (broadcast == null) continue;
-                    DatagramPacket sendPacket = new DatagramPacket(requestData, requestData.length, broadcast, DISCOVERY_PORT);
+                    DatagramPacket sendPacket = new DatagramPacket(requestData, requestData.length, broadcast, port);
                     discoverySocket.send(sendPacket);
                 }
             }
 
+            long sentAt = System.nanoTime();
             long startTime = System.currentTimeMillis();
             byte[] receiveBuffer = new byte[1024];
             while (System.currentTimeMillis() - startTime < 3000) { // 3-second discovery window
@@ -76,8 +130,14 @@ public class PeerDiscovery implements Runnable {
                 try {
                     discoverySocket.receive(receivePacket);
                     String message = new String(receivePacket.getData(), 0, receivePacket.getLength());
-                    if (message.equals(DISCOVERY_RESPONSE)) {
-                        discoveredPeers.add(receivePacket.getAddress().getHostAddress());
+                    String address = receivePacket.getAddress().getHostAddress();
+                    if (message.equals(DISCOVERY_RESPONSE) && discoveredPeers.add(address)) {
+                        TransferMetrics.DISCOVERY_RTT.observeNanos(System.nanoTime() - sentAt);
+                    } else if (message.startsWith(CAPABILITIES)) {
+                        try {
+                            udpPorts.put(address, Integer.parseInt(message.substring(CAPABILITIES.length()).trim()));
+                        } catch (NumberFormatException e) {
+                        }
                     }
                 } catch (java.net.SocketTimeoutException e) {
                 }
@@ -89,9 +149,13 @@ public class PeerDiscovery implements Runnable {
     }
 
     public void stop() {
-        if (listeningSocket != null && !listeningSocket.isClosed()) {
-            listeningSocket.close();
-            System.out.println("Peer discovery listener stopped.");
+        if (listeningChannel != null && listeningChannel.isOpen()) {
+            try {
+                listeningChannel.close();
+                System.out.println("Peer discovery listener stopped.");
+            } catch (IOException e) {
+                System.err.println("PeerDiscovery: Error while stopping the listener. " + e.getMessage());
+            }
         }
     }
 }
@@ -0,0 +1,292 @@
+package com.p2pfilesharer.discovery;
+
+import com.p2pfilesharer.metrics.TransferMetrics;
+import com.p2pfilesharer.network.SwarmLibrary;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.StandardSocketOptions;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Keeps a live list of the peers on the network from the heartbeats every node multicasts, so finding a peer
+// is a lookup instead of a broadcast and a wait. A peer that misses a few heartbeats is dropped.
+public class PeerRegistry {
+
+    public static final String DEFAULT_GROUP = "239.255.42.99";
+    public static final int DEFAULT_PORT = 12347;
+
+    // What a peer is doing right now, as announced in its heartbeat
+    public static final int RECEIVING = 1;
+    public static final int SEEDING_SWARM = 2;
+    // Set alongside RECEIVING when the peer also takes UDP transfers on its P2P port
+    public static final int RECEIVING_UDP = 4;
+
+    private static final int MAGIC = 0x50324842;
+    private static final int VERSION = 1;
+    private static final int FLAG_LEAVING = 1;
+    private static final long HEARTBEAT_MILLIS = 2000;
+    private static final long EXPIRY_NANOS = TimeUnit.MILLISECONDS.toNanos(3 * HEARTBEAT_MILLIS + 1000);
+    // Keeps an announcement in one unfragmented datagram; file names beyond that are left out
+    private static final int MAX_ANNOUNCEMENT = 1200;
+
+    private final InetAddress group;
+    private final int port;
+    private final SwarmLibrary library;
+    private final long nodeId = new SecureRandom().nextLong();
+    private final Map<Long, PeerInfo> peers = new ConcurrentHashMap<>();
+
+    private volatile int p2pPort;
+    private volatile int httpPort;
+    private volatile int activity;
+    private volatile boolean running;
+    private MulticastSocket socket;
+    private ScheduledExecutorService heartbeat;
+
+    public PeerRegistry() throws IOException {
+        this(DEFAULT_GROUP, DEFAULT_PORT, SwarmLibrary.global());
+    }
+
+    public PeerRegistry(String group, int port, SwarmLibrary library) throws IOException {
+        this.group = InetAddress.getByName(group);
+        if (!this.group.isMulticastAddress()) {
+            throw new IOException(group + " is not a multicast address.");
+        }
+        this.port = port;
+        this.library = library;
+    }
+
+    public static class PeerInfo {
+        public final String address;
+        public final int p2pPort;
+        // 0 when the peer is not serving files over HTTP
+        public final int httpPort;
+        public final int activity;
+        public final int activeTransfers;
+        public final int sharedFileCount;
+        public final long sharedBytes;
+        // May list fewer names than sharedFileCount when they did not all fit in the announcement
+        public final List<String> sharedFiles;
+        private final long lastSeen;
+
+        PeerInfo(String address, int p2pPort, int httpPort, int activity, int activeTransfers,
+                 int sharedFileCount, long sharedBytes, List<String> sharedFiles, long lastSeen) {
+            this.address = address;
+            this.p2pPort = p2pPort;
+            this.httpPort = httpPort;
+            this.activity = activity;
+            this.activeTransfers = activeTransfers;
+            this.sharedFileCount = sharedFileCount;
+            this.sharedBytes = sharedBytes;
+            this.sharedFiles = sharedFiles;
+            this.lastSeen = lastSeen;
+        }
+
+        public boolean is(int activityFlag) {
+            return (activity & activityFlag) != 0;
+        }
+
+        public String getP2pAddress() {
+            return address + ":" + p2pPort;
+        }
+
+        public long getAgeMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastSeen);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(getP2pAddress()).append(" (");
+            text.append(is(RECEIVING) ? "receiving" : is(SEEDING_SWARM) ? "swarm only" : "not receiving");
+            if (is(RECEIVING_UDP)) {
+                text.append(", UDP");
+            }
+            text.append(", ").append(activeTransfers).append(activeTransfers == 1 ? " transfer" : " transfers");
+            if (sharedFileCount > 0) {
+                text.append(", ").append(sharedFileCount).append(" shared files, ")
+                        .append(sharedBytes / 1024 / 1024).append(" MB");
+            }
+            return text.append(')').toString();
+        }
+    }
+
+    // Joins the group and announces this node straight away, then every couple of seconds
+    public synchronized void start(int p2pPort) throws IOException {
+        if (running) {
+            return;
+        }
+        this.p2pPort = p2pPort;
+        socket = new MulticastSocket(port);
+        try {
+            socket.setTimeToLive(1);
+            // Peers on the same machine hear each other too
+            socket.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+            socket.joinGroup(new InetSocketAddress(group, port), null);
+        } catch (IOException e) {
+            socket.close();
+            throw new IOException("Could not join multicast group " + group.getHostAddress() + ": " + e.getMessage(), e);
+        }
+        running = true;
+
+        Thread listener = new Thread(this::listen, "peer-registry");
+        listener.setDaemon(true);
+        listener.start();
+        heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "peer-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleAtFixedRate(() -> {
+            announce(false);
+            expire();
+        }, 0, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+        System.out.println("Peer registry started on multicast group " + group.getHostAddress() + ":" + port);
+    }
+
+    // Tells the other peers this node is leaving, so they drop it now instead of after the expiry
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        heartbeat.shutdownNow();
+        announce(true);
+        socket.close();
+        peers.clear();
+    }
+
+    // Changes are announced at once rather than at the next heartbeat
+    public void setHttpPort(int httpPort) {
+        this.httpPort = httpPort;
+        if (running) {
+            announce(false);
+        }
+    }
+
+    public void setActivity(int activity) {
+        this.activity = activity;
+        if (running) {
+            announce(false);
+        }
+    }
+
+    // Live peers, least busy first
+    public List<PeerInfo> getPeers() {
+        List<PeerInfo> live = new ArrayList<>();
+        for (PeerInfo peer : peers.values()) {
+            if (System.nanoTime() - peer.lastSeen < EXPIRY_NANOS) {
+                live.add(peer);
+            }
+        }
+        live.sort(Comparator.comparingInt((PeerInfo peer) -> peer.activeTransfers).thenComparing(peer -> peer.address));
+        return live;
+    }
+
+    private void listen() {
+        byte[] buffer = new byte[MAX_ANNOUNCEMENT];
+        while (running) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("PeerRegistry: Stopped listening for peers. " + e.getMessage());
+                }
+                return;
+            }
+            try {
+                receive(packet);
+            } catch (IOException e) {
+                // Not one of ours, or cut short; the next heartbeat will do
+            }
+        }
+    }
+
+    private void receive(DatagramPacket packet) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(packet.getData(), packet.getOffset(), packet.getLength()));
+        if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+            return;
+        }
+        int flags = in.readUnsignedByte();
+        long peerId = in.readLong();
+        if (peerId == nodeId) {
+            return;
+        }
+        if ((flags & FLAG_LEAVING) != 0) {
+            peers.remove(peerId);
+            return;
+        }
+        int peerP2pPort = in.readUnsignedShort();
+        int peerHttpPort = in.readUnsignedShort();
+        int peerActivity = in.readInt();
+        int activeTransfers = in.readInt();
+        int sharedFileCount = in.readInt();
+        long sharedBytes = in.readLong();
+        List<String> names = new ArrayList<>();
+        while (in.available() > 0) {
+            names.add(in.readUTF());
+        }
+        PeerInfo peer = new PeerInfo(packet.getAddress().getHostAddress(), peerP2pPort, peerHttpPort, peerActivity,
+                activeTransfers, sharedFileCount, sharedBytes, Collections.unmodifiableList(names), System.nanoTime());
+        // A newcomer hears from this node right away rather than at the next heartbeat
+        if (peers.put(peerId, peer) == null) {
+            announce(false);
+        }
+    }
+
+    private void expire() {
+        peers.values().removeIf(peer -> System.nanoTime() - peer.lastSeen >= EXPIRY_NANOS);
+    }
+
+    private void announce(boolean leaving) {
+        try {
+            byte[] announcement = announcement(leaving);
+            socket.send(new DatagramPacket(announcement, announcement.length, group, port));
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("PeerRegistry: Could not announce this node. " + e.getMessage());
+            }
+        }
+    }
+
+    private byte[] announcement(boolean leaving) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(leaving ? FLAG_LEAVING : 0);
+        out.writeLong(nodeId);
+        if (!leaving) {
+            List<String> names = library.getSharedNames();
+            out.writeShort(p2pPort);
+            out.writeShort(httpPort);
+            out.writeInt(activity);
+            out.writeInt((int) TransferMetrics.activeTransfers());
+            out.writeInt(names.size());
+            out.writeLong(library.getSharedBytes());
+            for (String name : names) {
+                // writeUTF takes at most three bytes per character
+                if (bytes.size() + 2 + 3 * name.length() > MAX_ANNOUNCEMENT) {
+                    break;
+                }
+                out.writeUTF(name);
+            }
+        }
+        return bytes.toByteArray();
+    }
+}
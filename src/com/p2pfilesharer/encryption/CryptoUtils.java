@@ -3,47 +3,176 @@ package com.p2pfilesharer.encryption;
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.security.spec.KeySpec;
+import java.util.Base64;
 
 
 public class CryptoUtils {
 
     private static final String ALGORITHM = "AES";
-    private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
     private static final String KEY_DERIVATION_ALGORITHM = "PBKDF2WithHmacSHA256";
-    private static final byte[] SALT = "p2p-file-sharer-salt".getBytes(); // A fixed salt for simplicity
 
+    public static final int SALT_LENGTH = 16;
+    public static final int TAG_LENGTH = 16;
+    public static final int NONCE_PREFIX_LENGTH = 8;
+    // Counter reserved for the key check sealed into the transfer header, so it never collides with a chunk
+    public static final long KEY_CHECK_COUNTER = 0xFFFFFFFFL;
 
-    public static SecretKey getKeyFromPassword(String password) throws Exception {
+    // Session keys are reused for ten minutes, for at most 64 peers or salts at a time
+    private static final long SESSION_KEY_TTL_MILLIS = 10 * 60 * 1000;
+    private static final int SESSION_KEY_CACHE_SIZE = 64;
+
+    private static final KeyCache<SessionKey> SENDER_KEYS = new KeyCache<>(SESSION_KEY_TTL_MILLIS, SESSION_KEY_CACHE_SIZE);
+    private static final KeyCache<SecretKey> RECEIVER_KEYS = new KeyCache<>(SESSION_KEY_TTL_MILLIS, SESSION_KEY_CACHE_SIZE);
+
+    public static class SessionKey {
+        public final byte[] salt;
+        public final SecretKey key;
+
+        SessionKey(byte[] salt, SecretKey key) {
+            this.salt = salt;
+            this.key = key;
+        }
+    }
+
+    // Cipher instances are not thread-safe, so every crypto worker keeps its own
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(TRANSFORMATION + " is not available.", e);
+        }
+    });
+
+
+    public static SecretKey getKeyFromPassword(String password, byte[] salt) throws GeneralSecurityException {
         SecretKeyFactory factory = SecretKeyFactory.getInstance(KEY_DERIVATION_ALGORITHM);
         // Use PBKDF2 to derive the key. 65536 iterations and 256-bit key length are common values.
-        KeySpec spec = new PBEKeySpec(password.toCharArray(), SALT, 65536, 256);
+        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, 65536, 256);
         SecretKey secret = new SecretKeySpec(factory.generateSecret(spec).getEncoded(), ALGORITHM);
         return secret;
     }
 
 
-    public static IvParameterSpec generateIv() {
-        byte[] iv = new byte[16];
-        new SecureRandom().nextBytes(iv);
-        return new IvParameterSpec(iv);
+    // Sender side: one random salt and derived key per peer and password, reused until it expires
+    public static SessionKey getSessionKey(String peer, String password) {
+        return SENDER_KEYS.get(peer + "|" + fingerprint(password), () -> {
+            byte[] salt = new byte[SALT_LENGTH];
+            new SecureRandom().nextBytes(salt);
+            return new SessionKey(salt, deriveUnchecked(password, salt));
+        });
+    }
+
+
+    // Receiver side: the key for a salt announced by a sender, derived only the first time that salt is seen
+    public static SecretKey getKeyForSalt(String password, byte[] salt) {
+        return RECEIVER_KEYS.get(Base64.getEncoder().encodeToString(salt) + "|" + fingerprint(password),
+                () -> deriveUnchecked(password, salt));
+    }
+
+
+    public static void clearSessionKeys() {
+        SENDER_KEYS.clear();
+        RECEIVER_KEYS.clear();
+    }
+
+
+    public static byte[] generateNoncePrefix() {
+        byte[] prefix = new byte[NONCE_PREFIX_LENGTH];
+        new SecureRandom().nextBytes(prefix);
+        return prefix;
+    }
+
+
+    // Encrypts and authenticates one chunk. The 96-bit nonce is the per-transfer prefix followed by a 32-bit counter.
+    public static void sealChunk(SecretKey key, byte[] noncePrefix, long counter, ByteBuffer plaintext, ByteBuffer ciphertext)
+            throws GeneralSecurityException {
+        sealChunk(key, noncePrefix, counter, null, plaintext, ciphertext);
+    }
+
+
+    // As above, also authenticating aad: bytes sent in the clear next to the chunk, such as a frame header
+    public static void sealChunk(SecretKey key, byte[] noncePrefix, long counter, byte[] aad, ByteBuffer plaintext,
+                                 ByteBuffer ciphertext) throws GeneralSecurityException {
+        Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, nonce(noncePrefix, counter));
+        if (aad != null) {
+            cipher.updateAAD(aad);
+        }
+        cipher.doFinal(plaintext, ciphertext);
+    }
+
+
+    // Decrypts one chunk, throwing AEADBadTagException if it was corrupted, reordered or sealed with another key
+    public static void openChunk(SecretKey key, byte[] noncePrefix, long counter, ByteBuffer ciphertext, ByteBuffer plaintext)
+            throws GeneralSecurityException {
+        openChunk(key, noncePrefix, counter, null, ciphertext, plaintext);
+    }
+
+
+    // The aad must be the same bytes the chunk was sealed with, or the chunk fails authentication
+    public static void openChunk(SecretKey key, byte[] noncePrefix, long counter, byte[] aad, ByteBuffer ciphertext,
+                                 ByteBuffer plaintext) throws GeneralSecurityException {
+        Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, nonce(noncePrefix, counter));
+        if (aad != null) {
+            cipher.updateAAD(aad);
+        }
+        cipher.doFinal(ciphertext, plaintext);
+    }
+
+
+    public static byte[] createKeyCheck(SecretKey key, byte[] noncePrefix) throws GeneralSecurityException {
+        ByteBuffer tag = ByteBuffer.allocate(TAG_LENGTH);
+        sealChunk(key, noncePrefix, KEY_CHECK_COUNTER, ByteBuffer.allocate(0), tag);
+        return tag.array();
+    }
+
+
+    public static boolean verifyKeyCheck(SecretKey key, byte[] noncePrefix, byte[] keyCheck) {
+        try {
+            openChunk(key, noncePrefix, KEY_CHECK_COUNTER, ByteBuffer.wrap(keyCheck), ByteBuffer.allocate(0));
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+
+    private static SecretKey deriveUnchecked(String password, byte[] salt) {
+        try {
+            return getKeyFromPassword(password, salt);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Key derivation failed: " + e.getMessage(), e);
+        }
     }
 
 
-    public static Cipher getEncryptCipher(SecretKey key, IvParameterSpec iv) throws Exception {
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-        cipher.init(Cipher.ENCRYPT_MODE, key, iv);
-        return cipher;
+    // Cache keys hold a digest of the password rather than the password itself
+    private static String fingerprint(String password) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(password.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
     }
 
 
-    public static Cipher getDecryptCipher(SecretKey key, IvParameterSpec iv) throws Exception {
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-        cipher.init(Cipher.DECRYPT_MODE, key, iv);
-        return cipher;
+    private static GCMParameterSpec nonce(byte[] noncePrefix, long counter) {
+        if (counter < 0 || counter > KEY_CHECK_COUNTER) {
+            throw new IllegalArgumentException("Chunk counter out of range: " + counter);
+        }
+        byte[] nonce = ByteBuffer.allocate(NONCE_PREFIX_LENGTH + 4).put(noncePrefix).putInt((int) counter).array();
+        return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
     }
 }
@@ -0,0 +1,58 @@
+package com.p2pfilesharer.encryption;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+
+// Small LRU cache of derived keys with a fixed lifetime, so PBKDF2 runs once per session instead of once per file
+public class KeyCache<T> {
+
+    private static class Entry<T> {
+        final T value;
+        final long expiresAt;
+
+        Entry(T value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final long ttlMillis;
+    private final Map<String, Entry<T>> entries;
+
+    public KeyCache(long ttlMillis, int maxEntries) {
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<T>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+
+    // Derivation happens outside the lock; two threads racing on the same miss both derive and the last one wins
+    public T get(String cacheKey, Supplier<T> derive) {
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            Entry<T> entry = entries.get(cacheKey);
+            if (entry != null && entry.expiresAt > now) {
+                return entry.value;
+            }
+            entries.remove(cacheKey);
+        }
+        T value = derive.get();
+        synchronized (entries) {
+            entries.put(cacheKey, new Entry<>(value, now + ttlMillis));
+        }
+        return value;
+    }
+
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.p2pfilesharer.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// One chunk prepared for sending or verified and stored on receipt, with the time each stage took
+@Name("com.p2pfilesharer.Chunk")
+@Label("Chunk")
+@Category("P2P File Sharer")
+@Description("Processing of a single chunk of a chunked transfer")
+public class ChunkEvent extends jdk.jfr.Event {
+
+    @Label("Direction")
+    public String direction;
+
+    @Label("Offset")
+    public long offset;
+
+    @Label("Length")
+    @DataAmount
+    public int length;
+
+    @Label("Stored Length")
+    @Description("Length after compression")
+    @DataAmount
+    public int storedLength;
+
+    @Label("Disk Time")
+    @Timespan
+    public long diskNanos;
+
+    @Label("Compression Time")
+    @Timespan
+    public long compressionNanos;
+
+    @Label("Crypto Time")
+    @Timespan
+    public long cryptoNanos;
+}
@@ -0,0 +1,196 @@
+package com.p2pfilesharer.metrics;
+
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Counters, gauges and histograms kept in memory and rendered in the Prometheus text format.
+// Metrics are created once and then updated lock-free from any thread.
+public class MetricsRegistry {
+
+    private static final MetricsRegistry GLOBAL = new MetricsRegistry();
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    public static MetricsRegistry global() {
+        return GLOBAL;
+    }
+
+    // Labels are given as name, value pairs
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) register(name, help, "counter", labels, () -> new Counter(1));
+    }
+
+    // A counter fed with nanoseconds and exported in seconds
+    public Counter timeCounter(String name, String help, String... labels) {
+        return (Counter) register(name, help, "counter", labels, () -> new Counter(1 / NANOS_PER_SECOND));
+    }
+
+    public Gauge gauge(String name, String help, String... labels) {
+        return (Gauge) register(name, help, "gauge", labels, Gauge::new);
+    }
+
+    // Bucket bounds are upper bounds in ascending order; +Inf is added automatically
+    public Histogram histogram(String name, String help, double[] buckets, String... labels) {
+        return (Histogram) register(name, help, "histogram", labels, () -> new Histogram(buckets));
+    }
+
+    public synchronized String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (Family family : families.values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Metric> entry : family.metrics.entrySet()) {
+                entry.getValue().write(out, family.name, entry.getKey());
+            }
+        }
+        return out.toString();
+    }
+
+    private synchronized Metric register(String name, String help, String type, String[] labels, Supplier<Metric> factory) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be given as name, value pairs.");
+        }
+        Family family = families.computeIfAbsent(name, n -> new Family(n, help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type + ".");
+        }
+        return family.metrics.computeIfAbsent(labelText(labels), l -> factory.get());
+    }
+
+    private static String labelText(String[] labels) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            text.append(i == 0 ? "" : ",").append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return text.toString();
+    }
+
+    private static String braces(String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+
+    private static class Family {
+        final String name;
+        final String help;
+        final String type;
+        final Map<String, Metric> metrics = new LinkedHashMap<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private interface Metric {
+        void write(StringBuilder out, String name, String labels);
+    }
+
+    public static class Counter implements Metric {
+        private final LongAdder value = new LongAdder();
+        private final double scale;
+
+        Counter(double scale) {
+            this.scale = scale;
+        }
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        public void write(StringBuilder out, String name, String labels) {
+            out.append(name).append(braces(labels)).append(' ').append(format(value.sum() * scale)).append('\n');
+        }
+    }
+
+    public static class Gauge implements Metric {
+        private final AtomicLong value = new AtomicLong();
+
+        public void inc() {
+            value.incrementAndGet();
+        }
+
+        public void dec() {
+            value.decrementAndGet();
+        }
+
+        public void set(long newValue) {
+            value.set(newValue);
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        @Override
+        public void write(StringBuilder out, String name, String labels) {
+            out.append(name).append(braces(labels)).append(' ').append(value.get()).append('\n');
+        }
+    }
+
+    public static class Histogram implements Metric {
+        private final double[] bounds;
+        private final LongAdder[] counts;
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds.clone();
+            this.counts = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        public void observe(double value) {
+            int bucket = 0;
+            while (bucket < bounds.length && value > bounds[bucket]) {
+                bucket++;
+            }
+            counts[bucket].increment();
+            sum.add(value);
+        }
+
+        public void observeNanos(long nanos) {
+            observe(nanos / NANOS_PER_SECOND);
+        }
+
+        @Override
+        public void write(StringBuilder out, String name, String labels) {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i <= bounds.length; i++) {
+                cumulative += counts[i].sum();
+                String le = i < bounds.length ? format(bounds[i]) : "+Inf";
+                out.append(name).append("_bucket{").append(prefix).append("le=\"").append(le).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            out.append(name).append("_sum").append(braces(labels)).append(' ').append(format(sum.sum())).append('\n');
+            out.append(name).append("_count").append(braces(labels)).append(' ').append(cumulative).append('\n');
+        }
+    }
+}
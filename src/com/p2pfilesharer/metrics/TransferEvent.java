@@ -0,0 +1,34 @@
+package com.p2pfilesharer.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// One file transfer as seen by JDK Flight Recorder; costs nothing unless a recording is running
+@Name("com.p2pfilesharer.Transfer")
+@Label("File Transfer")
+@Category("P2P File Sharer")
+@Description("A file sent or received over P2P")
+public class TransferEvent extends jdk.jfr.Event {
+
+    @Label("Direction")
+    public String direction;
+
+    @Label("Mode")
+    public String mode;
+
+    @Label("File Name")
+    public String fileName;
+
+    @Label("Peer")
+    public String peer;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+
+    @Label("Succeeded")
+    public boolean succeeded;
+}
@@ -0,0 +1,141 @@
+package com.p2pfilesharer.metrics;
+
+import com.p2pfilesharer.metrics.MetricsRegistry.Counter;
+import com.p2pfilesharer.metrics.MetricsRegistry.Gauge;
+import com.p2pfilesharer.metrics.MetricsRegistry.Histogram;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+// The metrics every sender, receiver and server updates. Time spent per stage (disk, compression, crypto, socket)
+// shows whether a slow transfer is disk-, CPU- or network-bound.
+public final class TransferMetrics {
+
+    public static final String SEND = "send";
+    public static final String RECEIVE = "receive";
+
+    private static final MetricsRegistry REGISTRY = MetricsRegistry.global();
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final double[] CHUNK_BUCKETS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5};
+    private static final double[] RTT_BUCKETS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1};
+
+    public static final Counter P2P_BYTES_SENT = REGISTRY.counter("p2p_bytes_sent_total",
+            "Bytes written to the network, after compression and encryption", "transport", "p2p");
+    public static final Counter HTTP_BYTES_SENT = REGISTRY.counter("p2p_bytes_sent_total",
+            "Bytes written to the network, after compression and encryption", "transport", "http");
+    public static final Counter P2P_BYTES_RECEIVED = REGISTRY.counter("p2p_bytes_received_total",
+            "Bytes read from the network, before decryption and decompression", "transport", "p2p");
+
+    public static final Counter SEND_DISK_TIME = stage(SEND, "disk");
+    public static final Counter SEND_COMPRESSION_TIME = stage(SEND, "compression");
+    public static final Counter SEND_CRYPTO_TIME = stage(SEND, "crypto");
+    public static final Counter SEND_SOCKET_TIME = stage(SEND, "socket");
+    public static final Counter RECEIVE_DISK_TIME = stage(RECEIVE, "disk");
+    public static final Counter RECEIVE_COMPRESSION_TIME = stage(RECEIVE, "compression");
+    public static final Counter RECEIVE_CRYPTO_TIME = stage(RECEIVE, "crypto");
+    public static final Counter RECEIVE_SOCKET_TIME = stage(RECEIVE, "socket");
+
+    public static final Histogram SEND_CHUNK_LATENCY = REGISTRY.histogram("p2p_chunk_seconds",
+            "Time to prepare a chunk for sending or to verify and store a received one", CHUNK_BUCKETS, "direction", SEND);
+    public static final Histogram RECEIVE_CHUNK_LATENCY = REGISTRY.histogram("p2p_chunk_seconds",
+            "Time to prepare a chunk for sending or to verify and store a received one", CHUNK_BUCKETS, "direction", RECEIVE);
+
+    public static final Histogram DISCOVERY_RTT = REGISTRY.histogram("p2p_discovery_rtt_seconds",
+            "Time from a discovery broadcast to each peer's answer", RTT_BUCKETS);
+
+    private static final Gauge SENDS_ACTIVE = REGISTRY.gauge("p2p_transfers_active", "Transfers in progress", "direction", SEND);
+    private static final Gauge RECEIVES_ACTIVE = REGISTRY.gauge("p2p_transfers_active", "Transfers in progress", "direction", RECEIVE);
+    private static final Counter SENDS_COMPLETED = finished(SEND, "completed");
+    private static final Counter SENDS_FAILED = finished(SEND, "failed");
+    private static final Counter RECEIVES_COMPLETED = finished(RECEIVE, "completed");
+    private static final Counter RECEIVES_FAILED = finished(RECEIVE, "failed");
+    private static final Gauge SEND_THROUGHPUT = throughput(SEND);
+    private static final Gauge RECEIVE_THROUGHPUT = throughput(RECEIVE);
+
+    private TransferMetrics() {
+    }
+
+    // Sends and receives in progress on this node, the load it announces to other peers
+    public static long activeTransfers() {
+        return SENDS_ACTIVE.get() + RECEIVES_ACTIVE.get();
+    }
+
+    // Call finish on the returned transfer exactly once, also when it fails
+    public static Transfer begin(String direction, String mode, String fileName, String peer) {
+        return new Transfer(direction, mode, fileName, peer);
+    }
+
+    // Counts everything written through the returned stream
+    public static OutputStream counting(OutputStream out, Counter counter) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                counter.inc();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                counter.add(len);
+            }
+        };
+    }
+
+    private static Counter stage(String direction, String stage) {
+        return REGISTRY.timeCounter("p2p_stage_seconds_total", "Time spent per transfer stage",
+                "direction", direction, "stage", stage);
+    }
+
+    private static Counter finished(String direction, String result) {
+        return REGISTRY.counter("p2p_transfers_total", "Finished transfers", "direction", direction, "result", result);
+    }
+
+    private static Gauge throughput(String direction) {
+        return REGISTRY.gauge("p2p_last_transfer_throughput_bytes_per_second",
+                "Average rate of the most recently finished transfer", "direction", direction);
+    }
+
+    public static final class Transfer {
+        private final boolean sending;
+        private final long start = System.nanoTime();
+        private final TransferEvent event = new TransferEvent();
+        private boolean finished;
+
+        private Transfer(String direction, String mode, String fileName, String peer) {
+            this.sending = direction.equals(SEND);
+            (sending ? SENDS_ACTIVE : RECEIVES_ACTIVE).inc();
+            event.direction = direction;
+            event.mode = mode;
+            event.fileName = fileName;
+            event.peer = peer;
+            event.begin();
+        }
+
+        // Bytes are the file bytes moved by this transfer, not what went over the wire; 0 when not known
+        public void finish(long bytes, boolean succeeded) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            long elapsed = System.nanoTime() - start;
+            (sending ? SENDS_ACTIVE : RECEIVES_ACTIVE).dec();
+            if (succeeded) {
+                (sending ? SENDS_COMPLETED : RECEIVES_COMPLETED).inc();
+                if (elapsed > 0 && bytes > 0) {
+                    (sending ? SEND_THROUGHPUT : RECEIVE_THROUGHPUT).set((long) (bytes * NANOS_PER_SECOND / elapsed));
+                }
+            } else {
+                (sending ? SENDS_FAILED : RECEIVES_FAILED).inc();
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.bytes = bytes;
+                event.succeeded = succeeded;
+                event.commit();
+            }
+        }
+    }
+}
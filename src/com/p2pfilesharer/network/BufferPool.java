@@ -0,0 +1,39 @@
+package com.p2pfilesharer.network;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Direct buffers shared by all connections of the I/O engine. Allocating a direct buffer is slow and its memory
+// is only freed by the garbage collector, so buffers are handed back and reused rather than dropped.
+class BufferPool {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int maxPooled;
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    BufferPool(int maxPooled) {
+        this.maxPooled = maxPooled;
+    }
+
+    ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        pooled.decrementAndGet();
+        return buffer.clear();
+    }
+
+    // Beyond the limit, buffers from a burst of connections are left to the garbage collector
+    void release(ByteBuffer buffer) {
+        if (buffer != null && pooled.incrementAndGet() <= maxPooled) {
+            free.add(buffer);
+        } else if (buffer != null) {
+            pooled.decrementAndGet();
+        }
+    }
+}
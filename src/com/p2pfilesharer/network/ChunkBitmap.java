@@ -0,0 +1,155 @@
+package com.p2pfilesharer.network;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+
+// Sidecar record of which chunks of a partial file have been received and verified, with the hash of each,
+// so a resumed transfer can check the whole file without hashing the chunks it already had
+class ChunkBitmap {
+
+    private static final int MAGIC = 0x5032504D;
+
+    private final long fileSize;
+    private final int chunkSize;
+    private final long lastModified;
+    private final int chunkCount;
+    private final BitSet received;
+    private final MerkleTree hashes;
+
+    ChunkBitmap(long fileSize, int chunkSize, long lastModified) throws IOException {
+        this(fileSize, chunkSize, lastModified, new BitSet(), null);
+    }
+
+    private ChunkBitmap(long fileSize, int chunkSize, long lastModified, BitSet received, byte[] leaves)
+            throws IOException {
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.lastModified = lastModified;
+        this.chunkCount = chunkCount(fileSize, chunkSize);
+        this.received = received;
+        this.hashes = leaves == null ? new MerkleTree(chunkCount) : new MerkleTree(chunkCount, leaves);
+    }
+
+    static int chunkCount(long fileSize, int chunkSize) throws IOException {
+        long count = (fileSize + chunkSize - 1) / chunkSize;
+        if (count > Protocol.MAX_CHUNKS) {
+            throw new IOException("File has too many chunks for chunk size " + chunkSize + "; use a larger chunk size.");
+        }
+        return (int) count;
+    }
+
+    // The smallest chunk size that keeps a file of this size within the chunk count limit
+    static int minChunkSize(long fileSize) {
+        return (int) Math.min(Protocol.MAX_CHUNK_SIZE, (fileSize + Protocol.MAX_CHUNKS - 1) / Protocol.MAX_CHUNKS);
+    }
+
+    // Returns null when there is no sidecar or it belongs to a different version of the file
+    static ChunkBitmap load(File sidecar, long fileSize, int chunkSize, long lastModified) {
+        if (!sidecar.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)))) {
+            if (in.readInt() != MAGIC || in.readLong() != fileSize || in.readInt() != chunkSize
+                    || in.readLong() != lastModified) {
+                return null;
+            }
+            int chunkCount = chunkCount(fileSize, chunkSize);
+            // Trailing empty bytes are left out when saving, so the bitmap may be shorter but never longer
+            int length = in.readInt();
+            if (length < 0 || length > (chunkCount + 7) / 8) {
+                throw new IOException("corrupt bitmap length " + length);
+            }
+            byte[] bits = new byte[length];
+            in.readFully(bits);
+            BitSet received = BitSet.valueOf(bits);
+            if (received.length() > chunkCount) {
+                throw new IOException("bitmap marks chunks past the end of the file");
+            }
+            byte[] leaves = new byte[chunkCount * MerkleTree.HASH_LENGTH];
+            in.readFully(leaves);
+            return new ChunkBitmap(fileSize, chunkSize, lastModified, received, leaves);
+        } catch (IOException e) {
+            System.err.println("Ignoring unreadable resume data " + sidecar.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    synchronized void save(File sidecar) throws IOException {
+        File temp = new File(sidecar.getPath() + ".tmp");
+        byte[] bits = received.toByteArray();
+        byte[] leaves = hashes.leafBytes();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(fileSize);
+            out.writeInt(chunkSize);
+            out.writeLong(lastModified);
+            out.writeInt(bits.length);
+            out.write(bits);
+            out.write(leaves);
+        }
+        Files.move(temp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    synchronized void mark(int index, byte[] hash) {
+        hashes.setLeaf(index, hash);
+        received.set(index);
+    }
+
+    synchronized int[] missing() {
+        int[] missing = new int[chunkCount - received.cardinality()];
+        for (int index = received.nextClearBit(0), i = 0; index < chunkCount; index = received.nextClearBit(index + 1)) {
+            missing[i++] = index;
+        }
+        return missing;
+    }
+
+    // Root over the hashes of all chunks; only meaningful once the bitmap is complete
+    synchronized byte[] root() {
+        return hashes.root();
+    }
+
+    // Forgets every chunk whose hash differs from the sender's, so it is sent again; returns how many there were
+    synchronized int unmarkDiffering(byte[] senderLeaves) {
+        int differing = 0;
+        for (int index = 0; index < chunkCount; index++) {
+            if (received.get(index) && !hashes.leafEquals(index, senderLeaves)) {
+                received.clear(index);
+                differing++;
+            }
+        }
+        return differing;
+    }
+
+    synchronized boolean has(int index) {
+        return received.get(index);
+    }
+
+    synchronized boolean isComplete() {
+        return received.cardinality() == chunkCount;
+    }
+
+    synchronized byte[] toByteArray() {
+        return received.toByteArray();
+    }
+
+    synchronized long receivedBytes() {
+        long bytes = (long) received.cardinality() * chunkSize;
+        if (chunkCount > 0 && received.get(chunkCount - 1)) {
+            bytes -= (long) chunkCount * chunkSize - fileSize;
+        }
+        return bytes;
+    }
+
+    int getChunkCount() {
+        return chunkCount;
+    }
+}
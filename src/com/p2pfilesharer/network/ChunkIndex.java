@@ -0,0 +1,310 @@
+package com.p2pfilesharer.network;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Remembers which chunk hashes are already stored in files under a save directory, and where.
+// Kept as an append-only log next to the files; a file that is received again supersedes its old entries.
+class ChunkIndex {
+
+    static final String INDEX_FILE = ".p2p-chunk-index";
+
+    private static final int MAGIC = 0x50324358;
+    // Indexes kept in memory; the least recently used one nobody holds is dropped and reloaded from its log when
+    // needed again. One still in use is never dropped, as a second copy would compact the log over its appends.
+    private static final int MAX_CACHED_INDEXES = 8;
+    private static final Map<Path, ChunkIndex> INDEXES = new LinkedHashMap<>(16, 0.75f, true);
+    // Files stored by the other transfer modes are chunked here, off the transfer's path
+    private static final ExecutorService INDEXER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "chunk-indexer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // One indexed file; the size and mtime tell whether it was changed since it was indexed
+    static class IndexedFile {
+        final String name;
+        final long size;
+        final long lastModified;
+        final List<ByteBuffer> hashes = new ArrayList<>();
+
+        IndexedFile(String name, long size, long lastModified) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    static class Location {
+        final IndexedFile file;
+        final long offset;
+        final int length;
+
+        Location(IndexedFile file, long offset, int length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final Path saveRoot;
+    private final Path indexFile;
+    private final Map<String, IndexedFile> files = new HashMap<>();
+    private final Map<ByteBuffer, Location> chunks = new HashMap<>();
+    // Records in the log, including superseded ones; the log is compacted once most of it is stale
+    private int records;
+    // Holders that have not released the index yet; guarded by INDEXES
+    private int users;
+
+    private ChunkIndex(Path saveRoot) {
+        this.saveRoot = saveRoot;
+        this.indexFile = saveRoot.resolve(INDEX_FILE);
+    }
+
+    // One index per save directory, shared by all transfers into it; kept in memory until release() is called
+    static ChunkIndex forDirectory(Path saveRoot) {
+        synchronized (INDEXES) {
+            ChunkIndex index = INDEXES.computeIfAbsent(saveRoot, root -> {
+                ChunkIndex loaded = new ChunkIndex(root);
+                loaded.load();
+                return loaded;
+            });
+            index.users++;
+            evictUnused();
+            return index;
+        }
+    }
+
+    void release() {
+        synchronized (INDEXES) {
+            users--;
+            evictUnused();
+        }
+    }
+
+    private static void evictUnused() {
+        Iterator<ChunkIndex> eldest = INDEXES.values().iterator();
+        while (INDEXES.size() > MAX_CACHED_INDEXES && eldest.hasNext()) {
+            if (eldest.next().users == 0) {
+                eldest.remove();
+            }
+        }
+    }
+
+    // Queues a file that was just stored under saveRoot so later deduplicated transfers can reuse its chunks
+    static void indexLater(Path saveRoot, Path file) {
+        Path root = saveRoot.toAbsolutePath().normalize();
+        Path target = file.toAbsolutePath().normalize();
+        if (!target.startsWith(root) || target.equals(root)) {
+            return;
+        }
+        String name = root.relativize(target).toString().replace('\\', '/');
+        INDEXER.execute(() -> {
+            ChunkIndex index = forDirectory(root);
+            try {
+                index.index(name, target);
+            } finally {
+                index.release();
+            }
+        });
+    }
+
+    private void index(String name, Path target) {
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.READ)) {
+            BasicFileAttributes before = Files.readAttributes(target, BasicFileAttributes.class);
+            ContentChunker.Recipe recipe = ContentChunker.chunk(channel);
+            BasicFileAttributes after = Files.readAttributes(target, BasicFileAttributes.class);
+            // A file rewritten while it was chunked is indexed again when that transfer finishes
+            if (before.size() != after.size() || !before.lastModifiedTime().equals(after.lastModifiedTime())) {
+                return;
+            }
+            add(name, after.size(), after.lastModifiedTime().toMillis(), recipe);
+        } catch (NoSuchFileException e) {
+            // Removed again before it was indexed
+        } catch (IOException e) {
+            System.err.println("Could not add " + name + " to the chunk index: " + e.getMessage());
+        }
+    }
+
+    synchronized Location lookup(byte[] hash) {
+        Location location = chunks.get(ByteBuffer.wrap(hash));
+        // Entries of a file that was received again since are stale
+        if (location == null || files.get(location.file.name) != location.file) {
+            return null;
+        }
+        return location;
+    }
+
+    synchronized int size() {
+        return chunks.size();
+    }
+
+    // Records the chunks of a file that was just stored under name
+    synchronized void add(String name, long size, long lastModified, ContentChunker.Recipe recipe) throws IOException {
+        IndexedFile file = new IndexedFile(name, size, lastModified);
+        List<Location> locations = new ArrayList<>(recipe.getCount());
+        long offset = 0;
+        for (int i = 0; i < recipe.getCount(); i++) {
+            locations.add(new Location(file, offset, recipe.getLength(i)));
+            offset += recipe.getLength(i);
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)))) {
+            if (Files.size(indexFile) == 0) {
+                out.writeInt(MAGIC);
+            }
+            writeFile(out, file, locations, recipe);
+        }
+        records++;
+        put(file, locations, recipe);
+        if (records > 2 * files.size() + 16) {
+            compact();
+        }
+    }
+
+    private void put(IndexedFile file, List<Location> locations, ContentChunker.Recipe recipe) {
+        IndexedFile previous = files.put(file.name, file);
+        if (previous != null && previous != file) {
+            forget(previous);
+        }
+        for (int i = 0; i < locations.size(); i++) {
+            ByteBuffer hash = ByteBuffer.wrap(recipe.getHash(i));
+            chunks.put(hash, locations.get(i));
+            file.hashes.add(hash);
+        }
+    }
+
+    // Drops the chunks of a superseded file that no newer file has claimed since
+    private void forget(IndexedFile file) {
+        for (ByteBuffer hash : file.hashes) {
+            chunks.computeIfPresent(hash, (key, location) -> location.file == file ? null : location);
+        }
+        file.hashes.clear();
+    }
+
+    private void writeFile(DataOutputStream out, IndexedFile file, List<Location> locations,
+                           ContentChunker.Recipe recipe) throws IOException {
+        out.writeUTF(file.name);
+        out.writeLong(file.size);
+        out.writeLong(file.lastModified);
+        out.writeInt(locations.size());
+        for (int i = 0; i < locations.size(); i++) {
+            out.write(recipe.getHash(i));
+            out.writeLong(locations.get(i).offset);
+            out.writeInt(locations.get(i).length);
+        }
+    }
+
+    private void load() {
+        if (!Files.exists(indexFile)) {
+            return;
+        }
+        boolean damaged = false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a chunk index");
+            }
+            while (true) {
+                String name;
+                try {
+                    name = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                IndexedFile file = new IndexedFile(name, in.readLong(), in.readLong());
+                int count = in.readInt();
+                records++;
+                ContentChunker.Recipe recipe = new ContentChunker.Recipe();
+                List<Location> locations = new ArrayList<>(count);
+                byte[] hash = new byte[ContentChunker.HASH_LENGTH];
+                for (int i = 0; i < count; i++) {
+                    in.readFully(hash);
+                    long offset = in.readLong();
+                    int length = in.readInt();
+                    recipe.add(length, hash);
+                    locations.add(new Location(file, offset, length));
+                }
+                if (isUnchanged(file)) {
+                    put(file, locations, recipe);
+                } else {
+                    IndexedFile previous = files.remove(name);
+                    if (previous != null) {
+                        forget(previous);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // A crash can leave a partial record at the end; everything before it is still usable
+            damaged = true;
+            System.err.println("Chunk index in " + saveRoot + " is damaged (" + e.getMessage() + "); rebuilding it.");
+        }
+        if (damaged || records > files.size()) {
+            compact();
+        }
+    }
+
+    private boolean isUnchanged(IndexedFile file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(saveRoot.resolve(file.name), BasicFileAttributes.class);
+            return attributes.size() == file.size && attributes.lastModifiedTime().toMillis() == file.lastModified;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Rewrites the log with only the entries that are still live
+    private void compact() {
+        Map<IndexedFile, List<Map.Entry<ByteBuffer, Location>>> byFile = new HashMap<>();
+        for (Map.Entry<ByteBuffer, Location> entry : chunks.entrySet()) {
+            if (files.get(entry.getValue().file.name) == entry.getValue().file) {
+                byFile.computeIfAbsent(entry.getValue().file, f -> new ArrayList<>()).add(entry);
+            }
+        }
+        chunks.clear();
+        files.values().forEach(file -> file.hashes.clear());
+        Path tempFile = indexFile.resolveSibling(INDEX_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            for (Map.Entry<IndexedFile, List<Map.Entry<ByteBuffer, Location>>> group : byFile.entrySet()) {
+                ContentChunker.Recipe recipe = new ContentChunker.Recipe();
+                List<Location> locations = new ArrayList<>();
+                for (Map.Entry<ByteBuffer, Location> entry : group.getValue()) {
+                    recipe.add(entry.getValue().length, entry.getKey().array());
+                    locations.add(entry.getValue());
+                }
+                writeFile(out, group.getKey(), locations, recipe);
+                put(group.getKey(), locations, recipe);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not rewrite the chunk index: " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Could not replace the chunk index: " + e.getMessage());
+            return;
+        }
+        records = byFile.size();
+    }
+}
@@ -0,0 +1,174 @@
+package com.p2pfilesharer.network;
+
+import com.p2pfilesharer.compression.CompressionUtils;
+import com.p2pfilesharer.encryption.CryptoUtils;
+import com.p2pfilesharer.metrics.ChunkEvent;
+import com.p2pfilesharer.metrics.TransferMetrics;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Reads, hashes and optionally compresses and seals chunks on the worker pool, handing them to the socket
+// writers in chunk order. Each chunk's hash also becomes its leaf in the transfer's Merkle tree.
+class ChunkPipeline {
+
+    static class Frame {
+        final long offset;
+        final int length;
+        // Bytes the chunk takes before sealing; less than length when it was compressed
+        final int storedLength;
+        final byte[] hash;
+        final ByteBuffer payload;
+        private final Slot slot;
+        private final ChunkPipeline pipeline;
+
+        private Frame(long offset, int length, int storedLength, byte[] hash, ByteBuffer payload, Slot slot,
+                      ChunkPipeline pipeline) {
+            this.offset = offset;
+            this.length = length;
+            this.storedLength = storedLength;
+            this.hash = hash;
+            this.payload = payload;
+            this.slot = slot;
+            this.pipeline = pipeline;
+        }
+
+        void release() {
+            pipeline.freeSlots.offer(slot);
+        }
+    }
+
+    private static class Slot {
+        final ByteBuffer plain;
+        final ByteBuffer compressed;
+        final ByteBuffer sealed;
+
+        Slot(int chunkSize, boolean encrypted, boolean compress) {
+            this.plain = ByteBuffer.allocateDirect(chunkSize);
+            this.compressed = compress ? ByteBuffer.allocateDirect(chunkSize) : null;
+            this.sealed = encrypted ? ByteBuffer.allocateDirect(chunkSize + CryptoUtils.TAG_LENGTH) : null;
+        }
+    }
+
+    private final FileChannel fileChannel;
+    private final long fileSize;
+    private final int chunkSize;
+    private final int[] chunks;
+    private final TransferKey transferKey;
+    private final boolean compress;
+    private final MerkleTree tree;
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final BlockingQueue<Slot> freeSlots;
+    private final ArrayDeque<Future<Frame>> window = new ArrayDeque<>();
+    private int nextChunk;
+
+    ChunkPipeline(FileChannel fileChannel, long fileSize, int chunkSize, int[] chunks, TransferKey transferKey,
+                  boolean compress, MerkleTree tree, int depth) {
+        this.fileChannel = fileChannel;
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.chunks = chunks;
+        this.transferKey = transferKey;
+        this.compress = compress;
+        this.tree = tree;
+        this.freeSlots = new ArrayBlockingQueue<>(depth);
+        for (int i = 0; i < depth; i++) {
+            freeSlots.add(new Slot(chunkSize, transferKey != null, compress));
+        }
+    }
+
+    // Total size of the chunks handed out so far, after compression
+    long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    // Returns the next prepared chunk, or null once every chunk has been handed out
+    synchronized Frame next() throws IOException {
+        try {
+            while (nextChunk < chunks.length) {
+                Slot slot = window.isEmpty() ? freeSlots.take() : freeSlots.poll();
+                if (slot == null) {
+                    break;
+                }
+                int index = chunks[nextChunk++];
+                window.add(ChunkWorkers.pool().submit(() -> prepare(index, slot)));
+            }
+            Future<Frame> head = window.poll();
+            return head == null ? null : head.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while preparing chunks.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to prepare a chunk: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private Frame prepare(int index, Slot slot) throws Exception {
+        ChunkEvent event = new ChunkEvent();
+        event.begin();
+        long start = System.nanoTime();
+        long offset = (long) index * chunkSize;
+        int length = (int) Math.min(chunkSize, fileSize - offset);
+
+        ByteBuffer plain = slot.plain;
+        plain.clear().limit(length);
+        while (plain.hasRemaining()) {
+            if (fileChannel.read(plain, offset + plain.position()) < 0) {
+                throw new EOFException("File was truncated while it was being sent.");
+            }
+        }
+        plain.flip();
+        long read = System.nanoTime();
+        byte[] hash = MerkleTree.hashChunk(plain);
+        tree.setLeaf(index, hash);
+
+        // Chunks that sample as high-entropy (media, archives) skip the compressor entirely
+        long compressStart = System.nanoTime();
+        ByteBuffer stored = plain;
+        if (compress && CompressionUtils.looksCompressible(plain)
+                && CompressionUtils.deflate(plain, slot.compressed) >= 0) {
+            stored = slot.compressed;
+        }
+        int storedLength = stored.remaining();
+        storedBytes.addAndGet(storedLength);
+        long compressed = System.nanoTime();
+
+        ByteBuffer payload = stored;
+        if (transferKey != null) {
+            slot.sealed.clear();
+            CryptoUtils.sealChunk(transferKey.key, transferKey.noncePrefix, index, stored, slot.sealed);
+            slot.sealed.flip();
+            payload = slot.sealed;
+        }
+        long sealed = System.nanoTime();
+
+        TransferMetrics.SEND_DISK_TIME.add(read - start);
+        TransferMetrics.SEND_COMPRESSION_TIME.add(compressed - compressStart);
+        // Hashing counts as crypto time, next to sealing
+        TransferMetrics.SEND_CRYPTO_TIME.add((compressStart - read) + (sealed - compressed));
+        TransferMetrics.SEND_CHUNK_LATENCY.observeNanos(sealed - start);
+        if (event.shouldCommit()) {
+            event.direction = TransferMetrics.SEND;
+            event.offset = offset;
+            event.length = length;
+            event.storedLength = storedLength;
+            event.diskNanos = read - start;
+            event.compressionNanos = compressed - compressStart;
+            event.cryptoNanos = (compressStart - read) + (sealed - compressed);
+            event.commit();
+        }
+        return new Frame(offset, length, storedLength, hash, payload, slot, this);
+    }
+}
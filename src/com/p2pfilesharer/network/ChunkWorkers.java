@@ -0,0 +1,25 @@
+package com.p2pfilesharer.network;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// CPU-bound chunk work (checksums, encryption) shared by every transfer in the process, sized to the core count
+final class ChunkWorkers {
+
+    static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(THREADS, task -> {
+        Thread thread = new Thread(task, "chunk-worker-" + COUNTER.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ChunkWorkers() {
+    }
+
+    static ExecutorService pool() {
+        return POOL;
+    }
+}
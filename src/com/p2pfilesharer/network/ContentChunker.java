@@ -0,0 +1,127 @@
+package com.p2pfilesharer.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+// Splits a file into content-defined chunks with a gear rolling hash, so an insertion or deletion only
+// changes the chunks around it instead of shifting every fixed-size chunk after it.
+final class ContentChunker {
+
+    static final int MIN_CHUNK = 16 * 1024;
+    static final int AVG_CHUNK = 64 * 1024;
+    static final int MAX_CHUNK = 256 * 1024;
+    static final int HASH_LENGTH = 32;
+
+    // Normalized chunking: a stricter mask before the average size and a looser one after it
+    // keeps chunk sizes close to the average. The gear hash mixes recent bytes into the high bits.
+    private static final long MASK_BEFORE_AVG = 0xFFFFC00000000000L;
+    private static final long MASK_AFTER_AVG = 0xFFFC000000000000L;
+    private static final int READ_SIZE = 4 * 1024 * 1024;
+
+    // Fixed seed: boundaries must come out the same on every run, or nothing would deduplicate
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x50325043444331L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    // Chunk lengths and SHA-256 hashes of one file, in file order
+    static class Recipe {
+        private int count;
+        private int[] lengths = new int[1024];
+        private byte[] hashes = new byte[1024 * HASH_LENGTH];
+
+        void add(int length, byte[] hash) {
+            if (count == lengths.length) {
+                lengths = Arrays.copyOf(lengths, count * 2);
+                hashes = Arrays.copyOf(hashes, count * 2 * HASH_LENGTH);
+            }
+            lengths[count] = length;
+            System.arraycopy(hash, 0, hashes, count * HASH_LENGTH, HASH_LENGTH);
+            count++;
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        int getLength(int index) {
+            return lengths[index];
+        }
+
+        byte[] getHash(int index) {
+            return Arrays.copyOfRange(hashes, index * HASH_LENGTH, (index + 1) * HASH_LENGTH);
+        }
+
+        boolean hashEquals(int index, byte[] hash) {
+            return Arrays.equals(hashes, index * HASH_LENGTH, (index + 1) * HASH_LENGTH, hash, 0, HASH_LENGTH);
+        }
+    }
+
+    private ContentChunker() {
+    }
+
+    static Recipe chunk(FileChannel channel) throws IOException {
+        MessageDigest digest = sha256();
+        Recipe recipe = new Recipe();
+        byte[] data = new byte[READ_SIZE];
+        long position = 0;
+        long hash = 0;
+        int chunkLength = 0;
+
+        while (true) {
+            int filled = 0;
+            while (filled < data.length) {
+                int read = channel.read(ByteBuffer.wrap(data, filled, data.length - filled), position + filled);
+                if (read < 0) {
+                    break;
+                }
+                filled += read;
+            }
+            if (filled == 0) {
+                break;
+            }
+            position += filled;
+
+            int chunkStart = 0;
+            for (int i = 0; i < filled; i++) {
+                chunkLength++;
+                // Bytes below the minimum size can never end a chunk, so they are not hashed
+                if (chunkLength < MIN_CHUNK) {
+                    continue;
+                }
+                hash = (hash << 1) + GEAR[data[i] & 0xFF];
+                long mask = chunkLength < AVG_CHUNK ? MASK_BEFORE_AVG : MASK_AFTER_AVG;
+                if ((hash & mask) == 0 || chunkLength >= MAX_CHUNK) {
+                    digest.update(data, chunkStart, i + 1 - chunkStart);
+                    recipe.add(chunkLength, digest.digest());
+                    chunkStart = i + 1;
+                    chunkLength = 0;
+                    hash = 0;
+                }
+            }
+            // The unfinished chunk carries over into the next read
+            digest.update(data, chunkStart, filled - chunkStart);
+        }
+        if (chunkLength > 0) {
+            recipe.add(chunkLength, digest.digest());
+        }
+        return recipe;
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+}
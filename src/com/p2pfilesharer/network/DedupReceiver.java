@@ -0,0 +1,225 @@
+package com.p2pfilesharer.network;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+// Rebuilds a file from chunks already present in the save directory plus the ones the sender is asked for
+class DedupReceiver {
+
+    private final Path saveRoot;
+    private final boolean showProgress;
+    private ChunkIndex chunkIndex;
+    private final MessageDigest digest = ContentChunker.sha256();
+    private final byte[] chunk = new byte[ContentChunker.MAX_CHUNK];
+    private final Map<String, FileChannel> sources = new HashMap<>();
+    private MessageStream messages;
+
+    DedupReceiver(String saveDir, boolean showProgress) {
+        this.saveRoot = Paths.get(saveDir).toAbsolutePath().normalize();
+        this.showProgress = showProgress;
+    }
+
+    void receive(SocketChannel channel, DataInputStream header, String password) throws IOException {
+        boolean isEncrypted = header.readBoolean();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        TransferKey transferKey = null;
+        if (isEncrypted) {
+            transferKey = TransferKey.readHeader(header, password);
+            if (transferKey == null) {
+                out.writeInt(Protocol.HANDSHAKE_REJECTED);
+                out.flush();
+                throw new IOException(password == null || password.isEmpty()
+                        ? "Received an encrypted file but no password was provided."
+                        : "Received an encrypted file but the password does not match.");
+            }
+        }
+        out.writeInt(0);
+        out.flush();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+        messages = new MessageStream(in, out, transferKey, false);
+        DataInputStream fileHeader = messages.read();
+        String fileName = fileHeader.readUTF();
+        long fileSize = fileHeader.readLong();
+        long lastModified = fileHeader.readLong();
+        int chunkCount = fileHeader.readInt();
+        // Every chunk but the last is at least the minimum size
+        if (chunkCount < 0 || chunkCount > fileSize / ContentChunker.MIN_CHUNK + 1) {
+            throw new IOException("Invalid chunk count " + chunkCount + ".");
+        }
+        ContentChunker.Recipe recipe = readRecipe(chunkCount, fileSize);
+        System.out.println("Receiving file: " + fileName + " (" + (fileSize / 1024 / 1024) + " MB, "
+                + chunkCount + " chunks" + (isEncrypted ? ", encrypted" : "") + ")");
+
+        Path target = SavePaths.resolve(saveRoot, fileName, true);
+        SavePaths.claim(target, fileName);
+        chunkIndex = ChunkIndex.forDirectory(saveRoot);
+        try {
+            Path partFile = Paths.get(target + ".part");
+            boolean complete = false;
+            try (FileChannel fileChannel = FileChannel.open(partFile,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                BitSet missing = copyLocalChunks(recipe, fileChannel);
+                byte[] missingBytes = missing.toByteArray();
+                out.writeInt(missingBytes.length);
+                out.write(missingBytes);
+                out.flush();
+                System.out.println("Reused " + (chunkCount - missing.cardinality()) + " of " + chunkCount
+                        + " chunks already on disk; requesting " + missing.cardinality() + ".");
+
+                receiveMissingChunks(recipe, missing, fileChannel);
+                fileChannel.force(false);
+                complete = true;
+            } finally {
+                closeSources();
+                if (!complete) {
+                    Files.deleteIfExists(partFile);
+                }
+            }
+
+            Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING);
+            Files.setLastModifiedTime(target, FileTime.fromMillis(lastModified));
+            chunkIndex.add(saveRoot.relativize(target).toString().replace('\\', '/'), fileSize, lastModified, recipe);
+        } finally {
+            chunkIndex.release();
+            SavePaths.release(target);
+        }
+        out.writeBoolean(true);
+        out.flush();
+        System.out.println("\nFile received successfully: " + fileName);
+    }
+
+    private ContentChunker.Recipe readRecipe(int chunkCount, long fileSize) throws IOException {
+        ContentChunker.Recipe recipe = new ContentChunker.Recipe();
+        byte[] hash = new byte[ContentChunker.HASH_LENGTH];
+        long total = 0;
+        DataInputStream entries = null;
+        for (int i = 0; i < chunkCount; i++) {
+            if (entries == null || entries.available() == 0) {
+                entries = messages.read();
+            }
+            int length = entries.readInt();
+            entries.readFully(hash);
+            if (length <= 0 || length > ContentChunker.MAX_CHUNK) {
+                throw new IOException("Invalid chunk length " + length + ".");
+            }
+            recipe.add(length, hash);
+            total += length;
+        }
+        if (total != fileSize) {
+            throw new IOException("Chunk lengths do not add up to the file size.");
+        }
+        return recipe;
+    }
+
+    // Copies every chunk found in the index into place, verifying it, and returns the chunks still missing
+    private BitSet copyLocalChunks(ContentChunker.Recipe recipe, FileChannel fileChannel) throws IOException {
+        BitSet missing = new BitSet(recipe.getCount());
+        long offset = 0;
+        for (int i = 0; i < recipe.getCount(); i++) {
+            int length = recipe.getLength(i);
+            ChunkIndex.Location location = chunkIndex.lookup(recipe.getHash(i));
+            if (location == null || location.length != length || !readLocal(location) || !verify(recipe, i, length)) {
+                missing.set(i);
+            } else {
+                write(fileChannel, offset, length);
+            }
+            offset += length;
+            if (showProgress) {
+                System.out.print("\rChecking local chunks: " + (i + 1) * 100 / recipe.getCount() + "% ");
+            }
+        }
+        return missing;
+    }
+
+    private boolean readLocal(ChunkIndex.Location location) {
+        try {
+            FileChannel source = sources.get(location.file.name);
+            if (source == null) {
+                Path path = saveRoot.resolve(location.file.name);
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                // A file rewritten by another kind of transfer no longer holds what the index says
+                if (attributes.size() != location.file.size
+                        || attributes.lastModifiedTime().toMillis() != location.file.lastModified) {
+                    return false;
+                }
+                source = FileChannel.open(path, StandardOpenOption.READ);
+                sources.put(location.file.name, source);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, location.length);
+            while (buffer.hasRemaining()) {
+                if (source.read(buffer, location.offset + buffer.position()) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void receiveMissingChunks(ContentChunker.Recipe recipe, BitSet missing, FileChannel fileChannel) throws IOException {
+        long missingSize = 0;
+        for (int i = missing.nextSetBit(0); i >= 0; i = missing.nextSetBit(i + 1)) {
+            missingSize += recipe.getLength(i);
+        }
+        long offset = 0;
+        long received = 0;
+        for (int i = 0; i < recipe.getCount(); i++) {
+            int length = recipe.getLength(i);
+            if (missing.get(i)) {
+                int plainLength = messages.read(chunk);
+                if (plainLength != length || !verify(recipe, i, length)) {
+                    throw new IOException("Chunk " + i + " does not match its hash.");
+                }
+                write(fileChannel, offset, length);
+                received += length;
+                if (showProgress && missingSize > 0) {
+                    System.out.print("\rProgress: " + (int) ((received * 100) / missingSize) + "% ");
+                }
+            }
+            offset += length;
+        }
+    }
+
+    private boolean verify(ContentChunker.Recipe recipe, int index, int length) {
+        digest.update(chunk, 0, length);
+        return recipe.hashEquals(index, digest.digest());
+    }
+
+    private void write(FileChannel fileChannel, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+        while (buffer.hasRemaining()) {
+            fileChannel.write(buffer, offset + buffer.position());
+        }
+    }
+
+    private void closeSources() {
+        for (FileChannel source : sources.values()) {
+            try {
+                source.close();
+            } catch (IOException e) {
+                System.err.println("Error closing a chunk source: " + e.getMessage());
+            }
+        }
+        sources.clear();
+    }
+}
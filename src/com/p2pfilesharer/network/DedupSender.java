@@ -0,0 +1,138 @@
+package com.p2pfilesharer.network;
+
+import com.p2pfilesharer.bandwidth.BandwidthShaper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+// Sends only the content-defined chunks the receiver does not already hold somewhere in its save directory
+class DedupSender {
+
+    // Recipe entries per message, kept well below the receiver's message size limit
+    private static final int RECIPE_ENTRIES_PER_MESSAGE = 16 * 1024;
+
+    private final String host;
+    private final int port;
+
+    DedupSender(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    void send(File file, String password) throws IOException {
+        boolean isEncrypted = (password != null && !password.isEmpty());
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            long lastModified = file.lastModified();
+            System.out.println("Chunking " + file.getName() + " (" + (fileSize / 1024 / 1024) + " MB)...");
+            ContentChunker.Recipe recipe = ContentChunker.chunk(fileChannel);
+            if (fileChannel.size() != fileSize) {
+                throw new IOException(file.getName() + " changed while it was being chunked.");
+            }
+
+            try (SocketChannel socketChannel = PeerTuner.global().connect(host, port)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        BandwidthShaper.global().wrap(Channels.newOutputStream(socketChannel), host), 64 * 1024));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(socketChannel)));
+                System.out.println("Connection established with " + host);
+
+                out.writeByte(Protocol.MODE_DEDUP);
+                out.writeBoolean(isEncrypted);
+                TransferKey transferKey = null;
+                if (isEncrypted) {
+                    transferKey = TransferKey.forSending(host + ":" + port, password);
+                    transferKey.writeHeader(out);
+                }
+                out.flush();
+                int status = in.readInt();
+                if (status == Protocol.HANDSHAKE_REJECTED) {
+                    throw new IOException("Receiver rejected the transfer: the password is missing or incorrect.");
+                }
+                if (status == Protocol.HANDSHAKE_BUSY) {
+                    throw new IOException("Receiver is busy with other transfers; try again later.");
+                }
+
+                MessageStream messages = new MessageStream(in, out, transferKey, true);
+                sendRecipe(messages, file.getName(), fileSize, lastModified, recipe);
+                messages.flush();
+
+                byte[] missingBytes = new byte[in.readInt()];
+                in.readFully(missingBytes);
+                BitSet missing = BitSet.valueOf(missingBytes);
+                long missingSize = 0;
+                for (int i = missing.nextSetBit(0); i >= 0; i = missing.nextSetBit(i + 1)) {
+                    missingSize += recipe.getLength(i);
+                }
+                System.out.println("Receiver already has " + (recipe.getCount() - missing.cardinality()) + " of "
+                        + recipe.getCount() + " chunks; sending " + (missingSize / 1024 / 1024) + " MB of "
+                        + (fileSize / 1024 / 1024) + " MB.");
+
+                sendChunks(messages, fileChannel, recipe, missing, missingSize);
+                messages.flush();
+                if (!in.readBoolean()) {
+                    throw new IOException("Receiver could not rebuild the file.");
+                }
+                System.out.println("\nFile transfer complete.");
+            }
+        }
+    }
+
+    private void sendRecipe(MessageStream messages, String name, long fileSize, long lastModified,
+                            ContentChunker.Recipe recipe) throws IOException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        DataOutputStream messageOut = new DataOutputStream(message);
+        messageOut.writeUTF(name);
+        messageOut.writeLong(fileSize);
+        messageOut.writeLong(lastModified);
+        messageOut.writeInt(recipe.getCount());
+        messages.write(message.toByteArray(), message.size());
+
+        for (int start = 0; start < recipe.getCount(); start += RECIPE_ENTRIES_PER_MESSAGE) {
+            message.reset();
+            int end = Math.min(recipe.getCount(), start + RECIPE_ENTRIES_PER_MESSAGE);
+            for (int i = start; i < end; i++) {
+                messageOut.writeInt(recipe.getLength(i));
+                messageOut.write(recipe.getHash(i));
+            }
+            messages.write(message.toByteArray(), message.size());
+        }
+    }
+
+    private void sendChunks(MessageStream messages, FileChannel fileChannel, ContentChunker.Recipe recipe,
+                            BitSet missing, long missingSize) throws IOException {
+        byte[] chunk = new byte[ContentChunker.MAX_CHUNK];
+        long offset = 0;
+        long sent = 0;
+        for (int i = 0; i < recipe.getCount(); i++) {
+            int length = recipe.getLength(i);
+            if (missing.get(i)) {
+                ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+                while (buffer.hasRemaining()) {
+                    if (fileChannel.read(buffer, offset + buffer.position()) < 0) {
+                        throw new IOException("File was truncated while it was being sent.");
+                    }
+                }
+                messages.write(chunk, length);
+                sent += length;
+                printProgress(sent, missingSize);
+            }
+            offset += length;
+        }
+    }
+
+    private void printProgress(long sent, long total) {
+        if (total == 0) return;
+        System.out.print("\rProgress: " + (int) ((sent * 100) / total) + "% ");
+    }
+}
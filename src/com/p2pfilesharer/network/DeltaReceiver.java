@@ -0,0 +1,229 @@
+package com.p2pfilesharer.network;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+// Patches the receiver's existing copy of a file: sends block signatures of it, then rebuilds the new version
+// from block references and literal data into a temp file that atomically replaces the old one
+class DeltaReceiver {
+
+    static final int MIN_BLOCK_SIZE = 2 * 1024;
+    static final int MAX_BLOCK_SIZE = 128 * 1024;
+    static final int STRONG_HASH_LENGTH = 16;
+    static final int SIGNATURES_PER_MESSAGE = 16 * 1024;
+
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
+    private final Path saveRoot;
+    private final boolean showProgress;
+    private final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+    private final MessageDigest digest = ContentChunker.sha256();
+    private long written;
+
+    DeltaReceiver(String saveDir, boolean showProgress) {
+        this.saveRoot = Paths.get(saveDir).toAbsolutePath().normalize();
+        this.showProgress = showProgress;
+    }
+
+    // Roughly the square root of the file size, as rsync does, so signatures and literal waste stay balanced
+    static int blockSizeFor(long fileSize) {
+        long blockSize = (long) Math.sqrt((double) fileSize) & ~1023L;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, blockSize));
+    }
+
+    void receive(SocketChannel channel, DataInputStream header, String password) throws IOException {
+        boolean isEncrypted = header.readBoolean();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+        TransferKey transferKey = null;
+        if (isEncrypted) {
+            transferKey = TransferKey.readHeader(header, password);
+            if (transferKey == null) {
+                out.writeInt(Protocol.HANDSHAKE_REJECTED);
+                out.flush();
+                throw new IOException(password == null || password.isEmpty()
+                        ? "Received an encrypted file but no password was provided."
+                        : "Received an encrypted file but the password does not match.");
+            }
+        }
+        out.writeInt(0);
+        out.flush();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+        MessageStream messages = new MessageStream(in, out, transferKey, false);
+        DataInputStream fileHeader = messages.read();
+        String fileName = fileHeader.readUTF();
+        long fileSize = fileHeader.readLong();
+        long lastModified = fileHeader.readLong();
+        if (fileSize < 0) {
+            throw new IOException("Invalid file size " + fileSize + ".");
+        }
+
+        Path target = SavePaths.resolve(saveRoot, fileName, true);
+        SavePaths.claim(target, fileName);
+        try {
+            Path partFile = Paths.get(target + ".part");
+            FileChannel base = Files.isRegularFile(target) ? FileChannel.open(target, StandardOpenOption.READ) : null;
+            FileChannel output = FileChannel.open(partFile,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            boolean complete = false;
+            try {
+                int blockSize = base == null ? 0 : blockSizeFor(base.size());
+                long blockCount = base == null ? 0 : base.size() / blockSize;
+                System.out.println("Receiving file: " + fileName + " (" + (fileSize / 1024 / 1024) + " MB"
+                        + (base == null ? ", no existing copy to patch" : ", patching the existing copy") + ")");
+                sendSignatures(messages, base, blockSize, blockCount);
+                messages.flush();
+
+                String problem = applyDelta(messages, base, blockSize, blockCount, output, fileSize);
+                if (problem == null) {
+                    output.force(false);
+                    // Both files are closed first so the rename also works where open files cannot be replaced
+                    output.close();
+                    if (base != null) {
+                        base.close();
+                    }
+                    Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    Files.setLastModifiedTime(target, FileTime.fromMillis(lastModified));
+                    complete = true;
+                    ChunkIndex.indexLater(saveRoot, target);
+                }
+                replyResult(messages, problem);
+                if (problem != null) {
+                    throw new IOException(problem);
+                }
+            } finally {
+                output.close();
+                if (base != null) {
+                    base.close();
+                }
+                if (!complete) {
+                    Files.deleteIfExists(partFile);
+                }
+            }
+        } finally {
+            SavePaths.release(target);
+        }
+        System.out.println("\nFile received successfully: " + fileName);
+    }
+
+    // Only whole blocks get a signature; a trailing partial block is simply resent as literal data
+    private void sendSignatures(MessageStream messages, FileChannel base, int blockSize, long blockCount) throws IOException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        DataOutputStream messageOut = new DataOutputStream(message);
+        messageOut.writeInt(blockSize);
+        messageOut.writeLong(blockCount);
+        messages.write(message.toByteArray(), message.size());
+
+        message.reset();
+        for (long block = 0; block < blockCount; block++) {
+            readFully(base, block * blockSize, blockSize);
+            messageOut.writeInt(RollingChecksum.of(buffer, 0, blockSize));
+            digest.update(buffer, 0, blockSize);
+            messageOut.write(digest.digest(), 0, STRONG_HASH_LENGTH);
+            if ((block + 1) % SIGNATURES_PER_MESSAGE == 0 || block + 1 == blockCount) {
+                messages.write(message.toByteArray(), message.size());
+                message.reset();
+            }
+        }
+    }
+
+    // Returns null when the rebuilt file matches what the sender announced, otherwise the reason it does not
+    private String applyDelta(MessageStream messages, FileChannel base, int blockSize, long blockCount,
+                              FileChannel output, long fileSize) throws IOException {
+        written = 0;
+        digest.reset();
+        long copied = 0;
+        while (true) {
+            DataInputStream instructions = messages.read();
+            while (instructions.available() > 0) {
+                int type = instructions.readUnsignedByte();
+                if (type == Protocol.DELTA_LITERAL) {
+                    int length = instructions.readInt();
+                    if (length < 0 || length > buffer.length || written + length > fileSize) {
+                        throw new IOException("Invalid literal of " + length + " bytes.");
+                    }
+                    instructions.readFully(buffer, 0, length);
+                    append(output, length);
+                } else if (type == Protocol.DELTA_COPY) {
+                    long firstBlock = instructions.readInt() & 0xFFFFFFFFL;
+                    long count = instructions.readInt() & 0xFFFFFFFFL;
+                    if (firstBlock + count > blockCount || written + count * blockSize > fileSize) {
+                        throw new IOException("Invalid block reference " + firstBlock + "+" + count + ".");
+                    }
+                    copyBlocks(base, firstBlock * blockSize, count * blockSize, output);
+                    copied += count * blockSize;
+                } else if (type == Protocol.DELTA_END) {
+                    byte[] expected = new byte[32];
+                    instructions.readFully(expected);
+                    if (written != fileSize) {
+                        return "Rebuilt file has " + written + " bytes instead of " + fileSize + ".";
+                    }
+                    if (!Arrays.equals(expected, digest.digest())) {
+                        return "Rebuilt file does not match the sender's checksum.";
+                    }
+                    System.out.println("\nReused " + (copied / 1024 / 1024) + " MB of the existing copy, received "
+                            + ((written - copied) / 1024 / 1024) + " MB.");
+                    return null;
+                } else {
+                    throw new IOException("Unknown delta instruction " + type + ".");
+                }
+                if (showProgress && fileSize > 0) {
+                    System.out.print("\rProgress: " + (int) ((written * 100) / fileSize) + "% ");
+                }
+            }
+        }
+    }
+
+    private void copyBlocks(FileChannel base, long position, long length, FileChannel output) throws IOException {
+        long end = position + length;
+        while (position < end) {
+            int count = (int) Math.min(buffer.length, end - position);
+            readFully(base, position, count);
+            append(output, count);
+            position += count;
+        }
+    }
+
+    private void append(FileChannel output, int length) throws IOException {
+        digest.update(buffer, 0, length);
+        ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+        while (data.hasRemaining()) {
+            output.write(data, written + data.position());
+        }
+        written += length;
+    }
+
+    private void readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+        while (data.hasRemaining()) {
+            if (channel.read(data, position + data.position()) < 0) {
+                throw new IOException("Existing copy was truncated while it was being patched.");
+            }
+        }
+    }
+
+    private void replyResult(MessageStream messages, String problem) throws IOException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        DataOutputStream messageOut = new DataOutputStream(message);
+        messageOut.writeBoolean(problem == null);
+        messageOut.writeUTF(problem == null ? "" : problem);
+        messages.write(message.toByteArray(), message.size());
+        messages.flush();
+    }
+}
@@ -0,0 +1,303 @@
+package com.p2pfilesharer.network;
+
+import com.p2pfilesharer.bandwidth.BandwidthShaper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// rsync-style sender: slides a window over the file and replaces every block the receiver's existing copy
+// already has by a reference to it, so only the changed bytes cross the network
+class DeltaSender {
+
+    private static final int READ_SIZE = 8 * 1024 * 1024;
+    private static final int MAX_LITERAL = Protocol.SESSION_FRAME_SIZE;
+
+    private final String host;
+    private final int port;
+    private final ByteArrayOutputStream instructions = new ByteArrayOutputStream(2 * Protocol.SESSION_FRAME_SIZE);
+    private final DataOutputStream instructionsOut = new DataOutputStream(instructions);
+    private final MessageDigest fileDigest = ContentChunker.sha256();
+    private final MessageDigest blockDigest = ContentChunker.sha256();
+    private MessageStream messages;
+
+    // Signatures of the receiver's blocks; blocks with the same weak checksum are chained through nextBlock
+    private int blockSize;
+    private int blockCount;
+    private int[] weakChecksums;
+    private byte[] strongHashes;
+    private int[] nextBlock;
+    private final Map<Integer, Integer> firstBlock = new HashMap<>();
+
+    private int copyStart;
+    private int copyCount;
+    private long literalBytes;
+    private long copiedBytes;
+
+    DeltaSender(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    void send(File file, String password) throws IOException {
+        boolean isEncrypted = (password != null && !password.isEmpty());
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             SocketChannel socketChannel = PeerTuner.global().connect(host, port)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    BandwidthShaper.global().wrap(Channels.newOutputStream(socketChannel), host), 64 * 1024));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(socketChannel), 64 * 1024));
+            System.out.println("Connection established with " + host);
+
+            out.writeByte(Protocol.MODE_DELTA);
+            out.writeBoolean(isEncrypted);
+            TransferKey transferKey = null;
+            if (isEncrypted) {
+                transferKey = TransferKey.forSending(host + ":" + port, password);
+                transferKey.writeHeader(out);
+            }
+            out.flush();
+            int status = in.readInt();
+            if (status == Protocol.HANDSHAKE_REJECTED) {
+                throw new IOException("Receiver rejected the transfer: the password is missing or incorrect.");
+            }
+            if (status == Protocol.HANDSHAKE_BUSY) {
+                throw new IOException("Receiver is busy with other transfers; try again later.");
+            }
+
+            long fileSize = fileChannel.size();
+            messages = new MessageStream(in, out, transferKey, true);
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream headerOut = new DataOutputStream(header);
+            headerOut.writeUTF(file.getName());
+            headerOut.writeLong(fileSize);
+            headerOut.writeLong(file.lastModified());
+            messages.write(header.toByteArray(), header.size());
+            messages.flush();
+
+            readSignatures();
+            System.out.println("Sending delta of " + file.getName() + " (" + (fileSize / 1024 / 1024) + " MB) against "
+                    + blockCount + " blocks of the receiver's copy.");
+            if (blockCount == 0) {
+                sendLiterals(fileChannel, fileSize);
+            } else {
+                sendDelta(fileChannel, fileSize);
+            }
+            flushCopy();
+            instructionsOut.writeByte(Protocol.DELTA_END);
+            instructionsOut.write(fileDigest.digest());
+            flushInstructions();
+            messages.flush();
+
+            DataInputStream result = messages.read();
+            boolean ok = result.readBoolean();
+            String problem = result.readUTF();
+            if (!ok) {
+                throw new IOException("Receiver could not apply the delta: " + problem);
+            }
+            System.out.println("\nFile transfer complete: sent " + (literalBytes / 1024 / 1024) + " MB, reused "
+                    + (copiedBytes / 1024 / 1024) + " MB already on the receiver.");
+        }
+    }
+
+    private void readSignatures() throws IOException {
+        DataInputStream header = messages.read();
+        blockSize = header.readInt();
+        long count = header.readLong();
+        if (count < 0 || count > Integer.MAX_VALUE || (count > 0
+                && (blockSize < DeltaReceiver.MIN_BLOCK_SIZE || blockSize > DeltaReceiver.MAX_BLOCK_SIZE))) {
+            throw new IOException("Invalid block signatures from the receiver.");
+        }
+        blockCount = (int) count;
+        weakChecksums = new int[blockCount];
+        strongHashes = new byte[blockCount * DeltaReceiver.STRONG_HASH_LENGTH];
+        nextBlock = new int[blockCount];
+
+        DataInputStream entries = null;
+        for (int block = 0; block < blockCount; block++) {
+            if (entries == null || entries.available() == 0) {
+                entries = messages.read();
+            }
+            weakChecksums[block] = entries.readInt();
+            entries.readFully(strongHashes, block * DeltaReceiver.STRONG_HASH_LENGTH, DeltaReceiver.STRONG_HASH_LENGTH);
+        }
+        // Walk backwards so every chain starts at its lowest block
+        for (int block = blockCount - 1; block >= 0; block--) {
+            Integer previous = firstBlock.put(weakChecksums[block], block);
+            nextBlock[block] = previous == null ? -1 : previous;
+        }
+    }
+
+    private void sendLiterals(FileChannel fileChannel, long fileSize) throws IOException {
+        byte[] data = new byte[MAX_LITERAL];
+        long position = 0;
+        while (position < fileSize) {
+            int length = read(fileChannel, data, 0, (int) Math.min(data.length, fileSize - position), position);
+            if (length == 0) {
+                break;
+            }
+            emitLiteral(data, 0, length);
+            position += length;
+            printProgress(position, fileSize);
+        }
+    }
+
+    private void sendDelta(FileChannel fileChannel, long fileSize) throws IOException {
+        byte[] window = new byte[READ_SIZE + blockSize];
+        RollingChecksum checksum = new RollingChecksum(blockSize);
+        boolean checksumValid = false;
+        long position = 0;
+        int length = 0;
+        int start = 0;
+        int literalStart = 0;
+
+        while (true) {
+            // Keep at least one byte past the window in the buffer so the checksum can roll forward
+            if (start + blockSize >= length) {
+                emitLiteral(window, literalStart, start - literalStart);
+                System.arraycopy(window, start, window, 0, length - start);
+                length -= start;
+                literalStart = 0;
+                start = 0;
+                int read = read(fileChannel, window, length, (int) Math.min(window.length - length, fileSize - position), position);
+                position += read;
+                length += read;
+                printProgress(position, fileSize);
+                if (start + blockSize > length) {
+                    break;
+                }
+                if (read == 0 && start + blockSize == length && checksumValid) {
+                    // Only the final window is left and it already failed to match
+                    break;
+                }
+            }
+            if (!checksumValid) {
+                checksum.reset(window, start);
+                checksumValid = true;
+            }
+            int block = findBlock(checksum.value(), window, start);
+            if (block >= 0) {
+                emitLiteral(window, literalStart, start - literalStart);
+                emitCopy(block);
+                start += blockSize;
+                literalStart = start;
+                checksumValid = false;
+                continue;
+            }
+            if (start + blockSize == length) {
+                continue;
+            }
+            checksum.roll(window[start], window[start + blockSize]);
+            start++;
+            if (start - literalStart >= MAX_LITERAL) {
+                emitLiteral(window, literalStart, start - literalStart);
+                literalStart = start;
+            }
+        }
+        emitLiteral(window, literalStart, length - literalStart);
+    }
+
+    // Returns the receiver block equal to the window, preferring the one that extends the current run of copies
+    private int findBlock(int weak, byte[] window, int start) {
+        Integer candidate = firstBlock.get(weak);
+        if (candidate == null) {
+            return -1;
+        }
+        blockDigest.update(window, start, blockSize);
+        byte[] strong = blockDigest.digest();
+        int next = copyStart + copyCount;
+        if (copyCount > 0 && next < blockCount && weakChecksums[next] == weak && strongMatches(next, strong)) {
+            return next;
+        }
+        for (int block = candidate; block >= 0; block = nextBlock[block]) {
+            if (strongMatches(block, strong)) {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    private boolean strongMatches(int block, byte[] strong) {
+        int offset = block * DeltaReceiver.STRONG_HASH_LENGTH;
+        return Arrays.equals(strongHashes, offset, offset + DeltaReceiver.STRONG_HASH_LENGTH,
+                strong, 0, DeltaReceiver.STRONG_HASH_LENGTH);
+    }
+
+    // Reads from the file into data, feeding the whole-file checksum, and returns the bytes read (0 at EOF)
+    private int read(FileChannel fileChannel, byte[] data, int offset, int length, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, position + buffer.position() - offset) < 0) {
+                break;
+            }
+        }
+        int read = buffer.position() - offset;
+        fileDigest.update(data, offset, read);
+        return read;
+    }
+
+    private void emitLiteral(byte[] data, int offset, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        flushCopy();
+        while (length > 0) {
+            int piece = Math.min(length, MAX_LITERAL);
+            instructionsOut.writeByte(Protocol.DELTA_LITERAL);
+            instructionsOut.writeInt(piece);
+            instructionsOut.write(data, offset, piece);
+            literalBytes += piece;
+            offset += piece;
+            length -= piece;
+            if (instructions.size() >= Protocol.SESSION_FRAME_SIZE) {
+                flushInstructions();
+            }
+        }
+    }
+
+    private void emitCopy(int block) throws IOException {
+        copiedBytes += blockSize;
+        if (copyCount > 0 && copyStart + copyCount == block) {
+            copyCount++;
+            return;
+        }
+        flushCopy();
+        copyStart = block;
+        copyCount = 1;
+    }
+
+    private void flushCopy() throws IOException {
+        if (copyCount == 0) {
+            return;
+        }
+        instructionsOut.writeByte(Protocol.DELTA_COPY);
+        instructionsOut.writeInt(copyStart);
+        instructionsOut.writeInt(copyCount);
+        copyCount = 0;
+        if (instructions.size() >= Protocol.SESSION_FRAME_SIZE) {
+            flushInstructions();
+        }
+    }
+
+    private void flushInstructions() throws IOException {
+        messages.write(instructions.toByteArray(), instructions.size());
+        instructions.reset();
+    }
+
+    private void printProgress(long position, long fileSize) {
+        if (fileSize == 0) return;
+        System.out.print("\rProgress: " + (int) ((position * 100) / fileSize) + "% ");
+    }
+}
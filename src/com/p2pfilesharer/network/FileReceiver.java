@@ -1,84 +1,617 @@
 package com.p2pfilesharer.network;
 
-import com.p2pfilesharer.encryption.CryptoUtils;
+import com.p2pfilesharer.metrics.TransferMetrics;
 
-import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+// Connections are accepted and their handshakes read on the I/O engine. Plain files and swarm requests are served
+// there too; the other modes are multi-step exchanges with their own worker pipelines and get a virtual thread.
+// UDP transfers arrive on a datagram channel with the same port number, also served on the engine.
 public class FileReceiver {
 
+    // Buffers a plain transfer may fill in one turn before the I/O thread moves on to other connections
+    private static final int READS_PER_TURN = 16;
+    // Room for a burst of UDP packets while the I/O thread is busy elsewhere
+    private static final int UDP_RECEIVE_BUFFER = 8 * 1024 * 1024;
+    // A striped transfer gives up on its other stripes once none of them has delivered a chunk for this long
+    private static final long STRIPE_IDLE_SECONDS = 60;
+    // A connection must say what it carries, and a plain sender name its file, within this long
+    private static final long HANDSHAKE_TIMEOUT_SECONDS = 30;
+    // How long a refused sender gets to read the busy status and hang up
+    private static final int REFUSAL_DRAIN_MILLIS = 2000;
+
     private final int port;
+    private int maxConcurrentTransfers = 16;
+    private int backlog = 50;
+    private boolean showProgress = true;
+    private boolean swarmOnly = false;
+    private SwarmLibrary swarmLibrary = SwarmLibrary.global();
+    private ShareIndex shareIndex = ShareIndex.global();
+
+    private final Map<Long, StripedReceiver.Transfer> activeTransfers = new ConcurrentHashMap<>();
+    // Plain transfers waiting on the engine for a transfer slot
+    private final Queue<PlainReceive> waitingForSlot = new ConcurrentLinkedQueue<>();
+    // Senders of any mode waiting for a transfer slot; no more than backlog of them
+    private final AtomicInteger waiting = new AtomicInteger();
+    private volatile ServerSocketChannel serverChannel;
+    private volatile UdpReceiver udpReceiver;
+    private volatile CountDownLatch stopped;
+    private Semaphore transferSlots;
+    private IoEngine engine;
 
     public FileReceiver(int port) {
         this.port = port;
     }
 
+    public void setMaxConcurrentTransfers(int maxConcurrentTransfers) {
+        if (maxConcurrentTransfers < 1) {
+            throw new IllegalArgumentException("At least one concurrent transfer must be allowed.");
+        }
+        this.maxConcurrentTransfers = maxConcurrentTransfers;
+    }
+
+    // Senders that may wait for a transfer slot while every slot is busy, and the connections the OS queues before
+    // they are accepted; further senders are refused
+    public void setBacklog(int backlog) {
+        if (backlog < 1) {
+            throw new IllegalArgumentException("Backlog must be positive.");
+        }
+        this.backlog = backlog;
+    }
+
+    // Serves swarm downloaders only and refuses pushed files, for nodes that seed what they downloaded
+    public void setSwarmOnly(boolean swarmOnly) {
+        this.swarmOnly = swarmOnly;
+    }
+
+    // The files offered to swarm downloaders; by default the process-wide library
+    public void setSwarmLibrary(SwarmLibrary swarmLibrary) {
+        this.swarmLibrary = swarmLibrary;
+    }
+
+    // The files peers can search for; by default the process-wide index
+    public void setShareIndex(ShareIndex shareIndex) {
+        this.shareIndex = shareIndex;
+    }
+
+    // Menu mode: accepts connections until the first transfer has finished, then closes the port
     public void start(String saveDir, String password) throws Exception {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
+        CompletableFuture<Void> firstTransfer = new CompletableFuture<>();
+        try (ServerSocketChannel server = openServer()) {
             System.out.println("Receiver started. Waiting for a sender on port " + port + "...");
-            Socket clientSocket = serverSocket.accept();
-            System.out.println("Sender connected: " + clientSocket.getInetAddress().getHostAddress());
+            engine.listen(server, client -> new Handshake(client, saveDir, password, firstTransfer));
+            openUdp(saveDir, password, firstTransfer);
+            try {
+                firstTransfer.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+        } finally {
+            closeUdp();
+        }
+    }
+
+    // Daemon mode: keeps accepting senders until stop() is called
+    public void serve(String saveDir, String password) throws IOException {
+        showProgress = false;
+        try (ServerSocketChannel server = openServer()) {
+            System.out.println("Receive daemon listening on port " + port + " (up to " + maxConcurrentTransfers + " concurrent transfers).");
+            engine.listen(server, client -> new Handshake(client, saveDir, password, null));
+            openUdp(saveDir, password, null);
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeUdp();
+        }
+    }
+
+    public void stop() {
+        ServerSocketChannel server = serverChannel;
+        if (server != null && server.isOpen()) {
+            try {
+                server.close();
+                System.out.println("Receive daemon stopped.");
+            } catch (IOException e) {
+                System.err.println("Error while stopping the receiver: " + e.getMessage());
+            }
+            stopped.countDown();
+        }
+    }
+
+    // TCP transfers still work when the UDP port cannot be had
+    private void openUdp(String saveDir, String password, CompletableFuture<Void> firstTransfer) {
+        if (swarmOnly) {
+            return;
+        }
+        try {
+            DatagramChannel channel = DatagramChannel.open();
+            UdpReceiver receiver = new UdpReceiver(channel, saveDir, password, showProgress, transferSlots,
+                    this::releaseSlot, firstTransfer, engine.buffers());
+            try {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, UDP_RECEIVE_BUFFER);
+                channel.bind(new InetSocketAddress(port));
+                engine.register(channel, SelectionKey.OP_READ, receiver);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            udpReceiver = receiver;
+        } catch (IOException e) {
+            System.out.println("UDP transfers unavailable on port " + port + ": " + e.getMessage());
+        }
+    }
 
-            try (DataInputStream dis = new DataInputStream(clientSocket.getInputStream())) {
-                boolean isEncrypted = dis.readBoolean();
-                InputStream inputStream;
+    private void closeUdp() {
+        UdpReceiver receiver = udpReceiver;
+        if (receiver != null) {
+            udpReceiver = null;
+            receiver.shutdown();
+        }
+    }
 
-                if (isEncrypted) {
-                    if (password == null || password.isEmpty()) {
-                        throw new IOException("Received an encrypted file but no password was provided.");
+    private ServerSocketChannel openServer() throws IOException {
+        engine = IoEngine.global();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        PeerTuner.global().configure(server);
+        server.bind(new InetSocketAddress(port), backlog);
+        transferSlots = new Semaphore(maxConcurrentTransfers, true);
+        stopped = new CountDownLatch(1);
+        serverChannel = server;
+        return server;
+    }
+
+    // Reads the mode byte, then serves plain files, swarm requests and searches on the engine and hands everything
+    // else to the blocking protocol code
+    private class Handshake extends IoEngine.Connection {
+        private final SocketChannel client;
+        private final String peer;
+        private final String saveDir;
+        private final String password;
+        private final CompletableFuture<Void> firstTransfer;
+        private final ByteBuffer mode = ByteBuffer.allocate(1);
+
+        Handshake(SocketChannel client, String saveDir, String password, CompletableFuture<Void> firstTransfer) {
+            this.client = client;
+            this.peer = client.socket().getInetAddress().getHostAddress();
+            this.saveDir = saveDir;
+            this.password = password;
+            this.firstTransfer = firstTransfer;
+        }
+
+        @Override
+        protected void onRegistered() {
+            wakeAfter(TimeUnit.SECONDS.toNanos(HANDSHAKE_TIMEOUT_SECONDS));
+        }
+
+        // Only reached while the mode byte is still missing; handing over or detaching ends the handshake
+        @Override
+        protected void onWake() {
+            // Not a transfer yet, so a waiting first transfer is left alone
+            System.err.println("Closed a connection from " + peer + " that sent nothing for "
+                    + HANDSHAKE_TIMEOUT_SECONDS + " seconds.");
+            close();
+        }
+
+        @Override
+        protected void onReadable() throws IOException {
+            if (client.read(mode) < 0) {
+                close();
+                return;
+            }
+            if (mode.hasRemaining()) {
+                return;
+            }
+            int transferMode = mode.get(0) & 0xFF;
+            if (transferMode == Protocol.MODE_SWARM) {
+                handOver(new SwarmSeeder(swarmLibrary, client, peer, engine.buffers()));
+                return;
+            }
+            if (transferMode == Protocol.MODE_SEARCH) {
+                handOver(new SearchResponder(shareIndex, client, peer));
+                return;
+            }
+            if (swarmOnly) {
+                throw new IOException("This node only serves swarm downloads.");
+            }
+            if (transferMode == Protocol.MODE_PLAIN) {
+                PlainReceive receive = new PlainReceive(client, peer, saveDir, firstTransfer);
+                handOver(receive);
+                receive.waitForSlot();
+                return;
+            }
+            detach("receiver-" + client.socket().getPort(), () -> {
+                try {
+                    boolean primary = handleConnection(client, transferMode, saveDir, password);
+                    if (primary && firstTransfer != null) {
+                        firstTransfer.complete(null);
                     }
-                    System.out.println("Receiving an encrypted file.");
+                } catch (Exception e) {
+                    reportFailure(peer, e, firstTransfer);
+                }
+            });
+        }
+
+        @Override
+        protected void onClosed(Exception failure) {
+            if (failure != null) {
+                reportFailure(peer, failure, firstTransfer);
+            }
+        }
+    }
 
-                    byte[] ivBytes = new byte[16];
-                    dis.readFully(ivBytes);
-                    IvParameterSpec iv = new IvParameterSpec(ivBytes);
+    private static void reportFailure(String peer, Exception e, CompletableFuture<Void> firstTransfer) {
+        if (firstTransfer != null) {
+            firstTransfer.completeExceptionally(e);
+        } else {
+            System.err.println("Transfer from " + peer + " failed: " + e.getMessage());
+        }
+    }
 
-                    SecretKey key = CryptoUtils.getKeyFromPassword(password);
-                    Cipher decryptCipher = CryptoUtils.getDecryptCipher(key, iv);
+    // Hands free slots to plain transfers waiting on the engine; the blocking modes wait on the semaphore itself
+    private void grantSlots() {
+        while (!waitingForSlot.isEmpty() && transferSlots.tryAcquire()) {
+            PlainReceive next = waitingForSlot.poll();
+            if (next == null) {
+                transferSlots.release();
+                return;
+            }
+            waiting.decrementAndGet();
+            next.execute(next::start);
+        }
+    }
+
+    private void releaseSlot() {
+        transferSlots.release();
+        grantSlots();
+    }
+
+    // Returns true when the connection carried a whole transfer, false when it only joined one as an extra stripe
+    private boolean handleConnection(SocketChannel clientChannel, int mode, String saveDir, String password) throws Exception {
+        // The header is read unbuffered so that nothing past it is consumed before the protocol code takes over
+        try (clientChannel; DataInputStream dis = new DataInputStream(Channels.newInputStream(clientChannel))) {
+            long transferId = 0;
+            if (mode == Protocol.MODE_STRIPED) {
+                transferId = dis.readLong();
+                int stripe = dis.readInt();
+                if (stripe != 0) {
+                    joinStripe(clientChannel, transferId, saveDir);
+                    return false;
+                }
+            }
 
-                    inputStream = new CipherInputStream(dis, decryptCipher);
+            String peer = clientChannel.socket().getInetAddress().getHostAddress();
+            if (!acquireSlot()) {
+                refuse(clientChannel);
+                System.err.println("Refused a sender from " + peer + ": every transfer slot is busy and "
+                        + backlog + " senders are waiting.");
+                return false;
+            }
+            // The file size is only known here for single-file modes; the others report 0 bytes
+            TransferMetrics.Transfer metrics = TransferMetrics.begin(TransferMetrics.RECEIVE, modeName(mode), null, peer);
+            long received = 0;
+            boolean succeeded = false;
+            try {
+                System.out.println("Sender connected: " + peer);
+                if (mode == Protocol.MODE_STRIPED) {
+                    received = receiveStriped(clientChannel, dis, transferId, saveDir, password);
+                } else if (mode == Protocol.MODE_SESSION) {
+                    new SessionReceiver(saveDir).receive(clientChannel, dis, password);
+                } else if (mode == Protocol.MODE_DEDUP) {
+                    new DedupReceiver(saveDir, showProgress).receive(clientChannel, dis, password);
+                } else if (mode == Protocol.MODE_DELTA) {
+                    new DeltaReceiver(saveDir, showProgress).receive(clientChannel, dis, password);
+                } else if (mode == Protocol.MODE_LEGACY_CBC) {
+                    throw new IOException("The sender uses the old AES/CBC stream format, which is no longer supported. Please update the sender.");
                 } else {
-                    System.out.println("Receiving an unencrypted file.");
-                    inputStream = dis;
+                    throw new IOException("Unknown transfer mode " + mode + ".");
                 }
+                succeeded = true;
+                return true;
+            } finally {
+                metrics.finish(received, succeeded);
+                releaseSlot();
+            }
+        }
+    }
+
+    // Waits for a transfer slot unless too many senders are waiting for one already
+    private boolean acquireSlot() throws InterruptedException {
+        if (transferSlots.tryAcquire()) {
+            return true;
+        }
+        if (waiting.incrementAndGet() > backlog) {
+            waiting.decrementAndGet();
+            return false;
+        }
+        try {
+            transferSlots.acquire();
+            return true;
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
 
-                String fileName = dis.readUTF();
-                long fileSize = dis.readLong();
-                System.out.println("Receiving file: " + fileName + " (" + (fileSize / 1024 / 1024) + " MB)");
-                File fileToSave = new File(saveDir, fileName);
+    // Answers with the busy status, then reads what the sender already sent until it hangs up, so closing does not
+    // reset the connection before the status has arrived
+    private static void refuse(SocketChannel channel) {
+        try {
+            channel.write(ByteBuffer.allocate(4).putInt(Protocol.HANDSHAKE_BUSY).flip());
+            channel.shutdownOutput();
+            Socket socket = channel.socket();
+            socket.setSoTimeout(REFUSAL_DRAIN_MILLIS);
+            InputStream in = socket.getInputStream();
+            byte[] discard = new byte[8192];
+            while (in.read(discard) >= 0) {
+                // Nothing to do with it
+            }
+        } catch (IOException e) {
+            // The sender is gone, or took too long to notice
+        }
+    }
 
-                try (FileOutputStream fos = new FileOutputStream(fileToSave)) {
-                    byte[] buffer = new byte[8192];
-                    int bytesRead;
-                    long totalReceived = 0;
+    private static String modeName(int mode) {
+        switch (mode) {
+            case Protocol.MODE_PLAIN:
+                return "plain";
+            case Protocol.MODE_STRIPED:
+                return "striped";
+            case Protocol.MODE_SESSION:
+                return "session";
+            case Protocol.MODE_DEDUP:
+                return "dedup";
+            case Protocol.MODE_DELTA:
+                return "delta";
+            default:
+                return "unknown";
+        }
+    }
 
-                    // We need to use DataInputStream again to read from the potentially decrypted stream
-                    DataInputStream dataStream = new DataInputStream(inputStream);
+    private long receiveStriped(SocketChannel controlChannel, DataInputStream dis, long transferId,
+                                String saveDir, String password) throws Exception {
+        StripedReceiver stripedReceiver = new StripedReceiver(saveDir, showProgress);
+        StripedReceiver.Transfer transfer = stripedReceiver.accept(transferId, controlChannel, dis, password);
 
-                    while ((bytesRead = dataStream.read(buffer)) != -1) {
-                        fos.write(buffer, 0, bytesRead);
-                        totalReceived += bytesRead;
-                        printProgress(totalReceived, fileSize);
-                    }
-                    fos.flush();
-                }
-                System.out.println("\nFile received successfully!");
+        boolean complete;
+        boolean verified = false;
+        activeTransfers.put(transferId, transfer);
+        try {
+            // The other stripes connect after the handshake and are picked up by joinStripe on their own threads
+            stripedReceiver.receiveStripe(controlChannel, transfer);
+            awaitStripes(transfer);
+            verified = stripedReceiver.verify(controlChannel, dis, transfer);
+        } finally {
+            activeTransfers.remove(transferId);
+            complete = stripedReceiver.finish(transfer, verified);
+        }
+
+        ByteBuffer ack = ByteBuffer.allocate(1).put((byte) (complete ? 1 : 0)).flip();
+        controlChannel.write(ack);
+        if (!complete) {
+            throw new IOException("Transfer ended with chunks missing. Progress was saved and the sender can resume.");
+        }
+        System.out.println("\nFile received and verified: " + transfer.fileName);
+        return transfer.fileSize;
+    }
+
+    // A stripe that never connects or stops sending would otherwise hold the transfer and its slot forever
+    private static void awaitStripes(StripedReceiver.Transfer transfer) throws IOException, InterruptedException {
+        long lastReceived = transfer.totalReceived.get();
+        while (!transfer.stripesDone.await(STRIPE_IDLE_SECONDS, TimeUnit.SECONDS)) {
+            long received = transfer.totalReceived.get();
+            if (received == lastReceived) {
+                transfer.closeStripes();
+                // Their last chunks are written before the part file is closed
+                transfer.stripesDone.await(STRIPE_IDLE_SECONDS, TimeUnit.SECONDS);
+                throw new IOException("Stripes stopped sending after " + STRIPE_IDLE_SECONDS
+                        + " seconds. Progress was saved and the sender can resume.");
             }
+            lastReceived = received;
         }
     }
 
-    private void printProgress(long totalReceived, long fileSize) {
-        if (fileSize == 0) return;
-        int progress = (int) ((totalReceived * 100) / fileSize);
-        System.out.print("\rProgress: " + progress + "% ");
+    private void joinStripe(SocketChannel stripeChannel, long transferId, String saveDir) throws IOException {
+        StripedReceiver.Transfer transfer = activeTransfers.get(transferId);
+        if (transfer == null) {
+            throw new IOException("Stripe connection for an unknown transfer.");
+        }
+        transfer.stripeChannels.add(stripeChannel);
+        try {
+            new StripedReceiver(saveDir, showProgress).receiveStripe(stripeChannel, transfer);
+        } finally {
+            transfer.stripeChannels.remove(stripeChannel);
+            transfer.stripesDone.countDown();
+        }
+    }
+
+    // An unencrypted single file: the name and size, then the raw bytes, copied to disk as they arrive
+    private class PlainReceive extends IoEngine.Connection {
+        private final SocketChannel client;
+        private final String peer;
+        private final String saveDir;
+        private final CompletableFuture<Void> firstTransfer;
+        // The name's length first, then the name and the size once the length is known
+        private ByteBuffer header = ByteBuffer.allocate(2);
+        private String fileName;
+        private Path target;
+        private long fileSize = -1;
+        private long received;
+        private int lastProgress = -1;
+        private FileChannel file;
+        private ByteBuffer buffer;
+        private TransferMetrics.Transfer metrics;
+
+        PlainReceive(SocketChannel client, String peer, String saveDir, CompletableFuture<Void> firstTransfer) {
+            this.client = client;
+            this.peer = peer;
+            this.saveDir = saveDir;
+            this.firstTransfer = firstTransfer;
+        }
+
+        // The sender is left waiting in the socket buffers until a transfer slot is free
+        void waitForSlot() {
+            setInterest(0);
+            if (waiting.incrementAndGet() > backlog && transferSlots.availablePermits() == 0) {
+                waiting.decrementAndGet();
+                // The plain protocol has no answer to carry a status, so the sender finds the connection closed
+                System.err.println("Refused a sender from " + peer + ": every transfer slot is busy and "
+                        + backlog + " senders are waiting.");
+                close();
+                return;
+            }
+            waitingForSlot.add(this);
+            grantSlots();
+        }
+
+        void start() {
+            metrics = TransferMetrics.begin(TransferMetrics.RECEIVE, "plain", null, peer);
+            System.out.println("Sender connected: " + peer);
+            setInterest(SelectionKey.OP_READ);
+            wakeAfter(TimeUnit.SECONDS.toNanos(HANDSHAKE_TIMEOUT_SECONDS));
+        }
+
+        @Override
+        protected void onWake() throws IOException {
+            if (fileSize < 0) {
+                throw new IOException("The sender did not send the file name and size within "
+                        + HANDSHAKE_TIMEOUT_SECONDS + " seconds.");
+            }
+        }
+
+        @Override
+        protected void onReadable() throws IOException {
+            if (fileSize < 0 && !readHeader()) {
+                return;
+            }
+            for (int turn = 0; turn < READS_PER_TURN && received < fileSize; turn++) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), fileSize - received));
+                long start = System.nanoTime();
+                int count = client.read(buffer);
+                if (count < 0) {
+                    throw new EOFException("Connection closed after " + received + " of " + fileSize + " bytes.");
+                }
+                if (count == 0) {
+                    return;
+                }
+                TransferMetrics.RECEIVE_SOCKET_TIME.add(System.nanoTime() - start);
+                TransferMetrics.P2P_BYTES_RECEIVED.add(count);
+                buffer.flip();
+                start = System.nanoTime();
+                while (buffer.hasRemaining()) {
+                    file.write(buffer, received + buffer.position());
+                }
+                TransferMetrics.RECEIVE_DISK_TIME.add(System.nanoTime() - start);
+                received += count;
+                printProgress();
+            }
+            if (received == fileSize) {
+                close();
+            }
+        }
+
+        // Reads no further than the header, which may arrive in pieces; returns true once it is complete
+        private boolean readHeader() throws IOException {
+            if (client.read(header) < 0) {
+                throw new EOFException("Connection closed before the file name and size.");
+            }
+            if (header.hasRemaining()) {
+                return false;
+            }
+            if (header.capacity() == 2) {
+                int nameLength = header.getShort(0) & 0xFFFF;
+                header = ByteBuffer.allocate(2 + nameLength + 8).put(header.flip());
+                return readHeader();
+            }
+            DataInputStream fields = new DataInputStream(new ByteArrayInputStream(header.array()));
+            fileName = fields.readUTF();
+            fileSize = fields.readLong();
+            if (fileSize < 0) {
+                throw new IOException("Invalid file size " + fileSize + ".");
+            }
+            System.out.println("Receiving an unencrypted file.");
+            System.out.println("Receiving file: " + fileName + " (" + (fileSize / 1024 / 1024) + " MB)");
+            Path resolved = SavePaths.resolve(Path.of(saveDir).toAbsolutePath().normalize(), fileName, true);
+            // No status to answer busy with here; a second sender of the same name finds the connection closed
+            SavePaths.claim(resolved, fileName);
+            target = resolved;
+            file = FileChannel.open(target,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            buffer = engine.buffers().acquire();
+            return true;
+        }
+
+        private void printProgress() {
+            if (fileSize == 0 || !showProgress) return;
+            int progress = (int) ((received * 100) / fileSize);
+            if (progress != lastProgress) {
+                lastProgress = progress;
+                System.out.print("\rProgress: " + progress + "% ");
+            }
+        }
+
+        @Override
+        protected void onClosed(Exception failure) {
+            engine.buffers().release(buffer);
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            if (target != null) {
+                SavePaths.release(target);
+            }
+            if (metrics == null) {
+                // Closed while still waiting for a slot
+                if (waitingForSlot.remove(this)) {
+                    waiting.decrementAndGet();
+                }
+                return;
+            }
+            boolean succeeded = failure == null && received == fileSize;
+            metrics.finish(received, succeeded);
+            releaseSlot();
+            if (succeeded) {
+                System.out.println("\nFile received successfully: " + fileName);
+                ChunkIndex.indexLater(Path.of(saveDir), target);
+                if (firstTransfer != null) {
+                    firstTransfer.complete(null);
+                }
+            } else {
+                reportFailure(peer, failure != null ? failure : new EOFException("Connection closed before the file was complete."), firstTransfer);
+            }
+        }
     }
 }
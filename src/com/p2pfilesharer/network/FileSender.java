@@ -1,72 +1,230 @@
 package com.p2pfilesharer.network;
 
-import com.p2pfilesharer.encryption.CryptoUtils;
+import com.p2pfilesharer.bandwidth.BandwidthShaper;
+import com.p2pfilesharer.metrics.TransferMetrics;
 
-import javax.crypto.Cipher;
-import javax.crypto.CipherOutputStream;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
 
 public class FileSender {
 
+    // Upper bound for a single transferTo call, so progress keeps updating on large files
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+
     private final String host;
     private final int port;
+    private boolean zeroCopy = true;
+    // 0 leaves the stream count and chunk size to the peer's tuning profile
+    private int streams = 0;
+    private int chunkSize = 0;
+    private boolean resumable = false;
+    private boolean deduplicate = false;
+    private boolean delta = false;
+    private boolean compress = false;
+    private boolean udp = false;
 
     public FileSender(String host, int port) {
         this.host = host;
         this.port = port;
     }
 
-    public void sendFile(File file, String password) throws Exception {
-        try (Socket socket = new Socket(host, port)) {
-            System.out.println("Connection established with " + host);
+    public void setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    public void setStreams(int streams) {
+        if (streams < 1 || streams > Protocol.MAX_STREAMS) {
+            throw new IllegalArgumentException("Stream count must be between 1 and " + Protocol.MAX_STREAMS + ".");
+        }
+        this.streams = streams;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0 || chunkSize > Protocol.MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be between 1 and " + Protocol.MAX_CHUNK_SIZE + " bytes.");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    // Sends through the chunked protocol even on a single stream, so an interrupted transfer can be resumed
+    public void setResumable(boolean resumable) {
+        this.resumable = resumable;
+    }
 
-            OutputStream outputStream = socket.getOutputStream();
-            DataOutputStream dos = new DataOutputStream(outputStream);
+    // Sends only the content-defined chunks the receiver does not already hold, for files that change little between sends
+    public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
 
-            boolean isEncrypted = (password != null && !password.isEmpty());
-            dos.writeBoolean(isEncrypted);
+    // Patches the receiver's existing copy of the same file, sending only what changed (rsync-style)
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
 
-            OutputStream finalOutStream;
-            if (isEncrypted) {
-                System.out.println("Sending file with AES encryption.");
-                SecretKey key = CryptoUtils.getKeyFromPassword(password);
-                IvParameterSpec iv = CryptoUtils.generateIv();
+    // Offers deflate compression to the receiver; chunks that sample as already compressed are still sent raw
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
 
-                dos.write(iv.getIV()); // Send the IV first
+    // Sends over the UDP transport, for long or lossy links where TCP slows down; the whole file is sent, so it
+    // cannot be combined with dedup or delta, and streams, chunk size and compression do not apply
+    public void setUdp(boolean udp) {
+        this.udp = udp;
+    }
 
-                Cipher encryptCipher = CryptoUtils.getEncryptCipher(key, iv);
-                finalOutStream = new CipherOutputStream(dos, encryptCipher);
+    public void sendFile(File file, String password) throws Exception {
+        if (udp && (delta || deduplicate)) {
+            throw new IllegalArgumentException("The UDP transport sends whole files and cannot be combined with dedup or delta.");
+        }
+        boolean isEncrypted = (password != null && !password.isEmpty());
+        // Encryption and compression work per chunk, so they always use the chunked protocol
+        boolean striped = isEncrypted || streams > 1 || resumable || compress;
+        PeerTuner tuner = PeerTuner.global();
+        String mode = udp ? "udp" : delta ? "delta" : deduplicate ? "dedup" : striped ? "striped" : "plain";
+        TransferMetrics.Transfer metrics = TransferMetrics.begin(TransferMetrics.SEND, mode, file.getName(), host);
+        boolean succeeded = false;
+        try {
+            if (udp) {
+                new UdpSender(host, port).send(file, password);
+            } else if (delta) {
+                new DeltaSender(host, port).send(file, password);
+            } else if (deduplicate) {
+                new DedupSender(host, port).send(file, password);
+            } else if (striped) {
+                int chunks = chunkSize > 0 ? chunkSize : tuner.chunkSize(host, file);
+                int stripes = streams > 0 ? streams : tuner.streams(host, file.length(), chunks);
+                if (chunkSize == 0 || streams == 0) {
+                    System.out.println("Using " + stripes + " streams and " + (chunks / 1024) + " KB chunks ("
+                            + tuner.describe(host) + ").");
+                }
+                if (StripedReceiver.window(chunks, stripes, isEncrypted, compress) == 0) {
+                    throw new IllegalArgumentException(stripes + " streams of " + (chunks / 1024) + " KB chunks need more"
+                            + " buffer memory than a receiver allows; use fewer streams or smaller chunks.");
+                }
+                StripedSender sender = new StripedSender(host, port, stripes, chunks, compress);
+                sender.send(file, password);
+                tuner.finished(host, file, stripes, sender.getBytesSent(), sender.getSendNanos());
             } else {
-                System.out.println("Sending file without encryption.");
-                finalOutStream = dos;
+                long start = System.nanoTime();
+                if (zeroCopy) {
+                    sendFileZeroCopy(file);
+                } else {
+                    sendFileStream(file);
+                }
+                tuner.finished(host, file, 1, file.length(), System.nanoTime() - start);
             }
+            succeeded = true;
+        } finally {
+            metrics.finish(file.length(), succeeded);
+        }
+    }
+
+    private void sendFileStream(File file) throws IOException {
+        PeerTuner tuner = PeerTuner.global();
+        try (SocketChannel socketChannel = tuner.connect(host, port)) {
+            System.out.println("Connection established with " + host);
+            System.out.println("Sending file without encryption.");
 
+            DataOutputStream dos = new DataOutputStream(BandwidthShaper.global().wrap(Channels.newOutputStream(socketChannel), host));
+            dos.writeBoolean(false);
             dos.writeUTF(file.getName());
             dos.writeLong(file.length());
 
             System.out.println("Sending file: " + file.getName() + " (" + (file.length() / 1024 / 1024) + " MB)");
 
             try (FileInputStream fis = new FileInputStream(file)) {
-                byte[] buffer = new byte[8192];
+                byte[] buffer = new byte[tuner.ioBufferSize(host)];
                 int bytesRead;
                 long totalSent = 0;
                 while ((bytesRead = fis.read(buffer)) != -1) {
-                    finalOutStream.write(buffer, 0, bytesRead);
+                    long start = System.nanoTime();
+                    dos.write(buffer, 0, bytesRead);
+                    TransferMetrics.SEND_SOCKET_TIME.add(System.nanoTime() - start);
+                    TransferMetrics.P2P_BYTES_SENT.add(bytesRead);
                     totalSent += bytesRead;
                     printProgress(totalSent, file.length());
                 }
             }
-            finalOutStream.flush();
-            // Important: Close the CipherOutputStream to ensure final block is encrypted and written
-            if (finalOutStream instanceof CipherOutputStream) {
-                finalOutStream.close();
+            dos.flush();
+            System.out.println("\nFile transfer complete.");
+        }
+    }
+
+    // Sends files and whole directory trees over one session connection instead of one connection per file.
+    // Directories are walked while sending, so the receiver rebuilds the tree without a manifest up front.
+    public void sendFiles(List<File> files, String password) throws Exception {
+        TreeWalker walker = new TreeWalker(files);
+        SessionSender session = new SessionSender(host, port, password);
+        TransferMetrics.Transfer metrics = TransferMetrics.begin(TransferMetrics.SEND, "session",
+                files.size() == 1 ? files.get(0).getName() : files.size() + " paths", host);
+        boolean succeeded = false;
+        try {
+            try {
+                session.sendAll(walker);
+            } catch (Exception e) {
+                session.abort();
+                throw e;
+            } finally {
+                walker.close();
+            }
+            session.close();
+            reportSession(session, walker.getSkipped() + session.getSkipped());
+            succeeded = true;
+        } finally {
+            metrics.finish(session.getBytesSent(), succeeded);
+        }
+    }
+
+    private void reportSession(SessionSender session, int skipped) throws IOException {
+        System.out.println("\nSession complete: " + session.getAcknowledged() + " files ("
+                + (session.getBytesSent() / 1024 / 1024) + " MB) acknowledged.");
+        if (skipped > 0) {
+            System.out.println(skipped + " entries could not be read and were skipped.");
+        }
+        if (session.getFailures() > 0) {
+            throw new IOException(session.getFailures() + " files could not be stored by the receiver.");
+        }
+    }
+
+    private void sendFileZeroCopy(File file) throws IOException {
+        try (
+            SocketChannel socketChannel = PeerTuner.global().connect(host, port);
+            FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)
+        ) {
+            System.out.println("Connection established with " + host);
+            System.out.println("Sending file without encryption (zero-copy).");
+
+            long fileSize = fileChannel.size();
+
+            // Same header as the stream path, coalesced into a single write before the body
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(socketChannel)));
+            dos.writeBoolean(false);
+            dos.writeUTF(file.getName());
+            dos.writeLong(fileSize);
+            dos.flush();
+
+            System.out.println("Sending file: " + file.getName() + " (" + (fileSize / 1024 / 1024) + " MB)");
+
+            // Under a bandwidth limit the file goes out in small slices, each waiting for its share first
+            BandwidthShaper.Peer shaper = BandwidthShaper.global().peer(host);
+            long totalSent = 0;
+            while (totalSent < fileSize) {
+                long count = Math.min(shaper.isLimited() ? BandwidthShaper.QUANTUM : TRANSFER_CHUNK_SIZE, fileSize - totalSent);
+                shaper.acquire(count);
+                long start = System.nanoTime();
+                long sent = fileChannel.transferTo(totalSent, count, socketChannel);
+                TransferMetrics.SEND_SOCKET_TIME.add(System.nanoTime() - start);
+                TransferMetrics.P2P_BYTES_SENT.add(sent);
+                totalSent += sent;
+                printProgress(totalSent, fileSize);
             }
             System.out.println("\nFile transfer complete.");
         }
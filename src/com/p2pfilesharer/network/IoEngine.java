@@ -0,0 +1,308 @@
+package com.p2pfilesharer.network;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+// Drives any number of connections from a few I/O threads, each with its own Selector. A connection is a state
+// machine whose callbacks run on its I/O thread when the channel is ready, so an idle or slow peer holds no thread.
+// Protocols that are easier to write as blocking code are handed to a virtual thread with detach().
+public class IoEngine {
+
+    static final int THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    // Bounds the direct memory kept for reuse to 64 MB
+    private static final int MAX_POOLED_BUFFERS = 1024;
+
+    private static IoEngine global;
+
+    private final Loop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+    private final BufferPool buffers = new BufferPool(MAX_POOLED_BUFFERS);
+
+    public IoEngine(int threads) throws IOException {
+        loops = new Loop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new Loop(Selector.open());
+            Thread thread = new Thread(loops[i], "io-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public static synchronized IoEngine global() throws IOException {
+        if (global == null) {
+            global = new IoEngine(THREADS);
+        }
+        return global;
+    }
+
+    // Puts the channel in non-blocking mode and hands it to the least recently chosen I/O thread
+    public void register(SelectableChannel channel, int ops, Connection connection) throws IOException {
+        channel.configureBlocking(false);
+        Loop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+        connection.loop = loop;
+        connection.channel = channel;
+        loop.execute(() -> {
+            try {
+                connection.key = channel.register(loop.selector, ops, connection);
+                connection.onRegistered();
+            } catch (IOException e) {
+                connection.close(e);
+            }
+        });
+    }
+
+    // Accepts connections until the server channel is closed, each as the connection the factory makes for it
+    public void listen(ServerSocketChannel server, Function<SocketChannel, Connection> factory) throws IOException {
+        register(server, SelectionKey.OP_ACCEPT, new Connection() {
+            @Override
+            protected void onReadable() {
+                while (true) {
+                    SocketChannel client;
+                    try {
+                        client = server.accept();
+                        if (client == null) {
+                            return;
+                        }
+                        register(client, SelectionKey.OP_READ, factory.apply(client));
+                    } catch (IOException e) {
+                        System.err.println("Failed to accept a connection: " + e.getMessage());
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
+    BufferPool buffers() {
+        return buffers;
+    }
+
+    public abstract static class Connection {
+        private Loop loop;
+        private SelectableChannel channel;
+        private SelectionKey key;
+        private long wakeAt;
+        private boolean closed;
+
+        // Called on the I/O thread once the channel is registered, e.g. to set a first wake-up
+        protected void onRegistered() throws IOException {
+        }
+
+        // Called on the I/O thread when the channel has data, or a server channel has a connection to accept
+        protected void onReadable() throws IOException {
+        }
+
+        protected void onWritable() throws IOException {
+        }
+
+        // Called when the delay given to wakeAfter has passed
+        protected void onWake() throws IOException {
+        }
+
+        // Called once when the connection closes; failure is null when it closed normally
+        protected void onClosed(Exception failure) {
+        }
+
+        protected final void setInterest(int ops) {
+            key.interestOps(ops);
+        }
+
+        // A later call replaces the earlier wake-up
+        protected final void wakeAfter(long nanos) {
+            wakeAt = System.nanoTime() + nanos;
+            loop.timers.add(new Wake(this, wakeAt));
+        }
+
+        // Runs the task on this connection's I/O thread; may be called from any thread
+        public final void execute(Runnable task) {
+            loop.execute(() -> {
+                if (!closed) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        close(e);
+                    }
+                }
+            });
+        }
+
+        protected final void close() {
+            close(null);
+        }
+
+        protected final void close(Exception failure) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already broken; the failure passed in says why
+            }
+            onClosed(failure);
+        }
+
+        // Lets another state machine carry on with the channel, e.g. once a handshake has said what follows
+        protected final void handOver(Connection next) {
+            next.loop = loop;
+            next.channel = channel;
+            next.key = key;
+            key.attach(next);
+            closed = true;
+        }
+
+        // Takes the channel off the engine and runs the work on a virtual thread once the channel is blocking again.
+        // The work owns the channel from then on.
+        protected final void detach(String name, Runnable work) {
+            closed = true;
+            key.cancel();
+            loop.detaching.add(new Detach(channel, name, work));
+            loop.selector.wakeup();
+        }
+    }
+
+    private static class Wake {
+        final Connection connection;
+        final long at;
+
+        Wake(Connection connection, long at) {
+            this.connection = connection;
+            this.at = at;
+        }
+    }
+
+    private static class Detach {
+        final SelectableChannel channel;
+        final String name;
+        final Runnable work;
+
+        Detach(SelectableChannel channel, String name, Runnable work) {
+            this.channel = channel;
+            this.name = name;
+            this.work = work;
+        }
+    }
+
+    private static class Loop implements Runnable {
+        final Selector selector;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Only touched on the loop's own thread
+        final PriorityQueue<Wake> timers = new PriorityQueue<>(Comparator.comparingLong((Wake wake) -> wake.at));
+        final List<Detach> detaching = new ArrayList<>();
+
+        Loop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                try {
+                    Wake first = timers.peek();
+                    if (first == null) {
+                        selector.select();
+                    } else {
+                        long millis = TimeUnit.NANOSECONDS.toMillis(first.at - System.nanoTime());
+                        if (millis > 0) {
+                            selector.select(millis);
+                        } else {
+                            selector.selectNow();
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("I/O engine: select failed: " + e.getMessage());
+                    continue;
+                }
+                finishDetaching();
+                dispatch();
+                fireTimers();
+            }
+        }
+
+        private void dispatch() {
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isValid() && (key.readyOps() & (SelectionKey.OP_READ | SelectionKey.OP_ACCEPT)) != 0) {
+                        connection.onReadable();
+                    }
+                    if (key.isValid() && !connection.closed && (key.readyOps() & SelectionKey.OP_WRITE) != 0) {
+                        connection.onWritable();
+                    }
+                } catch (Exception e) {
+                    connection.close(e);
+                }
+            }
+        }
+
+        private void fireTimers() {
+            long now = System.nanoTime();
+            while (!timers.isEmpty() && timers.peek().at - now <= 0) {
+                Wake wake = timers.poll();
+                Connection connection = wake.connection;
+                if (connection.closed || connection.wakeAt != wake.at) {
+                    continue;
+                }
+                try {
+                    connection.onWake();
+                } catch (Exception e) {
+                    connection.close(e);
+                }
+            }
+        }
+
+        // A cancelled key is only dropped by the next select, and the channel cannot go back to blocking mode before
+        private void finishDetaching() {
+            Iterator<Detach> pending = detaching.iterator();
+            while (pending.hasNext()) {
+                Detach detach = pending.next();
+                if (detach.channel.isRegistered()) {
+                    selector.wakeup();
+                    continue;
+                }
+                pending.remove();
+                try {
+                    detach.channel.configureBlocking(true);
+                    Thread.ofVirtual().name(detach.name).start(detach.work);
+                } catch (IOException e) {
+                    System.err.println("I/O engine: could not hand over a connection: " + e.getMessage());
+                    try {
+                        detach.channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+    }
+}
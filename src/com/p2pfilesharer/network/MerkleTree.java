@@ -0,0 +1,110 @@
+package com.p2pfilesharer.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// SHA-256 hashes of every chunk of a file and the root over them. Leaves are filled in by the workers as
+// chunks go by, so the root is known as soon as the last chunk has been hashed, without reading the file again.
+// Leaves and inner nodes are hashed with different prefixes, so a leaf can never pass for a subtree.
+class MerkleTree {
+
+    static final int HASH_LENGTH = 32;
+
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    });
+
+    private final int leafCount;
+    private final byte[] leaves;
+
+    MerkleTree(int leafCount) throws IOException {
+        if (leafCount < 0 || leafCount > Protocol.MAX_CHUNKS) {
+            throw new IOException("File has too many chunks to hash (" + leafCount + "); use a larger chunk size.");
+        }
+        this.leafCount = leafCount;
+        this.leaves = new byte[leafCount * HASH_LENGTH];
+    }
+
+    MerkleTree(int leafCount, byte[] leaves) throws IOException {
+        this(leafCount);
+        if (leaves.length != this.leaves.length) {
+            throw new IOException("Expected " + leafCount + " leaf hashes.");
+        }
+        System.arraycopy(leaves, 0, this.leaves, 0, leaves.length);
+    }
+
+    // Hashes the remaining bytes of the buffer and rewinds it to where it was
+    static byte[] hashChunk(ByteBuffer chunk) {
+        MessageDigest digest = DIGESTS.get();
+        int position = chunk.position();
+        digest.update(LEAF_PREFIX);
+        digest.update(chunk);
+        chunk.position(position);
+        return digest.digest();
+    }
+
+    // Different chunks may be set from different threads at the same time
+    void setLeaf(int index, byte[] hash) {
+        System.arraycopy(hash, 0, leaves, index * HASH_LENGTH, HASH_LENGTH);
+    }
+
+    byte[] leaf(int index) {
+        byte[] hash = new byte[HASH_LENGTH];
+        System.arraycopy(leaves, index * HASH_LENGTH, hash, 0, HASH_LENGTH);
+        return hash;
+    }
+
+    boolean leafEquals(int index, byte[] otherLeaves) {
+        int from = index * HASH_LENGTH;
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            if (leaves[from + i] != otherLeaves[from + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    byte[] leafBytes() {
+        return leaves.clone();
+    }
+
+    int getLeafCount() {
+        return leafCount;
+    }
+
+    // An odd node at the end of a level moves up unchanged
+    byte[] root() {
+        MessageDigest digest = DIGESTS.get();
+        if (leafCount == 0) {
+            digest.update(LEAF_PREFIX);
+            return digest.digest();
+        }
+        byte[] level = leaves.clone();
+        int nodes = leafCount;
+        while (nodes > 1) {
+            int parents = (nodes + 1) / 2;
+            for (int i = 0; i < parents; i++) {
+                int left = 2 * i * HASH_LENGTH;
+                if (2 * i + 1 < nodes) {
+                    digest.update(NODE_PREFIX);
+                    digest.update(level, left, 2 * HASH_LENGTH);
+                    System.arraycopy(digest.digest(), 0, level, i * HASH_LENGTH, HASH_LENGTH);
+                } else {
+                    System.arraycopy(level, left, level, i * HASH_LENGTH, HASH_LENGTH);
+                }
+            }
+            nodes = parents;
+        }
+        byte[] root = new byte[HASH_LENGTH];
+        System.arraycopy(level, 0, root, 0, HASH_LENGTH);
+        return root;
+    }
+}
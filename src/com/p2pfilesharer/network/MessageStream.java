@@ -0,0 +1,95 @@
+package com.p2pfilesharer.network;
+
+import com.p2pfilesharer.encryption.CryptoUtils;
+import com.p2pfilesharer.metrics.TransferMetrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+// Length-prefixed messages over a connection, sealed with AES-GCM when the transfer is encrypted.
+// Both directions share one key, so each side seals under its own half of the counter space.
+class MessageStream {
+
+    static final long RESPONDER_COUNTER_BASE = 1L << 31;
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final TransferKey transferKey;
+    private long sendCounter;
+    private final long sendLimit;
+    private long receiveCounter;
+    private byte[] message = new byte[64 * 1024];
+    private byte[] sealed = new byte[0];
+
+    // The initiator is the side that opened the connection
+    MessageStream(DataInputStream in, DataOutputStream out, TransferKey transferKey, boolean initiator) {
+        this.in = in;
+        this.out = out;
+        this.transferKey = transferKey;
+        this.sendCounter = initiator ? 0 : RESPONDER_COUNTER_BASE;
+        this.sendLimit = initiator ? RESPONDER_COUNTER_BASE : CryptoUtils.KEY_CHECK_COUNTER;
+        this.receiveCounter = initiator ? RESPONDER_COUNTER_BASE : 0;
+    }
+
+    void write(byte[] payload, int length) throws IOException {
+        if (transferKey == null) {
+            out.writeInt(length);
+            out.write(payload, 0, length);
+            TransferMetrics.P2P_BYTES_SENT.add(4 + length);
+            return;
+        }
+        if (sendCounter >= sendLimit) {
+            throw new IOException("Transfer exhausted its nonce space; start a new transfer.");
+        }
+        long start = System.nanoTime();
+        byte[] body = transferKey.seal(sendCounter++, payload, length);
+        TransferMetrics.SEND_CRYPTO_TIME.add(System.nanoTime() - start);
+        out.writeInt(body.length);
+        out.write(body);
+        TransferMetrics.P2P_BYTES_SENT.add(4 + body.length);
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    // Reads the next message into an internal buffer that is reused by the following read
+    DataInputStream read() throws IOException {
+        int length = readLength(Protocol.MAX_SESSION_PAYLOAD);
+        if (message.length < length) {
+            message = new byte[length];
+        }
+        return new DataInputStream(new ByteArrayInputStream(message, 0, readBody(length, message)));
+    }
+
+    // Reads the next message into target and returns its plaintext length
+    int read(byte[] target) throws IOException {
+        return readBody(readLength(target.length + (transferKey == null ? 0 : CryptoUtils.TAG_LENGTH)), target);
+    }
+
+    private int readLength(int limit) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > limit) {
+            throw new IOException("Invalid message length " + length + ".");
+        }
+        return length;
+    }
+
+    private int readBody(int length, byte[] target) throws IOException {
+        TransferMetrics.P2P_BYTES_RECEIVED.add(4 + length);
+        if (transferKey == null) {
+            in.readFully(target, 0, length);
+            return length;
+        }
+        if (sealed.length < length) {
+            sealed = new byte[length];
+        }
+        in.readFully(sealed, 0, length);
+        long start = System.nanoTime();
+        int plainLength = transferKey.open(receiveCounter++, sealed, length, target);
+        TransferMetrics.RECEIVE_CRYPTO_TIME.add(System.nanoTime() - start);
+        return plainLength;
+    }
+}
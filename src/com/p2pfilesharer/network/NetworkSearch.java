@@ -0,0 +1,149 @@
+package com.p2pfilesharer.network;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Asks many peers at once which of their shared files match a name prefix or a content hash. Every peer gets its
+// own virtual thread, and matches are merged by content as they arrive, so the listener hears about a file as soon
+// as the first peer reports it and again for each further peer that has a copy.
+public class NetworkSearch {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int READ_TIMEOUT_MILLIS = 10000;
+
+    private final int defaultPort;
+
+    public interface Listener {
+        // Called one match at a time, never concurrently; the result already lists the peer
+        void found(Result result, String peer, ShareIndex.SharedFile match);
+    }
+
+    // One content found on the network, with every peer that has it and the path it has there
+    public static class Result {
+        public final String name;
+        public final long size;
+        final byte[] hash;
+        private final Map<String, String> paths = new LinkedHashMap<>();
+
+        Result(String name, long size, byte[] hash) {
+            this.name = name;
+            this.size = size;
+            this.hash = hash;
+        }
+
+        public String getHash() {
+            return HexFormat.of().formatHex(hash);
+        }
+
+        public List<String> getPeers() {
+            return new ArrayList<>(paths.keySet());
+        }
+
+        public String getPath(String peer) {
+            return paths.get(peer);
+        }
+    }
+
+    public NetworkSearch(int defaultPort) {
+        this.defaultPort = defaultPort;
+    }
+
+    // A query of 64 hex digits is a content hash, anything else a name prefix. Returns the merged results, the
+    // content most peers have first, once every peer has answered or given up.
+    public List<Result> search(Collection<String> peers, String query, int limit, Listener listener) throws InterruptedException {
+        Map<String, Result> results = new LinkedHashMap<>();
+        List<Thread> askers = new ArrayList<>();
+        for (String address : peers) {
+            askers.add(Thread.ofVirtual().name("search-" + address).start(() -> {
+                try {
+                    ask(address, query, limit, match -> {
+                        synchronized (results) {
+                            Result result = results.computeIfAbsent(match.getHash(),
+                                    id -> new Result(match.getName(), match.size, match.hash));
+                            if (result.paths.putIfAbsent(address, match.path) == null && listener != null) {
+                                listener.found(result, address, match);
+                            }
+                        }
+                    });
+                } catch (IOException e) {
+                    System.err.println("Could not search " + address + ": " + e.getMessage());
+                }
+            }));
+        }
+        for (Thread asker : askers) {
+            asker.join();
+        }
+        synchronized (results) {
+            List<Result> merged = new ArrayList<>(results.values());
+            merged.sort(Comparator.comparingInt((Result result) -> -result.paths.size()).thenComparing(result -> result.name));
+            return merged;
+        }
+    }
+
+    static boolean isHash(String query) {
+        return query.length() == 2 * MerkleTree.HASH_LENGTH && query.chars().allMatch(c -> Character.digit(c, 16) >= 0);
+    }
+
+    private interface MatchSink {
+        void accept(ShareIndex.SharedFile match);
+    }
+
+    private void ask(String address, String query, int limit, MatchSink sink) throws IOException {
+        String host = address;
+        int port = defaultPort;
+        int colon = address.lastIndexOf(':');
+        if (colon > 0 && address.indexOf(':') == colon) {
+            host = address.substring(0, colon);
+            try {
+                port = Integer.parseInt(address.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid peer address " + address + ".");
+            }
+        }
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeByte(Protocol.MODE_SEARCH);
+            if (isHash(query)) {
+                out.writeByte(Protocol.SEARCH_HASH);
+                out.write(HexFormat.of().parseHex(query.toLowerCase()));
+            } else {
+                byte[] prefix = query.getBytes(StandardCharsets.UTF_8);
+                if (prefix.length > Protocol.MAX_SEARCH_PREFIX) {
+                    throw new IOException("Search prefix is too long.");
+                }
+                out.writeByte(Protocol.SEARCH_NAME);
+                out.writeShort(prefix.length);
+                out.write(prefix);
+            }
+            out.writeInt(limit);
+            out.flush();
+
+            // Matches are handed on one at a time as they are read, not once the whole answer is in
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            while (in.readByte() == Protocol.SEARCH_MATCH) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                byte[] hash = new byte[MerkleTree.HASH_LENGTH];
+                in.readFully(hash);
+                sink.accept(new ShareIndex.SharedFile(path, size, lastModified, hash));
+            }
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package com.p2pfilesharer.network;
+
+import com.p2pfilesharer.bandwidth.BandwidthShaper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+// Learns per peer how to send fast: the round-trip time from each connect, and the throughput each stream count
+// reached. Socket buffers follow the bandwidth-delay product, chunks and I/O buffers the throughput, and the
+// stream count is doubled while doubling still pays off. Profiles are kept on disk, so the next run starts tuned.
+public class PeerTuner {
+
+    // Transfers smaller than this finish before TCP has ramped up and say little about the path
+    static final long MIN_SAMPLE_BYTES = 8L * 1024 * 1024;
+
+    private static final int MIN_CHUNK_SIZE = 256 * 1024;
+    private static final int MAX_TUNED_CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int MIN_IO_BUFFER = 64 * 1024;
+    private static final int MAX_IO_BUFFER = 1024 * 1024;
+    private static final int DEFAULT_IO_BUFFER = 256 * 1024;
+    private static final int MAX_SOCKET_BUFFER = 64 * 1024 * 1024;
+    private static final int MAX_TUNED_STREAMS = 16;
+    // Paths with a longer round trip start with several streams before anything has been measured
+    private static final long WAN_RTT_NANOS = 10_000_000;
+    // A doubled stream count has to be this much faster to be kept
+    private static final double STREAM_GAIN = 1.1;
+    private static final int MAX_PEERS = 256;
+    private static final int MAX_UNFINISHED = 256;
+
+    private static PeerTuner global;
+
+    private final Path file;
+    private final Map<String, Profile> profiles = new LinkedHashMap<>();
+    // Chunk sizes of sends that have not finished yet; a retry must use the same size for the receiver to resume
+    private final Map<String, Integer> unfinished = new LinkedHashMap<>();
+    private boolean saveFailed;
+
+    // What the OS does with socket buffers left alone (grows them up to autoSend/autoReceive) and how large it
+    // lets them be set; an explicit size turns the growing off, so it is only set when it is the larger one
+    private int autoSend;
+    private int autoReceive;
+    private int maxSend;
+    private int maxReceive;
+
+    private static class Profile {
+        long rttNanos;
+        // Smoothed throughput reached with each stream count, in bytes per second
+        final TreeMap<Integer, Long> rates = new TreeMap<>();
+
+        long bestRate() {
+            long best = 0;
+            for (long rate : rates.values()) {
+                best = Math.max(best, rate);
+            }
+            return best;
+        }
+
+        int bestStreams() {
+            int best = 1;
+            long bestRate = -1;
+            for (Map.Entry<Integer, Long> entry : rates.entrySet()) {
+                if (entry.getValue() > bestRate) {
+                    best = entry.getKey();
+                    bestRate = entry.getValue();
+                }
+            }
+            return best;
+        }
+    }
+
+    // A null file keeps the profiles in memory only
+    public PeerTuner(Path file) {
+        this.file = file;
+        if (file != null && Files.isRegularFile(file)) {
+            load();
+        }
+        probeSocketBuffers();
+    }
+
+    public static synchronized PeerTuner global() {
+        if (global == null) {
+            global = new PeerTuner(Path.of(System.getProperty("user.home"), ".p2pfilesharer", "peers.properties"));
+        }
+        return global;
+    }
+
+    // Connects with Nagle off and the socket buffers sized for the peer, timing the handshake as an RTT sample
+    public SocketChannel connect(String host, int port) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            int buffer = socketBufferSize(host, autoSend, maxSend);
+            if (buffer > 0) {
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, buffer);
+            }
+            long start = System.nanoTime();
+            channel.connect(address);
+            sampleRtt(host, System.nanoTime() - start);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // The receive buffer is fixed when a connection is accepted, so it is set on the listening socket before it
+    // binds, large enough for the longest path this node knows
+    public void configure(ServerSocketChannel server) throws IOException {
+        int largest = 0;
+        synchronized (this) {
+            for (String host : profiles.keySet()) {
+                largest = Math.max(largest, socketBufferSize(host, autoReceive, maxReceive));
+            }
+        }
+        if (largest > 0) {
+            server.setOption(StandardSocketOptions.SO_RCVBUF, largest);
+        }
+    }
+
+    // Stream count for a striped send: several on a long path, then doubled while that keeps paying off
+    public synchronized int streams(String host, long fileSize, int chunkSize) throws IOException {
+        int most = Math.max(1, Math.min(MAX_TUNED_STREAMS, ChunkBitmap.chunkCount(fileSize, chunkSize)));
+        Profile profile = profiles.get(host);
+        if (profile == null) {
+            return 1;
+        }
+        if (profile.rates.isEmpty()) {
+            return Math.min(most, profile.rttNanos >= WAN_RTT_NANOS ? 4 : 1);
+        }
+        int best = profile.bestStreams();
+        Long fewer = profile.rates.get(best / 2);
+        boolean paidOff = best == 1 || fewer == null || profile.rates.get(best) > STREAM_GAIN * fewer;
+        if (best * 2 <= MAX_TUNED_STREAMS && !profile.rates.containsKey(best * 2) && paidOff) {
+            return Math.min(most, best * 2);
+        }
+        return Math.min(most, best);
+    }
+
+    // About a quarter of a second of data per chunk, and at least eight chunks so every stream has work. A send
+    // that did not finish keeps its chunk size until it does; it is written to disk with the next finished send.
+    public synchronized int chunkSize(String host, File file) {
+        String key = unfinishedKey(host, file);
+        Integer pending = unfinished.get(key);
+        if (pending != null) {
+            return pending;
+        }
+        int size = Protocol.DEFAULT_CHUNK_SIZE;
+        Profile profile = profiles.get(host);
+        if (profile != null && profile.bestRate() > 0) {
+            size = clamp(profile.bestRate() / 4, MIN_CHUNK_SIZE, MAX_TUNED_CHUNK_SIZE);
+        }
+        size = Math.min(size, clamp(file.length() / 8, MIN_CHUNK_SIZE, MAX_TUNED_CHUNK_SIZE));
+        // Very large files need larger chunks to stay within what a receiver accepts
+        size = Math.max(size, ChunkBitmap.minChunkSize(file.length()));
+        unfinished.put(key, size);
+        if (unfinished.size() > MAX_UNFINISHED) {
+            unfinished.remove(unfinished.keySet().iterator().next());
+        }
+        return size;
+    }
+
+    // Size of the reads and writes a stream copy makes: about 10 ms of data
+    public synchronized int ioBufferSize(String host) {
+        Profile profile = profiles.get(host);
+        if (profile == null || profile.bestRate() == 0) {
+            return DEFAULT_IO_BUFFER;
+        }
+        return clamp(profile.bestRate() / 100, MIN_IO_BUFFER, MAX_IO_BUFFER);
+    }
+
+    // Records a finished send. Throughput only counts when the transfer was large enough and not held back by
+    // a bandwidth limit.
+    public synchronized void finished(String host, File file, int streams, long bytes, long nanos) {
+        unfinished.remove(unfinishedKey(host, file));
+        if (bytes >= MIN_SAMPLE_BYTES && nanos > 0 && !BandwidthShaper.global().isLimited(host)) {
+            long rate = (long) (bytes * 1e9 / nanos);
+            Profile profile = profile(host);
+            Long previous = profile.rates.get(streams);
+            profile.rates.put(streams, previous == null ? rate : (previous + rate) / 2);
+        }
+        save();
+    }
+
+    // For the console: what is known about a peer
+    public synchronized String describe(String host) {
+        Profile profile = profiles.get(host);
+        if (profile == null) {
+            return host + ": not measured yet";
+        }
+        return host + ": RTT " + String.format("%.2f", profile.rttNanos / 1e6) + " ms, best "
+                + (profile.bestRate() / 1024 / 1024) + " MB/s with " + profile.bestStreams() + " streams";
+    }
+
+    private synchronized void sampleRtt(String host, long nanos) {
+        Profile profile = profile(host);
+        profile.rttNanos = profile.rttNanos == 0 ? nanos : (3 * profile.rttNanos + nanos) / 4;
+    }
+
+    // Twice the bandwidth-delay product, or 0 to leave the buffer to the OS
+    private synchronized int socketBufferSize(String host, int auto, int max) {
+        Profile profile = profiles.get(host);
+        if (profile == null || profile.bestRate() == 0) {
+            return 0;
+        }
+        long bdp = (long) (profile.bestRate() * (profile.rttNanos / 1e9));
+        int size = (int) Math.min(Math.min(Long.highestOneBit(Math.max(1, 2 * bdp)) << 1, MAX_SOCKET_BUFFER), max);
+        return size > auto ? size : 0;
+    }
+
+    private Profile profile(String host) {
+        Profile profile = profiles.get(host);
+        if (profile == null) {
+            profile = new Profile();
+            profiles.put(host, profile);
+            if (profiles.size() > MAX_PEERS) {
+                profiles.remove(profiles.keySet().iterator().next());
+            }
+        }
+        return profile;
+    }
+
+    private static int clamp(long value, int min, int max) {
+        return (int) Math.max(min, Math.min(max, Long.highestOneBit(Math.max(1, value))));
+    }
+
+    // Hashed, so the settings file does not list the names of the files sent
+    private static String unfinishedKey(String host, File file) {
+        String key = host + "|" + file.getName() + "|" + file.length() + "|" + file.lastModified();
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    private void probeSocketBuffers() {
+        autoSend = autoLimit("tcp_wmem", StandardSocketOptions.SO_SNDBUF);
+        autoReceive = autoLimit("tcp_rmem", StandardSocketOptions.SO_RCVBUF);
+        try (SocketChannel probe = SocketChannel.open()) {
+            probe.setOption(StandardSocketOptions.SO_SNDBUF, MAX_SOCKET_BUFFER);
+            probe.setOption(StandardSocketOptions.SO_RCVBUF, MAX_SOCKET_BUFFER);
+            // Linux reports twice what it grants, so the value read back is halved unless it is all there
+            maxSend = honoured(probe.getOption(StandardSocketOptions.SO_SNDBUF));
+            maxReceive = honoured(probe.getOption(StandardSocketOptions.SO_RCVBUF));
+        } catch (IOException e) {
+            maxSend = 0;
+            maxReceive = 0;
+        }
+    }
+
+    private static int honoured(int readBack) {
+        return readBack >= MAX_SOCKET_BUFFER ? MAX_SOCKET_BUFFER : readBack / 2;
+    }
+
+    // Linux grows buffers up to the last value of net.ipv4.tcp_[rw]mem; elsewhere the default is taken as the size
+    private static int autoLimit(String setting, SocketOption<Integer> option) {
+        Path limits = Path.of("/proc/sys/net/ipv4", setting);
+        try {
+            if (Files.isReadable(limits)) {
+                String[] values = Files.readString(limits).trim().split("\\s+");
+                return Integer.parseInt(values[values.length - 1]);
+            }
+            try (SocketChannel probe = SocketChannel.open()) {
+                return probe.getOption(option);
+            }
+        } catch (IOException | RuntimeException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    private void load() {
+        Properties saved = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            saved.load(reader);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Ignoring unreadable peer settings " + file + ": " + e.getMessage());
+            return;
+        }
+        for (String key : saved.stringPropertyNames()) {
+            String value = saved.getProperty(key);
+            try {
+                if (key.startsWith("unfinished.")) {
+                    // Entries written before the keys were hashed carry the file name and are dropped
+                    if (key.indexOf('|') < 0) {
+                        unfinished.put(key.substring("unfinished.".length()), Integer.parseInt(value));
+                    }
+                    continue;
+                }
+                int dot = key.lastIndexOf('.');
+                if (!key.startsWith("peer.") || dot <= 5) {
+                    continue;
+                }
+                String name = key.substring(dot + 1);
+                String rest = key.substring(5, dot);
+                if (name.equals("rtt")) {
+                    profile(rest).rttNanos = Long.parseLong(value);
+                } else if (rest.endsWith(".rate")) {
+                    profile(rest.substring(0, rest.length() - 5)).rates.put(Integer.parseInt(name), Long.parseLong(value));
+                }
+            } catch (NumberFormatException e) {
+                // A hand-edited value; the rest still loads
+            }
+        }
+    }
+
+    // Written aside and renamed, so a crash never leaves a half-written file behind
+    private void save() {
+        if (file == null) {
+            return;
+        }
+        Properties saved = new Properties();
+        for (Map.Entry<String, Profile> entry : profiles.entrySet()) {
+            String prefix = "peer." + entry.getKey();
+            saved.setProperty(prefix + ".rtt", String.valueOf(entry.getValue().rttNanos));
+            for (Map.Entry<Integer, Long> rate : entry.getValue().rates.entrySet()) {
+                saved.setProperty(prefix + ".rate." + rate.getKey(), String.valueOf(rate.getValue()));
+            }
+        }
+        for (Map.Entry<String, Integer> entry : unfinished.entrySet()) {
+            saved.setProperty("unfinished." + entry.getKey(), String.valueOf(entry.getValue()));
+        }
+        try {
+            Files.createDirectories(file.getParent());
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                saved.store(writer, "Measured per peer by the P2P file sharer");
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (!saveFailed) {
+                System.err.println("Could not save peer settings to " + file + ": " + e.getMessage());
+                saveFailed = true;
+            }
+        }
+    }
+}
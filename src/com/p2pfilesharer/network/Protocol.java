@@ -0,0 +1,95 @@
+package com.p2pfilesharer.network;
+
+final class Protocol {
+
+    // First byte of every connection. 0 and 1 match the boolean "encrypted" flag of the original header;
+    // 1 (AES/CBC stream) is no longer sent and is rejected by the receiver.
+    static final int MODE_PLAIN = 0;
+    static final int MODE_LEGACY_CBC = 1;
+    static final int MODE_STRIPED = 2;
+    static final int MODE_SESSION = 3;
+    static final int MODE_DEDUP = 4;
+    static final int MODE_DELTA = 5;
+    static final int MODE_SWARM = 6;
+    static final int MODE_SEARCH = 7;
+
+    // Sent instead of the resume bitmap length when the receiver refuses a transfer
+    static final int HANDSHAKE_REJECTED = -1;
+    // Sent instead when every transfer slot is taken and enough senders are already waiting for one
+    static final int HANDSHAKE_BUSY = -3;
+
+    static final long END_OF_STRIPE = -1L;
+    // Chunk frames: long offset, int length, int stored length (less than length when compressed),
+    // SHA-256 Merkle leaf of the plain chunk
+    static final int CHUNK_FRAME_HEADER = 16 + MerkleTree.HASH_LENGTH;
+
+    // After the stripes, the sender sends its Merkle root and the receiver answers with repair requests on stripe 0:
+    // a count of chunk indices to send again, REPAIR_LEAVES for the sender's leaf hashes, or REPAIR_DONE
+    static final int REPAIR_DONE = 0;
+    static final int REPAIR_LEAVES = -1;
+    static final int MAX_REPAIR_ROUNDS = 3;
+
+    // Session frames: byte type, int stream id, int payload length, payload
+    static final int FRAME_FILE_BEGIN = 1;
+    static final int FRAME_DATA = 2;
+    static final int FRAME_FILE_END = 3;
+    static final int FRAME_ACK = 4;
+    static final int FRAME_SESSION_END = 5;
+    static final int FRAME_DIRECTORY = 6;
+    static final int FRAME_FILE_BATCH = 7;
+
+    // Delta instructions: literal bytes, a run of the receiver's blocks, and the end with the whole-file SHA-256
+    static final int DELTA_LITERAL = 1;
+    static final int DELTA_COPY = 2;
+    static final int DELTA_END = 3;
+
+    // Swarm requests, answered in order on one connection; files are named by the Merkle root of their chunks
+    static final int SWARM_LIST = 1;
+    static final int SWARM_HAVE = 2;
+    static final int SWARM_LEAVES = 3;
+    static final int SWARM_CHUNK = 4;
+    // Answer length for content or a chunk the peer does not have
+    static final int SWARM_UNAVAILABLE = -1;
+
+    // Search requests: byte kind, then a UTF name prefix or a content hash, then the most matches wanted. Matches
+    // follow as SEARCH_MATCH records (path, size, mtime, hash) and SEARCH_END closes the list.
+    static final int SEARCH_NAME = 1;
+    static final int SEARCH_HASH = 2;
+    static final int SEARCH_MATCH = 1;
+    static final int SEARCH_END = 0;
+    static final int MAX_SEARCH_PREFIX = 1024;
+
+    // UDP transport, on the same port number as TCP. Every packet starts with its type and the transfer id:
+    // HELLO carries the file header, DATA one numbered slice of the file, ACK the receiver's progress and the
+    // ranges it is missing, DONE the outcome once every slice is on disk
+    static final int UDP_HELLO = 1;
+    static final int UDP_ACCEPT = 2;
+    static final int UDP_DATA = 3;
+    static final int UDP_ACK = 4;
+    static final int UDP_DONE = 5;
+    // ACCEPT status when the receiver cannot take the file for another reason than the password
+    static final int UDP_REFUSED = -2;
+    // Data packets: byte type, long transfer id, int sequence, int nonce counter, int send time in microseconds,
+    // then either a CRC32C and the slice, or the sealed sequence and slice
+    static final int UDP_DATA_HEADER = 21;
+    // File bytes per data packet; headers and tag included, a packet stays well under a 1500-byte path MTU
+    static final int UDP_PAYLOAD = 1344;
+    static final int UDP_MAX_PACKET = 1472;
+
+    static final int SESSION_FRAME_SIZE = 256 * 1024;
+    static final int MAX_SESSION_PAYLOAD = 1024 * 1024;
+    // Files up to this size are packed together into batch frames instead of getting their own stream
+    static final int SMALL_FILE_LIMIT = 64 * 1024;
+
+    static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+    // Receivers keep a hash per chunk in memory, so larger counts are refused: 128 MB of hashes, 4 TB at 1 MB chunks
+    static final int MAX_CHUNKS = 1 << 22;
+    static final int MAX_STREAMS = 64;
+    // Direct memory a striped receiver spends on one transfer's chunk buffers; it keeps fewer chunks in flight per
+    // stream to stay within it, and refuses chunk sizes and stream counts that would not fit one chunk per stream
+    static final long MAX_TRANSFER_BUFFER = 512L * 1024 * 1024;
+
+    private Protocol() {
+    }
+}
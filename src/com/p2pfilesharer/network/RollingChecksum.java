@@ -0,0 +1,42 @@
+package com.p2pfilesharer.network;
+
+// rsync's weak block checksum: a is the byte sum, b the position-weighted sum, both mod 2^16.
+// Sliding the window by one byte updates it in constant time.
+final class RollingChecksum {
+
+    private int a;
+    private int b;
+    private final int blockSize;
+
+    RollingChecksum(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    void reset(byte[] data, int offset) {
+        a = 0;
+        b = 0;
+        for (int i = 0; i < blockSize; i++) {
+            int x = data[offset + i] & 0xFF;
+            a += x;
+            b += (blockSize - i) * x;
+        }
+        a &= 0xFFFF;
+        b &= 0xFFFF;
+    }
+
+    // Drops the byte leaving the window and adds the one entering it
+    void roll(byte out, byte in) {
+        a = (a - (out & 0xFF) + (in & 0xFF)) & 0xFFFF;
+        b = (b - blockSize * (out & 0xFF) + a) & 0xFFFF;
+    }
+
+    int value() {
+        return (b << 16) | a;
+    }
+
+    static int of(byte[] data, int offset, int blockSize) {
+        RollingChecksum checksum = new RollingChecksum(blockSize);
+        checksum.reset(data, offset);
+        return checksum.value();
+    }
+}
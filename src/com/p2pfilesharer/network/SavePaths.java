@@ -0,0 +1,55 @@
+package com.p2pfilesharer.network;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Maps names chosen by the sender to locations inside the receiver's save directory
+final class SavePaths {
+
+    // Targets a transfer is writing right now, across every receiver in the process. Two transfers of one name
+    // would share the part file and resume map, truncate each other's progress, and the last to finish would win.
+    private static final Set<Path> IN_PROGRESS = ConcurrentHashMap.newKeySet();
+
+    private SavePaths() {
+    }
+
+    // Resolves a '/'-separated name inside saveRoot, refusing absolute names and '..' escapes
+    static Path resolve(Path saveRoot, String name, boolean createParent) throws IOException {
+        Path target;
+        try {
+            target = saveRoot.resolve(name).normalize();
+        } catch (InvalidPathException e) {
+            throw new IOException("Invalid file name " + name + ".");
+        }
+        if (!target.startsWith(saveRoot) || target.equals(saveRoot)) {
+            throw new IOException("Refusing to write outside the save directory: " + name);
+        }
+        // The dedup chunk index lives at the top of the save directory
+        if (target.getParent().equals(saveRoot) && target.getFileName().toString().startsWith(ChunkIndex.INDEX_FILE)) {
+            throw new IOException("Refusing to overwrite the chunk index: " + name);
+        }
+        if (createParent) {
+            Files.createDirectories(target.getParent());
+        }
+        return target;
+    }
+
+    // Claims a resolved target until release(); false while another transfer holds it
+    static boolean tryClaim(Path target) {
+        return IN_PROGRESS.add(target);
+    }
+
+    static void claim(Path target, String name) throws IOException {
+        if (!tryClaim(target)) {
+            throw new IOException("Another transfer is already writing " + name + ".");
+        }
+    }
+
+    static void release(Path target) {
+        IN_PROGRESS.remove(target);
+    }
+}
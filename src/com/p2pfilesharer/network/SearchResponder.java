@@ -0,0 +1,116 @@
+package com.p2pfilesharer.network;
+
+import com.p2pfilesharer.metrics.TransferMetrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// Answers one search request from the share index and hangs up. The lookup takes a few milliseconds, so it runs
+// on the I/O engine like the swarm seeder; only writing the matches may have to wait for the socket.
+class SearchResponder extends IoEngine.Connection {
+
+    // The longest request: kind, prefix length and prefix, and the match limit
+    private static final int MAX_REQUEST = 1 + 2 + Protocol.MAX_SEARCH_PREFIX + 4;
+
+    private final ShareIndex index;
+    private final SocketChannel client;
+    private final String peer;
+    private final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST);
+    private ByteBuffer reply;
+
+    SearchResponder(ShareIndex index, SocketChannel client, String peer) {
+        this.index = index;
+        this.client = client;
+        this.peer = peer;
+    }
+
+    @Override
+    protected void onReadable() throws IOException {
+        if (reply == null) {
+            if (client.read(request) < 0) {
+                close();
+                return;
+            }
+            List<ShareIndex.SharedFile> matches = lookup();
+            if (matches == null) {
+                return;
+            }
+            reply = ByteBuffer.wrap(encode(matches));
+        }
+        send();
+    }
+
+    @Override
+    protected void onWritable() throws IOException {
+        send();
+    }
+
+    private void send() throws IOException {
+        TransferMetrics.P2P_BYTES_SENT.add(client.write(reply));
+        if (reply.hasRemaining()) {
+            setInterest(SelectionKey.OP_WRITE);
+        } else {
+            close();
+        }
+    }
+
+    // Returns null while the request is still incomplete
+    private List<ShareIndex.SharedFile> lookup() throws IOException {
+        ByteBuffer received = request.duplicate().flip();
+        if (!received.hasRemaining()) {
+            return null;
+        }
+        int kind = received.get();
+        if (kind == Protocol.SEARCH_NAME) {
+            if (received.remaining() < 2) {
+                return null;
+            }
+            int length = received.getShort() & 0xFFFF;
+            if (length > Protocol.MAX_SEARCH_PREFIX) {
+                throw new IOException("Search prefix is too long.");
+            }
+            if (received.remaining() < length + 4) {
+                return null;
+            }
+            byte[] prefix = new byte[length];
+            received.get(prefix);
+            return index.findByName(new String(prefix, StandardCharsets.UTF_8), received.getInt());
+        }
+        if (kind == Protocol.SEARCH_HASH) {
+            if (received.remaining() < MerkleTree.HASH_LENGTH + 4) {
+                return null;
+            }
+            byte[] hash = new byte[MerkleTree.HASH_LENGTH];
+            received.get(hash);
+            return index.findByHash(hash, received.getInt());
+        }
+        throw new IOException("Unknown search request " + kind + ".");
+    }
+
+    private static byte[] encode(List<ShareIndex.SharedFile> matches) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (ShareIndex.SharedFile match : matches) {
+            out.writeByte(Protocol.SEARCH_MATCH);
+            out.writeUTF(match.path);
+            out.writeLong(match.size);
+            out.writeLong(match.lastModified);
+            out.write(match.hash);
+        }
+        out.writeByte(Protocol.SEARCH_END);
+        return bytes.toByteArray();
+    }
+
+    @Override
+    protected void onClosed(Exception failure) {
+        if (failure != null) {
+            System.err.println("Search from " + peer + " failed: " + failure.getMessage());
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package com.p2pfilesharer.network;
+
+import com.p2pfilesharer.encryption.CryptoUtils;
+import com.p2pfilesharer.metrics.TransferMetrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+// Receives the files of one session connection; frames of different files may arrive interleaved
+class SessionReceiver {
+
+    // Limits how many files a sender may keep open at once on this connection
+    private static final int MAX_OPEN_FILES = 64;
+
+    private static class IncomingFile {
+        final String name;
+        final long size;
+        final long lastModified;
+        final File partFile;
+        final File targetFile;
+        final FileChannel channel;
+        final CRC32C crc = new CRC32C();
+        long received;
+
+        IncomingFile(String name, long size, long lastModified, File targetFile) throws IOException {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.targetFile = targetFile;
+            this.partFile = new File(targetFile.getPath() + ".part");
+            this.channel = FileChannel.open(partFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+    }
+
+    private final Path saveRoot;
+    private final Map<Integer, IncomingFile> open = new HashMap<>();
+    private TransferKey transferKey;
+    private long frameCounter;
+    private long replyCounter = MessageStream.RESPONDER_COUNTER_BASE;
+    private byte[] plainBuffer = new byte[Protocol.SESSION_FRAME_SIZE];
+    private int filesReceived;
+    private int filesFailed;
+
+    SessionReceiver(String saveDir) {
+        this.saveRoot = Paths.get(saveDir).toAbsolutePath().normalize();
+    }
+
+    void receive(SocketChannel channel, DataInputStream header, String password) throws IOException {
+        boolean isEncrypted = header.readBoolean();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 16 * 1024));
+        if (isEncrypted) {
+            transferKey = TransferKey.readHeader(header, password);
+            if (transferKey == null) {
+                out.writeInt(Protocol.HANDSHAKE_REJECTED);
+                out.flush();
+                throw new IOException(password == null || password.isEmpty()
+                        ? "Received an encrypted session but no password was provided."
+                        : "Received an encrypted session but the password does not match.");
+            }
+        }
+        out.writeInt(0);
+        out.flush();
+        System.out.println("Session started (" + (isEncrypted ? "encrypted" : "unencrypted") + ").");
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+        byte[] frame = new byte[Protocol.MAX_SESSION_PAYLOAD];
+        try {
+            while (true) {
+                int type = in.readUnsignedByte();
+                int streamId = in.readInt();
+                int length = in.readInt();
+                if (length < 0 || length > Protocol.MAX_SESSION_PAYLOAD) {
+                    throw new IOException("Invalid session frame length " + length + ".");
+                }
+                in.readFully(frame, 0, length);
+                TransferMetrics.P2P_BYTES_RECEIVED.add(9 + length);
+                long openStart = System.nanoTime();
+                int plainLength = open(type, streamId, frame, length);
+                TransferMetrics.RECEIVE_CRYPTO_TIME.add(System.nanoTime() - openStart);
+                // Only an authenticated end frame ends the session, so it cannot be cut short from outside
+                if (type == Protocol.FRAME_SESSION_END) {
+                    break;
+                }
+
+                switch (type) {
+                    case Protocol.FRAME_FILE_BEGIN:
+                        beginFile(streamId, plainBuffer, plainLength, out);
+                        break;
+                    case Protocol.FRAME_DATA:
+                        writeData(streamId, plainBuffer, plainLength, out);
+                        break;
+                    case Protocol.FRAME_FILE_END:
+                        endFile(streamId, plainBuffer, plainLength, out);
+                        break;
+                    case Protocol.FRAME_DIRECTORY:
+                        createDirectory(plainBuffer, plainLength);
+                        break;
+                    case Protocol.FRAME_FILE_BATCH:
+                        storeBatch(streamId, plainBuffer, plainLength, out);
+                        break;
+                    default:
+                        throw new IOException("Unexpected frame type " + type + " from the sender.");
+                }
+                // Acknowledgements are batched until the sender has nothing more queued for us
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+
+            Iterator<Map.Entry<Integer, IncomingFile>> unfinished = open.entrySet().iterator();
+            while (unfinished.hasNext()) {
+                Map.Entry<Integer, IncomingFile> entry = unfinished.next();
+                unfinished.remove();
+                discard(entry.getValue());
+                ack(out, entry.getKey(), false, "Session ended before the file was complete.");
+            }
+            writeFrame(out, Protocol.FRAME_SESSION_END, 0, new byte[0], 0);
+            out.flush();
+            System.out.println("\nSession finished: " + filesReceived + " files received, " + filesFailed + " failed.");
+        } finally {
+            for (IncomingFile file : open.values()) {
+                discard(file);
+            }
+        }
+    }
+
+    // Decrypts a frame in place into plainBuffer and returns the plaintext length
+    private int open(int type, int streamId, byte[] frame, int length) throws IOException {
+        if (transferKey == null) {
+            if (plainBuffer.length < length) {
+                plainBuffer = new byte[length];
+            }
+            System.arraycopy(frame, 0, plainBuffer, 0, length);
+            return length;
+        }
+        if (plainBuffer.length < length) {
+            plainBuffer = new byte[length];
+        }
+        return transferKey.open(frameCounter++, SessionSender.frameHeader(type, streamId, length), frame, length, plainBuffer);
+    }
+
+    private void beginFile(int streamId, byte[] payload, int length, DataOutputStream out) throws IOException {
+        DataInputStream metadata = new DataInputStream(new ByteArrayInputStream(payload, 0, length));
+        String name = metadata.readUTF();
+        long size = metadata.readLong();
+        long lastModified = metadata.readLong();
+        if (open.size() >= MAX_OPEN_FILES || open.containsKey(streamId)) {
+            throw new IOException("Sender opened too many files or reused stream " + streamId + ".");
+        }
+        try {
+            Path target = SavePaths.resolve(saveRoot, name, true);
+            SavePaths.claim(target, name);
+            try {
+                open.put(streamId, new IncomingFile(name, size, lastModified, target.toFile()));
+            } catch (IOException e) {
+                SavePaths.release(target);
+                throw e;
+            }
+        } catch (IOException e) {
+            filesFailed++;
+            ack(out, streamId, false, e.getMessage());
+        }
+    }
+
+    private void writeData(int streamId, byte[] payload, int length, DataOutputStream out) throws IOException {
+        IncomingFile file = open.get(streamId);
+        if (file == null) {
+            // The file already failed and was acknowledged as such; drop the rest of its data
+            return;
+        }
+        try {
+            if (file.received + length > file.size) {
+                throw new IOException("Sender sent more data than announced.");
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(payload, 0, length);
+            while (buffer.hasRemaining()) {
+                file.channel.write(buffer, file.received + buffer.position());
+            }
+            file.crc.update(payload, 0, length);
+            file.received += length;
+        } catch (IOException e) {
+            open.remove(streamId);
+            discard(file);
+            filesFailed++;
+            ack(out, streamId, false, e.getMessage());
+        }
+    }
+
+    private void endFile(int streamId, byte[] payload, int length, DataOutputStream out) throws IOException {
+        IncomingFile file = open.remove(streamId);
+        if (file == null) {
+            return;
+        }
+        int checksum = length >= 4 ? ByteBuffer.wrap(payload, 0, 4).getInt() : 0;
+        if (file.received != file.size || (int) file.crc.getValue() != checksum) {
+            discard(file);
+            filesFailed++;
+            ack(out, streamId, false, "Size or checksum mismatch.");
+            return;
+        }
+        try {
+            file.channel.close();
+            Files.move(file.partFile.toPath(), file.targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.setLastModifiedTime(file.targetFile.toPath(), FileTime.fromMillis(file.lastModified));
+        } catch (IOException e) {
+            discard(file);
+            filesFailed++;
+            ack(out, streamId, false, e.getMessage());
+            return;
+        }
+        SavePaths.release(file.targetFile.toPath());
+        ChunkIndex.indexLater(saveRoot, file.targetFile.toPath());
+        filesReceived++;
+        ack(out, streamId, true, "");
+    }
+
+    private void createDirectory(byte[] payload, int length) throws IOException {
+        String name = new DataInputStream(new ByteArrayInputStream(payload, 0, length)).readUTF();
+        try {
+            Files.createDirectories(SavePaths.resolve(saveRoot, name, false));
+        } catch (IOException e) {
+            // Files inside it will fail on their own and be reported back to the sender
+            System.err.println("\nCould not create directory " + name + ": " + e.getMessage());
+        }
+    }
+
+    // A batch holds several complete small files: UTF name, long mtime, int length, int CRC32C, content
+    private void storeBatch(int streamId, byte[] payload, int length, DataOutputStream out) throws IOException {
+        ByteArrayInputStream source = new ByteArrayInputStream(payload, 0, length);
+        DataInputStream entries = new DataInputStream(source);
+        int stored = 0;
+        int failed = 0;
+        String firstError = "";
+        while (source.available() > 0) {
+            String name = entries.readUTF();
+            long lastModified = entries.readLong();
+            int size = entries.readInt();
+            int checksum = entries.readInt();
+            int offset = length - source.available();
+            if (size < 0 || size > source.available()) {
+                throw new IOException("Malformed file batch from the sender.");
+            }
+            entries.skipNBytes(size);
+
+            CRC32C crc = new CRC32C();
+            crc.update(payload, offset, size);
+            try {
+                if ((int) crc.getValue() != checksum) {
+                    throw new IOException("Checksum mismatch.");
+                }
+                Path target = SavePaths.resolve(saveRoot, name, true);
+                SavePaths.claim(target, name);
+                try {
+                    Path partFile = Paths.get(target + ".part");
+                    try (FileChannel channel = FileChannel.open(partFile,
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                        ByteBuffer buffer = ByteBuffer.wrap(payload, offset, size);
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                    }
+                    Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING);
+                    Files.setLastModifiedTime(target, FileTime.fromMillis(lastModified));
+                } finally {
+                    SavePaths.release(target);
+                }
+                ChunkIndex.indexLater(saveRoot, target);
+                stored++;
+            } catch (IOException e) {
+                if (failed++ == 0) {
+                    firstError = name + ": " + e.getMessage();
+                }
+            }
+        }
+        filesReceived += stored;
+        filesFailed += failed;
+        ack(out, streamId, stored, failed, failed == 0 ? "" : failed + " files failed, first was " + firstError);
+    }
+
+    private void ack(DataOutputStream out, int streamId, boolean ok, String message) throws IOException {
+        ack(out, streamId, ok ? 1 : 0, ok ? 0 : 1, message);
+    }
+
+    private void ack(DataOutputStream out, int streamId, int stored, int failed, String message) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream payloadOut = new DataOutputStream(payload);
+        payloadOut.writeInt(stored);
+        payloadOut.writeInt(failed);
+        payloadOut.writeUTF(message == null ? "" : message);
+        writeFrame(out, Protocol.FRAME_ACK, streamId, payload.toByteArray(), payload.size());
+    }
+
+    private void writeFrame(DataOutputStream out, int type, int streamId, byte[] payload, int length) throws IOException {
+        byte[] body = payload;
+        int bodyLength = length;
+        if (transferKey != null) {
+            body = transferKey.seal(replyCounter++, SessionSender.frameHeader(type, streamId, length + CryptoUtils.TAG_LENGTH),
+                    payload, length);
+            bodyLength = body.length;
+        }
+        out.writeByte(type);
+        out.writeInt(streamId);
+        out.writeInt(bodyLength);
+        out.write(body, 0, bodyLength);
+    }
+
+    private void discard(IncomingFile file) {
+        try {
+            file.channel.close();
+            Files.deleteIfExists(file.partFile.toPath());
+        } catch (IOException e) {
+            System.err.println("Could not clean up " + file.partFile.getName() + ": " + e.getMessage());
+        } finally {
+            SavePaths.release(file.targetFile.toPath());
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package com.p2pfilesharer.network;
+
+import com.p2pfilesharer.bandwidth.BandwidthShaper;
+import com.p2pfilesharer.encryption.CryptoUtils;
+import com.p2pfilesharer.metrics.TransferMetrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+// Sends many files over one long-lived connection, interleaving the data frames of several open files
+class SessionSender {
+
+    // Files whose data frames are interleaved at the same time
+    private static final int MAX_OPEN_FILES = 4;
+    // Files sent but not yet acknowledged; bounds the bookkeeping for very large batches
+    private static final int MAX_UNACKED_FILES = 1024;
+
+    static class Item {
+        final Path path;
+        final String name;
+        final boolean directory;
+        final long size;
+        final long lastModified;
+
+        Item(Path path, String name, boolean directory, long size, long lastModified) {
+            this.path = path;
+            this.name = name;
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private class OpenFile {
+        final int streamId;
+        final Item item;
+        final FileChannel channel;
+        final long size;
+        final CRC32C crc = new CRC32C();
+        long position;
+
+        OpenFile(int streamId, Item item) throws IOException {
+            this.streamId = streamId;
+            this.item = item;
+            this.channel = FileChannel.open(item.path, StandardOpenOption.READ);
+            this.size = channel.size();
+        }
+
+        // Sends the next data frame and returns false once the whole file has been sent
+        boolean sendNextFrame() throws IOException {
+            if (position >= size) {
+                return false;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(frameBuffer, 0, (int) Math.min(frameBuffer.length, size - position));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException(item.name + " was truncated while it was being sent.");
+                }
+            }
+            int length = buffer.position();
+            crc.update(frameBuffer, 0, length);
+            writeFrame(Protocol.FRAME_DATA, streamId, frameBuffer, length);
+            position += length;
+            bytesSent += length;
+            return true;
+        }
+    }
+
+    private final String host;
+    private final SocketChannel socketChannel;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final TransferKey transferKey;
+    private final byte[] frameBuffer = new byte[Protocol.SESSION_FRAME_SIZE];
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream(Protocol.SESSION_FRAME_SIZE);
+    private final DataOutputStream batchOut = new DataOutputStream(batch);
+    private final CRC32C batchCrc = new CRC32C();
+    private final Semaphore unacked = new Semaphore(MAX_UNACKED_FILES);
+    private final Map<Integer, String> inFlight = new ConcurrentHashMap<>();
+    private int batchFiles;
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicInteger acknowledged = new AtomicInteger();
+    private final Thread ackReader;
+    private volatile IOException ackFailure;
+    private long frameCounter;
+    // Frames from the receiver are sealed from the upper half of the counter space, as in MessageStream
+    private long ackCounter = MessageStream.RESPONDER_COUNTER_BASE;
+    private int nextStreamId = 1;
+    private long bytesSent;
+    private int skipped;
+
+    SessionSender(String host, int port, String password) throws IOException {
+        this.host = host;
+        boolean isEncrypted = (password != null && !password.isEmpty());
+        this.transferKey = isEncrypted ? TransferKey.forSending(host + ":" + port, password) : null;
+
+        socketChannel = PeerTuner.global().connect(host, port);
+        out = new DataOutputStream(new BufferedOutputStream(
+                BandwidthShaper.global().wrap(Channels.newOutputStream(socketChannel), host), 64 * 1024));
+        in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(socketChannel)));
+
+        out.writeByte(Protocol.MODE_SESSION);
+        out.writeBoolean(isEncrypted);
+        if (isEncrypted) {
+            transferKey.writeHeader(out);
+        }
+        out.flush();
+        int status = in.readInt();
+        if (status == Protocol.HANDSHAKE_REJECTED) {
+            socketChannel.close();
+            throw new IOException("Receiver rejected the session: the password is missing or incorrect.");
+        }
+        if (status == Protocol.HANDSHAKE_BUSY) {
+            socketChannel.close();
+            throw new IOException("Receiver is busy with other transfers; try again later.");
+        }
+        System.out.println("Session established with " + host + (isEncrypted ? " (AES-GCM encrypted)." : "."));
+
+        ackReader = new Thread(this::readAcks, "session-acks");
+        ackReader.setDaemon(true);
+        ackReader.start();
+    }
+
+    void sendAll(Iterator<Item> items) throws IOException {
+        List<OpenFile> open = new ArrayList<>();
+        try {
+            while (items.hasNext() || !open.isEmpty()) {
+                while (open.size() < MAX_OPEN_FILES && items.hasNext()) {
+                    Item item = items.next();
+                    if (item.directory) {
+                        sendDirectory(item);
+                    } else if (item.size > Protocol.SMALL_FILE_LIMIT || !addToBatch(item)) {
+                        OpenFile file = begin(item);
+                        if (file != null) {
+                            open.add(file);
+                        }
+                    }
+                }
+                for (Iterator<OpenFile> it = open.iterator(); it.hasNext(); ) {
+                    OpenFile file = it.next();
+                    if (!file.sendNextFrame()) {
+                        end(file);
+                        it.remove();
+                    }
+                }
+                checkAckFailure();
+            }
+            flushBatch();
+        } finally {
+            for (OpenFile file : open) {
+                file.channel.close();
+            }
+        }
+    }
+
+    private OpenFile begin(Item item) throws IOException {
+        OpenFile file;
+        try {
+            file = new OpenFile(nextStreamId, item);
+        } catch (IOException e) {
+            skip(item, e);
+            return null;
+        }
+        try {
+            acquireStream();
+        } catch (IOException e) {
+            file.channel.close();
+            throw e;
+        }
+        nextStreamId++;
+        inFlight.put(file.streamId, item.name);
+
+        ByteArrayOutputStream metadata = new ByteArrayOutputStream();
+        DataOutputStream metadataOut = new DataOutputStream(metadata);
+        metadataOut.writeUTF(item.name);
+        metadataOut.writeLong(file.size);
+        metadataOut.writeLong(item.lastModified);
+        writeFrame(Protocol.FRAME_FILE_BEGIN, file.streamId, metadata.toByteArray(), metadata.size());
+        return file;
+    }
+
+    // A file that vanished or became unreadable after it was listed is reported and left out of the session
+    private void skip(Item item, IOException e) {
+        skipped++;
+        System.err.println("\nSkipping " + item.name + ": " + e.getMessage());
+    }
+
+    private void acquireStream() throws IOException {
+        try {
+            if (!unacked.tryAcquire()) {
+                // The receiver can only acknowledge what it has seen, so push out buffered frames before waiting
+                out.flush();
+                unacked.acquire();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for acknowledgements.", e);
+        }
+    }
+
+    // Directories carry no data and are not acknowledged; sending them lets empty ones be recreated
+    private void sendDirectory(Item item) throws IOException {
+        ByteArrayOutputStream metadata = new ByteArrayOutputStream();
+        new DataOutputStream(metadata).writeUTF(item.name);
+        writeFrame(Protocol.FRAME_DIRECTORY, 0, metadata.toByteArray(), metadata.size());
+    }
+
+    // Packs a small file into the current batch frame; returns false if it has to be sent as a stream after all
+    private boolean addToBatch(Item item) throws IOException {
+        int length;
+        try (FileChannel channel = FileChannel.open(item.path, StandardOpenOption.READ)) {
+            // Reads one byte past the limit to notice a file that grew since it was listed
+            ByteBuffer buffer = ByteBuffer.wrap(frameBuffer, 0, Protocol.SMALL_FILE_LIMIT + 1);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+            length = buffer.position();
+        } catch (IOException e) {
+            skip(item, e);
+            return true;
+        }
+        if (length > Protocol.SMALL_FILE_LIMIT) {
+            return false;
+        }
+        // Worst case for modified UTF-8 is three bytes per char, plus the length prefix
+        int entrySize = 2 + 3 * item.name.length() + 16 + length;
+        if (batch.size() + entrySize > Protocol.SESSION_FRAME_SIZE) {
+            flushBatch();
+        }
+        batchCrc.reset();
+        batchCrc.update(frameBuffer, 0, length);
+        batchOut.writeUTF(item.name);
+        batchOut.writeLong(item.lastModified);
+        batchOut.writeInt(length);
+        batchOut.writeInt((int) batchCrc.getValue());
+        batchOut.write(frameBuffer, 0, length);
+        batchFiles++;
+        bytesSent += length;
+        return true;
+    }
+
+    private void flushBatch() throws IOException {
+        if (batchFiles == 0) {
+            return;
+        }
+        acquireStream();
+        int streamId = nextStreamId++;
+        inFlight.put(streamId, "a batch of " + batchFiles + " small files");
+        writeFrame(Protocol.FRAME_FILE_BATCH, streamId, batch.toByteArray(), batch.size());
+        batch.reset();
+        batchFiles = 0;
+    }
+
+    private void end(OpenFile file) throws IOException {
+        file.channel.close();
+        byte[] checksum = ByteBuffer.allocate(4).putInt((int) file.crc.getValue()).array();
+        writeFrame(Protocol.FRAME_FILE_END, file.streamId, checksum, checksum.length);
+    }
+
+    private void writeFrame(int type, int streamId, byte[] payload, int length) throws IOException {
+        byte[] body = payload;
+        int bodyLength = length;
+        if (transferKey != null) {
+            if (frameCounter >= MessageStream.RESPONDER_COUNTER_BASE) {
+                throw new IOException("Session is too long for one key; start a new session.");
+            }
+            long start = System.nanoTime();
+            body = transferKey.seal(frameCounter++, frameHeader(type, streamId, length + CryptoUtils.TAG_LENGTH),
+                    payload, length);
+            bodyLength = body.length;
+            TransferMetrics.SEND_CRYPTO_TIME.add(System.nanoTime() - start);
+        }
+        out.writeByte(type);
+        out.writeInt(streamId);
+        out.writeInt(bodyLength);
+        out.write(body, 0, bodyLength);
+        TransferMetrics.P2P_BYTES_SENT.add(9 + bodyLength);
+    }
+
+    // The clear-text frame header; sealed frames authenticate it so a frame cannot be moved to another stream
+    static byte[] frameHeader(int type, int streamId, int length) {
+        return ByteBuffer.allocate(9).put((byte) type).putInt(streamId).putInt(length).array();
+    }
+
+    private void readAcks() {
+        byte[] frame = new byte[Protocol.MAX_SESSION_PAYLOAD];
+        byte[] plain = new byte[Protocol.MAX_SESSION_PAYLOAD];
+        try {
+            while (true) {
+                int type = in.readUnsignedByte();
+                int streamId = in.readInt();
+                int length = in.readInt();
+                if (length < 0 || length > Protocol.MAX_SESSION_PAYLOAD) {
+                    throw new IOException("Invalid frame length " + length + " from the receiver.");
+                }
+                in.readFully(frame, 0, length);
+                int plainLength = length;
+                if (transferKey != null) {
+                    plainLength = transferKey.open(ackCounter++, frameHeader(type, streamId, length), frame, length, plain);
+                } else {
+                    System.arraycopy(frame, 0, plain, 0, length);
+                }
+                if (type == Protocol.FRAME_SESSION_END) {
+                    return;
+                }
+                if (type != Protocol.FRAME_ACK || plainLength < 10) {
+                    throw new IOException("Unexpected frame type " + type + " from the receiver.");
+                }
+                DataInputStream ack = new DataInputStream(new ByteArrayInputStream(plain, 0, plainLength));
+                int stored = ack.readInt();
+                int failed = ack.readInt();
+                String message = ack.readUTF();
+                String name = inFlight.remove(streamId);
+                unacked.release();
+                acknowledged.addAndGet(stored + failed);
+                if (failed > 0) {
+                    failures.addAndGet(failed);
+                    System.err.println("\nReceiver failed to store " + name + ": " + message);
+                } else {
+                    System.out.print("\rFiles acknowledged: " + acknowledged.get() + " ");
+                }
+            }
+        } catch (IOException e) {
+            ackFailure = e;
+            // Unblock a sender that is waiting for acknowledgement slots
+            unacked.release(MAX_UNACKED_FILES);
+        }
+    }
+
+    private void checkAckFailure() throws IOException {
+        if (ackFailure != null) {
+            throw new IOException("Session lost: " + ackFailure.getMessage(), ackFailure);
+        }
+    }
+
+    int getFailures() {
+        return failures.get();
+    }
+
+    int getAcknowledged() {
+        return acknowledged.get();
+    }
+
+    int getSkipped() {
+        return skipped;
+    }
+
+    long getBytesSent() {
+        return bytesSent;
+    }
+
+    void abort() {
+        try {
+            socketChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error while aborting the session: " + e.getMessage());
+        }
+    }
+
+    // Ends the session and waits until the receiver has acknowledged every file
+    void close() throws IOException {
+        try {
+            if (socketChannel.isOpen() && ackFailure == null) {
+                writeFrame(Protocol.FRAME_SESSION_END, 0, frameBuffer, 0);
+                out.flush();
+                ackReader.join();
+                checkAckFailure();
+                if (!inFlight.isEmpty()) {
+                    throw new IOException(inFlight.size() + " files were not acknowledged by " + host + ".");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing the session.", e);
+        } finally {
+            socketChannel.close();
+        }
+    }
+}
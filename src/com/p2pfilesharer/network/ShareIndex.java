@@ -0,0 +1,325 @@
+package com.p2pfilesharer.network;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// The files under this node's shared directories, for peers searching the network by name or content. A scan
+// only reads file attributes: content is hashed again only when a file's inode, mtime or size has changed, and the
+// hashes are kept on disk between runs. Lookups binary-search sorted arrays of the last scan and never touch the
+// filesystem, so they take milliseconds however many files are shared.
+public class ShareIndex {
+
+    // Most results one lookup returns, locally or to a peer
+    public static final int MAX_RESULTS = 1000;
+
+    private static final int MAGIC = 0x50325349;
+    private static final long MIN_RESCAN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    // Rescans of large shares are spaced out so that stat calls take at most a tenth of the disk's time
+    private static final int RESCAN_SPACING = 10;
+    private static final Comparator<SharedFile> BY_NAME =
+            Comparator.comparing((SharedFile file) -> file.lowerName).thenComparing(file -> file.path);
+    private static final Comparator<SharedFile> BY_HASH = (a, b) -> Arrays.compare(a.hash, b.hash);
+
+    private static ShareIndex global;
+
+    private final Path cacheFile;
+    private final List<Path> roots = new CopyOnWriteArrayList<>();
+    // Content hashes by identity (inode, size, mtime), so a renamed or moved file is not hashed again either
+    private Map<String, byte[]> hashes = new HashMap<>();
+    private volatile Snapshot snapshot = new Snapshot(new SharedFile[0]);
+    private ScheduledExecutorService scanner;
+
+    // One shared file as it appears in search results: the path starts with the name of the shared directory,
+    // and the hash is the Merkle root of its chunks, the same id a swarm download asks for
+    public static class SharedFile {
+        public final String path;
+        public final long size;
+        public final long lastModified;
+        final byte[] hash;
+        final String lowerName;
+
+        SharedFile(String path, long size, long lastModified, byte[] hash) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.lowerName = name(path).toLowerCase(Locale.ROOT);
+        }
+
+        public String getName() {
+            return name(path);
+        }
+
+        public String getHash() {
+            return HexFormat.of().formatHex(hash);
+        }
+
+        private static String name(String path) {
+            return path.substring(path.lastIndexOf('/') + 1);
+        }
+    }
+
+    // The same files sorted twice, once for prefix lookups and once for hash lookups
+    private static class Snapshot {
+        final SharedFile[] byName;
+        final SharedFile[] byHash;
+
+        Snapshot(SharedFile[] files) {
+            byName = files.clone();
+            Arrays.sort(byName, BY_NAME);
+            byHash = files.clone();
+            Arrays.sort(byHash, BY_HASH);
+        }
+    }
+
+    // Hashes are cached in the given file; most code uses the process-wide index instead
+    public ShareIndex(Path cacheFile) {
+        this.cacheFile = cacheFile;
+        load();
+    }
+
+    public static synchronized ShareIndex global() {
+        if (global == null) {
+            global = new ShareIndex(Path.of(System.getProperty("user.home"), ".p2pfilesharer", "share-index"));
+        }
+        return global;
+    }
+
+    // Adds a directory and scans it in the background; afterwards every shared directory is rescanned regularly
+    public synchronized void share(Path directory) throws IOException {
+        Path root = directory.toAbsolutePath().normalize();
+        if (!Files.isDirectory(root)) {
+            throw new IOException(directory + " is not a directory.");
+        }
+        if (!roots.contains(root)) {
+            roots.add(root);
+        }
+        if (scanner == null) {
+            scanner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "share-index");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scanner.execute(this::scanAndReschedule);
+        } else {
+            scanner.execute(this::scan);
+        }
+    }
+
+    public List<Path> getDirectories() {
+        return List.copyOf(roots);
+    }
+
+    public int size() {
+        return snapshot.byName.length;
+    }
+
+    // Files whose name starts with the prefix, ignoring case; an empty prefix lists everything up to the limit
+    public List<SharedFile> findByName(String prefix, int limit) {
+        SharedFile[] files = snapshot.byName;
+        String lower = prefix.toLowerCase(Locale.ROOT);
+        int low = 0;
+        int high = files.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (files[middle].lowerName.compareTo(lower) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        List<SharedFile> found = new ArrayList<>();
+        for (int i = low; i < files.length && found.size() < Math.min(limit, MAX_RESULTS); i++) {
+            if (!files[i].lowerName.startsWith(lower)) {
+                break;
+            }
+            found.add(files[i]);
+        }
+        return found;
+    }
+
+    // Every shared copy of the content
+    public List<SharedFile> findByHash(byte[] hash, int limit) {
+        SharedFile[] files = snapshot.byHash;
+        int low = 0;
+        int high = files.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (Arrays.compare(files[middle].hash, hash) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        List<SharedFile> found = new ArrayList<>();
+        for (int i = low; i < files.length && found.size() < Math.min(limit, MAX_RESULTS); i++) {
+            if (!Arrays.equals(files[i].hash, hash)) {
+                break;
+            }
+            found.add(files[i]);
+        }
+        return found;
+    }
+
+    private void scanAndReschedule() {
+        long took = scan();
+        scanner.schedule(this::scanAndReschedule, Math.max(MIN_RESCAN_MILLIS, RESCAN_SPACING * took), TimeUnit.MILLISECONDS);
+    }
+
+    // Runs on the scanner thread only; returns how long the scan took in milliseconds
+    private long scan() {
+        long start = System.nanoTime();
+        Map<String, byte[]> known = hashes;
+        Map<String, byte[]> current = new HashMap<>();
+        List<SharedFile> files = new ArrayList<>();
+        int hashed = 0;
+        for (Path root : roots) {
+            try {
+                hashed += walk(root, known, current, files);
+            } catch (IOException e) {
+                System.err.println("Could not index " + root + ": " + e.getMessage());
+            }
+        }
+        hashes = current;
+        snapshot = new Snapshot(files.toArray(new SharedFile[0]));
+        long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (hashed > 0 || current.size() != known.size()) {
+            save(current);
+            System.out.println("Share index: " + files.size() + " files, " + hashed + " hashed, in " + took + " ms.");
+        }
+        return took;
+    }
+
+    private int walk(Path root, Map<String, byte[]> known, Map<String, byte[]> current, List<SharedFile> files)
+            throws IOException {
+        String prefix = root.getFileName() == null ? "" : root.getFileName() + "/";
+        int[] hashed = {0};
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                String name = file.getFileName().toString();
+                // Transfers in progress and the dedup index are not content anyone should find
+                if (!attributes.isRegularFile() || name.endsWith(".part") || name.endsWith(".part.map")
+                        || name.startsWith(ChunkIndex.INDEX_FILE)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                long lastModified = attributes.lastModifiedTime().toMillis();
+                Object key = attributes.fileKey();
+                String identity = (key != null ? key.toString() : file.toString()) + "/" + attributes.size() + "/" + lastModified;
+                byte[] hash = known.get(identity);
+                if (hash == null) {
+                    try {
+                        hash = hash(file);
+                        hashed[0]++;
+                    } catch (IOException e) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                }
+                current.put(identity, hash);
+                String path = prefix + root.relativize(file).toString().replace('\\', '/');
+                files.add(new SharedFile(path, attributes.size(), lastModified, hash));
+                return FileVisitResult.CONTINUE;
+            }
+
+            // Unreadable entries are left out instead of ending the scan
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return hashed[0];
+    }
+
+    // The Merkle root over the default chunk size, read one chunk at a time
+    private static byte[] hash(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int chunkSize = Protocol.DEFAULT_CHUNK_SIZE;
+            MerkleTree tree = new MerkleTree(ChunkBitmap.chunkCount(size, chunkSize));
+            ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(chunkSize, Math.max(size, 1)));
+            for (int index = 0; index < tree.getLeafCount(); index++) {
+                long offset = (long) index * chunkSize;
+                chunk.clear().limit((int) Math.min(chunkSize, size - offset));
+                while (chunk.hasRemaining()) {
+                    if (channel.read(chunk, offset + chunk.position()) < 0) {
+                        throw new EOFException(file + " was truncated while it was being hashed.");
+                    }
+                }
+                chunk.flip();
+                tree.setLeaf(index, MerkleTree.hashChunk(chunk));
+            }
+            return tree.root();
+        } catch (NoSuchFileException e) {
+            throw new IOException(file + " was deleted while it was being indexed.", e);
+        }
+    }
+
+    private void load() {
+        if (!Files.isRegularFile(cacheFile)) {
+            return;
+        }
+        Map<String, byte[]> loaded = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a share index");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String identity = in.readUTF();
+                byte[] hash = new byte[MerkleTree.HASH_LENGTH];
+                in.readFully(hash);
+                loaded.put(identity, hash);
+            }
+        } catch (IOException e) {
+            // Only costs hashing the files again
+            System.err.println("Share index cache " + cacheFile + " is damaged (" + e.getMessage() + "); rebuilding it.");
+            loaded.clear();
+        }
+        hashes = loaded;
+    }
+
+    // Written aside and renamed, so a crash never leaves half a cache behind
+    private void save(Map<String, byte[]> current) {
+        try {
+            Files.createDirectories(cacheFile.getParent());
+            Path temp = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(current.size());
+                for (Map.Entry<String, byte[]> entry : current.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.write(entry.getValue());
+                }
+            }
+            Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Could not save the share index cache: " + e.getMessage());
+        }
+    }
+}
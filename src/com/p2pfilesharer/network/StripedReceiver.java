@@ -0,0 +1,425 @@
+package com.p2pfilesharer.network;
+
+import com.p2pfilesharer.compression.CompressionUtils;
+import com.p2pfilesharer.encryption.CryptoUtils;
+import com.p2pfilesharer.metrics.ChunkEvent;
+import com.p2pfilesharer.metrics.TransferMetrics;
+
+import javax.crypto.AEADBadTagException;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+class StripedReceiver {
+
+    // Chunks verified between two flushes of the sidecar bitmap
+    private static final int CHECKPOINT_INTERVAL = 64;
+    // Chunks a single stripe may have queued on the worker pool while it keeps reading the socket
+    private static final int STRIPE_WINDOW = 4;
+
+    static class Transfer {
+        final long transferId;
+        final String fileName;
+        final long fileSize;
+        final int chunkSize;
+        final int streams;
+        // Chunks each stripe may have in flight, fitted to MAX_TRANSFER_BUFFER
+        final int window;
+        final TransferKey transferKey;
+        final boolean compressed;
+        final File targetFile;
+        final File partFile;
+        final File sidecarFile;
+        final ChunkBitmap bitmap;
+        final FileChannel fileChannel;
+        final AtomicLong totalReceived;
+        final AtomicInteger sinceCheckpoint = new AtomicInteger();
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        final CountDownLatch stripesDone;
+        // Connections of the stripes other than stripe 0 while they are being read
+        final Set<SocketChannel> stripeChannels = ConcurrentHashMap.newKeySet();
+
+        Transfer(long transferId, String fileName, long fileSize, int chunkSize, int streams, int window,
+                 TransferKey transferKey, boolean compressed, File targetFile, File partFile, File sidecarFile, ChunkBitmap bitmap,
+                 FileChannel fileChannel) {
+            this.transferId = transferId;
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.chunkSize = chunkSize;
+            this.streams = streams;
+            this.window = window;
+            this.transferKey = transferKey;
+            this.compressed = compressed;
+            this.targetFile = targetFile;
+            this.partFile = partFile;
+            this.sidecarFile = sidecarFile;
+            this.bitmap = bitmap;
+            this.fileChannel = fileChannel;
+            this.totalReceived = new AtomicLong(bitmap.receivedBytes());
+            this.stripesDone = new CountDownLatch(streams - 1);
+        }
+
+        // Ends the other stripes, so their threads stop reading and count down
+        void closeStripes() {
+            for (SocketChannel channel : stripeChannels) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Already closed
+                }
+            }
+        }
+    }
+
+    private static class Slot {
+        final ByteBuffer wire;
+        final ByteBuffer opened;
+        final ByteBuffer plain;
+
+        Slot(int chunkSize, boolean encrypted, boolean compressed) {
+            this.wire = ByteBuffer.allocateDirect(chunkSize + (encrypted ? CryptoUtils.TAG_LENGTH : 0));
+            this.opened = encrypted ? ByteBuffer.allocateDirect(chunkSize) : wire;
+            this.plain = compressed ? ByteBuffer.allocateDirect(chunkSize) : opened;
+        }
+    }
+
+    private final Path saveRoot;
+    private final boolean showProgress;
+
+    StripedReceiver(String saveDir, boolean showProgress) {
+        this.saveRoot = Path.of(saveDir).toAbsolutePath().normalize();
+        this.showProgress = showProgress;
+    }
+
+    // Chunks per stripe whose buffers fit MAX_TRANSFER_BUFFER, at most STRIPE_WINDOW; 0 when not even one does
+    static int window(int chunkSize, int streams, boolean encrypted, boolean compressed) {
+        long slotBytes = (long) (chunkSize + (encrypted ? CryptoUtils.TAG_LENGTH : 0))
+                * (1 + (encrypted ? 1 : 0) + (compressed ? 1 : 0));
+        return (int) Math.min(STRIPE_WINDOW, Protocol.MAX_TRANSFER_BUFFER / (slotBytes * streams));
+    }
+
+    // Reads the rest of a stripe 0 header, checks the password, opens the partial file (picking up an earlier
+    // attempt if one matches) and answers the resume handshake with the chunks already present
+    Transfer accept(long transferId, SocketChannel controlChannel, DataInputStream dis, String password) throws Exception {
+        String fileName = dis.readUTF();
+        long fileSize = dis.readLong();
+        long lastModified = dis.readLong();
+        int chunkSize = dis.readInt();
+        int streams = dis.readInt();
+        int offeredCodecs = dis.readUnsignedByte();
+        boolean isEncrypted = dis.readBoolean();
+        if (fileSize < 0 || chunkSize <= 0 || chunkSize > Protocol.MAX_CHUNK_SIZE
+                || streams < 1 || streams > Protocol.MAX_STREAMS) {
+            throw new IOException("Invalid striped transfer header.");
+        }
+        // Checked before anything is allocated or created for the transfer
+        ChunkBitmap.chunkCount(fileSize, chunkSize);
+        // Deflate is the only codec this receiver knows, so it is taken whenever the sender offers it
+        boolean compressed = (offeredCodecs & (1 << CompressionUtils.CODEC_DEFLATE)) != 0;
+        int window = window(chunkSize, streams, isEncrypted, compressed);
+        if (window == 0) {
+            throw new IOException(streams + " streams of " + (chunkSize / 1024) + " KB chunks need more buffer memory than "
+                    + (Protocol.MAX_TRANSFER_BUFFER / 1024 / 1024) + " MB.");
+        }
+
+        TransferKey transferKey = null;
+        if (isEncrypted) {
+            transferKey = TransferKey.readHeader(dis, password);
+            if (transferKey == null) {
+                reject(controlChannel);
+                throw new IOException(password == null || password.isEmpty()
+                        ? "Received an encrypted file but no password was provided."
+                        : "Received an encrypted file but the password does not match.");
+            }
+        }
+
+        Path target = SavePaths.resolve(saveRoot, fileName, true);
+        if (!SavePaths.tryClaim(target)) {
+            writeFully(controlChannel, ByteBuffer.allocate(4).putInt(Protocol.HANDSHAKE_BUSY).flip());
+            throw new IOException("Another transfer is already writing " + fileName + ".");
+        }
+        try {
+            File targetFile = target.toFile();
+            File partFile = target.resolveSibling(target.getFileName() + ".part").toFile();
+            File sidecarFile = target.resolveSibling(target.getFileName() + ".part.map").toFile();
+
+            ChunkBitmap bitmap = partFile.isFile() ? ChunkBitmap.load(sidecarFile, fileSize, chunkSize, lastModified) : null;
+            if (bitmap == null) {
+                bitmap = new ChunkBitmap(fileSize, chunkSize, lastModified);
+                try (RandomAccessFile raf = new RandomAccessFile(partFile, "rw")) {
+                    raf.setLength(0);
+                    raf.setLength(fileSize);
+                }
+                System.out.println("Receiving " + (isEncrypted ? "encrypted" : "unencrypted") + " file: " + fileName + " ("
+                        + (fileSize / 1024 / 1024) + " MB) over " + streams + " parallel streams");
+            } else {
+                System.out.println("Resuming " + (isEncrypted ? "encrypted" : "unencrypted") + " file: " + fileName + " ("
+                        + (bitmap.receivedBytes() / 1024 / 1024) + " of " + (fileSize / 1024 / 1024) + " MB already received) over "
+                        + streams + " parallel streams");
+            }
+            FileChannel fileChannel = FileChannel.open(partFile.toPath(), StandardOpenOption.WRITE);
+            Transfer transfer = new Transfer(transferId, fileName, fileSize, chunkSize, streams, window, transferKey,
+                    compressed, targetFile, partFile, sidecarFile, bitmap, fileChannel);
+
+            byte[] present = bitmap.toByteArray();
+            ByteBuffer handshake = ByteBuffer.allocate(5 + present.length).putInt(present.length).put(present)
+                    .put((byte) (compressed ? CompressionUtils.CODEC_DEFLATE : CompressionUtils.CODEC_NONE)).flip();
+            writeFully(controlChannel, handshake);
+            return transfer;
+        } catch (Exception e) {
+            SavePaths.release(target);
+            throw e;
+        }
+    }
+
+    // Reads frames off one connection and hands verification, decryption and the positional write to the workers
+    void receiveStripe(SocketChannel channel, Transfer transfer) throws IOException {
+        int tagLength = transfer.transferKey != null ? CryptoUtils.TAG_LENGTH : 0;
+        BlockingQueue<Slot> freeSlots = new ArrayBlockingQueue<>(transfer.window);
+        for (int i = 0; i < transfer.window; i++) {
+            freeSlots.add(new Slot(transfer.chunkSize, transfer.transferKey != null, transfer.compressed));
+        }
+        ByteBuffer frameHeader = ByteBuffer.allocate(Protocol.CHUNK_FRAME_HEADER);
+        try {
+            while (true) {
+                frameHeader.clear();
+                readFully(channel, frameHeader);
+                frameHeader.flip();
+                long offset = frameHeader.getLong();
+                int length = frameHeader.getInt();
+                int storedLength = frameHeader.getInt();
+                byte[] hash = new byte[MerkleTree.HASH_LENGTH];
+                frameHeader.get(hash);
+                if (offset == Protocol.END_OF_STRIPE) {
+                    break;
+                }
+                if (offset < 0 || offset % transfer.chunkSize != 0 || length < 0 || length > transfer.chunkSize
+                        || offset + length > transfer.fileSize || storedLength < 0 || storedLength > length
+                        || (storedLength < length && !transfer.compressed)) {
+                    throw new IOException("Invalid chunk frame at offset " + offset + ".");
+                }
+
+                Slot slot = freeSlots.take();
+                slot.wire.clear().limit(storedLength + tagLength);
+                long readStart = System.nanoTime();
+                try {
+                    readFully(channel, slot.wire);
+                } catch (IOException e) {
+                    freeSlots.add(slot);
+                    throw e;
+                }
+                TransferMetrics.RECEIVE_SOCKET_TIME.add(System.nanoTime() - readStart);
+                TransferMetrics.P2P_BYTES_RECEIVED.add(Protocol.CHUNK_FRAME_HEADER + storedLength + tagLength);
+                slot.wire.flip();
+                ChunkWorkers.pool().execute(() -> {
+                    try {
+                        storeChunk(transfer, slot, offset, length, storedLength, hash);
+                    } catch (IOException e) {
+                        transfer.failure.compareAndSet(null, e);
+                    } finally {
+                        freeSlots.add(slot);
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while receiving chunks.", e);
+        } finally {
+            // Every slot back in the queue means every chunk of this stripe has been processed
+            for (int i = 0; i < transfer.window; i++) {
+                try {
+                    freeSlots.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        IOException failure = transfer.failure.get();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void storeChunk(Transfer transfer, Slot slot, long offset, int length, int storedLength, byte[] hash)
+            throws IOException {
+        ChunkEvent event = new ChunkEvent();
+        event.begin();
+        long start = System.nanoTime();
+        int index = (int) (offset / transfer.chunkSize);
+        ByteBuffer plain = slot.wire;
+        if (transfer.transferKey != null) {
+            plain = slot.opened;
+            plain.clear();
+            try {
+                CryptoUtils.openChunk(transfer.transferKey.key, transfer.transferKey.noncePrefix, index, slot.wire, plain);
+            } catch (AEADBadTagException e) {
+                System.err.println("\nAuthentication failed for chunk at offset " + offset + ", it will be requested again.");
+                return;
+            } catch (Exception e) {
+                throw new IOException("Could not decrypt chunk at offset " + offset + ": " + e.getMessage(), e);
+            }
+            plain.flip();
+        }
+        long opened = System.nanoTime();
+        long cryptoNanos = opened - start;
+        if (storedLength < length) {
+            ByteBuffer compressed = plain;
+            plain = slot.plain;
+            plain.clear().limit(length);
+            try {
+                CompressionUtils.inflate(compressed, plain);
+            } catch (IOException e) {
+                System.err.println("\n" + e.getMessage() + " (chunk at offset " + offset + "), it will be requested again.");
+                return;
+            }
+        }
+        long inflated = System.nanoTime();
+        TransferMetrics.RECEIVE_COMPRESSION_TIME.add(inflated - opened);
+        if (plain.remaining() != length) {
+            System.err.println("\nLength mismatch for chunk at offset " + offset + ", it will be requested again.");
+            return;
+        }
+
+        if (!MessageDigest.isEqual(MerkleTree.hashChunk(plain), hash)) {
+            System.err.println("\nHash mismatch for chunk at offset " + offset + ", it will be requested again.");
+            return;
+        }
+
+        long verified = System.nanoTime();
+        // Hashing counts as crypto time, next to opening
+        cryptoNanos += verified - inflated;
+        TransferMetrics.RECEIVE_CRYPTO_TIME.add(cryptoNanos);
+        long position = offset;
+        while (plain.hasRemaining()) {
+            position += transfer.fileChannel.write(plain, position);
+        }
+        transfer.bitmap.mark(index, hash);
+        if (transfer.sinceCheckpoint.incrementAndGet() % CHECKPOINT_INTERVAL == 0) {
+            checkpoint(transfer);
+        }
+        long written = System.nanoTime();
+        TransferMetrics.RECEIVE_DISK_TIME.add(written - verified);
+        TransferMetrics.RECEIVE_CHUNK_LATENCY.observeNanos(written - start);
+        if (event.shouldCommit()) {
+            event.direction = TransferMetrics.RECEIVE;
+            event.offset = offset;
+            event.length = length;
+            event.storedLength = storedLength;
+            event.diskNanos = written - verified;
+            event.compressionNanos = inflated - opened;
+            event.cryptoNanos = cryptoNanos;
+            event.commit();
+        }
+        printProgress(transfer.totalReceived.addAndGet(length), transfer.fileSize);
+    }
+
+    // Reads the sender's Merkle root once every stripe has ended, has chunks that failed verification sent again
+    // on stripe 0, and compares the roots. On a mismatch the leaves show which stored chunks differ.
+    boolean verify(SocketChannel controlChannel, DataInputStream dis, Transfer transfer) throws IOException {
+        byte[] senderRoot = new byte[MerkleTree.HASH_LENGTH];
+        dis.readFully(senderRoot);
+        for (int round = 0; round <= Protocol.MAX_REPAIR_ROUNDS; round++) {
+            int[] missing = transfer.bitmap.missing();
+            if (missing.length == 0) {
+                if (MessageDigest.isEqual(senderRoot, transfer.bitmap.root())) {
+                    writeFully(controlChannel, ByteBuffer.allocate(4).putInt(Protocol.REPAIR_DONE).flip());
+                    return true;
+                }
+                writeFully(controlChannel, ByteBuffer.allocate(4).putInt(Protocol.REPAIR_LEAVES).flip());
+                byte[] senderLeaves = new byte[transfer.bitmap.getChunkCount() * MerkleTree.HASH_LENGTH];
+                dis.readFully(senderLeaves);
+                long before = transfer.bitmap.receivedBytes();
+                int differing = transfer.bitmap.unmarkDiffering(senderLeaves);
+                transfer.totalReceived.addAndGet(transfer.bitmap.receivedBytes() - before);
+                System.err.println("\nMerkle root mismatch: " + differing + " stored chunks differ from the sender's copy.");
+                if (differing == 0) {
+                    break;
+                }
+                continue;
+            }
+            if (round == Protocol.MAX_REPAIR_ROUNDS) {
+                break;
+            }
+            System.err.println("\nRequesting " + missing.length + " chunks again.");
+            ByteBuffer request = ByteBuffer.allocate(4 + 4 * missing.length).putInt(missing.length);
+            for (int index : missing) {
+                request.putInt(index);
+            }
+            writeFully(controlChannel, request.flip());
+            receiveStripe(controlChannel, transfer);
+        }
+        writeFully(controlChannel, ByteBuffer.allocate(4).putInt(Protocol.REPAIR_DONE).flip());
+        return false;
+    }
+
+    // Data is forced to disk before the bitmap, so a persisted bit never points at unwritten bytes
+    private void checkpoint(Transfer transfer) throws IOException {
+        transfer.fileChannel.force(false);
+        transfer.bitmap.save(transfer.sidecarFile);
+    }
+
+    // Promotes a complete and verified partial file to its final name, or persists the bitmap for a later resume.
+    // Either way the target is released for the next transfer of the same name.
+    boolean finish(Transfer transfer, boolean verified) throws IOException {
+        try {
+            try {
+                if (!verified || !transfer.bitmap.isComplete()) {
+                    checkpoint(transfer);
+                    return false;
+                }
+                transfer.fileChannel.force(false);
+            } finally {
+                transfer.fileChannel.close();
+            }
+            Files.move(transfer.partFile.toPath(), transfer.targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(transfer.sidecarFile.toPath());
+        } finally {
+            SavePaths.release(transfer.targetFile.toPath());
+        }
+        ChunkIndex.indexLater(saveRoot, transfer.targetFile.toPath());
+        return true;
+    }
+
+    private static void reject(SocketChannel controlChannel) throws IOException {
+        writeFully(controlChannel, ByteBuffer.allocate(4).putInt(Protocol.HANDSHAKE_REJECTED).flip());
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Stripe closed before the transfer completed.");
+            }
+        }
+    }
+
+    private void printProgress(long totalReceived, long fileSize) {
+        if (fileSize == 0 || !showProgress) return;
+        int progress = (int) ((totalReceived * 100) / fileSize);
+        System.out.print("\rProgress: " + progress + "% ");
+    }
+}
@@ -0,0 +1,276 @@
+package com.p2pfilesharer.network;
+
+import com.p2pfilesharer.bandwidth.BandwidthShaper;
+import com.p2pfilesharer.compression.CompressionUtils;
+import com.p2pfilesharer.encryption.CryptoUtils;
+import com.p2pfilesharer.metrics.TransferMetrics;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+class StripedSender {
+
+    private final String host;
+    private final int port;
+    private final int streams;
+    private final int chunkSize;
+    private final boolean compress;
+    private final BandwidthShaper.Peer shaper;
+    // What the stripes carried and how long they took, for the peer's tuning profile
+    private long bytesSent;
+    private long sendNanos;
+
+    StripedSender(String host, int port, int streams, int chunkSize, boolean compress) {
+        this.host = host;
+        this.port = port;
+        this.streams = streams;
+        this.chunkSize = chunkSize;
+        this.compress = compress;
+        this.shaper = BandwidthShaper.global().peer(host);
+    }
+
+    void send(File file, String password) throws Exception {
+        long transferId = new SecureRandom().nextLong();
+        boolean isEncrypted = (password != null && !password.isEmpty());
+        List<SocketChannel> channels = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(streams);
+
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            int chunkCount = ChunkBitmap.chunkCount(fileSize, chunkSize);
+            if (chunkCount >= CryptoUtils.KEY_CHECK_COUNTER) {
+                throw new IOException("File has too many chunks; use a larger chunk size.");
+            }
+
+            TransferKey transferKey = isEncrypted ? TransferKey.forSending(host + ":" + port, password) : null;
+
+            // Stripe 0 carries the file header, the resume handshake and the final acknowledgement
+            SocketChannel control = openChannel();
+            channels.add(control);
+            DataOutputStream header = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(control)));
+            header.writeByte(Protocol.MODE_STRIPED);
+            header.writeLong(transferId);
+            header.writeInt(0);
+            header.writeUTF(file.getName());
+            header.writeLong(fileSize);
+            header.writeLong(file.lastModified());
+            header.writeInt(chunkSize);
+            header.writeInt(streams);
+            // Codecs this sender can use, as a bit mask; the receiver picks one in the handshake
+            header.writeByte(compress ? 1 << CompressionUtils.CODEC_DEFLATE : 0);
+            header.writeBoolean(isEncrypted);
+            if (isEncrypted) {
+                transferKey.writeHeader(header);
+            }
+            header.flush();
+            System.out.println("Connection established with " + host + " (" + streams + " parallel streams).");
+            System.out.println(isEncrypted ? "Sending file with AES-GCM encryption." : "Sending file without encryption.");
+
+            DataInputStream controlIn = new DataInputStream(Channels.newInputStream(control));
+            int bitmapLength = controlIn.readInt();
+            if (bitmapLength == Protocol.HANDSHAKE_REJECTED) {
+                throw new IOException("Receiver rejected the transfer: the password is missing or incorrect.");
+            }
+            if (bitmapLength == Protocol.HANDSHAKE_BUSY) {
+                throw new IOException("Receiver is busy with other transfers; try again later.");
+            }
+            byte[] bits = new byte[bitmapLength];
+            controlIn.readFully(bits);
+            int codec = controlIn.readUnsignedByte();
+            if (codec != CompressionUtils.CODEC_NONE && (!compress || codec != CompressionUtils.CODEC_DEFLATE)) {
+                throw new IOException("Receiver chose a compression codec that was not offered.");
+            }
+            BitSet present = BitSet.valueOf(bits);
+            int[] missing = new int[chunkCount - present.cardinality()];
+            long missingBytes = 0;
+            for (int index = present.nextClearBit(0), i = 0; index < chunkCount; index = present.nextClearBit(index + 1)) {
+                missing[i++] = index;
+                missingBytes += Math.min(chunkSize, fileSize - (long) index * chunkSize);
+            }
+            MerkleTree tree = new MerkleTree(chunkCount);
+            List<Future<?>> resumedHashes = new ArrayList<>();
+            if (missing.length < chunkCount) {
+                System.out.println("Resuming transfer: " + (chunkCount - missing.length) + " of " + chunkCount + " chunks already on the receiver.");
+                // Chunks the receiver already has are not sent but still need their leaf for the root
+                for (int index = present.nextSetBit(0); index >= 0 && index < chunkCount; index = present.nextSetBit(index + 1)) {
+                    int chunk = index;
+                    resumedHashes.add(ChunkWorkers.pool().submit(() -> {
+                        hashChunk(fileChannel, fileSize, chunk, tree);
+                        return null;
+                    }));
+                }
+            }
+
+            for (int i = 1; i < streams; i++) {
+                SocketChannel stripe = openChannel();
+                channels.add(stripe);
+                ByteBuffer stripeHeader = ByteBuffer.allocate(13);
+                stripeHeader.put((byte) Protocol.MODE_STRIPED).putLong(transferId).putInt(i).flip();
+                writeFully(stripe, stripeHeader);
+            }
+
+            System.out.println("Sending file: " + file.getName() + " (" + (fileSize / 1024 / 1024) + " MB)");
+
+            // Workers prepare chunks ahead of the sockets; each stripe takes the next ready chunk, so a slow
+            // connection simply takes fewer of them
+            ChunkPipeline pipeline = new ChunkPipeline(fileChannel, fileSize, chunkSize, missing, transferKey,
+                    codec == CompressionUtils.CODEC_DEFLATE, tree, Math.max(2 * ChunkWorkers.THREADS, streams + 1));
+            AtomicLong totalSent = new AtomicLong(fileSize - missingBytes);
+            long start = System.nanoTime();
+            List<Future<?>> results = new ArrayList<>();
+            for (SocketChannel channel : channels) {
+                results.add(pool.submit(() -> {
+                    sendChunks(channel, pipeline, fileSize, totalSent);
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+            sendNanos = System.nanoTime() - start;
+            bytesSent = missingBytes;
+            for (Future<?> hash : resumedHashes) {
+                hash.get();
+            }
+
+            writeFully(control, ByteBuffer.wrap(tree.root()));
+            repair(control, controlIn, fileChannel, fileSize, chunkCount, codec, transferKey, tree, totalSent);
+            if (!controlIn.readBoolean()) {
+                throw new IOException("Receiver reported an incomplete transfer. Send the file again to resume.");
+            }
+            System.out.println("\nFile transfer complete.");
+            if (codec == CompressionUtils.CODEC_DEFLATE && missingBytes > 0) {
+                System.out.println("Compressed " + (missingBytes / 1024 / 1024) + " MB to "
+                        + (pipeline.getStoredBytes() / 1024 / 1024) + " MB on the wire.");
+            }
+        } finally {
+            pool.shutdownNow();
+            for (SocketChannel channel : channels) {
+                channel.close();
+            }
+        }
+    }
+
+    // Answers the receiver's requests after the stripes: chunks that failed verification are sent again on
+    // stripe 0, and the leaf hashes go out when the receiver's root does not match
+    private void repair(SocketChannel control, DataInputStream controlIn, FileChannel fileChannel, long fileSize,
+                        int chunkCount, int codec, TransferKey transferKey, MerkleTree tree, AtomicLong totalSent)
+            throws IOException {
+        while (true) {
+            int request = controlIn.readInt();
+            if (request == Protocol.REPAIR_DONE) {
+                return;
+            }
+            if (request == Protocol.REPAIR_LEAVES) {
+                writeFully(control, ByteBuffer.wrap(tree.leafBytes()));
+                continue;
+            }
+            if (request < 0 || request > chunkCount) {
+                throw new IOException("Invalid repair request from the receiver.");
+            }
+            int[] chunks = new int[request];
+            for (int i = 0; i < request; i++) {
+                chunks[i] = controlIn.readInt();
+                if (chunks[i] < 0 || chunks[i] >= chunkCount) {
+                    throw new IOException("Invalid repair request from the receiver.");
+                }
+                totalSent.addAndGet(-Math.min(chunkSize, fileSize - (long) chunks[i] * chunkSize));
+            }
+            System.out.println("\nReceiver asked for " + request + " chunks again.");
+            ChunkPipeline pipeline = new ChunkPipeline(fileChannel, fileSize, chunkSize, chunks, transferKey,
+                    codec == CompressionUtils.CODEC_DEFLATE, tree, 2 * ChunkWorkers.THREADS);
+            sendChunks(control, pipeline, fileSize, totalSent);
+        }
+    }
+
+    private void hashChunk(FileChannel fileChannel, long fileSize, int index, MerkleTree tree) throws IOException {
+        long offset = (long) index * chunkSize;
+        ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(chunkSize, fileSize - offset));
+        while (chunk.hasRemaining()) {
+            if (fileChannel.read(chunk, offset + chunk.position()) < 0) {
+                throw new EOFException("File was truncated while it was being sent.");
+            }
+        }
+        chunk.flip();
+        tree.setLeaf(index, MerkleTree.hashChunk(chunk));
+    }
+
+    long getBytesSent() {
+        return bytesSent;
+    }
+
+    long getSendNanos() {
+        return sendNanos;
+    }
+
+    // Frame headers and handshakes are small writes that must not wait on Nagle's algorithm; the tuner connects
+    // with it off
+    private SocketChannel openChannel() throws IOException {
+        return PeerTuner.global().connect(host, port);
+    }
+
+    private void sendChunks(SocketChannel channel, ChunkPipeline pipeline, long fileSize, AtomicLong totalSent) throws IOException {
+        ByteBuffer frameHeader = ByteBuffer.allocate(Protocol.CHUNK_FRAME_HEADER);
+        ChunkPipeline.Frame frame;
+        while ((frame = pipeline.next()) != null) {
+            try {
+                frameHeader.clear();
+                frameHeader.putLong(frame.offset).putInt(frame.length).putInt(frame.storedLength)
+                        .put(frame.hash).flip();
+                long start = System.nanoTime();
+                int wireLength = frameHeader.remaining() + frame.payload.remaining();
+                writeFully(channel, frameHeader);
+                writeShaped(channel, frame.payload);
+                TransferMetrics.SEND_SOCKET_TIME.add(System.nanoTime() - start);
+                TransferMetrics.P2P_BYTES_SENT.add(wireLength);
+            } finally {
+                frame.release();
+            }
+            printProgress(totalSent.addAndGet(frame.length), fileSize);
+        }
+        frameHeader.clear();
+        frameHeader.putLong(Protocol.END_OF_STRIPE).putInt(0).putInt(0).put(new byte[MerkleTree.HASH_LENGTH]).flip();
+        writeFully(channel, frameHeader);
+    }
+
+    // Writes the buffer in slices, each waiting for bandwidth first, so stripes and other transfers interleave
+    private void writeShaped(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        int limit = buffer.limit();
+        while (buffer.position() < limit) {
+            int slice = Math.min(limit - buffer.position(), BandwidthShaper.QUANTUM);
+            shaper.acquire(slice);
+            buffer.limit(buffer.position() + slice);
+            writeFully(channel, buffer);
+        }
+        buffer.limit(limit);
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void printProgress(long totalSent, long fileSize) {
+        if (fileSize == 0) return;
+        int progress = (int) ((totalSent * 100) / fileSize);
+        System.out.print("\rProgress: " + progress + "% ");
+    }
+}
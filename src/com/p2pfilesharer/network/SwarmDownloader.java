@@ -0,0 +1,572 @@
+package com.p2pfilesharer.network;
+
+import com.p2pfilesharer.metrics.TransferMetrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Downloads one file from every peer that holds it at once. Chunks are requested rarest-first, so copies spread
+// evenly through the swarm; slow peers and peers sending corrupt chunks are dropped, and every chunk is checked
+// against the Merkle root the file is known by before it is written. While the download runs, the chunks
+// already held are offered to other downloaders through the swarm library.
+public class SwarmDownloader {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+    // Peers that are downloading themselves gain chunks all the time, so their availability is asked again
+    private static final long HAVE_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(2);
+    // Without a single new chunk for this long the download stops and keeps its progress for a resume
+    private static final long STALL_NANOS = TimeUnit.SECONDS.toNanos(60);
+    // A peer is dropped once it is this much slower than the median peer, judged after a few chunks
+    private static final double SLOW_PEER_FACTOR = 0.25;
+    private static final int MIN_RATE_SAMPLES = 4;
+    private static final int MAX_STRIKES = 2;
+    private static final int CHECKPOINT_INTERVAL = 64;
+
+    private final int defaultPort;
+    private final SwarmLibrary library;
+
+    public SwarmDownloader(int defaultPort) {
+        this(defaultPort, SwarmLibrary.global());
+    }
+
+    public SwarmDownloader(int defaultPort, SwarmLibrary library) {
+        this.defaultPort = defaultPort;
+        this.library = library;
+    }
+
+    // A file offered by one or more peers
+    public static class Offer {
+        public final String name;
+        public final long size;
+        final int chunkSize;
+        final byte[] root;
+        final List<String> peers = new ArrayList<>();
+
+        Offer(String name, long size, int chunkSize, byte[] root) {
+            this.name = name;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.root = root;
+        }
+
+        public String getId() {
+            return SwarmLibrary.id(root);
+        }
+
+        public List<String> getPeers() {
+            return peers;
+        }
+    }
+
+    // Asks every peer (host or host:port) what it offers and groups the answers by content. This node is skipped,
+    // and so is a node reached a second time under another address.
+    public List<Offer> findOffers(Collection<String> peers) {
+        Map<String, Offer> offers = new LinkedHashMap<>();
+        Set<Long> nodes = new HashSet<>();
+        nodes.add(library.getNodeId());
+        for (String address : peers) {
+            try (Peer peer = connect(address)) {
+                peer.out.writeByte(Protocol.SWARM_LIST);
+                peer.out.flush();
+                if (!nodes.add(peer.in.readLong())) {
+                    continue;
+                }
+                int count = peer.in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String name = peer.in.readUTF();
+                    long size = peer.in.readLong();
+                    int chunkSize = peer.in.readInt();
+                    byte[] root = new byte[MerkleTree.HASH_LENGTH];
+                    peer.in.readFully(root);
+                    if (size < 0 || chunkSize <= 0 || chunkSize > Protocol.MAX_CHUNK_SIZE) {
+                        continue;
+                    }
+                    offers.computeIfAbsent(SwarmLibrary.id(root), id -> new Offer(name, size, chunkSize, root))
+                            .peers.add(address);
+                }
+            } catch (IOException e) {
+                System.err.println("Could not ask " + address + " for its files: " + e.getMessage());
+            }
+        }
+        return new ArrayList<>(offers.values());
+    }
+
+    public File download(Offer offer, String saveDir) throws Exception {
+        Path saveRoot = Path.of(saveDir).toAbsolutePath().normalize();
+        Path target = SavePaths.resolve(saveRoot, offer.name, true);
+        // A receive of the same name would share the part file and resume map
+        SavePaths.claim(target, offer.name);
+        try {
+            return download(offer, saveRoot, target.toFile());
+        } finally {
+            SavePaths.release(target);
+        }
+    }
+
+    private File download(Offer offer, Path saveRoot, File target) throws Exception {
+        File partFile = new File(target.getPath() + ".part");
+        File sidecarFile = new File(target.getPath() + ".part.map");
+        // The sidecar is stamped with the content id instead of a modification time, so only the same content resumes
+        long version = ByteBuffer.wrap(offer.root).getLong();
+
+        ChunkBitmap bitmap = partFile.isFile() ? ChunkBitmap.load(sidecarFile, offer.size, offer.chunkSize, version) : null;
+        if (bitmap == null) {
+            bitmap = new ChunkBitmap(offer.size, offer.chunkSize, version);
+            try (RandomAccessFile raf = new RandomAccessFile(partFile, "rw")) {
+                raf.setLength(0);
+                raf.setLength(offer.size);
+            }
+        }
+
+        List<Peer> peers = new ArrayList<>();
+        for (String address : offer.peers) {
+            try {
+                peers.add(connect(address));
+            } catch (IOException e) {
+                System.err.println("Could not connect to " + address + ": " + e.getMessage());
+            }
+        }
+        TransferMetrics.Transfer metrics = TransferMetrics.begin(TransferMetrics.RECEIVE, "swarm", offer.name,
+                peers.size() + " peers");
+        boolean succeeded = false;
+        try {
+            MerkleTree tree = fetchLeaves(peers, offer);
+            SwarmLibrary.Entry entry = library.addPartial(offer.name, partFile, offer.size, offer.chunkSize,
+                    offer.root, tree, bitmap);
+            System.out.println("Downloading " + offer.name + " (" + (offer.size / 1024 / 1024) + " MB) from "
+                    + peers.size() + " peers" + (bitmap.receivedBytes() > 0
+                    ? ", " + (bitmap.receivedBytes() / 1024 / 1024) + " MB already here" : "") + ".");
+
+            Download download;
+            try (FileChannel fileChannel = FileChannel.open(partFile.toPath(), StandardOpenOption.WRITE)) {
+                download = new Download(offer, tree, bitmap, fileChannel, sidecarFile);
+                download.run(peers);
+                fileChannel.force(false);
+            }
+            if (!bitmap.isComplete()) {
+                bitmap.save(sidecarFile);
+                throw new IOException("Swarm download stopped with " + bitmap.missing().length + " of "
+                        + bitmap.getChunkCount() + " chunks missing. Run it again to resume.");
+            }
+            if (!MessageDigest.isEqual(bitmap.root(), offer.root)) {
+                throw new IOException("Downloaded file does not match its Merkle root.");
+            }
+            Files.move(partFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(sidecarFile.toPath());
+            ChunkIndex.indexLater(saveRoot, target.toPath());
+            entry.completed(target);
+            System.out.println("\nSwarm download complete: " + offer.name + " (" + download.summary() + ")");
+            succeeded = true;
+            return target;
+        } finally {
+            metrics.finish(offer.size, succeeded);
+            for (Peer peer : peers) {
+                peer.close();
+            }
+        }
+    }
+
+    // The first peer whose chunk hashes add up to the requested root provides them; others may be lying
+    private static MerkleTree fetchLeaves(List<Peer> peers, Offer offer) throws IOException {
+        int chunkCount = ChunkBitmap.chunkCount(offer.size, offer.chunkSize);
+        for (Peer peer : new ArrayList<>(peers)) {
+            try {
+                peer.out.writeByte(Protocol.SWARM_LEAVES);
+                peer.out.write(offer.root);
+                peer.out.flush();
+                int length = peer.in.readInt();
+                if (length == chunkCount * MerkleTree.HASH_LENGTH) {
+                    byte[] leaves = new byte[length];
+                    peer.in.readFully(leaves);
+                    MerkleTree tree = new MerkleTree(chunkCount, leaves);
+                    if (MessageDigest.isEqual(tree.root(), offer.root)) {
+                        return tree;
+                    }
+                }
+                System.err.println(peer.address + " sent chunk hashes that do not match the file, dropping it.");
+            } catch (IOException e) {
+                System.err.println("Could not get chunk hashes from " + peer.address + ": " + e.getMessage());
+            }
+            peers.remove(peer);
+            peer.close();
+        }
+        throw new IOException("No peer could provide the chunk hashes of " + offer.name + ".");
+    }
+
+    private Peer connect(String address) throws IOException {
+        String host = address;
+        int port = defaultPort;
+        int colon = address.lastIndexOf(':');
+        if (colon > 0 && address.indexOf(':') == colon) {
+            host = address.substring(0, colon);
+            try {
+                port = Integer.parseInt(address.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid peer address " + address + ".");
+            }
+        }
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeByte(Protocol.MODE_SWARM);
+            return new Peer(address, socket, new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024)), out);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private static class Peer implements AutoCloseable {
+        final String address;
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        BitSet have = new BitSet();
+        long haveAt;
+        int inFlight = -1;
+        double rate;
+        int samples;
+        int strikes;
+        long bytes;
+        volatile boolean evicted;
+
+        Peer(String address, Socket socket, DataInputStream in, DataOutputStream out) {
+            this.address = address;
+            this.socket = socket;
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+    }
+
+    // Shared state of one running download; scheduling decisions are made under its lock
+    private static class Download {
+        private final Offer offer;
+        private final MerkleTree tree;
+        private final ChunkBitmap bitmap;
+        private final FileChannel fileChannel;
+        private final File sidecarFile;
+        private final int chunkCount;
+        private final BitSet done;
+        private final BitSet requested = new BitSet();
+        private final int[] availability;
+        private final List<Peer> active = new ArrayList<>();
+        private final List<Peer> contributors = new ArrayList<>();
+        private final List<String> dropped = new ArrayList<>();
+        private long received;
+        private long lastProgress = System.nanoTime();
+        private int sinceCheckpoint;
+
+        Download(Offer offer, MerkleTree tree, ChunkBitmap bitmap, FileChannel fileChannel, File sidecarFile) {
+            this.offer = offer;
+            this.tree = tree;
+            this.bitmap = bitmap;
+            this.fileChannel = fileChannel;
+            this.sidecarFile = sidecarFile;
+            this.chunkCount = bitmap.getChunkCount();
+            this.done = new BitSet(chunkCount);
+            done.set(0, chunkCount);
+            for (int index : bitmap.missing()) {
+                done.clear(index);
+            }
+            this.availability = new int[chunkCount];
+            this.received = bitmap.receivedBytes();
+        }
+
+        // One virtual thread per peer; returns once the file is complete, every peer is gone or nothing arrives
+        void run(List<Peer> peers) throws InterruptedException {
+            List<Thread> workers = new ArrayList<>();
+            synchronized (this) {
+                active.addAll(peers);
+                contributors.addAll(peers);
+            }
+            for (Peer peer : peers) {
+                workers.add(Thread.ofVirtual().name("swarm-" + peer.address).start(() -> work(peer)));
+            }
+            synchronized (this) {
+                while (done.cardinality() < chunkCount && !active.isEmpty()
+                        && System.nanoTime() - lastProgress < STALL_NANOS) {
+                    wait(1000);
+                }
+                for (Peer peer : active) {
+                    peer.evicted = true;
+                    peer.close();
+                }
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        }
+
+        synchronized String summary() {
+            List<String> shares = new ArrayList<>();
+            for (Peer peer : contributors) {
+                shares.add(peer.address + " " + (peer.bytes / 1024 / 1024) + " MB");
+            }
+            return String.join(", ", shares) + (dropped.isEmpty() ? "" : "; dropped " + String.join(", ", dropped));
+        }
+
+        private void work(Peer peer) {
+            byte[] buffer = new byte[offer.chunkSize];
+            try {
+                while (!peer.evicted && !isComplete()) {
+                    if (System.nanoTime() - peer.haveAt > HAVE_REFRESH_NANOS) {
+                        refreshHave(peer);
+                    }
+                    int index = next(peer);
+                    if (index < 0) {
+                        // Nothing this peer has is still needed; it may gain chunks later
+                        Thread.sleep(200);
+                        continue;
+                    }
+                    fetch(peer, index, buffer);
+                }
+            } catch (IOException e) {
+                if (!peer.evicted) {
+                    drop(peer, e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                remove(peer);
+            }
+        }
+
+        private void refreshHave(Peer peer) throws IOException {
+            peer.out.writeByte(Protocol.SWARM_HAVE);
+            peer.out.write(offer.root);
+            peer.out.flush();
+            int length = peer.in.readInt();
+            if (length == Protocol.SWARM_UNAVAILABLE) {
+                throw new IOException("no longer offers the file");
+            }
+            if (length < 0 || length > (chunkCount + 7) / 8) {
+                throw new IOException("sent a chunk list of invalid length " + length);
+            }
+            byte[] bits = new byte[length];
+            peer.in.readFully(bits);
+            BitSet have = BitSet.valueOf(bits);
+            if (have.length() > chunkCount) {
+                have.clear(chunkCount, have.length());
+            }
+            synchronized (this) {
+                updateAvailability(peer.have, -1);
+                updateAvailability(have, 1);
+                peer.have = have;
+            }
+            peer.haveAt = System.nanoTime();
+        }
+
+        private void updateAvailability(BitSet have, int delta) {
+            for (int index = have.nextSetBit(0); index >= 0; index = have.nextSetBit(index + 1)) {
+                availability[index] += delta;
+            }
+        }
+
+        // Rarest chunk this peer has that nobody is fetching yet, picked at random among equally rare ones so
+        // peers do not all chase the same chunk. Once every missing chunk is being fetched, slow requests are
+        // raced by the other peers (endgame) and the first verified answer wins.
+        private synchronized int next(Peer peer) {
+            int best = -1;
+            int bestAvailability = Integer.MAX_VALUE;
+            int ties = 0;
+            int endgame = -1;
+            int endgameTies = 0;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int index = peer.have.nextSetBit(0); index >= 0; index = peer.have.nextSetBit(index + 1)) {
+                if (done.get(index)) {
+                    continue;
+                }
+                if (requested.get(index)) {
+                    if (best < 0 && random.nextInt(++endgameTies) == 0) {
+                        endgame = index;
+                    }
+                    continue;
+                }
+                if (availability[index] < bestAvailability) {
+                    best = index;
+                    bestAvailability = availability[index];
+                    ties = 1;
+                } else if (availability[index] == bestAvailability && random.nextInt(++ties) == 0) {
+                    best = index;
+                }
+            }
+            int chosen = best >= 0 ? best : endgame;
+            if (chosen >= 0) {
+                requested.set(chosen);
+                peer.inFlight = chosen;
+            }
+            return chosen;
+        }
+
+        private void fetch(Peer peer, int index, byte[] buffer) throws IOException {
+            long offset = (long) index * offer.chunkSize;
+            int expected = (int) Math.min(offer.chunkSize, offer.size - offset);
+            long start = System.nanoTime();
+            peer.out.writeByte(Protocol.SWARM_CHUNK);
+            peer.out.write(offer.root);
+            peer.out.writeInt(index);
+            peer.out.flush();
+            int length = peer.in.readInt();
+            if (length == Protocol.SWARM_UNAVAILABLE) {
+                release(peer, index);
+                peer.haveAt = 0;
+                return;
+            }
+            if (length != expected) {
+                throw new IOException("sent a chunk of the wrong size");
+            }
+            peer.in.readFully(buffer, 0, length);
+            long elapsed = System.nanoTime() - start;
+            TransferMetrics.P2P_BYTES_RECEIVED.add(length);
+            TransferMetrics.RECEIVE_SOCKET_TIME.add(elapsed);
+
+            ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, length);
+            long hashStart = System.nanoTime();
+            boolean valid = MessageDigest.isEqual(MerkleTree.hashChunk(chunk), tree.leaf(index));
+            TransferMetrics.RECEIVE_CRYPTO_TIME.add(System.nanoTime() - hashStart);
+            if (!valid) {
+                release(peer, index);
+                if (++peer.strikes >= MAX_STRIKES) {
+                    throw new IOException("sent corrupt chunks");
+                }
+                return;
+            }
+            store(peer, index, chunk);
+            record(peer, length, elapsed);
+        }
+
+        private void store(Peer peer, int index, ByteBuffer chunk) throws IOException {
+            synchronized (this) {
+                peer.inFlight = -1;
+                if (done.get(index)) {
+                    // Another peer won the endgame race for this chunk
+                    return;
+                }
+            }
+            long start = System.nanoTime();
+            long position = (long) index * offer.chunkSize;
+            while (chunk.hasRemaining()) {
+                position += fileChannel.write(chunk, position);
+            }
+            bitmap.mark(index, tree.leaf(index));
+            boolean checkpoint;
+            synchronized (this) {
+                done.set(index);
+                requested.clear(index);
+                received += chunk.limit();
+                lastProgress = System.nanoTime();
+                checkpoint = ++sinceCheckpoint % CHECKPOINT_INTERVAL == 0;
+                printProgress();
+                notifyAll();
+            }
+            if (checkpoint) {
+                // Data is forced to disk before the bitmap, so a persisted bit never points at unwritten bytes
+                fileChannel.force(false);
+                bitmap.save(sidecarFile);
+            }
+            TransferMetrics.RECEIVE_DISK_TIME.add(System.nanoTime() - start);
+        }
+
+        // Tracks each peer's rate and drops one that falls far behind the median, once there is a choice
+        private void record(Peer peer, int length, long elapsedNanos) throws IOException {
+            double rate = length / Math.max(elapsedNanos / 1e9, 1e-6);
+            List<Double> rates = new ArrayList<>();
+            synchronized (this) {
+                peer.rate = peer.samples == 0 ? rate : 0.7 * peer.rate + 0.3 * rate;
+                peer.samples++;
+                peer.bytes += length;
+                if (peer.samples < MIN_RATE_SAMPLES || active.size() < 2) {
+                    return;
+                }
+                for (Peer other : active) {
+                    if (other.samples >= MIN_RATE_SAMPLES) {
+                        rates.add(other.rate);
+                    }
+                }
+            }
+            if (rates.size() < 2) {
+                return;
+            }
+            rates.sort(null);
+            double median = rates.get(rates.size() / 2);
+            if (peer.rate < median * SLOW_PEER_FACTOR) {
+                throw new IOException(String.format("too slow (%.1f MB/s against a median of %.1f MB/s)",
+                        peer.rate / 1e6, median / 1e6));
+            }
+        }
+
+        private synchronized void release(Peer peer, int index) {
+            if (peer.inFlight == index) {
+                peer.inFlight = -1;
+            }
+            if (!done.get(index)) {
+                requested.clear(index);
+            }
+        }
+
+        private synchronized void drop(Peer peer, String reason) {
+            System.err.println("\nDropping peer " + peer.address + ": " + reason);
+            dropped.add(peer.address);
+            peer.evicted = true;
+            peer.close();
+        }
+
+        // A chunk the peer was fetching becomes free for the others
+        private synchronized void remove(Peer peer) {
+            if (active.remove(peer)) {
+                updateAvailability(peer.have, -1);
+                if (peer.inFlight >= 0) {
+                    release(peer, peer.inFlight);
+                }
+                notifyAll();
+            }
+        }
+
+        private synchronized boolean isComplete() {
+            return done.cardinality() == chunkCount;
+        }
+
+        private void printProgress() {
+            if (offer.size == 0) return;
+            int progress = (int) ((received * 100) / offer.size);
+            System.out.print("\rProgress: " + progress + "% from " + active.size() + " peers ");
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.p2pfilesharer.network;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+// Files this node offers to swarm downloaders: files shared in full and downloads still in progress. Content is
+// keyed by the Merkle root of its chunks, so peers find the same file whatever it is called on each node.
+public class SwarmLibrary {
+
+    private static final SwarmLibrary GLOBAL = new SwarmLibrary();
+
+    // Lets a downloader recognise its own node among the peers it asks
+    private final long nodeId = new SecureRandom().nextLong();
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public static SwarmLibrary global() {
+        return GLOBAL;
+    }
+
+    static class Entry {
+        final String name;
+        final long size;
+        final int chunkSize;
+        final byte[] root;
+        final MerkleTree tree;
+        volatile File file;
+        // Chunks held so far while the download runs; null once the file is complete
+        volatile ChunkBitmap bitmap;
+
+        Entry(String name, File file, long size, int chunkSize, byte[] root, MerkleTree tree, ChunkBitmap bitmap) {
+            this.name = name;
+            this.file = file;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.root = root;
+            this.tree = tree;
+            this.bitmap = bitmap;
+        }
+
+        boolean has(int index) {
+            ChunkBitmap held = bitmap;
+            return held == null || held.has(index);
+        }
+
+        byte[] availability() {
+            ChunkBitmap held = bitmap;
+            if (held != null) {
+                return held.toByteArray();
+            }
+            BitSet all = new BitSet();
+            all.set(0, tree.getLeafCount());
+            return all.toByteArray();
+        }
+
+        void completed(File file) {
+            this.file = file;
+            this.bitmap = null;
+        }
+    }
+
+    // Hashes the file once, in parallel on the chunk workers, and returns the id peers ask for it by
+    public String share(File file) throws IOException {
+        if (!file.isFile()) {
+            throw new IOException(file + " is not a file.");
+        }
+        int chunkSize = Protocol.DEFAULT_CHUNK_SIZE;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            MerkleTree tree = new MerkleTree(ChunkBitmap.chunkCount(size, chunkSize));
+            List<Future<?>> hashes = new ArrayList<>();
+            for (int index = 0; index < tree.getLeafCount(); index++) {
+                int chunk = index;
+                hashes.add(ChunkWorkers.pool().submit(() -> {
+                    tree.setLeaf(chunk, hashChunk(channel, size, chunkSize, chunk));
+                    return null;
+                }));
+            }
+            for (Future<?> hash : hashes) {
+                hash.get();
+            }
+            byte[] root = tree.root();
+            entries.put(id(root), new Entry(file.getName(), file, size, chunkSize, root, tree, null));
+            return id(root);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while hashing " + file.getName() + ".", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not hash " + file.getName() + ": " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    public void unshare(String id) {
+        entries.remove(id);
+    }
+
+    // Names and total size of everything offered, for the announcements other peers see
+    public List<String> getSharedNames() {
+        List<String> names = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            names.add(entry.name);
+        }
+        return names;
+    }
+
+    public long getSharedBytes() {
+        long total = 0;
+        for (Entry entry : entries.values()) {
+            total += entry.size;
+        }
+        return total;
+    }
+
+    static String id(byte[] root) {
+        return HexFormat.of().formatHex(root);
+    }
+
+    long getNodeId() {
+        return nodeId;
+    }
+
+    Entry get(byte[] root) {
+        return entries.get(id(root));
+    }
+
+    Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    // A download in progress, served to other peers chunk by chunk as it arrives
+    Entry addPartial(String name, File partFile, long size, int chunkSize, byte[] root, MerkleTree tree, ChunkBitmap bitmap) {
+        Entry entry = new Entry(name, partFile, size, chunkSize, root, tree, bitmap);
+        entries.put(id(root), entry);
+        return entry;
+    }
+
+    private static byte[] hashChunk(FileChannel channel, long size, int chunkSize, int index) throws IOException {
+        long offset = (long) index * chunkSize;
+        ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(chunkSize, size - offset));
+        while (chunk.hasRemaining()) {
+            if (channel.read(chunk, offset + chunk.position()) < 0) {
+                throw new EOFException("File was truncated while it was being hashed.");
+            }
+        }
+        chunk.flip();
+        return MerkleTree.hashChunk(chunk);
+    }
+}
@@ -0,0 +1,215 @@
+package com.p2pfilesharer.network;
+
+import com.p2pfilesharer.bandwidth.BandwidthShaper;
+import com.p2pfilesharer.metrics.TransferMetrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Answers one swarm downloader's requests until it hangs up: what this node offers, which chunks of a file it
+// holds, the file's chunk hashes and the chunks themselves. Runs on the I/O engine: requests are answered one at
+// a time, and a chunk goes out in pooled buffers, each waiting for its share of the upload limit.
+class SwarmSeeder extends IoEngine.Connection {
+
+    // The longest request: type, root and chunk index
+    private static final int MAX_REQUEST = 1 + MerkleTree.HASH_LENGTH + 4;
+
+    private final SwarmLibrary library;
+    private final SocketChannel client;
+    private final String peer;
+    private final BandwidthShaper.Peer shaper;
+    private final BufferPool buffers;
+    private final Map<SwarmLibrary.Entry, FileChannel> openFiles = new HashMap<>();
+    private final ByteBuffer requests = ByteBuffer.allocate(2 * MAX_REQUEST);
+
+    // The answer being sent: a short reply or chunk length, then the chunk read from disk a slice at a time
+    private ByteBuffer reply;
+    private ByteBuffer slice;
+    private FileChannel chunkFile;
+    private long chunkOffset;
+    private long chunkLeft;
+
+    SwarmSeeder(SwarmLibrary library, SocketChannel client, String peer, BufferPool buffers) {
+        this.library = library;
+        this.client = client;
+        this.peer = peer;
+        this.shaper = BandwidthShaper.global().peer(peer);
+        this.buffers = buffers;
+    }
+
+    @Override
+    protected void onReadable() throws IOException {
+        if (client.read(requests) < 0) {
+            close();
+            return;
+        }
+        send();
+    }
+
+    @Override
+    protected void onWritable() throws IOException {
+        send();
+    }
+
+    // The bandwidth for the current slice has come free
+    @Override
+    protected void onWake() throws IOException {
+        send();
+    }
+
+    private void send() throws IOException {
+        while (true) {
+            if (reply != null) {
+                TransferMetrics.P2P_BYTES_SENT.add(client.write(reply));
+                if (reply.hasRemaining()) {
+                    setInterest(SelectionKey.OP_WRITE);
+                    return;
+                }
+                reply = null;
+            }
+            if (slice != null && slice.hasRemaining()) {
+                TransferMetrics.P2P_BYTES_SENT.add(client.write(slice));
+                if (slice.hasRemaining()) {
+                    setInterest(SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            if (chunkLeft > 0) {
+                if (!readSlice()) {
+                    return;
+                }
+                continue;
+            }
+            if (!answerNextRequest()) {
+                setInterest(SelectionKey.OP_READ);
+                return;
+            }
+        }
+    }
+
+    // Returns false when the slice has to wait for bandwidth
+    private boolean readSlice() throws IOException {
+        if (slice == null) {
+            slice = buffers.acquire();
+        }
+        int length = (int) Math.min(slice.capacity(), chunkLeft);
+        slice.clear().limit(length);
+        while (slice.hasRemaining()) {
+            if (chunkFile.read(slice, chunkOffset + slice.position()) < 0) {
+                throw new EOFException("Shared file is shorter than expected.");
+            }
+        }
+        slice.flip();
+        chunkOffset += length;
+        chunkLeft -= length;
+        long wait = shaper.reserve(length);
+        if (wait > 0) {
+            setInterest(0);
+            wakeAfter(wait);
+            return false;
+        }
+        return true;
+    }
+
+    // Returns false when no whole request has arrived yet
+    private boolean answerNextRequest() throws IOException {
+        requests.flip();
+        try {
+            if (!requests.hasRemaining()) {
+                return false;
+            }
+            int request = requests.get(requests.position()) & 0xFF;
+            int length;
+            if (request == Protocol.SWARM_LIST) {
+                length = 1;
+            } else if (request == Protocol.SWARM_HAVE || request == Protocol.SWARM_LEAVES) {
+                length = 1 + MerkleTree.HASH_LENGTH;
+            } else if (request == Protocol.SWARM_CHUNK) {
+                length = MAX_REQUEST;
+            } else {
+                throw new IOException("Unknown swarm request " + request + ".");
+            }
+            if (requests.remaining() < length) {
+                return false;
+            }
+            requests.get();
+            answer(request);
+            return true;
+        } finally {
+            requests.compact();
+        }
+    }
+
+    private void answer(int request) throws IOException {
+        if (request == Protocol.SWARM_LIST) {
+            List<SwarmLibrary.Entry> entries = new ArrayList<>(library.entries());
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(library.getNodeId());
+            out.writeInt(entries.size());
+            for (SwarmLibrary.Entry entry : entries) {
+                out.writeUTF(entry.name);
+                out.writeLong(entry.size);
+                out.writeInt(entry.chunkSize);
+                out.write(entry.root);
+            }
+            reply = ByteBuffer.wrap(bytes.toByteArray());
+            return;
+        }
+        SwarmLibrary.Entry entry = library.get(readRoot());
+        if (request == Protocol.SWARM_HAVE || request == Protocol.SWARM_LEAVES) {
+            if (entry == null) {
+                reply = ByteBuffer.allocate(4).putInt(Protocol.SWARM_UNAVAILABLE).flip();
+            } else {
+                byte[] answer = request == Protocol.SWARM_HAVE ? entry.availability() : entry.tree.leafBytes();
+                reply = ByteBuffer.allocate(4 + answer.length).putInt(answer.length).put(answer).flip();
+            }
+            return;
+        }
+        int index = requests.getInt();
+        if (entry == null || index < 0 || index >= entry.tree.getLeafCount() || !entry.has(index)) {
+            reply = ByteBuffer.allocate(4).putInt(Protocol.SWARM_UNAVAILABLE).flip();
+            return;
+        }
+        chunkFile = openFiles.get(entry);
+        if (chunkFile == null) {
+            chunkFile = FileChannel.open(entry.file.toPath(), StandardOpenOption.READ);
+            openFiles.put(entry, chunkFile);
+        }
+        chunkOffset = (long) index * entry.chunkSize;
+        chunkLeft = Math.min(entry.chunkSize, entry.size - chunkOffset);
+        reply = ByteBuffer.allocate(4).putInt((int) chunkLeft).flip();
+    }
+
+    private byte[] readRoot() {
+        byte[] root = new byte[MerkleTree.HASH_LENGTH];
+        requests.get(root);
+        return root;
+    }
+
+    @Override
+    protected void onClosed(Exception failure) {
+        buffers.release(slice);
+        for (FileChannel file : openFiles.values()) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // Only read from
+            }
+        }
+        if (failure != null) {
+            System.err.println("Swarm peer " + peer + " failed: " + failure.getMessage());
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.p2pfilesharer.network;
+
+import com.p2pfilesharer.encryption.CryptoUtils;
+
+import javax.crypto.SecretKey;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+// Key material of one encrypted transfer and its header encoding: session salt, nonce prefix and key check
+final class TransferKey {
+
+    final SecretKey key;
+    final byte[] noncePrefix;
+    private final byte[] salt;
+
+    private TransferKey(SecretKey key, byte[] noncePrefix, byte[] salt) {
+        this.key = key;
+        this.noncePrefix = noncePrefix;
+        this.salt = salt;
+    }
+
+    static TransferKey forSending(String peer, String password) {
+        CryptoUtils.SessionKey sessionKey = CryptoUtils.getSessionKey(peer, password);
+        return new TransferKey(sessionKey.key, CryptoUtils.generateNoncePrefix(), sessionKey.salt);
+    }
+
+    void writeHeader(DataOutputStream out) throws IOException {
+        out.write(salt);
+        out.write(noncePrefix);
+        try {
+            out.write(CryptoUtils.createKeyCheck(key, noncePrefix));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not create the key check: " + e.getMessage(), e);
+        }
+    }
+
+    // Seals one message under the given counter; the caller keeps the counter unique per transfer
+    byte[] seal(long counter, byte[] plain, int length) throws IOException {
+        return seal(counter, null, plain, length);
+    }
+
+    // Also authenticates aad, which is sent in the clear and must be passed to open() as it was here
+    byte[] seal(long counter, byte[] aad, byte[] plain, int length) throws IOException {
+        if (counter >= CryptoUtils.KEY_CHECK_COUNTER) {
+            throw new IOException("Transfer exhausted its nonce space; start a new transfer.");
+        }
+        byte[] sealed = new byte[length + CryptoUtils.TAG_LENGTH];
+        try {
+            CryptoUtils.sealChunk(key, noncePrefix, counter, aad, ByteBuffer.wrap(plain, 0, length), ByteBuffer.wrap(sealed));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not encrypt message: " + e.getMessage(), e);
+        }
+        return sealed;
+    }
+
+    // Opens a sealed message into plain and returns the plaintext length
+    int open(long counter, byte[] sealed, int length, byte[] plain) throws IOException {
+        return open(counter, null, sealed, length, plain);
+    }
+
+    int open(long counter, byte[] aad, byte[] sealed, int length, byte[] plain) throws IOException {
+        if (length < CryptoUtils.TAG_LENGTH) {
+            throw new IOException("Encrypted message is too short.");
+        }
+        try {
+            CryptoUtils.openChunk(key, noncePrefix, counter, aad, ByteBuffer.wrap(sealed, 0, length), ByteBuffer.wrap(plain));
+            return length - CryptoUtils.TAG_LENGTH;
+        } catch (GeneralSecurityException e) {
+            // Messages are sealed in sequence, so one bad message means the rest of the stream cannot be trusted
+            throw new IOException("Message failed authentication; the data was altered in transit.", e);
+        }
+    }
+
+    // Consumes the header fields and returns null when the password is missing or does not match them
+    static TransferKey readHeader(DataInputStream in, String password) throws IOException {
+        byte[] salt = new byte[CryptoUtils.SALT_LENGTH];
+        in.readFully(salt);
+        byte[] noncePrefix = new byte[CryptoUtils.NONCE_PREFIX_LENGTH];
+        in.readFully(noncePrefix);
+        byte[] keyCheck = new byte[CryptoUtils.TAG_LENGTH];
+        in.readFully(keyCheck);
+        if (password == null || password.isEmpty()) {
+            return null;
+        }
+        SecretKey key = CryptoUtils.getKeyForSalt(password, salt);
+        return CryptoUtils.verifyKeyCheck(key, noncePrefix, keyCheck) ? new TransferKey(key, noncePrefix, salt) : null;
+    }
+}
@@ -0,0 +1,144 @@
+package com.p2pfilesharer.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+// Walks files and directory trees lazily, depth first. Only one open directory listing is kept per level,
+// so memory stays flat no matter how many entries the tree holds.
+class TreeWalker implements Iterator<SessionSender.Item> {
+
+    private static class Level {
+        final DirectoryStream<Path> stream;
+        final Iterator<Path> entries;
+        final String name;
+
+        Level(DirectoryStream<Path> stream, String name) {
+            this.stream = stream;
+            this.entries = stream.iterator();
+            this.name = name;
+        }
+    }
+
+    private final Iterator<File> roots;
+    private final Deque<Level> levels = new ArrayDeque<>();
+    private SessionSender.Item next;
+    private int skipped;
+
+    TreeWalker(List<File> roots) {
+        this.roots = roots.iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            next = advance();
+        }
+        return next != null;
+    }
+
+    @Override
+    public SessionSender.Item next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        SessionSender.Item item = next;
+        next = null;
+        return item;
+    }
+
+    int getSkipped() {
+        return skipped;
+    }
+
+    void close() {
+        while (!levels.isEmpty()) {
+            closeLevel(levels.pop());
+        }
+    }
+
+    private SessionSender.Item advance() {
+        while (true) {
+            Level level = levels.peek();
+            if (level == null) {
+                if (!roots.hasNext()) {
+                    return null;
+                }
+                Path root = roots.next().toPath().toAbsolutePath().normalize();
+                Path rootName = root.getFileName();
+                SessionSender.Item item = visit(root, rootName == null ? "files" : rootName.toString());
+                if (item != null) {
+                    return item;
+                }
+                continue;
+            }
+
+            Path path;
+            try {
+                if (!level.entries.hasNext()) {
+                    closeLevel(levels.pop());
+                    continue;
+                }
+                path = level.entries.next();
+            } catch (DirectoryIteratorException e) {
+                skip(level.name, e.getCause());
+                closeLevel(levels.pop());
+                continue;
+            }
+            // Names on the wire always use '/' so the receiver can rebuild the tree on any platform
+            SessionSender.Item item = visit(path, level.name + "/" + path.getFileName(), LinkOption.NOFOLLOW_LINKS);
+            if (item != null) {
+                return item;
+            }
+        }
+    }
+
+    private SessionSender.Item visit(Path path, String name, LinkOption... options) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class, options);
+        } catch (IOException e) {
+            skip(name, e);
+            return null;
+        }
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        if (attributes.isDirectory()) {
+            try {
+                levels.push(new Level(Files.newDirectoryStream(path), name));
+            } catch (IOException e) {
+                skip(name, e);
+                return null;
+            }
+            return new SessionSender.Item(path, name, true, 0, lastModified);
+        }
+        if (attributes.isRegularFile()) {
+            return new SessionSender.Item(path, name, false, attributes.size(), lastModified);
+        }
+        skipped++;
+        System.err.println("\nSkipping " + name + ": not a regular file.");
+        return null;
+    }
+
+    private void skip(String name, IOException e) {
+        skipped++;
+        System.err.println("\nSkipping " + name + ": " + e.getMessage());
+    }
+
+    private void closeLevel(Level level) {
+        try {
+            level.stream.close();
+        } catch (IOException e) {
+            System.err.println("Error closing directory listing: " + e.getMessage());
+        }
+    }
+}
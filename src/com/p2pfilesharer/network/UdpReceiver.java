@@ -0,0 +1,556 @@
+package com.p2pfilesharer.network;
+
+import com.p2pfilesharer.encryption.CryptoUtils;
+import com.p2pfilesharer.metrics.TransferMetrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+// Receives UDP transfers for a FileReceiver: one datagram channel on the I/O engine serves every sender. Packets
+// are written where they belong as they arrive. Every ACK_INTERVAL each transfer tells its sender how far it has
+// got, which packets below the highest one are still missing, and how fast packets are arriving.
+class UdpReceiver extends IoEngine.Connection {
+
+    static final long ACK_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final long IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    // A finished transfer still answers its sender for a while, in case the DONE packet was lost
+    private static final long LINGER_NANOS = TimeUnit.SECONDS.toNanos(30);
+    // An accepted sender starts sending at once; one that does not within this time is forgotten
+    private static final long UNSTARTED_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+    // HELLOs cost a sender nothing, so only this many transfers may be accepted without having sent any data
+    private static final int MAX_UNSTARTED = 16;
+    // While nothing arrives, the sender is still told what is missing, in case its packets or our ACKs were lost
+    private static final long IDLE_ACK_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final int ACK_HEADER = 31;
+    private static final int MAX_RANGES = (Protocol.UDP_MAX_PACKET - ACK_HEADER) / 8;
+
+    private final DatagramChannel channel;
+    private final Path saveRoot;
+    private final String password;
+    private final boolean showProgress;
+    private final Semaphore transferSlots;
+    private final Runnable releaseSlot;
+    private final CompletableFuture<Void> firstTransfer;
+    private final BufferPool buffers;
+
+    // Only touched on the I/O thread
+    private final Map<Long, Transfer> transfers = new HashMap<>();
+    // Transfers whose header is still being checked on a virtual thread
+    private final Set<Long> opening = new HashSet<>();
+    private final ByteBuffer packet = ByteBuffer.allocate(Protocol.UDP_MAX_PACKET);
+    private final ByteBuffer plain = ByteBuffer.allocate(4 + Protocol.UDP_PAYLOAD);
+    private final ByteBuffer reply = ByteBuffer.allocate(Protocol.UDP_MAX_PACKET);
+    private final CRC32C crc = new CRC32C();
+    private boolean ticking;
+
+    // The password does not open an encrypted transfer; the sender is told so rather than left to time out
+    private static class Rejected extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        Rejected(String message) {
+            super(message);
+        }
+    }
+
+    private class Transfer {
+        final long id;
+        final SocketAddress sender;
+        final String fileName;
+        final long fileSize;
+        final int packetCount;
+        final TransferKey transferKey;
+        final String peer;
+        final Path target;
+        final Path partFile;
+        // Grows with the packets that arrive rather than with the size the HELLO claims
+        final BitSet received = new BitSet();
+        // The part file is opened and a transfer slot taken only when the first valid packet arrives
+        FileChannel file;
+        TransferMetrics.Transfer metrics;
+        int receivedCount;
+        int highest = -1;
+        // Send time of the newest packet and when it arrived, echoed so the sender can time the round trip
+        int echo;
+        long echoArrived;
+        long lastHeard = System.nanoTime();
+        long lastAck;
+        int arrivals;
+        double arrivalRate;
+        int lastProgress = -1;
+        // Packets that follow one another are gathered and written together
+        ByteBuffer pending;
+        long pendingOffset;
+        long finishedAt;
+        boolean stored;
+
+        Transfer(long id, SocketAddress sender, String peer, String fileName, long fileSize, TransferKey transferKey,
+                 Path target) {
+            this.id = id;
+            this.sender = sender;
+            this.peer = peer;
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.packetCount = (int) ((fileSize + Protocol.UDP_PAYLOAD - 1) / Protocol.UDP_PAYLOAD);
+            this.transferKey = transferKey;
+            this.target = target;
+            this.partFile = target.resolveSibling(target.getFileName() + ".part");
+        }
+
+        boolean isStarted() {
+            return file != null;
+        }
+
+        boolean isFinished() {
+            return finishedAt != 0;
+        }
+    }
+
+    UdpReceiver(DatagramChannel channel, String saveDir, String password, boolean showProgress, Semaphore transferSlots,
+                Runnable releaseSlot, CompletableFuture<Void> firstTransfer, BufferPool buffers) {
+        this.channel = channel;
+        this.saveRoot = Path.of(saveDir).toAbsolutePath().normalize();
+        this.password = password;
+        this.showProgress = showProgress;
+        this.transferSlots = transferSlots;
+        this.releaseSlot = releaseSlot;
+        this.firstTransfer = firstTransfer;
+        this.buffers = buffers;
+    }
+
+    @Override
+    protected void onReadable() throws IOException {
+        SocketAddress sender;
+        while ((sender = channel.receive(packet.clear())) != null) {
+            packet.flip();
+            if (packet.remaining() < 9) {
+                continue;
+            }
+            int type = packet.get();
+            long id = packet.getLong();
+            Transfer transfer = transfers.get(id);
+            if (type == Protocol.UDP_HELLO) {
+                hello(id, transfer, sender);
+            } else if (type == Protocol.UDP_DATA && transfer != null) {
+                if (transfer.isFinished()) {
+                    sendDone(transfer);
+                } else {
+                    data(transfer);
+                }
+            }
+        }
+    }
+
+    private void hello(long id, Transfer transfer, SocketAddress sender) throws IOException {
+        if (transfer != null) {
+            // Our answer was lost
+            sendAccept(id, sender, 0);
+            if (transfer.isFinished()) {
+                sendDone(transfer);
+            } else if (transfer.packetCount == 0) {
+                startEmpty(transfer);
+            }
+            return;
+        }
+        // Without a free slot the sender is not answered and keeps asking until one comes free or it gives up
+        if (opening.contains(id) || transferSlots.availablePermits() == 0 || opening.size() + unstarted() >= MAX_UNSTARTED) {
+            return;
+        }
+        opening.add(id);
+        byte[] header = new byte[packet.remaining()];
+        packet.get(header);
+        // Deriving the key from the password takes a while, so it stays off the I/O thread
+        Thread.ofVirtual().name("udp-accept").start(() -> {
+            try {
+                Transfer accepted = open(id, sender, header);
+                execute(() -> {
+                    opening.remove(id);
+                    transfers.put(id, accepted);
+                    try {
+                        sendAccept(id, sender, 0);
+                    } catch (IOException e) {
+                        // Sent again when the sender repeats its HELLO
+                    }
+                    if (accepted.packetCount == 0) {
+                        startEmpty(accepted);
+                    }
+                    startTicking();
+                });
+            } catch (Exception e) {
+                execute(() -> {
+                    opening.remove(id);
+                    try {
+                        sendAccept(id, sender, e instanceof Rejected ? Protocol.HANDSHAKE_REJECTED : Protocol.UDP_REFUSED);
+                    } catch (IOException ignored) {
+                        // The sender times out instead
+                    }
+                });
+                // Nothing was accepted, so a stray or malformed HELLO is only logged and never ends a one-shot receive
+                System.err.println("Refused a UDP transfer from " + address(sender) + ": "
+                        + (e.getMessage() != null ? e.getMessage() : "Invalid UDP transfer header."));
+            }
+        });
+    }
+
+    private int unstarted() {
+        int count = 0;
+        for (Transfer transfer : transfers.values()) {
+            if (!transfer.isStarted() && !transfer.isFinished()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // An empty file has no packet to wait for, so it is stored as soon as a slot is free
+    private void startEmpty(Transfer transfer) {
+        try {
+            if (start(transfer)) {
+                complete(transfer);
+            }
+        } catch (IOException e) {
+            fail(transfer, e);
+        }
+    }
+
+    // Takes a transfer slot and creates the part file, once the sender has sent a packet that checks out. Returns
+    // false while every slot is taken; the packet is then dropped and sent again like a lost one.
+    private boolean start(Transfer transfer) throws IOException {
+        if (!transferSlots.tryAcquire()) {
+            return false;
+        }
+        try {
+            SavePaths.claim(transfer.target, transfer.fileName);
+        } catch (IOException e) {
+            releaseSlot.run();
+            throw e;
+        }
+        try {
+            // Like the TCP receivers, names may carry subdirectories; they are created only now, not for a bare HELLO
+            Files.createDirectories(transfer.target.getParent());
+            transfer.file = FileChannel.open(transfer.partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            SavePaths.release(transfer.target);
+            releaseSlot.run();
+            throw e;
+        }
+        transfer.metrics = TransferMetrics.begin(TransferMetrics.RECEIVE, "udp", transfer.fileName, transfer.peer);
+        System.out.println("Sender connected over UDP: " + transfer.peer);
+        System.out.println("Receiving " + (transfer.transferKey != null ? "encrypted" : "unencrypted") + " file: "
+                + transfer.fileName + " (" + (transfer.fileSize / 1024 / 1024) + " MB)");
+        return true;
+    }
+
+    private static String address(SocketAddress sender) {
+        return sender instanceof InetSocketAddress address ? address.getAddress().getHostAddress() : sender.toString();
+    }
+
+    // HELLO: name, size, modification time and the key header of an encrypted transfer. Nothing is created on disk
+    // yet: an encrypted sender has proven it knows the password, an unencrypted one nothing at all.
+    private Transfer open(long id, SocketAddress sender, byte[] header) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(header));
+        String fileName = in.readUTF();
+        long fileSize = in.readLong();
+        in.readLong();
+        boolean isEncrypted = in.readBoolean();
+        if (fileSize < 0 || (fileSize + Protocol.UDP_PAYLOAD - 1) / Protocol.UDP_PAYLOAD > Integer.MAX_VALUE) {
+            throw new IOException("Invalid UDP transfer header.");
+        }
+        TransferKey transferKey = null;
+        if (isEncrypted) {
+            transferKey = TransferKey.readHeader(in, password);
+            if (transferKey == null) {
+                throw new Rejected(password == null || password.isEmpty()
+                        ? "Received an encrypted file but no password was provided."
+                        : "Received an encrypted file but the password does not match.");
+            }
+        }
+        Path target = SavePaths.resolve(saveRoot, fileName, false);
+        return new Transfer(id, sender, address(sender), fileName, fileSize, transferKey, target);
+    }
+
+    private void data(Transfer transfer) throws IOException {
+        if (packet.remaining() < Protocol.UDP_DATA_HEADER - 9 + 4) {
+            return;
+        }
+        int seq = packet.getInt();
+        int counter = packet.getInt();
+        int sentMicros = packet.getInt();
+        if (seq < 0 || seq >= transfer.packetCount) {
+            return;
+        }
+        long now = System.nanoTime();
+        transfer.lastHeard = now;
+        transfer.echo = sentMicros;
+        transfer.echoArrived = now;
+        transfer.arrivals++;
+        TransferMetrics.P2P_BYTES_RECEIVED.add(packet.limit());
+        if (transfer.received.get(seq)) {
+            return;
+        }
+        long offset = (long) seq * Protocol.UDP_PAYLOAD;
+        int length = (int) Math.min(Protocol.UDP_PAYLOAD, transfer.fileSize - offset);
+        ByteBuffer slice = transfer.transferKey != null ? open(transfer, seq, counter, length) : check(seq, length);
+        // A damaged or forged packet is dropped and reported missing like a lost one
+        if (slice == null) {
+            return;
+        }
+        // A disk error ends this transfer only; the channel is shared by all of them
+        try {
+            if (!transfer.isStarted() && !start(transfer)) {
+                return;
+            }
+            write(transfer, offset, slice);
+        } catch (IOException e) {
+            fail(transfer, e);
+            return;
+        }
+        transfer.received.set(seq);
+        transfer.receivedCount++;
+        transfer.highest = Math.max(transfer.highest, seq);
+        if (transfer.receivedCount == transfer.packetCount) {
+            complete(transfer);
+        }
+    }
+
+    private ByteBuffer check(int seq, int length) {
+        if (packet.remaining() != 4 + length) {
+            return null;
+        }
+        int expected = packet.getInt();
+        crc.reset();
+        crc.update(packet.array(), 0, Protocol.UDP_DATA_HEADER);
+        crc.update(packet.array(), Protocol.UDP_DATA_HEADER + 4, length);
+        return (int) crc.getValue() == expected ? packet : null;
+    }
+
+    private ByteBuffer open(Transfer transfer, int seq, int counter, int length) {
+        if (packet.remaining() != 4 + length + CryptoUtils.TAG_LENGTH) {
+            return null;
+        }
+        plain.clear();
+        try {
+            CryptoUtils.openChunk(transfer.transferKey.key, transfer.transferKey.noncePrefix,
+                    Integer.toUnsignedLong(counter), packet, plain);
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+        plain.flip();
+        return plain.getInt() == seq ? plain : null;
+    }
+
+    private void write(Transfer transfer, long offset, ByteBuffer slice) throws IOException {
+        ByteBuffer pending = transfer.pending;
+        if (pending != null && pending.position() > 0
+                && (offset != transfer.pendingOffset + pending.position() || pending.remaining() < slice.remaining())) {
+            flush(transfer);
+        }
+        if (pending == null) {
+            pending = transfer.pending = buffers.acquire();
+        }
+        if (pending.position() == 0) {
+            transfer.pendingOffset = offset;
+        }
+        pending.put(slice);
+    }
+
+    private void flush(Transfer transfer) throws IOException {
+        ByteBuffer pending = transfer.pending;
+        if (pending == null || pending.position() == 0) {
+            return;
+        }
+        pending.flip();
+        long start = System.nanoTime();
+        while (pending.hasRemaining()) {
+            transfer.file.write(pending, transfer.pendingOffset + pending.position());
+        }
+        TransferMetrics.RECEIVE_DISK_TIME.add(System.nanoTime() - start);
+        pending.clear();
+    }
+
+    private void complete(Transfer transfer) {
+        try {
+            flush(transfer);
+            transfer.file.force(false);
+            transfer.file.close();
+            Files.move(transfer.partFile, transfer.target, StandardCopyOption.REPLACE_EXISTING);
+            transfer.stored = true;
+            ChunkIndex.indexLater(saveRoot, transfer.target);
+        } catch (IOException e) {
+            fail(transfer, e);
+            return;
+        }
+        finish(transfer);
+        System.out.println("\nFile received successfully: " + transfer.fileName);
+        if (firstTransfer != null) {
+            firstTransfer.complete(null);
+        }
+    }
+
+    // The sender hears of a failure through its DONE packet, or by no longer hearing anything
+    private void fail(Transfer transfer, Exception failure) {
+        if (transfer.isStarted()) {
+            try {
+                transfer.file.close();
+                Files.deleteIfExists(transfer.partFile);
+            } catch (IOException e) {
+                // Left behind as a .part file
+            }
+        }
+        finish(transfer);
+        report(failure);
+    }
+
+    private void finish(Transfer transfer) {
+        buffers.release(transfer.pending);
+        transfer.pending = null;
+        transfer.finishedAt = System.nanoTime();
+        if (transfer.isStarted()) {
+            transfer.metrics.finish(transfer.stored ? transfer.fileSize : (long) transfer.receivedCount * Protocol.UDP_PAYLOAD,
+                    transfer.stored);
+            SavePaths.release(transfer.target);
+            releaseSlot.run();
+        }
+        try {
+            sendDone(transfer);
+        } catch (IOException e) {
+            // Answered again when the sender repeats a packet
+        }
+    }
+
+    private void report(Exception e) {
+        if (firstTransfer != null) {
+            firstTransfer.completeExceptionally(e);
+        } else {
+            System.err.println("UDP transfer failed: " + e.getMessage());
+        }
+    }
+
+    private void startTicking() {
+        if (!ticking) {
+            ticking = true;
+            wakeAfter(ACK_INTERVAL_NANOS);
+        }
+    }
+
+    @Override
+    protected void onWake() throws IOException {
+        long now = System.nanoTime();
+        Iterator<Transfer> all = transfers.values().iterator();
+        while (all.hasNext()) {
+            Transfer transfer = all.next();
+            if (transfer.isFinished()) {
+                if (now - transfer.finishedAt > LINGER_NANOS) {
+                    all.remove();
+                }
+                continue;
+            }
+            if (!transfer.isStarted()) {
+                if (now - transfer.lastHeard > UNSTARTED_TIMEOUT_NANOS) {
+                    all.remove();
+                    System.err.println("UDP sender " + transfer.peer + " was accepted for " + transfer.fileName
+                            + " but sent nothing usable.");
+                }
+                continue;
+            }
+            if (now - transfer.lastHeard > IDLE_TIMEOUT_NANOS) {
+                fail(transfer, new IOException("Sender of " + transfer.fileName + " went silent."));
+                continue;
+            }
+            double measured = transfer.arrivals * 1e9 / ACK_INTERVAL_NANOS;
+            transfer.arrivalRate = transfer.arrivalRate == 0 ? measured : (7 * transfer.arrivalRate + measured) / 8;
+            if (transfer.arrivals > 0 || now - transfer.lastAck > IDLE_ACK_NANOS) {
+                sendAck(transfer, now);
+            }
+            transfer.arrivals = 0;
+            printProgress(transfer);
+        }
+        ticking = false;
+        if (!transfers.isEmpty()) {
+            startTicking();
+        }
+    }
+
+    private void sendAck(Transfer transfer, long now) throws IOException {
+        BitSet received = transfer.received;
+        int acked = Math.min(received.nextClearBit(0), transfer.packetCount);
+        reply.clear();
+        reply.put((byte) Protocol.UDP_ACK).putLong(transfer.id).putInt(acked).putInt(transfer.highest)
+                .putInt(transfer.echo).putInt((int) TimeUnit.NANOSECONDS.toMicros(now - transfer.echoArrived))
+                .putInt((int) transfer.arrivalRate);
+        int countAt = reply.position();
+        reply.putShort((short) 0);
+        int ranges = 0;
+        int from = received.nextClearBit(acked);
+        while (from < transfer.highest && ranges < MAX_RANGES) {
+            int to = Math.min(received.nextSetBit(from), transfer.highest);
+            reply.putInt(from).putInt(to);
+            ranges++;
+            from = received.nextClearBit(to);
+        }
+        reply.putShort(countAt, (short) ranges).flip();
+        transfer.lastAck = now;
+        // A reply the socket buffer cannot take is dropped; the next ACK carries the same news
+        channel.send(reply, transfer.sender);
+    }
+
+    private void sendAccept(long id, SocketAddress sender, int status) throws IOException {
+        reply.clear();
+        reply.put((byte) Protocol.UDP_ACCEPT).putLong(id).putInt(status).flip();
+        channel.send(reply, sender);
+    }
+
+    private void sendDone(Transfer transfer) throws IOException {
+        reply.clear();
+        reply.put((byte) Protocol.UDP_DONE).putLong(transfer.id).put((byte) (transfer.stored ? 1 : 0)).flip();
+        channel.send(reply, transfer.sender);
+    }
+
+    private void printProgress(Transfer transfer) {
+        if (transfer.packetCount == 0 || !showProgress) return;
+        int progress = (int) ((long) transfer.receivedCount * 100 / transfer.packetCount);
+        if (progress != transfer.lastProgress) {
+            transfer.lastProgress = progress;
+            System.out.print("\rProgress: " + progress + "% ");
+        }
+    }
+
+    // Stops receiving; may be called from any thread
+    void shutdown() {
+        execute(this::close);
+    }
+
+    @Override
+    protected void onClosed(Exception failure) {
+        for (Transfer transfer : transfers.values()) {
+            if (transfer.isStarted() && !transfer.isFinished()) {
+                fail(transfer, new IOException("Receiver stopped."));
+            }
+        }
+        if (failure != null) {
+            System.err.println("UDP receiver failed: " + failure.getMessage());
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package com.p2pfilesharer.network;
+
+import com.p2pfilesharer.bandwidth.BandwidthShaper;
+import com.p2pfilesharer.encryption.CryptoUtils;
+import com.p2pfilesharer.metrics.TransferMetrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+
+// Sends one file over UDP, for long or lossy paths where a single TCP connection backs off far below what the
+// link carries. Packets are paced at a rate instead of being held back by a window of acknowledgements. The rate
+// doubles each round trip at first, then grows by a sixteenth; it only drops when the round trip starts to grow
+// (a queue is building) or clearly more is lost than random loss explains, so a lossy path is still used in full.
+// The receiver names the missing packets in every ACK, and only those are sent again.
+class UdpSender {
+
+    // Packets in flight beyond the first one the receiver is missing, about 88 MB
+    private static final int WINDOW = 1 << 16;
+    private static final long HELLO_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final long HANDSHAKE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(15);
+    private static final long IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(15);
+    // Rates in packets per second
+    private static final double INITIAL_RATE = 1000;
+    private static final double MIN_RATE = 100;
+    private static final double MAX_RATE = 1_000_000;
+    // Packets that may go out back to back when the sender thread wakes up late, as a share of a second
+    private static final double BURST_SECONDS = 0.002;
+    // Loss above this share of what was sent in a round trip is taken as congestion rather than a lossy path
+    private static final double LOSS_TOLERANCE = 0.05;
+    // A round trip this much above the shortest seen, even at its shortest over a whole round, means the packets
+    // are queueing somewhere
+    private static final double QUEUE_DELAY_FACTOR = 1.25;
+    private static final long QUEUE_DELAY_MARGIN_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+    private static final int READ_AHEAD_PACKETS = 48;
+    private static final int SOCKET_BUFFER = 4 * 1024 * 1024;
+
+    private final String host;
+    private final int port;
+    private final BandwidthShaper.Peer shaper;
+
+    private DatagramChannel channel;
+    private Selector selector;
+    private FileChannel fileChannel;
+    private long transferId;
+    private long fileSize;
+    private int packetCount;
+    private TransferKey transferKey;
+    private long counter;
+    private final CRC32C crc = new CRC32C();
+    private final byte[] packetBytes = new byte[Protocol.UDP_MAX_PACKET];
+    private final ByteBuffer incoming = ByteBuffer.allocate(Protocol.UDP_MAX_PACKET);
+    private final ByteBuffer sealInput = ByteBuffer.allocate(4 + Protocol.UDP_PAYLOAD);
+    private final ByteBuffer readAhead = ByteBuffer.allocate(READ_AHEAD_PACKETS * Protocol.UDP_PAYLOAD);
+    private final ByteBuffer retry = ByteBuffer.allocate(Protocol.UDP_PAYLOAD);
+    private long readAheadOffset = -1;
+
+    // Progress: next is the next packet never sent, acked the first one the receiver is missing, highest the
+    // highest it has
+    private int next;
+    private int acked;
+    private int highest = -1;
+    private final long[] lastSent = new long[WINDOW];
+    private final ArrayDeque<Integer> resend = new ArrayDeque<>();
+    private BitSet queued;
+    private boolean done;
+    private boolean stored;
+    private long lastHeard;
+    private int lastProgress = -1;
+
+    // Congestion control, per round trip
+    private double rate = INITIAL_RATE;
+    private double credit;
+    private boolean slowStart = true;
+    private long smoothedRtt = TimeUnit.MILLISECONDS.toNanos(100);
+    private long minRtt = Long.MAX_VALUE;
+    private long roundMinRtt = Long.MAX_VALUE;
+    private long roundStart;
+    private int sentThisRound;
+    private int lostThisRound;
+
+    UdpSender(String host, int port) {
+        this.host = host;
+        this.port = port;
+        this.shaper = BandwidthShaper.global().peer(host);
+    }
+
+    void send(File file, String password) throws IOException {
+        boolean isEncrypted = (password != null && !password.isEmpty());
+        transferId = new SecureRandom().nextLong();
+        try (DatagramChannel datagrams = DatagramChannel.open();
+             Selector waiting = Selector.open();
+             FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel = datagrams;
+            selector = waiting;
+            fileChannel = source;
+            fileSize = source.size();
+            if ((fileSize + Protocol.UDP_PAYLOAD - 1) / Protocol.UDP_PAYLOAD > Integer.MAX_VALUE) {
+                throw new IOException("File is too large for the UDP transport.");
+            }
+            packetCount = (int) ((fileSize + Protocol.UDP_PAYLOAD - 1) / Protocol.UDP_PAYLOAD);
+            queued = new BitSet(packetCount);
+            transferKey = isEncrypted ? TransferKey.forSending(host + ":" + port, password) : null;
+
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+            channel.connect(new InetSocketAddress(host, port));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+
+            handshake(file);
+            System.out.println("Connection established with " + host + " over UDP (round trip "
+                    + String.format("%.1f", smoothedRtt / 1e6) + " ms).");
+            System.out.println(isEncrypted ? "Sending file with AES-GCM encryption." : "Sending file without encryption.");
+            System.out.println("Sending file: " + file.getName() + " (" + (fileSize / 1024 / 1024) + " MB)");
+            transfer();
+            if (!stored) {
+                throw new IOException("Receiver could not store the file.");
+            }
+            System.out.println("\nFile transfer complete.");
+        } catch (PortUnreachableException e) {
+            throw new IOException("Peer does not accept UDP transfers on port " + port + ".", e);
+        }
+    }
+
+    // Repeats the file header until the receiver accepts it; the first answer gives the initial round trip
+    private void handshake(File file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream hello = new DataOutputStream(bytes);
+        hello.writeByte(Protocol.UDP_HELLO);
+        hello.writeLong(transferId);
+        hello.writeUTF(file.getName());
+        hello.writeLong(fileSize);
+        hello.writeLong(file.lastModified());
+        hello.writeBoolean(transferKey != null);
+        if (transferKey != null) {
+            transferKey.writeHeader(hello);
+        }
+        ByteBuffer packet = ByteBuffer.wrap(bytes.toByteArray());
+
+        long start = System.nanoTime();
+        int attempts = 0;
+        while (System.nanoTime() - start < HANDSHAKE_TIMEOUT_NANOS) {
+            long sentAt = System.nanoTime();
+            channel.write(packet.rewind());
+            attempts++;
+            while (System.nanoTime() - sentAt < HELLO_INTERVAL_NANOS) {
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(HELLO_INTERVAL_NANOS - (System.nanoTime() - sentAt))));
+                selector.selectedKeys().clear();
+                while (channel.read(incoming.clear()) > 0) {
+                    incoming.flip();
+                    if (incoming.remaining() < 13 || incoming.get() != Protocol.UDP_ACCEPT || incoming.getLong() != transferId) {
+                        continue;
+                    }
+                    int status = incoming.getInt();
+                    if (status == Protocol.HANDSHAKE_REJECTED) {
+                        throw new IOException("Receiver rejected the transfer: the password is missing or incorrect.");
+                    }
+                    if (status != 0) {
+                        throw new IOException("Receiver could not accept the file.");
+                    }
+                    // Only an answer to the first attempt is known to belong to that attempt. It includes the
+                    // receiver opening the file, so it only seeds the smoothed round trip, not the shortest one.
+                    smoothedRtt = attempts == 1 ? System.nanoTime() - sentAt : HELLO_INTERVAL_NANOS;
+                    lastHeard = System.nanoTime();
+                    return;
+                }
+            }
+        }
+        throw new IOException("Peer did not answer over UDP. It may not be receiving, or a firewall blocks UDP port " + port + ".");
+    }
+
+    private void transfer() throws IOException {
+        long lastTick = System.nanoTime();
+        roundStart = lastTick;
+        while (!done) {
+            readControl();
+            if (done) {
+                break;
+            }
+            long now = System.nanoTime();
+            if (now - lastHeard > IDLE_TIMEOUT_NANOS) {
+                throw new IOException("Lost contact with the receiver.");
+            }
+            credit = Math.min(credit + (now - lastTick) * rate / 1e9, Math.max(8, rate * BURST_SECONDS));
+            lastTick = now;
+            boolean idle = false;
+            while (credit >= 1) {
+                int seq = nextToSend(now);
+                if (seq < 0) {
+                    idle = true;
+                    break;
+                }
+                sendData(seq, now);
+                credit -= 1;
+            }
+            // Waits of a millisecond or more are spent in select, so an ACK is read as soon as it arrives and its
+            // round trip is not stretched by the sender sleeping
+            long wait = idle ? TimeUnit.MILLISECONDS.toNanos(1) : (long) (Math.max(0, 1 - credit) / rate * 1e9);
+            if (wait >= TimeUnit.MILLISECONDS.toNanos(1)) {
+                selector.select(TimeUnit.NANOSECONDS.toMillis(wait));
+                selector.selectedKeys().clear();
+            } else if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+
+    // Missing packets the receiver reported come first, then new ones while the window allows, and at the end
+    // packets beyond the receiver's highest that have gone unanswered for a few round trips
+    private int nextToSend(long now) {
+        while (!resend.isEmpty()) {
+            int seq = resend.poll();
+            queued.clear(seq);
+            if (seq >= acked) {
+                return seq;
+            }
+        }
+        if (next < packetCount && next - acked < WINDOW) {
+            return next++;
+        }
+        long timeout = 2 * smoothedRtt + 4 * UdpReceiver.ACK_INTERVAL_NANOS;
+        for (int seq = Math.max(acked, highest + 1); seq < next; seq++) {
+            if (now - lastSent[seq & (WINDOW - 1)] > timeout) {
+                return seq;
+            }
+        }
+        // The receiver only answers packets, so once its last ACKs are lost both sides would wait for each other.
+        // Repeating the first missing packet asks it for a fresh one.
+        if (acked < packetCount && now - lastHeard > timeout && now - lastSent[acked & (WINDOW - 1)] > timeout) {
+            return acked;
+        }
+        return -1;
+    }
+
+    private void sendData(int seq, long now) throws IOException {
+        long offset = (long) seq * Protocol.UDP_PAYLOAD;
+        int length = (int) Math.min(Protocol.UDP_PAYLOAD, fileSize - offset);
+        ByteBuffer slice = read(offset, length);
+
+        ByteBuffer packet = ByteBuffer.wrap(packetBytes);
+        packet.put((byte) Protocol.UDP_DATA).putLong(transferId).putInt(seq)
+                .putInt((int) counter).putInt((int) TimeUnit.NANOSECONDS.toMicros(now));
+        if (transferKey != null) {
+            // The sequence is sealed with the slice, so a packet cannot be replayed at another offset. Every
+            // transmission, a repeat included, takes a fresh counter so no nonce is used twice.
+            if (counter >= CryptoUtils.KEY_CHECK_COUNTER) {
+                throw new IOException("Transfer exhausted its nonce space; start a new transfer.");
+            }
+            sealInput.clear();
+            sealInput.putInt(seq).put(slice).flip();
+            try {
+                CryptoUtils.sealChunk(transferKey.key, transferKey.noncePrefix, counter, sealInput, packet);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Could not encrypt packet: " + e.getMessage(), e);
+            }
+            counter++;
+        } else {
+            packet.putInt(0).put(slice);
+            crc.reset();
+            crc.update(packetBytes, 0, Protocol.UDP_DATA_HEADER);
+            crc.update(packetBytes, Protocol.UDP_DATA_HEADER + 4, length);
+            packet.putInt(Protocol.UDP_DATA_HEADER, (int) crc.getValue());
+        }
+        packet.flip();
+        shaper.acquire(packet.remaining());
+        int sent = channel.write(packet);
+        // A full socket buffer drops the packet as the network would; it is sent again like any other loss
+        TransferMetrics.P2P_BYTES_SENT.add(sent);
+        lastSent[seq & (WINDOW - 1)] = now;
+        sentThisRound++;
+    }
+
+    // New packets come from a block read ahead in file order; repeats are read on their own
+    private ByteBuffer read(long offset, int length) throws IOException {
+        if (readAheadOffset < 0 || offset < readAheadOffset || offset + length > readAheadOffset + readAhead.limit()) {
+            if (offset != (long) (next - 1) * Protocol.UDP_PAYLOAD) {
+                retry.clear().limit(length);
+                readFully(retry, offset);
+                return retry.flip();
+            }
+            readAhead.clear().limit((int) Math.min(readAhead.capacity(), fileSize - offset));
+            readFully(readAhead, offset);
+            readAhead.flip();
+            readAheadOffset = offset;
+        }
+        int start = (int) (offset - readAheadOffset);
+        return readAhead.duplicate().position(start).limit(start + length);
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("File was truncated while it was being sent.");
+            }
+        }
+    }
+
+    private void readControl() throws IOException {
+        while (channel.read(incoming.clear()) > 0) {
+            incoming.flip();
+            if (incoming.remaining() < 9) {
+                continue;
+            }
+            int type = incoming.get();
+            if (incoming.getLong() != transferId) {
+                continue;
+            }
+            lastHeard = System.nanoTime();
+            if (type == Protocol.UDP_DONE && incoming.hasRemaining()) {
+                stored = incoming.get() == 1;
+                done = true;
+                return;
+            }
+            if (type == Protocol.UDP_ACK && incoming.remaining() >= 22) {
+                readAck();
+            }
+        }
+    }
+
+    // ACK: first missing packet, highest packet, the send time of the newest packet and how long the receiver held
+    // it, the receiver's arrival rate, then ranges of missing packets below the highest
+    private void readAck() {
+        long now = System.nanoTime();
+        int receiverAcked = incoming.getInt();
+        int receiverHighest = incoming.getInt();
+        int echo = incoming.getInt();
+        int heldMicros = incoming.getInt();
+        int arrivalRate = incoming.getInt();
+        int ranges = incoming.getShort() & 0xFFFF;
+
+        acked = Math.max(acked, Math.min(receiverAcked, next));
+        highest = Math.max(highest, Math.min(receiverHighest, next - 1));
+        long rtt = TimeUnit.MICROSECONDS.toNanos((int) TimeUnit.NANOSECONDS.toMicros(now) - echo - heldMicros);
+        if (rtt > 0 && rtt < TimeUnit.SECONDS.toNanos(10)) {
+            smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+            minRtt = Math.min(minRtt, rtt);
+            roundMinRtt = Math.min(roundMinRtt, rtt);
+        }
+
+        long resendAfter = smoothedRtt + UdpReceiver.ACK_INTERVAL_NANOS;
+        for (int i = 0; i < ranges && incoming.remaining() >= 8; i++) {
+            int from = Math.max(incoming.getInt(), acked);
+            int to = Math.min(incoming.getInt(), next);
+            for (int seq = from; seq < to; seq++) {
+                // Reported again before the last repeat could have arrived: already on its way
+                if (!queued.get(seq) && now - lastSent[seq & (WINDOW - 1)] > resendAfter) {
+                    queued.set(seq);
+                    resend.add(seq);
+                    lostThisRound++;
+                }
+            }
+        }
+
+        if (now - roundStart >= smoothedRtt) {
+            adjustRate(arrivalRate);
+            roundStart = now;
+            sentThisRound = 0;
+            lostThisRound = 0;
+            roundMinRtt = Long.MAX_VALUE;
+        }
+        printProgress();
+    }
+
+    private void adjustRate(int arrivalRate) {
+        double loss = sentThisRound == 0 ? 0 : (double) lostThisRound / sentThisRound;
+        boolean queueing = roundMinRtt != Long.MAX_VALUE
+                && roundMinRtt > minRtt * QUEUE_DELAY_FACTOR + QUEUE_DELAY_MARGIN_NANOS;
+        if (loss > LOSS_TOLERANCE || queueing) {
+            if (slowStart) {
+                // Leave slow start at what actually got through
+                slowStart = false;
+                rate = Math.max(rate / 2, arrivalRate);
+            } else {
+                rate = rate * 7 / 8;
+            }
+        } else if (slowStart) {
+            rate = rate * 2;
+        } else {
+            rate = rate * 17 / 16;
+        }
+        rate = Math.max(MIN_RATE, Math.min(MAX_RATE, rate));
+    }
+
+    private void printProgress() {
+        if (packetCount == 0) return;
+        int progress = (int) ((long) acked * 100 / packetCount);
+        if (progress != lastProgress) {
+            lastProgress = progress;
+            System.out.print("\rProgress: " + progress + "% ");
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.p2pfilesharer.web;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+
+// The set of files a share node offers, keyed by short ids that stay the same across restarts
+public class FileCatalog {
+
+    private static final int ID_LENGTH = 12;
+
+    private final Map<String, Entry> entries = new ConcurrentSkipListMap<>();
+
+    // Adds a file, or every regular file below a directory, and returns how many files were added
+    public int add(File file) throws IOException {
+        Path root = file.toPath().toAbsolutePath().normalize();
+        if (Files.isRegularFile(root)) {
+            put(root, root.getFileName().toString());
+            return 1;
+        }
+        if (!Files.isDirectory(root)) {
+            throw new IOException("Not a file or directory: " + file);
+        }
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile).toList();
+        }
+        String prefix = root.getFileName() == null ? "" : root.getFileName() + "/";
+        for (Path path : files) {
+            put(path, prefix + root.relativize(path).toString().replace(File.separatorChar, '/'));
+        }
+        return files.size();
+    }
+
+    public boolean remove(String id) {
+        return entries.remove(id) != null;
+    }
+
+    public Entry get(String id) {
+        return entries.get(id);
+    }
+
+    public Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // Lists every shared file that still exists; files deleted since they were added are dropped
+    String toJson() {
+        List<Entry> sorted = new ArrayList<>(entries.values());
+        sorted.sort(Comparator.comparing(Entry::getName));
+        List<String> items = new ArrayList<>();
+        for (Entry entry : sorted) {
+            File file = entry.getFile();
+            if (!file.isFile()) {
+                continue;
+            }
+            items.add("{\"id\":\"" + entry.getId() + "\",\"name\":\"" + escape(entry.getName())
+                    + "\",\"size\":" + file.length() + ",\"lastModified\":" + file.lastModified()
+                    + ",\"url\":\"/files/" + entry.getId() + "\"}");
+        }
+        return "[" + String.join(",", items) + "]";
+    }
+
+    private void put(Path path, String name) {
+        String id = idFor(path);
+        entries.put(id, new Entry(id, name, path.toFile()));
+    }
+
+    private static String idFor(Path path) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(path.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder id = new StringBuilder();
+            for (int i = 0; i < ID_LENGTH / 2; i++) {
+                id.append(String.format("%02x", hash[i]));
+            }
+            return id.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder();
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    public static class Entry {
+        private final String id;
+        private final String name;
+        private final File file;
+
+        Entry(String id, String name, File file) {
+            this.id = id;
+            this.name = name;
+            this.file = file;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public File getFile() {
+            return file;
+        }
+    }
+}
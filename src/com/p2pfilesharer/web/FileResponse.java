@@ -0,0 +1,358 @@
+package com.p2pfilesharer.web;
+
+import com.p2pfilesharer.compression.CompressionUtils;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+// Answers one GET or HEAD for a file: validators (ETag, Last-Modified), conditional requests,
+// single and multiple byte ranges, gzip when the client accepts it, and the body streamed from a FileChannel
+final class FileResponse {
+
+    // More ranges than this in one request are ignored and the whole file is sent instead
+    private static final int MAX_RANGES = 64;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    // Smaller files are not worth a gzip header and a chunked response
+    private static final int MIN_GZIP_SIZE = 1024;
+    private static final String CONTENT_TYPE = "application/octet-stream";
+    private static final DateTimeFormatter HTTP_DATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private FileResponse() {
+    }
+
+    static void send(HttpExchange exchange, File file) throws IOException {
+        String method = exchange.getRequestMethod();
+        Headers request = exchange.getRequestHeaders();
+        Headers response = exchange.getResponseHeaders();
+        if (!method.equals("GET") && !method.equals("HEAD")) {
+            response.set("Allow", "GET, HEAD");
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+
+        long size = file.length();
+        // HTTP dates only carry whole seconds
+        long lastModified = file.lastModified() / 1000 * 1000;
+        // Ranges always refer to the plain bytes, so only whole-file responses are compressed
+        String rangeHeader = request.getFirst("Range");
+        boolean gzip = rangeHeader == null && acceptsGzip(request.getFirst("Accept-Encoding")) && looksCompressible(file, size);
+        String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(file.lastModified()) + (gzip ? "-gzip" : "") + "\"";
+        response.set("Accept-Ranges", "bytes");
+        response.set("Vary", "Accept-Encoding");
+        response.set("ETag", etag);
+        response.set("Last-Modified", HTTP_DATE.format(Instant.ofEpochMilli(lastModified)));
+
+        if (notModified(request, etag, lastModified)) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+
+        response.set("Content-Disposition", "attachment; filename=\"" + file.getName() + "\"");
+        if (gzip) {
+            response.set("Content-Type", CONTENT_TYPE);
+            response.set("Content-Encoding", "gzip");
+            sendGzip(exchange, file, size, method.equals("HEAD"));
+            return;
+        }
+        List<long[]> ranges = null;
+        if (rangeHeader != null && ifRangeMatches(request.getFirst("If-Range"), etag, lastModified)) {
+            ranges = parseRanges(rangeHeader, size);
+            if (ranges != null && ranges.isEmpty()) {
+                response.set("Content-Range", "bytes */" + size);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+        }
+
+        boolean head = method.equals("HEAD");
+        if (ranges == null) {
+            response.set("Content-Type", CONTENT_TYPE);
+            sendBody(exchange, file, 200, size, head, List.of(new long[]{0, size - 1}), null, size);
+        } else if (ranges.size() == 1) {
+            long[] range = ranges.get(0);
+            response.set("Content-Type", CONTENT_TYPE);
+            response.set("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+            sendBody(exchange, file, 206, range[1] - range[0] + 1, head, ranges, null, size);
+        } else {
+            String boundary = UUID.randomUUID().toString().replace("-", "");
+            response.set("Content-Type", "multipart/byteranges; boundary=" + boundary);
+            long length = multipartEnd(boundary).length;
+            for (long[] range : ranges) {
+                length += partHeader(boundary, range, size).length + range[1] - range[0] + 1;
+            }
+            sendBody(exchange, file, 206, length, head, ranges, boundary, size);
+        }
+    }
+
+    // If-None-Match takes precedence; If-Modified-Since is only consulted when it is absent
+    private static boolean notModified(Headers request, String etag, long lastModified) {
+        String ifNoneMatch = request.getFirst("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                String tag = candidate.trim();
+                if (tag.equals("*") || weakTag(tag).equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        Long since = parseDate(request.getFirst("If-Modified-Since"));
+        return since != null && lastModified <= since;
+    }
+
+    // A range request only applies if the client's copy is still current; otherwise it gets the whole file
+    private static boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(etag);
+        }
+        if (ifRange.startsWith("W/")) {
+            // If-Range needs a strong match, which a weak tag never is
+            return false;
+        }
+        Long date = parseDate(ifRange);
+        return date != null && date == lastModified;
+    }
+
+    // gzip is used when listed with a non-zero quality, or covered by "*" without being refused explicitly
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        Boolean wildcard = null;
+        for (String candidate : acceptEncoding.split(",")) {
+            String[] parts = candidate.trim().split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+            boolean accepted = true;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                return accepted;
+            }
+            if (coding.equals("*")) {
+                wildcard = accepted;
+            }
+        }
+        return wildcard != null && wildcard;
+    }
+
+    // Samples the start of the file, so media and archives are sent as they are
+    private static boolean looksCompressible(File file, long size) throws IOException {
+        if (size < MIN_GZIP_SIZE) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer sample = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, size));
+            while (sample.hasRemaining()) {
+                if (channel.read(sample, sample.position()) < 0) {
+                    break;
+                }
+            }
+            sample.flip();
+            return CompressionUtils.looksCompressible(sample);
+        }
+    }
+
+    // The compressed length is not known up front, so the body goes out chunked. Each block is sampled on its own,
+    // and high-entropy stretches of a mostly compressible file are stored instead of compressed.
+    private static void sendGzip(HttpExchange exchange, File file, long size, boolean head) throws IOException {
+        if (head) {
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(200, 0);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             AdaptiveGzipStream body = new AdaptiveGzipStream(exchange.getResponseBody())) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = 0;
+            while (position < size) {
+                ByteBuffer block = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, size - position));
+                int read = channel.read(block, position);
+                if (read < 0) {
+                    throw new IOException("File was truncated while it was being served.");
+                }
+                body.setCompressing(CompressionUtils.looksCompressible(buffer, 0, read));
+                body.write(buffer, 0, read);
+                position += read;
+            }
+        }
+    }
+
+    private static class AdaptiveGzipStream extends GZIPOutputStream {
+        AdaptiveGzipStream(OutputStream out) throws IOException {
+            super(out, BUFFER_SIZE);
+            def.setLevel(Deflater.BEST_SPEED);
+        }
+
+        void setCompressing(boolean compressing) {
+            def.setLevel(compressing ? Deflater.BEST_SPEED : Deflater.NO_COMPRESSION);
+        }
+    }
+
+    private static String weakTag(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    // Returns null when the header should be ignored, an empty list when no range is satisfiable,
+    // otherwise the ranges as inclusive [first, last] pairs, sorted and with overlapping or adjacent ones merged
+    private static List<long[]> parseRanges(String header, long size) {
+        header = header.trim();
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>();
+        for (String spec : specs) {
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            String start = spec.substring(0, dash).trim();
+            String end = spec.substring(dash + 1).trim();
+            long first;
+            long last;
+            try {
+                if (start.isEmpty()) {
+                    // "-n" asks for the last n bytes
+                    long suffix = Long.parseLong(end);
+                    if (suffix <= 0) {
+                        continue;
+                    }
+                    first = Math.max(0, size - suffix);
+                    last = size - 1;
+                } else {
+                    first = Long.parseLong(start);
+                    last = end.isEmpty() ? Long.MAX_VALUE : Long.parseLong(end);
+                    if (first < 0 || last < first) {
+                        return null;
+                    }
+                    last = Math.min(last, size - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (first < size) {
+                ranges.add(new long[]{first, last});
+            }
+        }
+        // Asking for more bytes than the file holds, e.g. "0-,0-,0-", would make a cheap request send the file many
+        // times over; the whole file is sent once instead, as RFC 9110 section 14.2 allows
+        long requested = 0;
+        for (long[] range : ranges) {
+            requested += range[1] - range[0] + 1;
+        }
+        if (requested > size) {
+            return null;
+        }
+        ranges.sort(Comparator.comparingLong(range -> range[0]));
+        List<long[]> merged = new ArrayList<>();
+        for (long[] range : ranges) {
+            long[] previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (previous != null && range[0] <= previous[1] + 1) {
+                previous[1] = Math.max(previous[1], range[1]);
+            } else {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+
+    private static void sendBody(HttpExchange exchange, File file, int status, long length, boolean head,
+                                 List<long[]> ranges, String boundary, long size) throws IOException {
+        if (head) {
+            // HttpServer never writes a body for HEAD, so the length has to be set by hand
+            exchange.getResponseHeaders().set("Content-Length", Long.toString(length));
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+        if (length == 0) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             OutputStream body = exchange.getResponseBody()) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (long[] range : ranges) {
+                if (boundary != null) {
+                    body.write(partHeader(boundary, range, size));
+                }
+                copy(channel, range[0], range[1] - range[0] + 1, buffer, body);
+            }
+            if (boundary != null) {
+                body.write(multipartEnd(boundary));
+            }
+        }
+    }
+
+    // The exchange only offers an OutputStream, so the file is read positionally in large blocks rather than
+    // handed to the socket with transferTo
+    private static void copy(FileChannel channel, long position, long count, byte[] buffer, OutputStream body)
+            throws IOException {
+        long end = position + count;
+        while (position < end) {
+            ByteBuffer block = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, end - position));
+            int read = channel.read(block, position);
+            if (read < 0) {
+                throw new IOException("File was truncated while it was being served.");
+            }
+            body.write(buffer, 0, read);
+            position += read;
+        }
+    }
+
+    private static byte[] partHeader(String boundary, long[] range, long size) {
+        return ("\r\n--" + boundary + "\r\n"
+                + "Content-Type: " + CONTENT_TYPE + "\r\n"
+                + "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + size + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] multipartEnd(String boundary) {
+        return ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static Long parseDate(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+}
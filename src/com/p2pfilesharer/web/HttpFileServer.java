@@ -1,73 +1,194 @@
 package com.p2pfilesharer.web;
 
+import com.p2pfilesharer.bandwidth.BandwidthShaper;
+import com.p2pfilesharer.metrics.MetricsHandler;
+import com.p2pfilesharer.metrics.TransferMetrics;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class HttpFileServer {
 
+    // Downloads served at once by the default pool; up to MAX_QUEUED_REQUESTS more wait for a free thread
+    private static final int MAX_HANDLER_THREADS = 64;
+    private static final int MAX_QUEUED_REQUESTS = 256;
+    // Beyond that, these threads only answer 503; when they are behind too, the connection is closed
+    private static final int BUSY_THREADS = 2;
+    private static final int RETRY_AFTER_SECONDS = 5;
+    private static final ThreadLocal<Boolean> BUSY = ThreadLocal.withInitial(() -> false);
+
     private HttpServer server;
     private final File fileToSend;
+    private final FileCatalog catalog;
     private final int port;
+    private Executor executor;
+    private ExecutorService ownExecutor;
+    private ExecutorService busyExecutor;
 
+    // Serves a single file at /download
     public HttpFileServer(File fileToSend, int port) {
         this.fileToSend = fileToSend;
+        this.catalog = null;
         this.port = port;
     }
 
+    // Serves every file of the catalog at /files/{id}, with a JSON index at /files
+    public HttpFileServer(FileCatalog catalog, int port) {
+        this.fileToSend = null;
+        this.catalog = catalog;
+        this.port = port;
+    }
+
+    // Runs requests on the given executor. By default MAX_HANDLER_THREADS requests are served at once,
+    // MAX_QUEUED_REQUESTS more wait for a thread, and further ones are answered 503 Service Unavailable.
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
     public void start() throws IOException {
         server = HttpServer.create(new InetSocketAddress(port), 0);
 
-        server.createContext("/download", new FileDownloadHandler());
-
-        server.setExecutor(null);
+        HttpContext content = catalog != null
+                ? server.createContext("/files", new CatalogHandler())
+                : server.createContext("/download", new FileDownloadHandler());
+        content.getFilters().add(new BusyFilter());
+        server.createContext(MetricsHandler.PATH, new MetricsHandler()).getFilters().add(new BusyFilter());
+
+        if (executor == null) {
+            // Not virtual threads: the JDK server writes responses while holding a lock, so a slow client would pin
+            // the carrier and stall every other virtual thread in the process. A rejected request would only have
+            // its connection closed by the JDK server, so overflow goes to threads that answer 503 instead.
+            ThreadPoolExecutor busy = new ThreadPoolExecutor(BUSY_THREADS, BUSY_THREADS, 30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(MAX_QUEUED_REQUESTS), worker -> new Thread(() -> {
+                        BUSY.set(true);
+                        worker.run();
+                    }, "http-busy"));
+            busy.allowCoreThreadTimeOut(true);
+            busyExecutor = busy;
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_HANDLER_THREADS, MAX_HANDLER_THREADS,
+                    30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(MAX_QUEUED_REQUESTS),
+                    (request, full) -> busy.execute(request));
+            pool.allowCoreThreadTimeOut(true);
+            ownExecutor = pool;
+        }
+        server.setExecutor(executor != null ? executor : ownExecutor);
 
         new Thread(server::start).start();
 
-        System.out.println("HTTP Server started on port " + port + ". Ready to serve the file.");
+        System.out.println("HTTP Server started on port " + port + ". Ready to serve "
+                + (catalog != null ? catalog.size() + " files." : "the file."));
 
     }
 
     public void stop() {
         if (server != null) {
             server.stop(0);
+            if (ownExecutor != null) {
+                ownExecutor.shutdownNow();
+                busyExecutor.shutdownNow();
+                ownExecutor = null;
+                busyExecutor = null;
+            }
             System.out.println("HTTP Server stopped");
         }
     }
 
+    private static void serve(HttpExchange exchange, File file) {
+        try {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            System.out.println("Client connected: " + exchange.getRemoteAddress() + ". Starting download of "
+                    + file.getName() + (range != null ? " (" + range + ")" : "") + "...");
+            String peer = exchange.getRemoteAddress().getAddress().getHostAddress();
+            exchange.setStreams(null, TransferMetrics.counting(
+                    BandwidthShaper.global().wrap(exchange.getResponseBody(), peer), TransferMetrics.HTTP_BYTES_SENT));
+            FileResponse.send(exchange, file);
+            System.out.println("Download for " + exchange.getRemoteAddress() + " completed.");
+        } catch (IOException e) {
+            System.err.println("Error during file streaming: " + e.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // Requests that arrived while the default pool and its queue were full get a 503 instead of their handler
+    private static class BusyFilter extends Filter {
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            if (!BUSY.get()) {
+                chain.doFilter(exchange);
+                return;
+            }
+            try {
+                exchange.getResponseHeaders().set("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+                exchange.sendResponseHeaders(503, -1);
+            } finally {
+                exchange.close();
+            }
+        }
+
+        @Override
+        public String description() {
+            return "Answers 503 while every download thread is busy";
+        }
+    }
+
     private class FileDownloadHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) {
+            serve(exchange, fileToSend);
+        }
+    }
+
+    private class CatalogHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
-            exchange.getResponseHeaders().add("Content-Disposition", "attachment; filename=\"" + fileToSend.getName() + "\"");
-            exchange.sendResponseHeaders(200, fileToSend.length());
-            try (
-                OutputStream os = exchange.getResponseBody();
-                FileInputStream fis = new FileInputStream(fileToSend)
-            ) {
-                System.out.println("Client connected: " + exchange.getRemoteAddress() + ". Starting download...");
-
-                byte[] buffer = new byte[8192];
-                int count;
-                while ((count = fis.read(buffer)) != -1) {
-                    os.write(buffer, 0, count);
+            String id = exchange.getRequestURI().getPath().substring("/files".length());
+            if (id.startsWith("/")) {
+                id = id.substring(1);
+            }
+            if (!id.isEmpty()) {
+                FileCatalog.Entry entry = catalog.get(id);
+                if (entry != null && entry.getFile().isFile()) {
+                    serve(exchange, entry.getFile());
+                } else {
+                    sendText(exchange, 404, "text/plain; charset=utf-8", "No shared file with id " + id + "\n");
                 }
-                os.flush();
-                System.out.println("Download for " + exchange.getRemoteAddress() + " completed.");
+                return;
+            }
+            sendText(exchange, 200, "application/json; charset=utf-8", catalog.toJson());
+        }
 
-            } catch (IOException e) {
-                System.err.println("Error during file streaming: " + e.getMessage());
+        private void sendText(HttpExchange exchange, int status, String contentType, String text) throws IOException {
+            try {
+                byte[] body = text.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", contentType);
+                exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+                boolean head = exchange.getRequestMethod().equals("HEAD");
+                if (head) {
+                    exchange.getResponseHeaders().set("Content-Length", Integer.toString(body.length));
+                }
+                exchange.sendResponseHeaders(status, head ? -1 : body.length);
+                if (!head) {
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                }
             } finally {
                 exchange.close();
             }
         }
     }
 }
-
-